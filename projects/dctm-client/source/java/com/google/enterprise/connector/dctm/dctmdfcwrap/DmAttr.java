@@ -34,4 +34,9 @@ public class DmAttr implements IAttr {
   public int getDataType() {
     return idfAttr.getDataType();
   }
+
+  @Override
+  public boolean isRepeating() {
+    return idfAttr.isRepeating();
+  }
 }
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.dctm.dctmdfcwrap;
 
+import com.google.enterprise.connector.dctm.dfcwrap.FlightRecorderEvents;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
 import com.google.enterprise.connector.dctm.dfcwrap.ITime;
@@ -91,11 +92,18 @@ public class DmCollection implements ICollection {
       return peekResult;
     }
 
-    boolean isNext;
+    boolean isNext = false;
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.COLLECTION_NEXT);
     try {
       isNext = idfCollection.next();
     } catch (DfException e) {
       throw new RepositoryException(e);
+    } finally {
+      // The count is the number of rows read, so the call that finds
+      // the end of the collection counts for nothing.
+      event.setCount(isNext ? 1 : 0);
+      event.commit();
     }
     if (isNext) {
       numberOfRows++;
@@ -136,6 +144,31 @@ public class DmCollection implements ICollection {
     }
   }
 
+  @Override
+  public int getValueCount(String colName) throws RepositoryException {
+    if (didPeek) {
+      throw new IllegalStateException("Cannot access current row after hasNext()");
+    }
+    try {
+      return idfCollection.getValueCount(colName);
+    } catch (DfException e) {
+      throw new RepositoryException(e);
+    }
+  }
+
+  @Override
+  public IValue getRepeatingValue(String colName, int index)
+      throws RepositoryException {
+    if (didPeek) {
+      throw new IllegalStateException("Cannot access current row after hasNext()");
+    }
+    try {
+      return new DmValue(idfCollection.getRepeatingValue(colName, index));
+    } catch (DfException e) {
+      throw new RepositoryException(e);
+    }
+  }
+
   @Override
   public ITime getTime(String colName) throws RepositoryException {
     IDfTime dfTime = null;
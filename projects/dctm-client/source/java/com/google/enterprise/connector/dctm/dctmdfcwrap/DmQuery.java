@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.dctm.dctmdfcwrap;
 
+import com.google.enterprise.connector.dctm.dfcwrap.FlightRecorderEvents;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
 import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
@@ -61,10 +62,18 @@ public class DmQuery implements IQuery {
       logger.finest("value of IdfQuery " + idfQuery.getDQL());
 
     IDfCollection dfCollection;
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.QUERY);
     try {
       dfCollection = idfQuery.execute(idfSession, queryType);
     } catch (DfException de) {
       throw new RepositoryException(de);
+    } finally {
+      if (event.isEnabled()) {
+        event.setDocbase(dmSession.getDocbaseNameForEvent());
+        event.setQuery(idfQuery.getDQL());
+      }
+      event.commit();
     }
     return new DmCollection(dfCollection);
   }
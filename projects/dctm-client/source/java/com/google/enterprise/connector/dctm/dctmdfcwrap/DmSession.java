@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.dctm.dctmdfcwrap;
 
+import com.google.enterprise.connector.dctm.dfcwrap.FlightRecorderEvents;
 import com.google.enterprise.connector.dctm.dfcwrap.IId;
 import com.google.enterprise.connector.dctm.dfcwrap.IPersistentObject;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
@@ -84,6 +85,8 @@ public class DmSession implements ISession {
     IDfId idfId = dctmId.getidfId();
 
     IDfPersistentObject idfPersistentObject;
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.GET_OBJECT);
     try {
       idfPersistentObject = idfSession.getObject(idfId);
       if (idfPersistentObject instanceof IDfSysObject) {
@@ -99,6 +102,12 @@ public class DmSession implements ISession {
       }
     } catch (DfException de) {
       throw new RepositoryDocumentException(de);
+    } finally {
+      if (event.isEnabled()) {
+        event.setDocbase(getDocbaseNameForEvent());
+        event.setObjectId(idfId.getId());
+      }
+      event.commit();
     }
   }
 
@@ -107,6 +116,8 @@ public class DmSession implements ISession {
   public IPersistentObject getObjectByQualification(String qualification)
       throws RepositoryDocumentException {
     IDfPersistentObject idfPersistentObject;
+    FlightRecorderEvents.Event event = FlightRecorderEvents.begin(
+        FlightRecorderEvents.Type.GET_OBJECT_BY_QUALIFICATION);
     try {
       idfPersistentObject = idfSession.getObjectByQualification(qualification);
       if (idfPersistentObject == null) {
@@ -124,6 +135,12 @@ public class DmSession implements ISession {
       }
     } catch (DfException de) {
       throw new RepositoryDocumentException(de);
+    } finally {
+      if (event.isEnabled()) {
+        event.setDocbase(getDocbaseNameForEvent());
+        event.setQuery(qualification);
+      }
+      event.commit();
     }
   }
 
@@ -131,6 +148,18 @@ public class DmSession implements ISession {
     return idfSession;
   }
 
+  /**
+   * Gets the docbase name for a flight recorder event, or null if it
+   * is not available.
+   */
+  String getDocbaseNameForEvent() {
+    try {
+      return idfSession.getDocbaseName();
+    } catch (DfException de) {
+      return null;
+    }
+  }
+
   @Override
   public String getLoginTicketForUser(String username)
       throws RepositoryException {
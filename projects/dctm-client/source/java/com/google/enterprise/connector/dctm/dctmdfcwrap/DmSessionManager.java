@@ -139,4 +139,9 @@ public class DmSessionManager implements ISessionManager {
   public void clearIdentity(String docbase) {
     dfSessionManager.clearIdentity(docbase);
   }
+
+  @Override
+  public void flushSessions() {
+    dfSessionManager.flushSessions();
+  }
 }
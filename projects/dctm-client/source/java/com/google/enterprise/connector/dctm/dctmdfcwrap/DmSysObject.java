@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.dctm.dctmdfcwrap;
 
+import com.google.enterprise.connector.dctm.dfcwrap.FlightRecorderEvents;
 import com.google.enterprise.connector.dctm.dfcwrap.IAcl;
 import com.google.enterprise.connector.dctm.dfcwrap.IAttr;
 import com.google.enterprise.connector.dctm.dfcwrap.IFormat;
@@ -32,6 +33,9 @@ import com.documentum.fc.common.DfException;
 import com.documentum.fc.common.IDfAttr;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Logger;
 
 public class DmSysObject implements ISysObject {
@@ -80,14 +84,71 @@ public class DmSysObject implements ISysObject {
   @Override
   public ByteArrayInputStream getContent() throws RepositoryDocumentException {
     ByteArrayInputStream content = null;
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.GET_CONTENT);
     try {
       content = idfSysObject.getContent();
     } catch (DfException e) {
       throw new RepositoryDocumentException(e);
+    } finally {
+      if (event.isEnabled()) {
+        setContentEvent(event);
+        if (content != null) {
+          event.setBytes(content.available());
+        }
+      }
+      event.commit();
     }
     return content;
   }
 
+  @Override
+  public InputStream getContentStream(long spoolThreshold)
+      throws RepositoryDocumentException {
+    if (spoolThreshold < 0 || getContentSize() <= spoolThreshold) {
+      return getContent();
+    }
+
+    File file = null;
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.GET_CONTENT);
+    try {
+      file = File.createTempFile("dctm", ".content");
+      // In case the stream is never closed.
+      file.deleteOnExit();
+      idfSysObject.getFile(file.getPath());
+      logger.fine("Spooled content to " + file);
+      if (event.isEnabled()) {
+        event.setBytes(file.length());
+      }
+      InputStream content = new SpoolFileInputStream(file);
+      file = null;
+      return content;
+    } catch (DfException e) {
+      throw new RepositoryDocumentException(e);
+    } catch (IOException e) {
+      throw new RepositoryDocumentException(e);
+    } finally {
+      if (event.isEnabled()) {
+        setContentEvent(event);
+      }
+      event.commit();
+      if (file != null && !file.delete()) {
+        logger.warning("Unable to delete spool file " + file);
+      }
+    }
+  }
+
+  /** Sets the docbase and object ID of a content event. */
+  private void setContentEvent(FlightRecorderEvents.Event event) {
+    try {
+      event.setObjectId(idfSysObject.getObjectId().getId());
+      event.setDocbase(idfSysObject.getSession().getDocbaseName());
+    } catch (DfException e) {
+      // The event is recorded without them.
+    }
+  }
+
   @Override
   public String getACLDomain() throws RepositoryDocumentException {
     try {
@@ -0,0 +1,50 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm.dctmdfcwrap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * An input stream that reads a temporary spool file, and deletes the
+ * file when the stream is closed. The owner of the stream must close
+ * it. The file should also be marked with {@link File#deleteOnExit},
+ * so that it is removed when the JVM exits if it is never closed.
+ */
+class SpoolFileInputStream extends FileInputStream {
+  private static final Logger logger =
+      Logger.getLogger(SpoolFileInputStream.class.getName());
+
+  private final File file;
+
+  SpoolFileInputStream(File file) throws FileNotFoundException {
+    super(file);
+    this.file = file;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (file.exists() && !file.delete()) {
+        logger.warning("Unable to delete spool file " + file);
+      }
+    }
+  }
+}
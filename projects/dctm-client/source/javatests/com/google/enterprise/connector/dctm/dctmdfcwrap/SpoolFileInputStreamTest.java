@@ -0,0 +1,43 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm.dctmdfcwrap;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class SpoolFileInputStreamTest extends TestCase {
+  public void testClose() throws IOException {
+    File file = File.createTempFile("dctm", ".content");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[] { 1, 2, 3 });
+    } finally {
+      out.close();
+    }
+
+    InputStream in = new SpoolFileInputStream(file);
+    assertEquals(1, in.read());
+    assertTrue(file.exists());
+    in.close();
+    assertFalse(file.exists());
+
+    // Closing again is harmless.
+    in.close();
+  }
+}
@@ -0,0 +1,484 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.dfcwrap.IAcl;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
+import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory index of document ACLs, used to evaluate authorization
+ * requests without querying the repository. The index is loaded from
+ * the repository by {@link #rebuild} when the connector starts, and is
+ * then maintained by traversal: documents are added as their rows are
+ * read from the add query and removed as their deletions are read from
+ * the audit trail, and ACLs are added and removed as they are
+ * traversed. Decisions that the index cannot make, for example for
+ * documents or ACLs that have not been loaded yet, are left to the
+ * authorization query.
+ *
+ * <p>The evaluation mirrors the ACLs fed by {@link DctmAclList}: a
+ * user must be a member of every required group and of at least one
+ * group in a required group set, must not be named by an access
+ * restriction of read or less, and must be granted read permission
+ * directly, through a group, or through dm_world or dm_owner.
+ */
+class AclIndex {
+  private static final Logger logger =
+      Logger.getLogger(AclIndex.class.getName());
+
+  /** The user_privileges value of superusers, who can read anything. */
+  private static final int SUPERUSER_PRIVILEGES = 16;
+
+  /**
+   * The user_state value of active users. Other users cannot log in,
+   * so their decisions are left to the authorization query.
+   */
+  private static final int ACTIVE_USER_STATE = 0;
+
+  /**
+   * The attributes of a document that are read by {@link #putDocument},
+   * which the add query selects when the index is enabled.
+   */
+  static final List<String> DOCUMENT_COLUMNS =
+      ImmutableList.of("owner_name", "acl_domain", "acl_name");
+
+  /** The ACL and owner of a document. */
+  private static class IndexedDocument {
+    final String aclKey;
+    final String ownerName;
+
+    IndexedDocument(String aclKey, String ownerName) {
+      this.aclKey = aclKey;
+      this.ownerName = ownerName;
+    }
+  }
+
+  /** The accessors of an ACL that determine read permission. */
+  /* @VisibleForTesting */
+  static class IndexedAcl {
+    private final Set<String> users = new HashSet<String>();
+    private final Set<String> groups = new HashSet<String>();
+    private final Set<String> denyUsers = new HashSet<String>();
+    private final Set<String> denyGroups = new HashSet<String>();
+    private final Set<String> requiredGroups = new HashSet<String>();
+    private final Set<String> requiredGroupSet = new HashSet<String>();
+    private boolean world = false;
+    private boolean owner = false;
+    private boolean denyOwner = false;
+
+    /** True if the ACL names accessors that cannot be evaluated. */
+    private boolean unsupported = false;
+
+    IndexedAcl(IAcl acl) throws RepositoryException {
+      for (int i = 0; i < acl.getAccessorCount(); i++) {
+        String name = acl.getAccessorName(i);
+        int permitType = acl.getAccessorPermitType(i);
+        int permit = acl.getAccessorPermit(i);
+        boolean isGroup = acl.isGroup(i);
+        if (permitType == IAcl.DF_PERMIT_TYPE_REQUIRED_GROUP) {
+          requiredGroups.add(name);
+        } else if (permitType == IAcl.DF_PERMIT_TYPE_REQUIRED_GROUP_SET) {
+          requiredGroupSet.add(name);
+        } else if (name.equalsIgnoreCase("dm_group")) {
+          // The document's group is not indexed.
+          unsupported = true;
+        } else if (permitType == IAcl.DF_PERMIT_TYPE_ACCESS_RESTRICTION) {
+          if (permit <= IAcl.DF_PERMIT_READ) {
+            if (name.equalsIgnoreCase("dm_owner")) {
+              denyOwner = true;
+            } else if (isGroup || name.equalsIgnoreCase("dm_world")) {
+              denyGroups.add(name);
+            } else {
+              denyUsers.add(name);
+            }
+          }
+        } else if (permitType == IAcl.DF_PERMIT_TYPE_ACCESS_PERMIT) {
+          if (permit >= IAcl.DF_PERMIT_READ) {
+            if (name.equalsIgnoreCase("dm_world")) {
+              world = true;
+            } else if (name.equalsIgnoreCase("dm_owner")) {
+              owner = true;
+            } else if (isGroup) {
+              groups.add(name);
+            } else {
+              users.add(name);
+            }
+          }
+        }
+        // Extended permits and application permits do not affect
+        // read permission.
+      }
+    }
+
+    /**
+     * Evaluates read permission.
+     *
+     * @param membership the user and groups
+     * @param ownerName the document owner, or null if it is not known
+     * @return the decision, or null if it cannot be made
+     */
+    Boolean isPermitted(Membership membership, String ownerName) {
+      if (unsupported) {
+        return null;
+      }
+      Set<String> memberOf = membership.groups;
+      if (!memberOf.containsAll(requiredGroups)) {
+        return false;
+      }
+      if (!requiredGroupSet.isEmpty()
+          && Collections.disjoint(memberOf, requiredGroupSet)) {
+        return false;
+      }
+
+      boolean isOwner = false;
+      if (owner || denyOwner) {
+        if (ownerName == null) {
+          return null;
+        }
+        isOwner = ownerName.equals(membership.userName);
+      }
+      if (denyUsers.contains(membership.userName)
+          || denyGroups.contains("dm_world")
+          || !Collections.disjoint(memberOf, denyGroups)
+          || (isOwner && denyOwner)) {
+        return false;
+      }
+      return world || (isOwner && owner)
+          || users.contains(membership.userName)
+          || !Collections.disjoint(memberOf, groups);
+    }
+  }
+
+  /**
+   * The Documentum user name and groups of an authenticated user. If
+   * the user name is null, decisions for the user cannot be made by
+   * the index.
+   */
+  /* @VisibleForTesting */
+  static class Membership {
+    final String userName;
+    final Set<String> groups;
+
+    Membership(String userName, Set<String> groups) {
+      this.userName = userName;
+      this.groups = groups;
+    }
+  }
+
+  private final ConcurrentHashMap<String, IndexedDocument> documents =
+      new ConcurrentHashMap<String, IndexedDocument>();
+
+  /**
+   * The ACLs, keyed by domain and name, because documents name their
+   * ACL rather than referring to its object ID.
+   */
+  private final ConcurrentHashMap<String, IndexedAcl> acls =
+      new ConcurrentHashMap<String, IndexedAcl>();
+
+  /** The keys of the ACLs, by r_object_id, used to remove them. */
+  private final ConcurrentHashMap<String, String> aclKeys =
+      new ConcurrentHashMap<String, String>();
+
+  private final ExpiringCache<String, Membership> memberships;
+
+  /**
+   * Constructs an empty index.
+   *
+   * @param membershipCapacity the maximum number of users to cache
+   *     group memberships for
+   * @param membershipTtlMillis the time to keep the group memberships
+   *     of a user, in milliseconds
+   */
+  AclIndex(int membershipCapacity, long membershipTtlMillis) {
+    this(membershipCapacity, membershipTtlMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  AclIndex(int membershipCapacity, long membershipTtlMillis, Clock clock) {
+    this.memberships = new ExpiringCache<String, Membership>(
+        membershipCapacity, membershipTtlMillis, clock);
+  }
+
+  private static String getAclKey(String domain, String name) {
+    return domain + "/" + name;
+  }
+
+  /**
+   * Records the ACL and owner of a document.
+   *
+   * @param chronicleId the chronicle ID of the document
+   * @param aclDomain the acl_domain of the document
+   * @param aclName the acl_name of the document
+   * @param ownerName the owner of the document, or null if it is not
+   *     known
+   */
+  void putDocument(String chronicleId, String aclDomain, String aclName,
+      String ownerName) {
+    documents.put(chronicleId,
+        new IndexedDocument(getAclKey(aclDomain, aclName), ownerName));
+  }
+
+  private static IndexedDocument readDocument(ICollection row)
+      throws RepositoryException {
+    return new IndexedDocument(
+        getAclKey(row.getString("acl_domain"), row.getString("acl_name")),
+        row.getString("owner_name"));
+  }
+
+  /**
+   * Records the ACL and owner of a document from a row of the add
+   * query. If the row does not have the {@link #DOCUMENT_COLUMNS}, the
+   * document is removed, to be authorized by query.
+   *
+   * @param chronicleId the chronicle ID of the document
+   * @param row a collection positioned on the document's row
+   */
+  void putDocument(String chronicleId, ICollection row) {
+    try {
+      documents.put(chronicleId, readDocument(row));
+    } catch (RepositoryException e) {
+      logger.log(Level.FINE, "Unable to index the ACL of " + chronicleId, e);
+      documents.remove(chronicleId);
+    }
+  }
+
+  /** Removes a deleted document. */
+  void removeDocument(String chronicleId) {
+    documents.remove(chronicleId);
+  }
+
+  /**
+   * Records the accessors of an ACL.
+   *
+   * @param aclId the r_object_id of the ACL
+   * @param acl the ACL
+   */
+  void putAcl(String aclId, IAcl acl) {
+    try {
+      String key = getAclKey(acl.getDomain(), acl.getObjectName());
+      acls.put(key, new IndexedAcl(acl));
+      String oldKey = aclKeys.put(aclId, key);
+      if (oldKey != null && !oldKey.equals(key)) {
+        acls.remove(oldKey);
+      }
+    } catch (RepositoryException e) {
+      // Without the new accessors, the old ones must not be used.
+      logger.log(Level.FINE, "Unable to index ACL " + aclId, e);
+      removeAcl(aclId);
+    }
+  }
+
+  /** Removes a destroyed ACL. */
+  void removeAcl(String aclId) {
+    String key = aclKeys.remove(aclId);
+    if (key != null) {
+      acls.remove(key);
+    }
+  }
+
+  /**
+   * Loads every ACL, and the ACL and owner of the documents selected by
+   * the given queries. Traversal resumes from its checkpoint after a
+   * restart, so without this the index would only cover the documents
+   * and ACLs changed since then. Entries that traversal has already
+   * recorded are newer, and are kept.
+   *
+   * @param clientX the client
+   * @param session a session that can read dm_acl and the documents
+   * @param documentQueries queries that select i_chronicle_id and the
+   *     {@link #DOCUMENT_COLUMNS} of the current versions of documents
+   */
+  void rebuild(IClientX clientX, ISession session,
+      List<String> documentQueries) throws RepositoryException {
+    int aclCount = 0;
+    ICollection collection = execute(clientX, session, "select "
+        + ProjectedAcl.SELECT_LIST + " from dm_acl order by r_object_id");
+    try {
+      while (collection.next()) {
+        String aclId = collection.getString("r_object_id");
+        try {
+          IAcl acl = new ProjectedAcl(collection);
+          String key = getAclKey(acl.getDomain(), acl.getObjectName());
+          if (aclKeys.putIfAbsent(aclId, key) == null) {
+            acls.putIfAbsent(key, new IndexedAcl(acl));
+            aclCount++;
+          }
+        } catch (RepositoryException e) {
+          logger.log(Level.FINE, "Unable to index ACL " + aclId, e);
+        }
+      }
+    } finally {
+      collection.close();
+    }
+
+    int documentCount = 0;
+    for (String dql : documentQueries) {
+      collection = execute(clientX, session, dql);
+      try {
+        while (collection.next()) {
+          String chronicleId = collection.getString("i_chronicle_id");
+          try {
+            if (documents.putIfAbsent(chronicleId,
+                    readDocument(collection)) == null) {
+              documentCount++;
+            }
+          } catch (RepositoryException e) {
+            logger.log(Level.FINE,
+                "Unable to index the ACL of " + chronicleId, e);
+          }
+        }
+      } finally {
+        collection.close();
+      }
+    }
+    logger.info("Loaded " + aclCount + " ACLs and " + documentCount
+        + " documents into the ACL index");
+  }
+
+  /** Gets the number of indexed documents. */
+  int getDocumentCount() {
+    return documents.size();
+  }
+
+  /** Gets the number of indexed ACLs. */
+  int getAclCount() {
+    return acls.size();
+  }
+
+  /**
+   * Evaluates read permission for a document.
+   *
+   * @param chronicleId the chronicle ID of the document
+   * @param membership the user and groups, from {@link #getMembership}
+   * @return the decision, or null if it cannot be made by the index
+   */
+  Boolean isPermitted(String chronicleId, Membership membership) {
+    if (membership == null) {
+      return null;
+    }
+    IndexedDocument document = documents.get(chronicleId);
+    if (document == null) {
+      return null;
+    }
+    IndexedAcl acl = acls.get(document.aclKey);
+    if (acl == null) {
+      return null;
+    }
+    return acl.isPermitted(membership, document.ownerName);
+  }
+
+  /**
+   * Gets the Documentum user name and groups of a user.
+   *
+   * @param clientX the client
+   * @param session a session that can read dm_user and dm_group
+   * @param userLoginName the login name of the user
+   * @return the membership, or null if the user cannot be evaluated by
+   *     the index, because the login name is not unique or the user is
+   *     a superuser or is not active
+   */
+  Membership getMembership(IClientX clientX, ISession session,
+      String userLoginName) throws RepositoryException {
+    Membership membership = memberships.get(userLoginName);
+    if (membership != null) {
+      return (membership.userName == null) ? null : membership;
+    }
+
+    String userName = lookupUserName(clientX, session, userLoginName);
+    membership = new Membership(userName,
+        (userName == null) ? ImmutableSet.<String>of()
+            : lookupGroups(clientX, session, userName));
+    memberships.put(userLoginName, membership);
+    return (userName == null) ? null : membership;
+  }
+
+  /**
+   * Gets the user name for a login name, or null if the login name is
+   * not unique or the user is a superuser or is not active.
+   */
+  private String lookupUserName(IClientX clientX, ISession session,
+      String userLoginName) throws RepositoryException {
+    String userName = null;
+    ICollection users = execute(clientX, session,
+        "select user_name, user_privileges, user_state from dm_user "
+        + "where user_login_name = '" + DqlUtils.escapeString(userLoginName)
+        + "'");
+    try {
+      while (users.next()) {
+        if (userName != null) {
+          logger.fine("Login name " + userLoginName + " is not unique");
+          return null;
+        }
+        userName = users.getString("user_name");
+        String privileges = users.getString("user_privileges");
+        if (privileges != null && privileges.length() > 0
+            && Integer.parseInt(privileges) >= SUPERUSER_PRIVILEGES) {
+          logger.fine("User " + userLoginName + " is a superuser");
+          return null;
+        }
+        String state = users.getString("user_state");
+        if (state != null && state.length() > 0
+            && Integer.parseInt(state) != ACTIVE_USER_STATE) {
+          logger.fine("User " + userLoginName + " is not active");
+          return null;
+        }
+      }
+    } finally {
+      users.close();
+    }
+    if (userName == null) {
+      logger.fine("Login name " + userLoginName + " was not found");
+    }
+    return userName;
+  }
+
+  /** Gets the groups that a user is a direct or indirect member of. */
+  private Set<String> lookupGroups(IClientX clientX, ISession session,
+      String userName) throws RepositoryException {
+    Set<String> groups = new HashSet<String>();
+    ICollection collection = execute(clientX, session,
+        "select group_name from dm_group where any i_all_users_names = '"
+        + DqlUtils.escapeString(userName) + "'");
+    try {
+      while (collection.next()) {
+        groups.add(collection.getString("group_name"));
+      }
+    } finally {
+      collection.close();
+    }
+    return groups;
+  }
+
+  private static ICollection execute(IClientX clientX, ISession session,
+      String dql) throws RepositoryException {
+    IQuery query = clientX.getQuery();
+    query.setDQL(dql);
+    return query.execute(session, IQuery.EXECUTE_READ_QUERY);
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+/**
+ * A least recently used cache of authorization decisions, keyed by
+ * user name and chronicle ID, with a time to live. Changes to
+ * permissions are not seen until the cached decisions expire, so the
+ * time to live should be short.
+ */
+class AuthorizationCache {
+  private final ExpiringCache<String, Boolean> cache;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param capacity the maximum number of decisions to cache, or 0 to
+   *     disable the cache
+   * @param ttlMillis the time to keep a decision, in milliseconds, or
+   *     0 to disable the cache
+   */
+  AuthorizationCache(int capacity, long ttlMillis) {
+    this(capacity, ttlMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  AuthorizationCache(int capacity, long ttlMillis, Clock clock) {
+    this.cache = new ExpiringCache<String, Boolean>(capacity, ttlMillis, clock);
+  }
+
+  /** Returns true if decisions are cached. */
+  boolean isEnabled() {
+    return cache.isEnabled();
+  }
+
+  /** User names cannot contain a NUL, so the keys are unambiguous. */
+  private static String getKey(String username, String docid) {
+    return username + '\0' + docid;
+  }
+
+  /**
+   * Gets a cached decision.
+   *
+   * @param username the canonical user name
+   * @param docid the chronicle ID
+   * @return the decision, or null if it is not in the cache or it has
+   *     expired
+   */
+  Boolean get(String username, String docid) {
+    return cache.get(getKey(username, docid));
+  }
+
+  /**
+   * Caches a decision.
+   *
+   * @param username the canonical user name
+   * @param docid the chronicle ID
+   * @param isAuthorized whether the user may read the document
+   */
+  void put(String username, String docid, boolean isAuthorized) {
+    cache.put(getKey(username, docid), isAuthorized);
+  }
+
+  /** Removes all decisions from the cache. */
+  void invalidateAll() {
+    cache.removeAll();
+  }
+
+  /** Gets the number of decisions in the cache. */
+  int size() {
+    return cache.size();
+  }
+
+  /** Gets the number of decisions that were found in the cache. */
+  long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  /** Gets the number of decisions that were not in the cache. */
+  long getMissCount() {
+    return cache.getMissCount();
+  }
+}
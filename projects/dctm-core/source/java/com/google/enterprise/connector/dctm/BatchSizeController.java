@@ -0,0 +1,243 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dfcwrap.FlightRecorderEvents;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the number of rows to return from each type of traversal
+ * query, based on the measured cost of the query, the measured cost of
+ * each document, and the time remaining in the batch. The cost of the
+ * query is the time spent executing it, and is paid once per batch.
+ * The cost of a document is the elapsed time from the call to {@code
+ * nextDocument} that returned it to the next call, which includes the
+ * time the connector manager spends fetching its properties and
+ * content. The part of that spent inside {@code nextDocument}, fetching
+ * the next row and object from the docbase, is also measured, and
+ * reported separately.
+ */
+class BatchSizeController {
+  private static final Logger logger =
+      Logger.getLogger(BatchSizeController.class.getName());
+
+  /** The traversal queries whose batch sizes are controlled. */
+  enum QueryType { ADD, DELETE, ACL }
+
+  /** The weight of each new measurement in the moving average. */
+  private static final double ALPHA = 0.2;
+
+  /**
+   * The fraction of the remaining time to fill with documents, leaving
+   * room for the variance in document costs.
+   */
+  private static final double TARGET_FRACTION = 0.5;
+
+  /** The smallest batch size to choose, unless the batch hint is smaller. */
+  /* @VisibleForTesting */
+  static final int MIN_BATCH_SIZE = 10;
+
+  /** The moving average of the cost of each type of document, in nanos. */
+  private final Map<QueryType, Double> averageNanos =
+      new EnumMap<QueryType, Double>(QueryType.class);
+
+  /**
+   * The moving average of the time spent in {@code nextDocument} for
+   * each type of document, in nanos.
+   */
+  private final Map<QueryType, Double> averageFetchNanos =
+      new EnumMap<QueryType, Double>(QueryType.class);
+
+  /** The moving average of the cost of each type of query, in nanos. */
+  private final Map<QueryType, Double> averageQueryNanos =
+      new EnumMap<QueryType, Double>(QueryType.class);
+
+  /** The most recently chosen batch size for each type of query. */
+  private final Map<QueryType, Integer> batchSizes =
+      new EnumMap<QueryType, Integer>(QueryType.class);
+
+  /**
+   * Records the cost of a single document.
+   *
+   * @param type the type of query that the document came from
+   * @param nanos the elapsed time spent on the document
+   */
+  synchronized void record(QueryType type, long nanos) {
+    update(averageNanos, type, nanos);
+  }
+
+  /**
+   * Records the time spent in {@code nextDocument} returning a single
+   * document, which is part of the cost passed to {@link #record}.
+   *
+   * @param type the type of query that the document came from
+   * @param nanos the elapsed time spent fetching the document
+   */
+  synchronized void recordFetch(QueryType type, long nanos) {
+    update(averageFetchNanos, type, nanos);
+  }
+
+  /**
+   * Records the cost of executing a query.
+   *
+   * @param type the type of query
+   * @param nanos the elapsed time spent executing the query
+   */
+  synchronized void recordQuery(QueryType type, long nanos) {
+    update(averageQueryNanos, type, nanos);
+  }
+
+  private static void update(Map<QueryType, Double> averages,
+      QueryType type, long nanos) {
+    Double average = averages.get(type);
+    averages.put(type,
+        (average == null) ? nanos : ALPHA * nanos + (1 - ALPHA) * average);
+  }
+
+  /**
+   * Gets the number of rows to return from a query.
+   *
+   * @param type the type of query
+   * @param batchHint the batch hint from the connector manager, which
+   *     is used as the upper bound
+   * @param remainingNanos the time remaining in the batch, including
+   *     the time to execute the query, or a negative number if there
+   *     is no time limit
+   * @return the batch size, or {@code batchHint} if it is not
+   *     positive or there are no measurements yet
+   */
+  synchronized int getBatchSize(QueryType type, int batchHint,
+      long remainingNanos) {
+    Double average = averageNanos.get(type);
+    int batchSize;
+    if (batchHint <= 0 || average == null || remainingNanos < 0) {
+      batchSize = batchHint;
+    } else {
+      Double query = averageQueryNanos.get(type);
+      double available = remainingNanos * TARGET_FRACTION
+          - ((query == null) ? 0.0 : query);
+      long size = (long) (Math.max(available, 0.0) / Math.max(average, 1.0));
+      size = Math.max(size, Math.min(MIN_BATCH_SIZE, batchHint));
+      batchSize = (int) Math.min(size, batchHint);
+    }
+    batchSizes.put(type, batchSize);
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Batch size for " + type + " query: " + batchSize);
+    }
+    return batchSize;
+  }
+
+  /**
+   * Gets the most recently chosen batch size for a type of query, or
+   * -1 if none has been chosen.
+   */
+  synchronized int getLastBatchSize(QueryType type) {
+    Integer batchSize = batchSizes.get(type);
+    return (batchSize == null) ? -1 : batchSize;
+  }
+
+  /**
+   * Gets the average cost of a document from a type of query, in
+   * milliseconds, or -1 if there are no measurements.
+   */
+  synchronized double getAverageMillis(QueryType type) {
+    return toMillis(averageNanos.get(type));
+  }
+
+  /**
+   * Gets the average time spent in {@code nextDocument} for a type of
+   * document, in milliseconds, or -1 if there are no measurements.
+   */
+  synchronized double getAverageFetchMillis(QueryType type) {
+    return toMillis(averageFetchNanos.get(type));
+  }
+
+  /**
+   * Gets the average cost of a type of query, in milliseconds, or -1
+   * if there are no measurements.
+   */
+  synchronized double getAverageQueryMillis(QueryType type) {
+    return toMillis(averageQueryNanos.get(type));
+  }
+
+  private static double toMillis(Double nanos) {
+    return (nanos == null) ? -1 : nanos / 1000000.0;
+  }
+
+  /**
+   * Measures the documents returned by a single document list, and
+   * records the list as a traversal batch event that ends when the list
+   * is checkpointed.
+   */
+  class DocumentTimer {
+    private final String docbase;
+    private final FlightRecorderEvents.Event batchEvent =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.TRAVERSAL_BATCH);
+    private int returnedCount = 0;
+    private boolean ended = false;
+    private QueryType pendingType = null;
+    private long pendingStart;
+    private long callStart;
+
+    DocumentTimer(String docbase) {
+      this.docbase = docbase;
+    }
+
+    /** Marks the start of a call to {@code nextDocument}. */
+    void begin() {
+      callStart = System.nanoTime();
+      end(callStart);
+    }
+
+    /** Marks the return of a document from {@code nextDocument}. */
+    void returned(QueryType type) {
+      recordFetch(type, System.nanoTime() - callStart);
+      returnedCount++;
+      pendingType = type;
+      pendingStart = callStart;
+    }
+
+    /** Marks the end of the document list. */
+    void end() {
+      end(System.nanoTime());
+      if (!ended) {
+        ended = true;
+        batchEvent.setDocbase(docbase);
+        batchEvent.setCount(returnedCount);
+        batchEvent.commit();
+      }
+    }
+
+    private void end(long now) {
+      if (pendingType != null) {
+        record(pendingType, now - pendingStart);
+        pendingType = null;
+      }
+    }
+  }
+
+  /**
+   * Gets a new timer for the documents of a document list.
+   *
+   * @param docbase the docbase of the document list
+   */
+  DocumentTimer newTimer(String docbase) {
+    return new DocumentTimer(docbase);
+  }
+}
@@ -55,6 +55,21 @@ class Checkpoint {
   /** The old JSON deletion timestamp, based on dm_audittrail.time_stamp. */
   private static final String DEL_DATE_OLD = "lastRemoveDate";
 
+  /** The JSON object holding the state of a partitioned traversal. */
+  private static final String PARTITIONS = "partitions";
+
+  /** The upper bounds of the partitions, based on r_modify_date. */
+  private static final String PART_BOUNDS = "bounds";
+
+  /** The finished partitions. */
+  private static final String PART_DONE = "done";
+
+  /**
+   * An object ID lower than any real one, used with a partition's lower
+   * bound to start its traversal at the beginning of that date.
+   */
+  private static final String MIN_OBJECT_ID = "0000000000000000";
+
   /** The JSON insertion ID, based on dm_acl.r_object_id. */
   private static final String ACL_ID = "aclid";
 
@@ -137,6 +152,39 @@ class Checkpoint {
   private String oldAclModifyId;
   private String oldAclModifyDate;
 
+  /**
+   * The insert index being traversed in partitions, or -1 if there is
+   * no partitioned traversal.
+   */
+  private int partitionIndex = -1;
+
+  /**
+   * The exclusive upper bounds on r_modify_date of each partition but
+   * the last, which is open-ended.
+   */
+  private List<String> partitionBounds;
+
+  /** r_object_id of the last item inserted in each partition. */
+  private List<String> partitionId;
+
+  /** r_modify_date of the last item inserted in each partition. */
+  private List<String> partitionDate;
+
+  /** Whether each partition has been traversed to its upper bound. */
+  private List<Boolean> partitionDone;
+
+  /**
+   * The partition traversed by a copy of a checkpoint, or -1 if this
+   * is not a partition copy.
+   */
+  private int partition = -1;
+
+  /** The exclusive upper bound of the partition traversed by a copy. */
+  private String partitionUpperBound;
+
+  /** True if the delete query should not be run with this checkpoint. */
+  private boolean skipDeletes = false;
+
   private enum LastAction { NONE, ADD, DELETE }
   private LastAction lastAction = LastAction.NONE;
 
@@ -234,6 +282,10 @@ class Checkpoint {
       insertIndexModulus = whereClause.size();
       nextInsertIndex = incrementModulo(insertIndex, insertIndexModulus);
 
+      if (jo.has(PARTITIONS)) {
+        parsePartitions(jo.getJSONObject(PARTITIONS), insertId.size());
+      }
+
       deleteId = getJsonString(jo, DEL_ID);
       deleteDate = getJsonString(jo, DEL_DATE);
       if (deleteDate == null) {
@@ -273,6 +325,248 @@ class Checkpoint {
     oldDeleteDate = deleteDate;
   }
 
+  /**
+   * Constructs a copy of a checkpoint positioned at the given insert
+   * index.
+   */
+  private Checkpoint(Checkpoint other, int index) {
+    insertIndexModulus = other.insertIndexModulus;
+    insertIndex = index;
+    startInsertIndex = index;
+    nextInsertIndex = incrementModulo(insertIndex, insertIndexModulus);
+
+    insertId = new ArrayList<String>(other.insertId);
+    insertDate = new ArrayList<String>(other.insertDate);
+    while (insertId.size() <= index) {
+      insertId.add(null);
+      insertDate.add(null);
+    }
+    aclId = other.aclId;
+    aclModifyId = other.aclModifyId;
+    aclModifyDate = other.aclModifyDate;
+    deleteId = other.deleteId;
+    deleteDate = other.deleteDate;
+
+    oldAclId = aclId;
+    if (insertIndex != -1) {
+      oldInsertId = getInsertId();
+      oldInsertDate = getInsertDate();
+    }
+    oldDeleteId = deleteId;
+    oldDeleteDate = deleteDate;
+    oldAclModifyId = aclModifyId;
+    oldAclModifyDate = aclModifyDate;
+  }
+
+  /**
+   * Gets a copy of this checkpoint positioned at the given
+   * insert index, so that the where clause with that index can be
+   * traversed independently of the others. The progress of the copy
+   * is merged back with {@link #merge}.
+   *
+   * @param index an insert index
+   * @return a new checkpoint
+   */
+  Checkpoint copyForInsertIndex(int index) {
+    return new Checkpoint(this, index);
+  }
+
+  /**
+   * Merges the insert checkpoint of a copy made by
+   * {@link #copyForInsertIndex} or {@link #copyForPartition} into this
+   * checkpoint. The delete checkpoint is also merged from the copy
+   * that ran the delete query.
+   *
+   * @param copy a copy of this checkpoint
+   */
+  void merge(Checkpoint copy) {
+    int index = copy.insertIndex;
+    if (index == -1) {
+      return;
+    }
+    if (copy.partition != -1) {
+      partitionId.set(copy.partition, copy.insertId.get(index));
+      partitionDate.set(copy.partition, copy.insertDate.get(index));
+    } else {
+      while (insertId.size() <= index) {
+        insertId.add(null);
+        insertDate.add(null);
+      }
+      insertId.set(index, copy.insertId.get(index));
+      insertDate.set(index, copy.insertDate.get(index));
+    }
+    if (copy.hasDeleteQuery()) {
+      deleteId = copy.deleteId;
+      deleteDate = copy.deleteDate;
+    }
+  }
+
+  /**
+   * Gets whether the delete query should be run with this checkpoint.
+   * The delete query is only run with the first where clause, and
+   * only with one of the partitions of that where clause.
+   */
+  boolean hasDeleteQuery() {
+    return insertIndex == 0 && !skipDeletes;
+  }
+
+  /**
+   * Starts a partitioned traversal of the current insert index. The
+   * first partition starts at the beginning and each of the others
+   * starts at the upper bound of the partition before it.
+   *
+   * @param bounds the r_modify_date values separating the partitions,
+   *     in increasing order
+   */
+  void startPartitions(List<String> bounds) {
+    int count = bounds.size() + 1;
+    partitionIndex = insertIndex;
+    partitionBounds = new ArrayList<String>(bounds);
+    partitionId = new ArrayList<String>(count);
+    partitionDate = new ArrayList<String>(count);
+    partitionDone = new ArrayList<Boolean>(count);
+    partitionId.add(null);
+    partitionDate.add(null);
+    for (String bound : bounds) {
+      partitionId.add(MIN_OBJECT_ID);
+      partitionDate.add(bound);
+    }
+    for (int i = 0; i < count; i++) {
+      partitionDone.add(Boolean.FALSE);
+    }
+  }
+
+  /**
+   * Gets the insert index being traversed in partitions, or -1 if
+   * there is no partitioned traversal.
+   */
+  int getPartitionIndex() {
+    return partitionIndex;
+  }
+
+  /** Gets the number of partitions, or zero if not partitioned. */
+  int getPartitionCount() {
+    return (partitionIndex == -1) ? 0 : partitionBounds.size() + 1;
+  }
+
+  /** Gets whether the given partition has reached its upper bound. */
+  boolean isPartitionDone(int partition) {
+    return partitionDone.get(partition);
+  }
+
+  /** Marks the given partition as having reached its upper bound. */
+  void setPartitionDone(int partition) {
+    partitionDone.set(partition, Boolean.TRUE);
+  }
+
+  /**
+   * Gets whether all of the bounded partitions have been traversed,
+   * so that only the open-ended last partition remains.
+   */
+  boolean isPartitionCaughtUp() {
+    return partitionIndex != -1 && !partitionDone.subList(0,
+        partitionBounds.size()).contains(Boolean.FALSE);
+  }
+
+  /**
+   * Ends a partitioned traversal, continuing the insert checkpoint of
+   * the partitioned index from the progress of the last partition.
+   */
+  void endPartitions() {
+    int last = partitionBounds.size();
+    insertId.set(partitionIndex, partitionId.get(last));
+    insertDate.set(partitionIndex, partitionDate.get(last));
+    if (insertIndex == partitionIndex) {
+      oldInsertId = getInsertId();
+      oldInsertDate = getInsertDate();
+    }
+    partitionIndex = -1;
+    partitionBounds = null;
+    partitionId = null;
+    partitionDate = null;
+    partitionDone = null;
+  }
+
+  /**
+   * Gets a copy of this checkpoint for traversing one partition of
+   * the current insert index. The progress of the copy is merged back
+   * with {@link #merge}.
+   *
+   * @param partition a partition number
+   * @param withDeletes true if the delete query should be run with
+   *     the copy
+   * @return a new checkpoint
+   */
+  Checkpoint copyForPartition(int partition, boolean withDeletes) {
+    Checkpoint copy = new Checkpoint(this, insertIndex);
+    copy.partition = partition;
+    if (partition < partitionBounds.size()) {
+      copy.partitionUpperBound = partitionBounds.get(partition);
+    }
+    copy.insertId.set(insertIndex, partitionId.get(partition));
+    copy.insertDate.set(insertIndex, partitionDate.get(partition));
+    copy.oldInsertId = copy.getInsertId();
+    copy.oldInsertDate = copy.getInsertDate();
+    copy.skipDeletes = !withDeletes;
+    return copy;
+  }
+
+  /**
+   * Gets the partition traversed by a copy of a checkpoint, or -1 if
+   * this is not a partition copy.
+   */
+  int getPartition() {
+    return partition;
+  }
+
+  /**
+   * Gets the exclusive upper bound on r_modify_date of the partition
+   * traversed by a copy, or null if the partition is open-ended.
+   */
+  String getPartitionUpperBound() {
+    return partitionUpperBound;
+  }
+
+  private void parsePartitions(JSONObject jo, int insertSize)
+      throws JSONException {
+    partitionIndex = jo.getInt(INS_INDEX);
+    JSONArray bounds = jo.getJSONArray(PART_BOUNDS);
+    JSONArray ids = jo.getJSONArray(INS_ID);
+    JSONArray dates = jo.getJSONArray(INS_DATE);
+    JSONArray done = jo.getJSONArray(PART_DONE);
+    int count = bounds.length() + 1;
+    if (partitionIndex < 0 || partitionIndex >= insertSize
+        || ids.length() != count || dates.length() != count
+        || done.length() != count) {
+      throw new IllegalArgumentException();
+    }
+    partitionBounds = new ArrayList<String>(count - 1);
+    for (int i = 0; i < count - 1; i++) {
+      partitionBounds.add(getJsonString(bounds, i));
+    }
+    partitionId = new ArrayList<String>(count);
+    partitionDate = new ArrayList<String>(count);
+    partitionDone = new ArrayList<Boolean>(count);
+    for (int i = 0; i < count; i++) {
+      partitionId.add(getJsonString(ids, i));
+      partitionDate.add(getJsonString(dates, i));
+      partitionDone.add(done.getBoolean(i));
+    }
+  }
+
+  /**
+   * Ends the current cycle through the where clauses, so that the
+   * next insert index is the ACL index. This is used when all of the
+   * where clauses have been traversed at once, and is treated as if
+   * the cycle started at index zero.
+   */
+  void skipToAclIndex() {
+    if (startInsertIndex > 0) {
+      startInsertIndex = 0;
+    }
+    nextInsertIndex = -1;
+  }
+
   /**
    * Gets a trimmed string value from a JSON object. If the value is
    * missing, null, or empty, return null.
@@ -502,6 +796,16 @@ class Checkpoint {
       jo.put(INS_ID, new JSONArray(insertId));
       jo.put(INS_DATE, new JSONArray(insertDate));
 
+      if (partitionIndex != -1) {
+        JSONObject partitions = new JSONObject();
+        partitions.put(INS_INDEX, partitionIndex);
+        partitions.put(PART_BOUNDS, new JSONArray(partitionBounds));
+        partitions.put(INS_ID, new JSONArray(partitionId));
+        partitions.put(INS_DATE, new JSONArray(partitionDate));
+        partitions.put(PART_DONE, new JSONArray(partitionDone));
+        jo.put(PARTITIONS, partitions);
+      }
+
       if (deleteId != null) {
         jo.put(DEL_ID, deleteId);
       }
@@ -0,0 +1,384 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for the stages of traversal,
+ * authentication and authorization, shared by the managers of a
+ * connector instance and optionally published as an MXBean.
+ */
+class ConnectorMetrics implements ConnectorMetricsMXBean {
+  private static final Logger logger =
+      Logger.getLogger(ConnectorMetrics.class.getName());
+
+  /** The measured stages. */
+  enum Stage {
+    ADD_QUERY, DELETE_QUERY, ACL_QUERY, ACL_MODIFY_QUERY, VERSIONS_QUERY,
+    FOLDER_QUERY, FETCH, CONTENT, PRINCIPAL_LOOKUP, CHECKPOINT,
+    AUTHENTICATE, AUTHORIZE
+  }
+
+  /**
+   * The upper bounds of the histogram buckets, in milliseconds. The
+   * last bucket is unbounded.
+   */
+  private static final long[] BUCKET_BOUNDS_MILLIS =
+      { 1, 10, 100, 1000, 10000 };
+
+  private static class StageStats {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+    final AtomicLongArray buckets =
+        new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+    void record(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      do {
+        max = maxNanos.get();
+      } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_MILLIS.length
+          && millis >= BUCKET_BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+    }
+
+    void reset() {
+      count.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+      for (int i = 0; i < buckets.length(); i++) {
+        buckets.set(i, 0);
+      }
+    }
+  }
+
+  private final String connectorName;
+  private final String docbase;
+
+  /**
+   * The stage statistics. The map is filled in by the constructor and
+   * never modified afterwards, so it may be read without locking.
+   */
+  private final Map<Stage, StageStats> stats =
+      new EnumMap<Stage, StageStats>(Stage.class);
+
+  private volatile PrincipalCache principalCache;
+  private volatile AuthorizationCache authorizationCache;
+  private volatile GroupCache groupCache;
+  private volatile CredentialCache credentialCache;
+  private volatile PooledSessionManager sessionPool;
+  private volatile SessionLeaseTracker sessionLeaseTracker;
+  private volatile DctmTraversalManager traversalManager;
+
+  private ObjectName objectName = null;
+
+  ConnectorMetrics(String connectorName, String docbase) {
+    this.connectorName = connectorName;
+    this.docbase = docbase;
+    for (Stage stage : Stage.values()) {
+      stats.put(stage, new StageStats());
+    }
+  }
+
+  /** Gets the start time of a measurement. */
+  long begin() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Records a measurement.
+   *
+   * @param stage the measured stage
+   * @param startNanos the start time returned by {@link #begin}
+   * @return the elapsed time, in nanoseconds
+   */
+  long end(Stage stage, long startNanos) {
+    long nanos = System.nanoTime() - startNanos;
+    stats.get(stage).record(nanos);
+    return nanos;
+  }
+
+  /** Sets the caches to report the hit and miss counts of. */
+  void setCaches(PrincipalCache principalCache,
+      AuthorizationCache authorizationCache, GroupCache groupCache,
+      CredentialCache credentialCache) {
+    this.principalCache = principalCache;
+    this.authorizationCache = authorizationCache;
+    this.groupCache = groupCache;
+    this.credentialCache = credentialCache;
+  }
+
+  /** Sets the session pool to report, or null if there is no pool. */
+  void setSessionPool(PooledSessionManager sessionPool) {
+    this.sessionPool = sessionPool;
+  }
+
+  void setSessionLeaseTracker(SessionLeaseTracker sessionLeaseTracker) {
+    this.sessionLeaseTracker = sessionLeaseTracker;
+  }
+
+  /**
+   * Sets the most recent traversal manager, to report its batch sizes
+   * and content memory.
+   */
+  void setTraversalManager(DctmTraversalManager traversalManager) {
+    this.traversalManager = traversalManager;
+  }
+
+  /**
+   * Registers this object with the platform MBean server, replacing
+   * any metrics previously registered for the connector instance.
+   * Errors are logged.
+   */
+  synchronized void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(
+          "com.google.enterprise.connector.dctm:type=ConnectorMetrics"
+          + ",connector=" + ObjectName.quote(String.valueOf(connectorName))
+          + ",docbase=" + ObjectName.quote(String.valueOf(docbase)));
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      objectName = name;
+      logger.config("Registered " + name);
+    } catch (JMException e) {
+      logger.log(Level.WARNING, "Unable to register the connector metrics",
+          e);
+    }
+  }
+
+  /** Unregisters this object, if it is registered. */
+  synchronized void unregister() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        logger.log(Level.FINE, "Unable to unregister " + objectName, e);
+      }
+      objectName = null;
+    }
+  }
+
+  /** Gets the registered name, or null if this object is unregistered. */
+  synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+
+  @Override
+  public String getConnectorName() {
+    return connectorName;
+  }
+
+  @Override
+  public String getDocbase() {
+    return docbase;
+  }
+
+  @Override
+  public Map<String, Long> getCounts() {
+    Map<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<Stage, StageStats> entry : stats.entrySet()) {
+      values.put(entry.getKey().toString(), entry.getValue().count.get());
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getTotalMillis() {
+    Map<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<Stage, StageStats> entry : stats.entrySet()) {
+      values.put(entry.getKey().toString(), TimeUnit.NANOSECONDS.toMillis(
+              entry.getValue().totalNanos.get()));
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getMaxMillis() {
+    Map<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<Stage, StageStats> entry : stats.entrySet()) {
+      values.put(entry.getKey().toString(), TimeUnit.NANOSECONDS.toMillis(
+              entry.getValue().maxNanos.get()));
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, long[]> getHistograms() {
+    Map<String, long[]> values = new TreeMap<String, long[]>();
+    for (Map.Entry<Stage, StageStats> entry : stats.entrySet()) {
+      AtomicLongArray buckets = entry.getValue().buckets;
+      long[] counts = new long[buckets.length()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = buckets.get(i);
+      }
+      values.put(entry.getKey().toString(), counts);
+    }
+    return values;
+  }
+
+  @Override
+  public long[] getHistogramBoundsMillis() {
+    return BUCKET_BOUNDS_MILLIS.clone();
+  }
+
+  @Override
+  public Map<String, Long> getCacheStatistics() {
+    Map<String, Long> values = new TreeMap<String, Long>();
+    PrincipalCache principals = principalCache;
+    if (principals != null) {
+      values.put("principalCache.hits", principals.getHitCount());
+      values.put("principalCache.misses", principals.getMissCount());
+    }
+    AuthorizationCache authorizations = authorizationCache;
+    if (authorizations != null) {
+      values.put("authzCache.hits", authorizations.getHitCount());
+      values.put("authzCache.misses", authorizations.getMissCount());
+    }
+    GroupCache groups = groupCache;
+    if (groups != null) {
+      values.put("groupCache.hits", groups.getHitCount());
+      values.put("groupCache.misses", groups.getMissCount());
+    }
+    CredentialCache credentials = credentialCache;
+    if (credentials != null) {
+      values.put("credentialCache.hits", credentials.getHitCount());
+      values.put("credentialCache.misses", credentials.getMissCount());
+    }
+    PooledSessionManager pool = sessionPool;
+    if (pool != null) {
+      values.put("sessionPool.active", (long) pool.getActiveCount());
+      values.put("sessionPool.idle", (long) pool.getIdleCount());
+      values.put("sessionPool.leases", pool.getLeaseCount());
+      values.put("sessionPool.waits", pool.getWaitCount());
+      values.put("sessionPool.totalWaitMillis", pool.getTotalWaitMillis());
+      values.put("sessionPool.maxWaitMillis", pool.getMaxWaitMillis());
+      values.put("sessionPool.timeouts", pool.getTimeoutCount());
+      values.put("sessionPool.evicted", pool.getEvictedCount());
+    }
+    SessionLeaseTracker leases = sessionLeaseTracker;
+    if (leases != null) {
+      values.put("sessionLeases.outstanding",
+          (long) leases.getOutstandingCount());
+      values.put("sessionLeases.reclaimed", leases.getReclaimedCount());
+    }
+    return values;
+  }
+
+  @Override
+  public String getSessionLeases() {
+    SessionLeaseTracker leases = sessionLeaseTracker;
+    return (leases == null) ? "" : leases.dump();
+  }
+
+  @Override
+  public Map<String, Integer> getBatchSizes() {
+    Map<String, Integer> values = new TreeMap<String, Integer>();
+    DctmTraversalManager manager = traversalManager;
+    if (manager != null) {
+      BatchSizeController controller = manager.getBatchSizeController();
+      for (BatchSizeController.QueryType type
+               : BatchSizeController.QueryType.values()) {
+        values.put(type.toString(), controller.getLastBatchSize(type));
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Double> getAverageDocumentMillis() {
+    Map<String, Double> values = new TreeMap<String, Double>();
+    DctmTraversalManager manager = traversalManager;
+    if (manager != null) {
+      BatchSizeController controller = manager.getBatchSizeController();
+      for (BatchSizeController.QueryType type
+               : BatchSizeController.QueryType.values()) {
+        values.put(type.toString(), controller.getAverageMillis(type));
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Double> getAverageFetchMillis() {
+    Map<String, Double> values = new TreeMap<String, Double>();
+    DctmTraversalManager manager = traversalManager;
+    if (manager != null) {
+      BatchSizeController controller = manager.getBatchSizeController();
+      for (BatchSizeController.QueryType type
+               : BatchSizeController.QueryType.values()) {
+        values.put(type.toString(), controller.getAverageFetchMillis(type));
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Double> getAverageQueryMillis() {
+    Map<String, Double> values = new TreeMap<String, Double>();
+    DctmTraversalManager manager = traversalManager;
+    if (manager != null) {
+      BatchSizeController controller = manager.getBatchSizeController();
+      for (BatchSizeController.QueryType type
+               : BatchSizeController.QueryType.values()) {
+        values.put(type.toString(), controller.getAverageQueryMillis(type));
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public long getContentReservedBytes() {
+    DctmTraversalManager manager = traversalManager;
+    return (manager == null)
+        ? 0L : manager.getContentMemoryGovernor().getReservedBytes();
+  }
+
+  @Override
+  public long getContentSpooledBytes() {
+    DctmTraversalManager manager = traversalManager;
+    return (manager == null)
+        ? 0L : manager.getContentMemoryGovernor().getSpooledBytes();
+  }
+
+  @Override
+  public void reset() {
+    for (StageStats stageStats : stats.values()) {
+      stageStats.reset();
+    }
+  }
+}
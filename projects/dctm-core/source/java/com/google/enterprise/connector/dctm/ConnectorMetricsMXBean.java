@@ -0,0 +1,96 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface of the metrics of a connector
+ * instance. The maps are keyed by stage name, such as
+ * {@code ADD_QUERY}, {@code FETCH}, or {@code AUTHORIZE}.
+ */
+public interface ConnectorMetricsMXBean {
+  /** Gets the name of the connector instance. */
+  String getConnectorName();
+
+  /** Gets the name of the docbase. */
+  String getDocbase();
+
+  /** Gets the number of calls to each stage. */
+  Map<String, Long> getCounts();
+
+  /** Gets the total time spent in each stage, in milliseconds. */
+  Map<String, Long> getTotalMillis();
+
+  /** Gets the longest call to each stage, in milliseconds. */
+  Map<String, Long> getMaxMillis();
+
+  /**
+   * Gets the latency histogram of each stage. Each element counts the
+   * calls that took less than the corresponding bound from {@link
+   * #getHistogramBoundsMillis}, and the last element counts the
+   * remaining calls.
+   */
+  Map<String, long[]> getHistograms();
+
+  /** Gets the upper bounds of the histogram buckets, in milliseconds. */
+  long[] getHistogramBoundsMillis();
+
+  /**
+   * Gets the hit and miss counts of the caches, and the counters of
+   * the session pool and session leases.
+   */
+  Map<String, Long> getCacheStatistics();
+
+  /**
+   * Describes the outstanding session leases, one per line, with the
+   * owner, thread, and age of each, for diagnosing leaked sessions.
+   */
+  String getSessionLeases();
+
+  /**
+   * Gets the most recent batch size chosen for each traversal query,
+   * or -1 if none has been chosen.
+   */
+  Map<String, Integer> getBatchSizes();
+
+  /**
+   * Gets the average cost of a document from each traversal query, in
+   * milliseconds, or -1 if there are no measurements.
+   */
+  Map<String, Double> getAverageDocumentMillis();
+
+  /**
+   * Gets the average time spent in {@code nextDocument} fetching a
+   * document from each traversal query, in milliseconds, or -1 if
+   * there are no measurements. This is part of the document cost.
+   */
+  Map<String, Double> getAverageFetchMillis();
+
+  /**
+   * Gets the average time spent executing each traversal query, in
+   * milliseconds, or -1 if there are no measurements.
+   */
+  Map<String, Double> getAverageQueryMillis();
+
+  /** Gets the number of bytes of content currently held in memory. */
+  long getContentReservedBytes();
+
+  /** Gets the number of bytes of content currently spooled to disk. */
+  long getContentSpooledBytes();
+
+  /** Resets the stage counters and histograms. */
+  void reset();
+}
@@ -0,0 +1,173 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of bytes of document content held in memory at
+ * once by a connector instance. Content that does not fit in the
+ * budget is spooled to disk instead. The reservation or spool usage
+ * of each document is released when its content stream is closed.
+ */
+class ContentMemoryGovernor {
+  private static final Logger logger =
+      Logger.getLogger(ContentMemoryGovernor.class.getName());
+
+  /** The maximum number of bytes in memory, or negative for no limit. */
+  private final long budget;
+
+  private long reservedBytes = 0;
+  private long peakReservedBytes = 0;
+  private long spooledBytes = 0;
+  private int spooledCount = 0;
+  private long totalSpooledCount = 0;
+
+  /**
+   * Constructs a governor.
+   *
+   * @param budget the maximum number of bytes of content to hold in
+   *     memory, or a negative number for no limit
+   */
+  ContentMemoryGovernor(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Reserves memory for content of the given size, if it fits in the
+   * budget. A successful reservation must be passed to
+   * {@link #trackMemory} to be released.
+   *
+   * @param size the content size in bytes
+   * @return true if the memory was reserved, or false if the content
+   *     should be spooled
+   */
+  synchronized boolean reserve(long size) {
+    if (budget >= 0 && reservedBytes + size > budget) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Content of " + size + " bytes exceeds the budget: "
+            + reservedBytes + " of " + budget + " bytes reserved");
+      }
+      return false;
+    }
+    reservedBytes += size;
+    peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+    return true;
+  }
+
+  /** Releases a reservation that will not be passed to trackMemory. */
+  void unreserve(long size) {
+    release(size, false);
+  }
+
+  /**
+   * Wraps a content stream read into memory, releasing the reservation
+   * when the stream is closed.
+   */
+  InputStream trackMemory(InputStream content, long size) {
+    if (content == null) {
+      unreserve(size);
+      return null;
+    }
+    return new TrackedInputStream(content, size, false);
+  }
+
+  /**
+   * Wraps a content stream spooled to disk, counting its size as
+   * spooled until the stream is closed.
+   */
+  InputStream trackSpool(InputStream content, long size) {
+    if (content == null) {
+      return null;
+    }
+    synchronized (this) {
+      spooledBytes += size;
+      spooledCount++;
+      totalSpooledCount++;
+    }
+    return new TrackedInputStream(content, size, true);
+  }
+
+  private synchronized void release(long size, boolean spooled) {
+    if (spooled) {
+      spooledBytes -= size;
+      spooledCount--;
+    } else {
+      reservedBytes -= size;
+    }
+  }
+
+  /** Gets the number of bytes of content currently held in memory. */
+  synchronized long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  /** Gets the largest number of bytes of content held in memory. */
+  synchronized long getPeakReservedBytes() {
+    return peakReservedBytes;
+  }
+
+  /** Gets the number of bytes of content currently spooled to disk. */
+  synchronized long getSpooledBytes() {
+    return spooledBytes;
+  }
+
+  /** Gets the number of documents whose content is currently spooled. */
+  synchronized int getSpooledCount() {
+    return spooledCount;
+  }
+
+  /** Gets the number of documents whose content has been spooled. */
+  synchronized long getTotalSpooledCount() {
+    return totalSpooledCount;
+  }
+
+  /**
+   * A content stream that releases its memory reservation or spool
+   * usage when it is closed. If the connector manager does not close
+   * it, the document list that returned the document does.
+   */
+  private class TrackedInputStream extends FilterInputStream {
+    private final long size;
+    private final boolean spooled;
+    private boolean released = false;
+
+    TrackedInputStream(InputStream in, long size, boolean spooled) {
+      super(in);
+      this.size = size;
+      this.spooled = spooled;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        releaseOnce();
+      }
+    }
+
+    private synchronized void releaseOnce() {
+      if (!released) {
+        released = true;
+        release(size, spooled);
+      }
+    }
+  }
+}
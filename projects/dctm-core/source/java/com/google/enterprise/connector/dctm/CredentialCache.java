@@ -0,0 +1,178 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * A least recently used cache of successful password verifications,
+ * with a time to live. Passwords are not stored; each entry holds a
+ * random salt and a PBKDF2 hash of the password, so a cached
+ * verification only matches the same password. The time to live
+ * should be short, because password changes and disabled accounts
+ * are not seen until the cached verifications expire.
+ */
+class CredentialCache {
+  private static final Logger logger =
+      Logger.getLogger(CredentialCache.class.getName());
+
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+  private static final int ITERATIONS = 1000;
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 160;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private static class Credential {
+    final byte[] salt;
+    final byte[] hash;
+    final String userName;
+
+    Credential(byte[] salt, byte[] hash, String userName) {
+      this.salt = salt;
+      this.hash = hash;
+      this.userName = userName;
+    }
+  }
+
+  private final ExpiringCache<String, Credential> cache;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param capacity the maximum number of users to cache, or 0 to
+   *     disable the cache
+   * @param ttlMillis the time to keep a verification, in milliseconds,
+   *     or 0 to disable the cache
+   */
+  CredentialCache(int capacity, long ttlMillis) {
+    this(capacity, ttlMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  CredentialCache(int capacity, long ttlMillis, Clock clock) {
+    this.cache =
+        new ExpiringCache<String, Credential>(capacity, ttlMillis, clock);
+  }
+
+  /** Returns true if verifications are cached. */
+  boolean isEnabled() {
+    return cache.isEnabled();
+  }
+
+  /**
+   * Gets the user name from a cached verification of the given
+   * password.
+   *
+   * @param username the login name that was verified
+   * @param password the password
+   * @return the authenticated user name, or null if the user is not in
+   *     the cache, the verification has expired, or the password does
+   *     not match
+   */
+  String verify(String username, String password) {
+    if (!isEnabled()) {
+      return null;
+    }
+    // A cached entry is only a hit if the password matches.
+    Credential entry = cache.peek(username);
+
+    // Hash outside of the lock, since it is meant to be slow.
+    byte[] hash = (entry == null) ? null : hash(password, entry.salt);
+    boolean matches = hash != null && MessageDigest.isEqual(entry.hash, hash);
+    synchronized (this) {
+      if (matches) {
+        hits++;
+        return entry.userName;
+      } else {
+        misses++;
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Caches a successful verification.
+   *
+   * @param username the login name that was verified
+   * @param password the password
+   * @param userName the authenticated user name
+   */
+  void put(String username, String password, String userName) {
+    if (!isEnabled()) {
+      return;
+    }
+    byte[] salt = new byte[SALT_BYTES];
+    random.nextBytes(salt);
+    byte[] hash = hash(password, salt);
+    if (hash != null) {
+      cache.put(username, new Credential(salt, hash, userName));
+    }
+  }
+
+  /** Removes the cached verification of a user, if any. */
+  void invalidate(String username) {
+    cache.remove(username);
+  }
+
+  /** Removes all verifications from the cache. */
+  void invalidateAll() {
+    cache.removeAll();
+  }
+
+  /** Gets the number of users in the cache. */
+  int size() {
+    return cache.size();
+  }
+
+  /** Gets the number of verifications that were found in the cache. */
+  synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** Gets the number of verifications that were not in the cache. */
+  synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Hashes a password with PBKDF2.
+   *
+   * @return the hash, or null if PBKDF2 is not available
+   */
+  private static byte[] hash(String password, byte[] salt) {
+    PBEKeySpec spec =
+        new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec)
+          .getEncoded();
+    } catch (GeneralSecurityException e) {
+      logger.log(Level.WARNING, "Unable to hash the password", e);
+      return null;
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
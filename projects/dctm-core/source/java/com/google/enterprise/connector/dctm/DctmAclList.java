@@ -16,10 +16,13 @@ package com.google.enterprise.connector.dctm;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.enterprise.connector.dctm.PrincipalCache.Kind;
+import com.google.enterprise.connector.dctm.PrincipalCache.ResolvedPrincipal;
 import com.google.enterprise.connector.dctm.dfcwrap.IAcl;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
 import com.google.enterprise.connector.dctm.dfcwrap.IGroup;
 import com.google.enterprise.connector.dctm.dfcwrap.IId;
+import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
 import com.google.enterprise.connector.dctm.dfcwrap.IUser;
 import com.google.enterprise.connector.spi.Document;
@@ -38,8 +41,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,6 +64,13 @@ public class DctmAclList implements DocumentList {
 
   private ISession session;
 
+  /**
+   * The lease on the session, which is released by {@link #close}. The
+   * public methods hold the list's lock, so that the watchdog cannot
+   * close the list while the connector manager is using it.
+   */
+  private final SessionLeaseTracker.Lease lease;
+
   private final ICollection collectionAcl;
   private final ICollection collectionAclToModify;
 
@@ -68,35 +82,83 @@ public class DctmAclList implements DocumentList {
 
   private Stack<Document> requiredGroupAclStack;
 
+  /** Measures the cost of the returned documents. */
+  private final BatchSizeController.DocumentTimer timer;
+
+  /** The maximum number of ACLs to read ahead from the collection. */
+  /* @VisibleForTesting */
+  static final int READ_AHEAD_SIZE = 100;
+
+  /** The maximum number of accessor names in a single IN condition. */
+  /* @VisibleForTesting */
+  static final int MAX_IN_SIZE = 400;
+
+  /** An ACL that has been read ahead from the collection. */
+  private static class PendingAcl {
+    final String objId;
+
+    /** The fetched ACL, or null to fetch it again when it is returned. */
+    final IAcl aclObj;
+
+    PendingAcl(String objId, IAcl aclObj) {
+      this.objId = objId;
+      this.aclObj = aclObj;
+    }
+  }
+
+  /** The ACLs to add that have been read ahead from the collection. */
+  private final LinkedList<PendingAcl> pendingAcls =
+      new LinkedList<PendingAcl>();
+
+  /** Whether reading ahead in the collection of ACLs to add failed. */
+  private boolean aclReadFailed = false;
+
   public DctmAclList(DctmTraversalManager traversalManager, ISession session,
       ICollection collAcl, ICollection collAclToModify,
       Checkpoint checkpoint) {
     this.traversalManager = traversalManager;
     this.session = session;
+    this.lease = traversalManager.getSessionLeaseTracker().track(
+        traversalManager.getSessionManager(), session, "DctmAclList",
+        new Runnable() {
+          @Override
+          public void run() {
+            close();
+          }
+        });
     this.collectionAcl = collAcl;
     this.collectionAclToModify = collAclToModify;
     this.checkpoint = checkpoint;
+    this.timer = traversalManager.getBatchSizeController()
+        .newTimer(traversalManager.getDocbase());
   }
 
   @Override
-  public Document nextDocument() throws RepositoryException {
+  public synchronized Document nextDocument() throws RepositoryException {
+    if (lease.isReclaimed()) {
+      throw new RepositoryException(
+          "The session for this document list was reclaimed");
+    }
     Document retAclDocument;
     Document retDoc = null;
     boolean skippingDoc = false;
+    timer.begin();
     try {
       while (retDoc == null) {
         if (requiredGroupAclStack != null
             && !requiredGroupAclStack.isEmpty()) {
           retDoc = requiredGroupAclStack.pop();
-        } else if (isOpen(collectionAcl) && collectionAcl.next()) {
+        } else if (readAheadAcls()) {
           logger.fine("Looking through the collection of ACLs to add");
 
-          String objId = "";
+          PendingAcl pending = pendingAcls.removeFirst();
+          String objId = pending.objId;
           try {
-            objId = collectionAcl.getString("r_object_id");
             logger.fine("ACL r_object_id is " + objId);
             checkpoint.setAclCheckpoint(objId);
-            IAcl aclObj = fetchAcl(objId);
+            IAcl aclObj =
+                (pending.aclObj == null) ? fetchAcl(objId) : pending.aclObj;
+            indexAcl(objId, aclObj);
             if (isRequiredGroupOrSet(aclObj)) {
               logger.log(Level.FINE,
                   "ACL {0} has required groups or required group set", objId);
@@ -113,6 +175,9 @@ public class DctmAclList implements DocumentList {
             logger.severe("impossible to get the r_object_id of the document");
             return null;
           }
+        } else if (aclReadFailed) {
+          logger.severe("impossible to get the r_object_id of the document");
+          return null;
         } else if (isOpen(collectionAclToModify)
             && collectionAclToModify.next()) {
           logger.fine("Looking through the collection of ACLs to modify");
@@ -137,8 +202,10 @@ public class DctmAclList implements DocumentList {
             logger.log(Level.FINE, "ACL to delete: {0}" + objIdModify);
             retAclDocument = getSecureAclDocument(null, objIdModify,
                 ActionType.DELETE);
+            indexAcl(objIdModify, null);
           } else {
             IAcl aclObj = fetchAcl(objIdModify);
+            indexAcl(objIdModify, aclObj);
             if (isRequiredGroupOrSet(aclObj)) {
               logger.log(Level.FINE, "ACL to modify: {0} has required groups "
                   + "or required group set", objIdModify);
@@ -174,20 +241,203 @@ public class DctmAclList implements DocumentList {
       throw re;
     } finally {
       if (retDoc == null && !skippingDoc) {
-        logger.fine("retDoc is null before finalize");
-        finalize();
+        logger.fine("retDoc is null before close");
+        close();
       }
     }
+    if (retDoc != null) {
+      timer.returned(BatchSizeController.QueryType.ACL);
+    }
     return retDoc;
   }
 
   @Override
-  public String checkpoint() throws RepositoryException {
+  public synchronized String checkpoint() throws RepositoryException {
+    timer.end();
+    ConnectorMetrics metrics = traversalManager.getMetrics();
     try {
-      return checkpoint.asString();
+      long start = metrics.begin();
+      String value = checkpoint.asString();
+      metrics.end(ConnectorMetrics.Stage.CHECKPOINT, start);
+      return value;
     } finally {
-      finalize();
+      close();
+    }
+  }
+
+  /**
+   * Reads ahead in the collection of ACLs to add if there are no
+   * pending ACLs, and resolves the accessors of the ACLs that were
+   * read in bulk.
+   *
+   * @return true if there is a pending ACL
+   * @throws RepositoryException if the collection cannot be advanced
+   */
+  private boolean readAheadAcls() throws RepositoryException {
+    if (pendingAcls.isEmpty() && !aclReadFailed && isOpen(collectionAcl)) {
+      List<IAcl> acls = new ArrayList<IAcl>();
+      while (pendingAcls.size() < READ_AHEAD_SIZE && collectionAcl.next()) {
+        String objId;
+        try {
+          objId = collectionAcl.getString("r_object_id");
+        } catch (RepositoryException e) {
+          logger.log(Level.WARNING, "Error reading the ACL collection", e);
+          aclReadFailed = true;
+          break;
+        }
+        IAcl aclObj;
+        try {
+          if (traversalManager.isProjectAcls()) {
+            aclObj = new ProjectedAcl(collectionAcl);
+          } else {
+            aclObj = fetchAcl(objId);
+          }
+          acls.add(aclObj);
+        } catch (RepositoryException e) {
+          // Fetch it again when it is returned, to handle the error.
+          logger.log(Level.FINE, "Error reading ACL " + objId, e);
+          aclObj = null;
+        }
+        pendingAcls.addLast(new PendingAcl(objId, aclObj));
+      }
+      ConnectorMetrics metrics = traversalManager.getMetrics();
+      long start = metrics.begin();
+      resolveAccessors(acls);
+      metrics.end(ConnectorMetrics.Stage.PRINCIPAL_LOOKUP, start);
+    }
+    return !pendingAcls.isEmpty();
+  }
+
+  /**
+   * Looks up the users and groups named in the given ACLs that are
+   * not in the principal cache, with as few queries as possible, and
+   * caches them. Accessors that are not found are cached as missing.
+   * Errors are logged, leaving the accessors to be looked up one at a
+   * time.
+   */
+  @VisibleForTesting
+  void resolveAccessors(List<IAcl> acls) {
+    PrincipalCache cache = traversalManager.getPrincipalCache();
+    if (acls.isEmpty() || !cache.isEnabled()) {
+      return;
+    }
+    Set<String> userNames = new LinkedHashSet<String>();
+    Set<String> groupNames = new LinkedHashSet<String>();
+    try {
+      for (IAcl aclObj : acls) {
+        for (int i = 0; i < aclObj.getAccessorCount(); i++) {
+          String name = aclObj.getAccessorName(i);
+          if (!cache.contains(Kind.USER, name)) {
+            userNames.add(name);
+          }
+          if (aclObj.isGroup(i) && !name.equalsIgnoreCase("dm_world")
+              && !cache.contains(Kind.GROUP, name)) {
+            groupNames.add(name);
+          }
+        }
+      }
+      lookupUsers(cache, userNames);
+      lookupGroups(cache, groupNames);
+    } catch (RepositoryException e) {
+      logger.log(Level.WARNING, "Error looking up the ACL accessors", e);
+    }
+  }
+
+  private void lookupUsers(PrincipalCache cache, Set<String> userNames)
+      throws RepositoryException {
+    Map<String, ResolvedPrincipal> found =
+        new HashMap<String, ResolvedPrincipal>();
+    String globalNamespace = traversalManager.getGlobalNamespace();
+    Iterator<String> iterator = userNames.iterator();
+    while (iterator.hasNext()) {
+      ICollection collec = executeInQuery("select user_name, "
+          + "user_login_name, user_source, user_ldap_dn, r_is_group "
+          + "from dm_user where user_name in (", iterator);
+      try {
+        while (collec.next()) {
+          String userName = collec.getString("user_name");
+          String loginName = getUserLoginName(userName,
+              collec.getString("user_source"),
+              collec.getString("user_ldap_dn"),
+              collec.getString("user_login_name"),
+              isTrue(collec.getString("r_is_group")));
+          found.put(userName,
+              new ResolvedPrincipal(loginName, globalNamespace));
+        }
+      } finally {
+        collec.close();
+      }
+    }
+    cacheLookups(cache, Kind.USER, userNames, found);
+  }
+
+  private void lookupGroups(PrincipalCache cache, Set<String> groupNames)
+      throws RepositoryException {
+    Map<String, ResolvedPrincipal> found =
+        new HashMap<String, ResolvedPrincipal>();
+    String localNamespace = traversalManager.getLocalNamespace();
+    String globalNamespace = traversalManager.getGlobalNamespace();
+    Iterator<String> iterator = groupNames.iterator();
+    while (iterator.hasNext()) {
+      ICollection collec = executeInQuery("select group_name, group_source "
+          + "from dm_group where group_name in (", iterator);
+      try {
+        while (collec.next()) {
+          String namespace =
+              Strings.isNullOrEmpty(collec.getString("group_source"))
+              ? localNamespace : globalNamespace;
+          found.put(collec.getString("group_name"),
+              new ResolvedPrincipal(null, namespace));
+        }
+      } finally {
+        collec.close();
+      }
     }
+    cacheLookups(cache, Kind.GROUP, groupNames, found);
+  }
+
+  /**
+   * Executes a query with an IN condition containing up to
+   * {@code MAX_IN_SIZE} of the remaining names.
+   *
+   * @param prefix the query up to and including the opening parenthesis
+   *     of the IN condition
+   * @param names the names to include in the IN condition
+   */
+  private ICollection executeInQuery(String prefix, Iterator<String> names)
+      throws RepositoryException {
+    StringBuilder dql = new StringBuilder(prefix);
+    for (int i = 0; i < MAX_IN_SIZE && names.hasNext(); i++) {
+      dql.append('\'');
+      dql.append(DqlUtils.escapeString(names.next()));
+      dql.append("',");
+    }
+    dql.setCharAt(dql.length() - 1, ')');
+    logger.finer(dql.toString());
+
+    IQuery query = traversalManager.getClientX().getQuery();
+    query.setDQL(dql.toString());
+    return query.execute(session, IQuery.READ_QUERY);
+  }
+
+  private static void cacheLookups(PrincipalCache cache, Kind kind,
+      Set<String> names, Map<String, ResolvedPrincipal> found) {
+    ResolvedPrincipal missing = new ResolvedPrincipal(null, null);
+    for (String name : names) {
+      ResolvedPrincipal principal = found.get(name);
+      cache.put(kind, name, (principal == null) ? missing : principal);
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Looked up " + names.size() + " ACL accessors in "
+          + kind.toString().toLowerCase() + " objects, found "
+          + found.size());
+    }
+  }
+
+  /** Parses a boolean attribute value returned as a string. */
+  private static boolean isTrue(String value) {
+    return value != null && (value.equalsIgnoreCase("T")
+        || value.equalsIgnoreCase("true") || value.equals("1"));
   }
 
   /*
@@ -198,6 +448,23 @@ public class DctmAclList implements DocumentList {
     return (IAcl) session.getObject(id);
   }
 
+  /**
+   * Updates the index of document ACLs, if there is one.
+   *
+   * @param objId the r_object_id of the ACL
+   * @param aclObj the ACL, or null if the ACL was destroyed
+   */
+  private void indexAcl(String objId, IAcl aclObj) {
+    AclIndex aclIndex = traversalManager.getAclIndex();
+    if (aclIndex != null) {
+      if (aclObj == null) {
+        aclIndex.removeAcl(objId);
+      } else {
+        aclIndex.putAcl(objId, aclObj);
+      }
+    }
+  }
+
   private boolean isRequiredGroupOrSet(IAcl aclObj)
       throws RepositoryException {
     for (int i = 0; i < aclObj.getAccessorCount(); i++) {
@@ -373,78 +640,101 @@ public class DctmAclList implements DocumentList {
     }
 
     try {
+      return resolveUser(userName).getLoginName();
+    } catch (RepositoryException e) {
+      logger.finer(e.getMessage());
+      logger.info("error getting user login name for: " + userName);
+      throw e;
+    }
+  }
+
+  /**
+   * Looks up a user, or the dm_user object of a group, using the
+   * principal cache.
+   */
+  private ResolvedPrincipal resolveUser(String userName)
+      throws RepositoryException {
+    PrincipalCache cache = traversalManager.getPrincipalCache();
+    ResolvedPrincipal principal = cache.get(Kind.USER, userName);
+    if (principal == null) {
+      ConnectorMetrics metrics = traversalManager.getMetrics();
+      long start = metrics.begin();
       IUser userObj = (IUser) session.getObjectByQualification(
           "dm_user where user_name = '" + userName + "'");
+      metrics.end(ConnectorMetrics.Stage.PRINCIPAL_LOOKUP, start);
       if (userObj == null) {
-        return null;
+        principal = new ResolvedPrincipal(null, null);
+      } else {
+        // TODO(srinivas) to check with Meghna about name space for users
+        // if it is always global namespace. setting to global for now.
+        principal = new ResolvedPrincipal(getUserLoginName(userName, userObj),
+            traversalManager.getGlobalNamespace());
       }
+      cache.put(Kind.USER, userName, principal);
+    }
+    return principal;
+  }
 
-      if (!Strings.isNullOrEmpty(userObj.getUserSourceAsString())
-          && userObj.getUserSourceAsString().equalsIgnoreCase("ldap")) {
-        String dnName = userObj.getUserDistinguishedLDAPName();
-        if (Strings.isNullOrEmpty(dnName)) {
-          // TODO(jlacey): This is inconsistent with authN, which
-          // matches such users against windows_domain. This case
-          // probably can't happen, so I don't think it's important.
-          logger.log(Level.FINE, "Missing DN for user: {0}", userName);
-          return null;
-        }
+  private String getUserLoginName(String userName, IUser userObj)
+      throws RepositoryException {
+    return getUserLoginName(userName, userObj.getUserSourceAsString(),
+        userObj.getUserDistinguishedLDAPName(), userObj.getUserLoginName(),
+        userObj.isGroup());
+  }
 
-        try {
-          LdapName dnDomain = IdentityUtil.getDomainComponents(dnName);
-          if (!dnDomain.isEmpty()) {
-            return IdentityUtil.getFirstDomainFromDN(dnDomain) + "\\"
-                + userObj.getUserLoginName();
-          }
-          // Else fall-through to use windows_domain.
-        } catch (InvalidNameException e) {
-          logger.log(Level.FINE,
-              "Invalid DN " + dnName + " for user: " + userName, e);
-          return null;
-        }
+  /**
+   * Gets the login name to use in ACLs for a user or group.
+   *
+   * @param userName the user_name of the user or group
+   * @param userSource the user_source of the user or group
+   * @param dnName the user_ldap_dn of the user or group
+   * @param loginName the user_login_name of the user or group
+   * @param isGroup true if the dm_user object is a group
+   * @return the login name, or null if the login name is not valid
+   */
+  private String getUserLoginName(String userName, String userSource,
+      String dnName, String loginName, boolean isGroup) {
+    if (!Strings.isNullOrEmpty(userSource)
+        && userSource.equalsIgnoreCase("ldap")) {
+      if (Strings.isNullOrEmpty(dnName)) {
+        // TODO(jlacey): This is inconsistent with authN, which
+        // matches such users against windows_domain. This case
+        // probably can't happen, so I don't think it's important.
+        logger.log(Level.FINE, "Missing DN for user: {0}", userName);
+        return null;
       }
 
-      String userLoginName;
-      String windowsDomain = traversalManager.getWindowsDomain();
-      if (!Strings.isNullOrEmpty(windowsDomain) && !userObj.isGroup()) {
-        logger.log(Level.FINEST,
-            "using configured domain: {0} for unsynchronized user {1}",
-            new String[] {windowsDomain, userName});
-        userLoginName = windowsDomain + "\\" + userObj.getUserLoginName();
-      } else {
-        userLoginName = userObj.getUserLoginName();
+      try {
+        LdapName dnDomain = IdentityUtil.getDomainComponents(dnName);
+        if (!dnDomain.isEmpty()) {
+          return IdentityUtil.getFirstDomainFromDN(dnDomain) + "\\"
+              + loginName;
+        }
+        // Else fall-through to use windows_domain.
+      } catch (InvalidNameException e) {
+        logger.log(Level.FINE,
+            "Invalid DN " + dnName + " for user: " + userName, e);
+        return null;
       }
-      return userLoginName;
-    } catch (RepositoryException e) {
-      logger.finer(e.getMessage());
-      logger.info("error getting user login name for: " + userName);
-      throw e;
     }
+
+    String userLoginName;
+    String windowsDomain = traversalManager.getWindowsDomain();
+    if (!Strings.isNullOrEmpty(windowsDomain) && !isGroup) {
+      logger.log(Level.FINEST,
+          "using configured domain: {0} for unsynchronized user {1}",
+          new String[] {windowsDomain, userName});
+      userLoginName = windowsDomain + "\\" + loginName;
+    } else {
+      userLoginName = loginName;
+    }
+    return userLoginName;
   }
 
   private String getUserNamespace(String usergroup)
-      throws RepositoryDocumentException {
-    String localNamespace = traversalManager.getLocalNamespace();
-    String globalNamespace = traversalManager.getGlobalNamespace();
-
+      throws RepositoryException {
     try {
-      IUser userObj = (IUser) session.getObjectByQualification(
-          "dm_user where user_name = '" + usergroup + "'");
-      if (userObj != null) {
-        // TODO(srinivas) to check with Meghna about name space for users
-        // if it is always global namespace. setting to global for now.
-        return globalNamespace;
-        // following code commented until verification from Meghna
-        // if (Strings.isNullOrEmpty(userObj.getUserSourceAsString())) {
-        // logger.fine("local namespace for user " + usergroup);
-        // return localNamespace;
-        // } else {
-        // logger.fine("global namespace for user " + usergroup);
-        // return globalNamespace;
-        // }
-      } else {
-        return null;
-      }
+      return resolveUser(usergroup).getNamespace();
     } catch (RepositoryDocumentException e) {
       logger.fine("Exception in getNamespace " + e.getMessage());
       throw e;
@@ -461,20 +751,32 @@ public class DctmAclList implements DocumentList {
       return localNamespace;
     }
 
+    PrincipalCache cache = traversalManager.getPrincipalCache();
+    ResolvedPrincipal principal = cache.get(Kind.GROUP, usergroup);
+    if (principal != null) {
+      return principal.getNamespace();
+    }
+
     try {
+      ConnectorMetrics metrics = traversalManager.getMetrics();
+      long start = metrics.begin();
       IGroup groupObj = (IGroup) session.getObjectByQualification(
           "dm_group where group_name = '" + usergroup + "'");
+      metrics.end(ConnectorMetrics.Stage.PRINCIPAL_LOOKUP, start);
+      String namespace;
       if (groupObj != null) {
         if (Strings.isNullOrEmpty(groupObj.getUserSource())) {
           logger.finer("local namespace for group " + usergroup);
-          return localNamespace;
+          namespace = localNamespace;
         } else {
           logger.finer("global namespace for group " + usergroup);
-          return globalNamespace;
+          namespace = globalNamespace;
         }
       } else {
-        return null;
+        namespace = null;
       }
+      cache.put(Kind.GROUP, usergroup, new ResolvedPrincipal(null, namespace));
+      return namespace;
     } catch (RepositoryDocumentException e) {
       logger.fine("Exception in getNamespace " + e.getMessage());
       throw e;
@@ -504,10 +806,12 @@ public class DctmAclList implements DocumentList {
         != ICollection.DF_CLOSED_STATE));
   }
 
-  // Last chance to make sure the collections are closed and their sessions
-  // are released.
-  @Override
-  protected void finalize() {
+  /**
+   * Closes the collections and releases the session. This is called
+   * when the list is exhausted, when it is checkpointed, and when its
+   * session lease is reclaimed.
+   */
+  private synchronized void close() {
     try {
       if (isOpen(collectionAcl)) {
         try {
@@ -530,7 +834,7 @@ public class DctmAclList implements DocumentList {
       }
     } finally {
       if (session != null) {
-        traversalManager.getSessionManager().release(session);
+        lease.release();
         session = null;
         logger.fine("collection session released");
       }
@@ -18,7 +18,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
-import com.google.enterprise.connector.dctm.dfcwrap.IGroup;
 import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
 import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
@@ -27,7 +26,6 @@ import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthenticationResponse;
 import com.google.enterprise.connector.spi.Principal;
-import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.SpiConstants.CaseSensitivityType;
@@ -53,6 +51,18 @@ public class DctmAuthenticationManager implements AuthenticationManager {
 
   private final DctmConnector connector;
 
+  private GroupCache groupCache = new GroupCache(0, 0L);
+
+  private CredentialCache credentialCache = new CredentialCache(0, 0L);
+
+  private ConnectorMetrics metrics = new ConnectorMetrics("", "");
+
+  /**
+   * The connector's session manager, or null to create a session
+   * manager for the connector's login on each request.
+   */
+  private ISessionManager sessionManager = null;
+
   public DctmAuthenticationManager(DctmConnector connector, IClientX clientX,
       String docbase) {
     this.clientX = clientX;
@@ -60,10 +70,54 @@ public class DctmAuthenticationManager implements AuthenticationManager {
     this.connector = connector;
   }
 
+  /**
+   * Sets the cache of user names and groups, which may be shared with
+   * the other authentication managers of this connector instance.
+   */
+  void setGroupCache(GroupCache groupCache) {
+    this.groupCache = groupCache;
+  }
+
+  /**
+   * Sets the cache of successful password verifications, which may be
+   * shared with the other authentication managers of this connector
+   * instance.
+   */
+  void setCredentialCache(CredentialCache credentialCache) {
+    this.credentialCache = credentialCache;
+  }
+
+  /**
+   * Sets the connector's session manager, which may pool its sessions,
+   * to look up users and groups with the connector's login.
+   */
+  void setSessionManager(ISessionManager sessionManager) {
+    this.sessionManager = sessionManager;
+  }
+
+  /**
+   * Sets the metrics of this connector instance, which may be shared
+   * with the other managers.
+   */
+  void setMetrics(ConnectorMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   @Override
   public AuthenticationResponse authenticate(
       AuthenticationIdentity authenticationIdentity)
       throws RepositoryLoginException, RepositoryException {
+    long start = metrics.begin();
+    try {
+      return authenticateUser(authenticationIdentity);
+    } finally {
+      metrics.end(ConnectorMetrics.Stage.AUTHENTICATE, start);
+    }
+  }
+
+  private AuthenticationResponse authenticateUser(
+      AuthenticationIdentity authenticationIdentity)
+      throws RepositoryLoginException, RepositoryException {
     String userLoginName =
         IdentityUtil.getCanonicalUsername(authenticationIdentity);
     if (userLoginName == null) {
@@ -76,24 +130,44 @@ public class DctmAuthenticationManager implements AuthenticationManager {
       String userName;
       try {
         if (Strings.isNullOrEmpty(password)) {
-          sessionManagerUser =
-              getSessionManager(connector.getLogin(), connector.getPassword());
+          sessionManagerUser = getConnectorSessionManager();
           //check for user existence when null password
-          userName = getUserName(sessionManagerUser, userLoginName, userDomain);
+          GroupCache.ResolvedUser user =
+              groupCache.getUser(userLoginName, userDomain);
+          if (user == null) {
+            user = new GroupCache.ResolvedUser(
+                getUserName(sessionManagerUser, userLoginName, userDomain));
+            groupCache.putUser(userLoginName, userDomain, user);
+          }
+          userName = user.getUserName();
           authenticate = (userName != null);
         } else {
           // TODO(jlacey): We are using the raw username from the GSA
           // here because we always have and no bugs have been reported.
-          sessionManagerUser =
-              getSessionManager(authenticationIdentity.getUsername(), password);
-
-          // Use getSession instead of authenticate, so we can get the
-          // authenticated user name.
-          ISession session = sessionManagerUser.getSession(docbase);
-          try {
-            userName = session.getLoginUserName();
-          } finally {
-            sessionManagerUser.release(session);
+          String username = authenticationIdentity.getUsername();
+          userName = credentialCache.verify(username, password);
+          if (userName == null) {
+            sessionManagerUser = getSessionManager(username, password);
+            // Use getSession instead of authenticate, so we can get the
+            // authenticated user name.
+            ISession session;
+            try {
+              session = sessionManagerUser.getSession(docbase);
+            } catch (RepositoryLoginException e) {
+              credentialCache.invalidate(username);
+              throw e;
+            }
+            try {
+              userName = session.getLoginUserName();
+            } finally {
+              sessionManagerUser.release(session);
+            }
+            credentialCache.put(username, password, userName);
+          } else {
+            LOGGER.log(Level.FINEST, "Using cached login for {0}", username);
+            // The password was not checked against the docbase, so it
+            // must not be used to look up the groups.
+            sessionManagerUser = getConnectorSessionManager();
           }
           authenticate = true;
         }
@@ -111,6 +185,14 @@ public class DctmAuthenticationManager implements AuthenticationManager {
     }
   }
 
+  /** Gets a session manager logged in as the connector's user. */
+  private ISessionManager getConnectorSessionManager()
+      throws RepositoryLoginException, RepositoryException {
+    return (sessionManager == null)
+        ? getSessionManager(connector.getLogin(), connector.getPassword())
+        : sessionManager;
+  }
+
   private ISessionManager getSessionManager(String username, String password)
       throws RepositoryLoginException, RepositoryException {
     ILoginInfo loginInfo = clientX.getLoginInfo();
@@ -251,12 +333,20 @@ public class DctmAuthenticationManager implements AuthenticationManager {
   private Collection<Principal> getAllGroupsForUser(
       ISessionManager sessionManager, String username)
       throws RepositoryLoginException, RepositoryException {
+    Collection<Principal> cachedGroups = groupCache.getGroups(username);
+    if (cachedGroups != null) {
+      LOGGER.log(Level.FINEST, "Using cached groups for {0}", username);
+      return cachedGroups;
+    }
+
     ArrayList<Principal> listGroups = new ArrayList<Principal>();
     ISession session = sessionManager.getSession(docbase);
     try {
-      String queryStr =
-          "select group_name from dm_group where any i_all_users_names = '"
-          + username + "'";
+      // Select the group_source with the group names, so that the
+      // namespaces are resolved without a lookup for each group.
+      String queryStr = "select group_name, group_source from dm_group "
+          + "where any i_all_users_names = '"
+          + DqlUtils.escapeString(username) + "'";
       IQuery query = clientX.getQuery();
       query.setDQL(queryStr);
       ICollection collecGroups = query.execute(session,
@@ -264,14 +354,10 @@ public class DctmAuthenticationManager implements AuthenticationManager {
       try {
         while (collecGroups.next()) {
           String groupName = collecGroups.getString("group_name");
-          String groupNamespace = getGroupNamespace(session, groupName);
-          if (groupNamespace != null) {
-            listGroups.add(new Principal(PrincipalType.UNKNOWN, groupNamespace,
-                    groupName, CaseSensitivityType.EVERYTHING_CASE_SENSITIVE));
-          } else {
-            LOGGER.warning("Skipping group " + groupName
-                + " with null namespace");
-          }
+          String groupNamespace =
+              getGroupNamespace(collecGroups.getString("group_source"));
+          listGroups.add(new Principal(PrincipalType.UNKNOWN, groupNamespace,
+                  groupName, CaseSensitivityType.EVERYTHING_CASE_SENSITIVE));
         }
         // process special group dm_world
         listGroups.add(new Principal(PrincipalType.UNKNOWN,
@@ -284,34 +370,16 @@ public class DctmAuthenticationManager implements AuthenticationManager {
       sessionManager.release(session);
     }
 
-    return listGroups;
+    Collection<Principal> groups = Collections.unmodifiableList(listGroups);
+    groupCache.putGroups(username, groups);
+    return groups;
   }
 
-  //TODO (Srinivas): refactor this method with the one in DctmAclList
-  private String getGroupNamespace(ISession session, String groupName)
-      throws RepositoryDocumentException {
-    String localNamespace = connector.getGoogleLocalNamespace();
-    String globalNamespace = connector.getGoogleGlobalNamespace();
-    String groupNamespace = null;
-    try {
-      IGroup groupObj = (IGroup) session.getObjectByQualification(
-          "dm_group where group_name = '" + groupName + "'");
-      if (groupObj != null) {
-        if (Strings.isNullOrEmpty(groupObj.getUserSource())) {
-          LOGGER.fine("local namespace for group " + groupName);
-          groupNamespace = localNamespace;
-        } else {
-          LOGGER.fine("global namespace for group " + groupName);
-          groupNamespace = globalNamespace;
-        }
-      } else {
-        LOGGER.fine("namespace for group is null");
-        return null;
-      }
-    } catch (RepositoryDocumentException e) {
-      LOGGER.fine("Exception in getNameSpace " + e.getMessage());
-      throw e;
+  private String getGroupNamespace(String groupSource) {
+    if (Strings.isNullOrEmpty(groupSource)) {
+      return connector.getGoogleLocalNamespace();
+    } else {
+      return connector.getGoogleGlobalNamespace();
     }
-    return groupNamespace;
   }
 }
@@ -17,7 +17,6 @@ package com.google.enterprise.connector.dctm;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
-import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
 import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
 import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
@@ -25,10 +24,21 @@ import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.RepositoryLoginException;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,17 +53,47 @@ public class DctmAuthorizationManager implements AuthorizationManager {
   @VisibleForTesting
   static final String QUERY_STRING_OR = ") or i_chronicle_id in (";
 
+  /** The largest number of docids in one query. */
+  @VisibleForTesting
+  static final int MAX_CHUNK_SIZE = 400;
+
+  /** The smallest number of docids worth running in a separate query. */
+  @VisibleForTesting
+  static final int MIN_CHUNK_SIZE = 50;
+
   private final IClientX clientX;
 
   private final ISessionManager sessionManager;
 
   private final String docbase;
 
+  private final UserSessionManagerPool sessionManagerPool;
+
+  private final AuthorizationCache authorizationCache;
+
+  private ThreadPoolExecutor queryExecutor = null;
+
+  private long timeLimitMillis = 0L;
+
+  private AclIndex aclIndex = null;
+
+  private ConnectorMetrics metrics = new ConnectorMetrics("", "");
+
   public DctmAuthorizationManager(IClientX clientX,
       ISessionManager sessionManager, String docbase) {
+    this(clientX, sessionManager, docbase,
+        new UserSessionManagerPool(clientX, sessionManager, docbase, 0, 0L),
+        new AuthorizationCache(0, 0L));
+  }
+
+  DctmAuthorizationManager(IClientX clientX, ISessionManager sessionManager,
+      String docbase, UserSessionManagerPool sessionManagerPool,
+      AuthorizationCache authorizationCache) {
     this.clientX = clientX;
     this.sessionManager = sessionManager;
     this.docbase = docbase;
+    this.sessionManagerPool = sessionManagerPool;
+    this.authorizationCache = authorizationCache;
   }
 
   @Override
@@ -63,18 +103,277 @@ public class DctmAuthorizationManager implements AuthorizationManager {
     String username = getCanonicalUsername(identity);
     logger.info("authorisation for: " + username + "; docbase: " + docbase);
 
-    IQuery query = buildQuery(docids);
+    Map<String, Boolean> decisions = new HashMap<String, Boolean>();
+    List<String> uncached = new ArrayList<String>(docids.size());
+    for (String docid : docids) {
+      Boolean decision = authorizationCache.get(username, docid);
+      if (decision == null) {
+        uncached.add(docid);
+      } else {
+        decisions.put(docid, decision);
+      }
+    }
+    if (logger.isLoggable(Level.FINE) && !decisions.isEmpty()) {
+      logger.fine("cached decisions for " + decisions.size() + " of "
+          + docids.size() + " docids");
+    }
+
+    if (aclIndex != null && !uncached.isEmpty()) {
+      uncached = evaluateAclIndex(uncached, username, decisions);
+    }
 
-    List<AuthorizationResponse> authorized;
-    ISessionManager sessionManagerUser = getSessionManagerUser(username);
-    ISession sessionUser = sessionManagerUser.getSession(docbase);
+    if (!uncached.isEmpty()) {
+      long start = metrics.begin();
+      Map<String, Boolean> queried = queryDecisions(uncached, username);
+      metrics.end(ConnectorMetrics.Stage.AUTHORIZE, start);
+      for (Map.Entry<String, Boolean> entry : queried.entrySet()) {
+        authorizationCache.put(username, entry.getKey(), entry.getValue());
+      }
+      decisions.putAll(queried);
+    }
+
+    List<AuthorizationResponse> authorized =
+        new ArrayList<AuthorizationResponse>(docids.size());
+    for (String id : docids) {
+      Boolean decision = decisions.get(id);
+      if (decision == null) {
+        logger.info("id " + id + " hasRight? indeterminate");
+        authorized.add(new AuthorizationResponse(
+            AuthorizationResponse.Status.INDETERMINATE, id));
+      } else {
+        logger.info("id " + id + " hasRight? " + decision);
+        authorized.add(new AuthorizationResponse(decision, id));
+      }
+    }
+    return authorized;
+  }
+
+  /**
+   * Sets the executor used to run the chunks of large requests
+   * concurrently. If the executor is null, the chunks are run
+   * sequentially in the calling thread.
+   */
+  void setQueryExecutor(ThreadPoolExecutor queryExecutor) {
+    this.queryExecutor = queryExecutor;
+  }
+
+  /**
+   * Sets the time limit for the queries of a single request, in
+   * milliseconds. A value of 0 means there is no limit.
+   */
+  void setTimeLimit(long timeLimitMillis) {
+    this.timeLimitMillis = timeLimitMillis;
+  }
+
+  /**
+   * Sets the index of document ACLs maintained by traversal, or null
+   * if every decision is made by querying the repository.
+   */
+  void setAclIndex(AclIndex aclIndex) {
+    this.aclIndex = aclIndex;
+  }
+
+  /**
+   * Sets the metrics of this connector instance, which may be shared
+   * with the other managers.
+   */
+  void setMetrics(ConnectorMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Evaluates authorization from the index of document ACLs.
+   *
+   * @param docids the docids to check
+   * @param username a user name
+   * @param decisions a map to add the decisions to
+   * @return the docids that could not be evaluated by the index
+   */
+  private List<String> evaluateAclIndex(List<String> docids,
+      String username, Map<String, Boolean> decisions)
+      throws RepositoryException {
+    AclIndex.Membership membership;
+    ISession session = sessionManager.getSession(docbase);
     try {
-      authorized = getAuthorizedDocids(docids, query, sessionUser);
+      membership = aclIndex.getMembership(clientX, session, username);
     } finally {
+      sessionManager.release(session);
+    }
+    if (membership == null) {
+      return docids;
+    }
+
+    List<String> unknown = new ArrayList<String>();
+    for (String docid : docids) {
+      Boolean decision = aclIndex.isPermitted(docid, membership);
+      if (decision == null) {
+        unknown.add(docid);
+      } else {
+        decisions.put(docid, decision);
+      }
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("indexed decisions for " + (docids.size() - unknown.size())
+          + " of " + docids.size() + " docids");
+    }
+    return unknown;
+  }
+
+  /**
+   * Splits the docids into chunks, one per query. When the chunks
+   * are run concurrently, the docids are spread across the threads,
+   * but no chunk is smaller than {@code MIN_CHUNK_SIZE} or larger
+   * than {@code MAX_CHUNK_SIZE} docids.
+   */
+  @VisibleForTesting
+  List<List<String>> getChunks(List<String> docids) {
+    int chunkSize = MAX_CHUNK_SIZE;
+    if (queryExecutor != null) {
+      int threads = queryExecutor.getMaximumPoolSize();
+      int perThread = (docids.size() + threads - 1) / threads;
+      chunkSize = Math.min(MAX_CHUNK_SIZE,
+          Math.max(MIN_CHUNK_SIZE, perThread));
+    }
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    for (int i = 0; i < docids.size(); i += chunkSize) {
+      chunks.add(docids.subList(i, Math.min(i + chunkSize, docids.size())));
+    }
+    return chunks;
+  }
+
+  /**
+   * Queries the authorization decisions for the given user. Docids
+   * in chunks that did not complete within the time limit are not
+   * included in the returned map.
+   *
+   * @param docids the docids to check
+   * @param username a user name
+   * @return a map from docids to decisions
+   */
+  private Map<String, Boolean> queryDecisions(List<String> docids,
+      String username) throws RepositoryException {
+    long deadline = (timeLimitMillis > 0)
+        ? System.nanoTime() + timeLimitMillis * 1000000L : 0L;
+    List<List<String>> chunks = getChunks(docids);
+
+    ISessionManager sessionManagerUser = getSessionManagerUser(username);
+    ISession sessionUser;
+    try {
+      sessionUser = sessionManagerUser.getSession(docbase);
+    } catch (RepositoryLoginException e) {
+      if (sessionManagerUser == sessionManager
+          || !sessionManagerPool.isEnabled()) {
+        throw e;
+      }
+      // The login ticket of a pooled session manager may have been
+      // rejected, so retry once with a new login ticket.
+      logger.log(Level.FINE, "Retrying login with a new ticket for "
+          + username, e);
+      sessionManagerPool.invalidate(username);
+      sessionManagerUser = getSessionManagerUser(username);
+      sessionUser = sessionManagerUser.getSession(docbase);
+    }
+
+    if (queryExecutor == null || chunks.size() == 1) {
+      Map<String, Boolean> decisions = new HashMap<String, Boolean>();
+      try {
+        for (List<String> chunk : chunks) {
+          if (deadline != 0L && System.nanoTime() - deadline >= 0) {
+            logger.warning("Authorization time limit exceeded for "
+                + username + "; " + (docids.size() - decisions.size())
+                + " docids are indeterminate");
+            break;
+          }
+          decisions.putAll(queryChunk(chunk, sessionUser));
+        }
+      } finally {
+        sessionManagerUser.release(sessionUser);
+        logger.finest("user session released");
+      }
+      return decisions;
+    } else {
+      // The session is released to the session manager's pool, where
+      // the concurrent queries can reuse it.
       sessionManagerUser.release(sessionUser);
-      logger.finest("user session released");
+      return queryConcurrently(chunks, sessionManagerUser, username,
+          deadline);
     }
-    return authorized;
+  }
+
+  private Map<String, Boolean> queryConcurrently(List<List<String>> chunks,
+      final ISessionManager sessionManagerUser, String username,
+      long deadline) throws RepositoryException {
+    List<Future<Map<String, Boolean>>> futures =
+        new ArrayList<Future<Map<String, Boolean>>>(chunks.size());
+    for (final List<String> chunk : chunks) {
+      futures.add(queryExecutor.submit(
+          new Callable<Map<String, Boolean>>() {
+            @Override
+            public Map<String, Boolean> call() throws RepositoryException {
+              ISession session = sessionManagerUser.getSession(docbase);
+              try {
+                return queryChunk(chunk, session);
+              } finally {
+                sessionManagerUser.release(session);
+              }
+            }
+          }));
+    }
+
+    Map<String, Boolean> decisions = new HashMap<String, Boolean>();
+    int indeterminate = 0;
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        Future<Map<String, Boolean>> future = futures.get(i);
+        try {
+          if (deadline == 0L) {
+            decisions.putAll(future.get());
+          } else {
+            decisions.putAll(future.get(deadline - System.nanoTime(),
+                TimeUnit.NANOSECONDS));
+          }
+        } catch (TimeoutException e) {
+          // Running queries are left to finish and release their
+          // sessions, but their results are not used.
+          future.cancel(false);
+          indeterminate += chunks.get(i).size();
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw (cause instanceof RepositoryException)
+          ? (RepositoryException) cause : new RepositoryException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException("Interrupted running queries", e);
+    } finally {
+      for (Future<Map<String, Boolean>> future : futures) {
+        future.cancel(false);
+      }
+    }
+    if (indeterminate > 0) {
+      logger.warning("Authorization time limit exceeded for " + username
+          + "; " + indeterminate + " docids are indeterminate");
+    }
+    return decisions;
+  }
+
+  /**
+   * Queries the authorization decisions for one chunk of docids.
+   *
+   * @param chunk the docids to check
+   * @param sessionUser a session for the user
+   * @return a map from docids to decisions
+   */
+  private Map<String, Boolean> queryChunk(List<String> chunk,
+      ISession sessionUser) throws RepositoryException {
+    IQuery query = buildQuery(chunk);
+    Set<String> permitted = getAuthorizedDocids(chunk, query, sessionUser);
+    Map<String, Boolean> decisions = new HashMap<String, Boolean>();
+    for (String docid : chunk) {
+      decisions.put(docid, permitted.contains(docid));
+    }
+    return decisions;
   }
 
   private String getCanonicalUsername(AuthenticationIdentity identity) {
@@ -137,7 +436,8 @@ public class DctmAuthorizationManager implements AuthorizationManager {
   }
 
   /**
-   * Gets a session manager for the given user.
+   * Gets a session manager for the given user. Session managers for
+   * users other than the connector user come from the pool.
    *
    * @param username a user name
    * @return a session manager for the given user
@@ -154,45 +454,23 @@ public class DctmAuthorizationManager implements AuthorizationManager {
         logger.fine("Using current session manager for " + username);
       sessionManagerUser = sessionManager;
     } else {
-      if (logger.isLoggable(Level.FINE))
-        logger.fine("Creating new session manager for " + username);
-      String ticket;
-      ISession session = sessionManager.getSession(docbase);
-      try {
-        ticket = session.getLoginTicketEx(username, "docbase", 0, false, null);
-      } finally {
-        sessionManager.release(session);
-      }
-
-      sessionManagerUser = clientX.getLocalClient().newSessionManager();
-      ILoginInfo loginInfo = clientX.getLoginInfo();
-      loginInfo.setUser(username);
-      loginInfo.setPassword(ticket);
-      sessionManagerUser.setIdentity(docbase, loginInfo);
+      sessionManagerUser = sessionManagerPool.getSessionManager(username);
     }
     return sessionManagerUser;
   }
 
-  private List<AuthorizationResponse> getAuthorizedDocids(
-      Collection<String> docids, IQuery query, ISession sessionUser)
-      throws RepositoryException {
-    List<AuthorizationResponse> authorized;
+  private Set<String> getAuthorizedDocids(Collection<String> docids,
+      IQuery query, ISession sessionUser) throws RepositoryException {
     ICollection collec = query.execute(sessionUser, IQuery.READ_QUERY);
     try {
-      ArrayList<String> object_id = new ArrayList<String>(docids.size());
+      Set<String> object_id = new HashSet<String>(docids.size());
       while (collec.next()) {
         object_id.add(collec.getString("i_chronicle_id"));
       }
-      authorized = new ArrayList<AuthorizationResponse>(docids.size());
-      for (String id : docids) {
-        boolean isAuthorized = object_id.contains(id);
-        logger.info("id " + id + " hasRight? " + isAuthorized);
-        authorized.add(new AuthorizationResponse(isAuthorized, id));
-      }
+      return object_id;
     } finally {
       collec.close();
       logger.finest("after collec.close");
     }
-    return authorized;
   }
 }
@@ -18,6 +18,7 @@ import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
 import com.google.enterprise.connector.spi.Connector;
 import com.google.enterprise.connector.spi.RepositoryException;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -57,20 +58,120 @@ public class DctmConnector implements Connector {
 
   private String windowsDomain;
 
+  private int prefetchSize = 0;
+
+  private int prefetchThreads = 4;
+
+  private boolean projectMetadata = false;
+
+  private int folderCacheSize = 5000;
+
+  private long folderCacheTtl = 600L;
+
+  private boolean parallelWhereClauses = false;
+
+  private int partitionCount = 0;
+
+  private boolean adaptiveBatchSize = false;
+
+  private long contentSpoolThreshold = 1048576L;
+
+  private long contentMemoryBudget = -1L;
+
+  private int typeCacheSize = 1000;
+
+  private int principalCacheSize = 10000;
+
+  private long principalCacheTtl = 600L;
+
+  private boolean projectAcls = false;
+
+  private int userSessionPoolSize = 1000;
+
+  private long userSessionTtl = 240L;
+
+  private int authzCacheSize = 0;
+
+  private long authzCacheTtl = 60L;
+
+  private int authzQueryThreads = 1;
+
+  private long authzTimeLimit = 0L;
+
+  private boolean authzAclIndex = false;
+
+  private int groupCacheSize = 10000;
+
+  private long groupCacheTtl = 300L;
+
+  private int credentialCacheSize = 0;
+
+  private long credentialCacheTtl = 60L;
+
+  private int sessionPoolMin = 0;
+
+  private int sessionPoolMax = 0;
+
+  private long sessionPoolWait = 30L;
+
+  private long sessionPoolIdleTimeout = 300L;
+
+  private long sessionLeaseTimeout = 1800L;
+
+  private boolean asyncStartup = false;
+
+  private long startupStagger = 30L;
+
+  private boolean jmxMetrics = true;
+
+  /** The name of the connector instance, or null if it is not known. */
+  private final String connectorName;
+
   public DctmConnector() {
+    connectorName = null;
   }
 
+  /**
+   * Constructs a connector. The name of the connector instance is the
+   * name of its working directory.
+   */
   public DctmConnector(String googleConnectorWorkDir) {
+    connectorName = (googleConnectorWorkDir == null)
+        ? null : new File(googleConnectorWorkDir).getName();
+  }
+
+  /** The most recent session, or null if there has been no login. */
+  private DctmSession session = null;
+
+  /**
+   * Gets the name of the connector instance. If the connector was
+   * constructed without a working directory, the name is derived from
+   * the docbase, login, and additional where clause, so that it is the
+   * same for every instance with the same configuration.
+   */
+  String getConnectorName() {
+    if (connectorName != null) {
+      return connectorName;
+    }
+    return (whereClause.isEmpty()) ? docbase + "-" + login
+        : docbase + "-" + login + "-"
+        + Integer.toHexString(whereClause.hashCode());
   }
 
   @Override
-  public DctmSession login() throws RepositoryException {
+  public synchronized DctmSession login() throws RepositoryException {
     logger.log(Level.CONFIG, "login in the docbase " + docbase + " and user "
         + login + " " + clientX + " " + docbase + " "
         + webtopDisplayUrl + " " + whereClause + " "
         + isPublic.equals("on"));
 
-    return new DctmSession(this);
+    // The registered metrics refer to the session and its managers, so
+    // release them before the new session registers its own.
+    if (session != null) {
+      session.getMetrics().unregister();
+    }
+    session = new DctmSession(this);
+    return session;
   }
 
   public void setClientX(String clientX) throws RepositoryException {
@@ -165,6 +266,465 @@ public class DctmConnector implements Connector {
     return windowsDomain;
   }
 
+  /**
+   * Sets the number of documents to read ahead of the connector manager
+   * and fetch in the background. Zero disables prefetching.
+   */
+  public void setPrefetch_size(int prefetchSize) {
+    this.prefetchSize = prefetchSize;
+    logger.log(Level.CONFIG, "prefetch_size set to " + prefetchSize);
+  }
+
+  int getPrefetchSize() {
+    return prefetchSize;
+  }
+
+  /** Sets the number of threads used to prefetch documents. */
+  public void setPrefetch_threads(int prefetchThreads) {
+    this.prefetchThreads = prefetchThreads;
+    logger.log(Level.CONFIG, "prefetch_threads set to " + prefetchThreads);
+  }
+
+  int getPrefetchThreads() {
+    return prefetchThreads;
+  }
+
+  /**
+   * Sets whether the included metadata of the root object type is
+   * selected by the traversal query, rather than read from each
+   * fetched object.
+   */
+  public void setProject_metadata(boolean projectMetadata) {
+    this.projectMetadata = projectMetadata;
+    logger.log(Level.CONFIG, "project_metadata set to " + projectMetadata);
+  }
+
+  boolean isProjectMetadata() {
+    return projectMetadata;
+  }
+
+  /** Sets the maximum number of folders whose paths are cached. */
+  public void setFolder_cache_size(int folderCacheSize) {
+    this.folderCacheSize = folderCacheSize;
+    logger.log(Level.CONFIG, "folder_cache_size set to " + folderCacheSize);
+  }
+
+  int getFolderCacheSize() {
+    return folderCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds to cache the paths of each folder.
+   * Moved or renamed folders are not seen until the cached paths
+   * expire. A value of 0 disables the cache.
+   */
+  public void setFolder_cache_ttl(long folderCacheTtl) {
+    this.folderCacheTtl = folderCacheTtl;
+    logger.log(Level.CONFIG, "folder_cache_ttl set to " + folderCacheTtl);
+  }
+
+  long getFolderCacheTtl() {
+    return folderCacheTtl;
+  }
+
+  /**
+   * Sets whether the add queries for multiple where clauses are run
+   * concurrently, rather than one at a time.
+   */
+  public void setParallel_where_clauses(boolean parallelWhereClauses) {
+    this.parallelWhereClauses = parallelWhereClauses;
+    logger.log(Level.CONFIG,
+        "parallel_where_clauses set to " + parallelWhereClauses);
+  }
+
+  boolean isParallelWhereClauses() {
+    return parallelWhereClauses;
+  }
+
+  /**
+   * Sets the number of partitions to split the initial traversal of
+   * each where clause into, by r_modify_date. Values less than two
+   * disable partitioning.
+   */
+  public void setPartition_count(int partitionCount) {
+    this.partitionCount = partitionCount;
+    logger.log(Level.CONFIG, "partition_count set to " + partitionCount);
+  }
+
+  int getPartitionCount() {
+    return partitionCount;
+  }
+
+  /**
+   * Sets whether the number of rows returned by the traversal queries
+   * is chosen from the measured cost of each document and the
+   * traversal time limit, up to the batch hint.
+   */
+  public void setAdaptive_batch_size(boolean adaptiveBatchSize) {
+    this.adaptiveBatchSize = adaptiveBatchSize;
+    logger.log(Level.CONFIG,
+        "adaptive_batch_size set to " + adaptiveBatchSize);
+  }
+
+  boolean isAdaptiveBatchSize() {
+    return adaptiveBatchSize;
+  }
+
+  /**
+   * Sets the largest document content, in bytes, to read into memory.
+   * Larger content is spooled to a temporary file while it is fed. A
+   * negative value reads all content into memory.
+   */
+  public void setContent_spool_threshold(long contentSpoolThreshold) {
+    this.contentSpoolThreshold = contentSpoolThreshold;
+    logger.log(Level.CONFIG,
+        "content_spool_threshold set to " + contentSpoolThreshold);
+  }
+
+  long getContentSpoolThreshold() {
+    return contentSpoolThreshold;
+  }
+
+  /**
+   * Sets the maximum number of bytes of document content to hold in
+   * memory at once. Content that does not fit is spooled to disk. A
+   * negative value means there is no limit.
+   */
+  public void setContent_memory_budget(long contentMemoryBudget) {
+    this.contentMemoryBudget = contentMemoryBudget;
+    logger.log(Level.CONFIG,
+        "content_memory_budget set to " + contentMemoryBudget);
+  }
+
+  long getContentMemoryBudget() {
+    return contentMemoryBudget;
+  }
+
+  /** Sets the maximum number of object types to cache metadata for. */
+  public void setType_cache_size(int typeCacheSize) {
+    this.typeCacheSize = typeCacheSize;
+    logger.log(Level.CONFIG, "type_cache_size set to " + typeCacheSize);
+  }
+
+  int getTypeCacheSize() {
+    return typeCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of ACL accessor lookups to cache. A value
+   * of 0 disables the cache.
+   */
+  public void setPrincipal_cache_size(int principalCacheSize) {
+    this.principalCacheSize = principalCacheSize;
+    logger.log(Level.CONFIG,
+        "principal_cache_size set to " + principalCacheSize);
+  }
+
+  int getPrincipalCacheSize() {
+    return principalCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds to cache each ACL accessor lookup,
+   * including lookups of missing users and groups. A value of 0
+   * disables the cache.
+   */
+  public void setPrincipal_cache_ttl(long principalCacheTtl) {
+    this.principalCacheTtl = principalCacheTtl;
+    logger.log(Level.CONFIG,
+        "principal_cache_ttl set to " + principalCacheTtl);
+  }
+
+  long getPrincipalCacheTtl() {
+    return principalCacheTtl;
+  }
+
+  /**
+   * Sets whether the accessors of each ACL are selected by the ACL
+   * traversal query, rather than read from each fetched ACL.
+   */
+  public void setProject_acls(boolean projectAcls) {
+    this.projectAcls = projectAcls;
+    logger.log(Level.CONFIG, "project_acls set to " + projectAcls);
+  }
+
+  boolean isProjectAcls() {
+    return projectAcls;
+  }
+
+  /**
+   * Sets the maximum number of users to keep logged in session
+   * managers for during authorization. A value of 0 disables pooling.
+   */
+  public void setUser_session_pool_size(int userSessionPoolSize) {
+    this.userSessionPoolSize = userSessionPoolSize;
+    logger.log(Level.CONFIG,
+        "user_session_pool_size set to " + userSessionPoolSize);
+  }
+
+  int getUserSessionPoolSize() {
+    return userSessionPoolSize;
+  }
+
+  /**
+   * Sets the number of seconds to keep each user's session manager
+   * during authorization. The login tickets are requested with a
+   * timeout at least one minute longer than this. A value of 0
+   * disables pooling.
+   */
+  public void setUser_session_ttl(long userSessionTtl) {
+    this.userSessionTtl = userSessionTtl;
+    logger.log(Level.CONFIG, "user_session_ttl set to " + userSessionTtl);
+  }
+
+  long getUserSessionTtl() {
+    return userSessionTtl;
+  }
+
+  /**
+   * Sets the maximum number of authorization decisions to cache. The
+   * cache is disabled by default, because permission changes are not
+   * seen until the cached decisions expire. A value of 0 disables the
+   * cache.
+   */
+  public void setAuthz_cache_size(int authzCacheSize) {
+    this.authzCacheSize = authzCacheSize;
+    logger.log(Level.CONFIG, "authz_cache_size set to " + authzCacheSize);
+  }
+
+  int getAuthzCacheSize() {
+    return authzCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds to cache each authorization decision.
+   * A value of 0 disables the cache.
+   */
+  public void setAuthz_cache_ttl(long authzCacheTtl) {
+    this.authzCacheTtl = authzCacheTtl;
+    logger.log(Level.CONFIG, "authz_cache_ttl set to " + authzCacheTtl);
+  }
+
+  long getAuthzCacheTtl() {
+    return authzCacheTtl;
+  }
+
+  /**
+   * Sets the number of threads used to run the queries of large
+   * authorization requests concurrently. A value of 1 runs the
+   * queries sequentially.
+   */
+  public void setAuthz_query_threads(int authzQueryThreads) {
+    this.authzQueryThreads = authzQueryThreads;
+    logger.log(Level.CONFIG,
+        "authz_query_threads set to " + authzQueryThreads);
+  }
+
+  int getAuthzQueryThreads() {
+    return authzQueryThreads;
+  }
+
+  /**
+   * Sets the number of milliseconds to wait for the queries of an
+   * authorization request. Docids that were not checked in time are
+   * returned as indeterminate. A value of 0 means there is no limit.
+   */
+  public void setAuthz_time_limit(long authzTimeLimit) {
+    this.authzTimeLimit = authzTimeLimit;
+    logger.log(Level.CONFIG, "authz_time_limit set to " + authzTimeLimit);
+  }
+
+  long getAuthzTimeLimit() {
+    return authzTimeLimit;
+  }
+
+  /**
+   * Sets whether authorization is evaluated from an in-memory index of
+   * the document ACLs read by traversal. Documents that are not in the
+   * index are checked by querying the repository.
+   */
+  public void setAuthz_acl_index(boolean authzAclIndex) {
+    this.authzAclIndex = authzAclIndex;
+    logger.log(Level.CONFIG, "authz_acl_index set to " + authzAclIndex);
+  }
+
+  boolean isAuthzAclIndex() {
+    return authzAclIndex;
+  }
+
+  /**
+   * Sets the maximum number of users to cache groups for during
+   * authentication. A value of 0 disables the cache.
+   */
+  public void setGroup_cache_size(int groupCacheSize) {
+    this.groupCacheSize = groupCacheSize;
+    logger.log(Level.CONFIG, "group_cache_size set to " + groupCacheSize);
+  }
+
+  int getGroupCacheSize() {
+    return groupCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds to cache the groups of each user,
+   * including lookups of missing users. A value of 0 disables the
+   * cache.
+   */
+  public void setGroup_cache_ttl(long groupCacheTtl) {
+    this.groupCacheTtl = groupCacheTtl;
+    logger.log(Level.CONFIG, "group_cache_ttl set to " + groupCacheTtl);
+  }
+
+  long getGroupCacheTtl() {
+    return groupCacheTtl;
+  }
+
+  /**
+   * Sets the maximum number of users to cache successful password
+   * verifications for. A value of 0, the default, disables the cache.
+   */
+  public void setCredential_cache_size(int credentialCacheSize) {
+    this.credentialCacheSize = credentialCacheSize;
+    logger.log(Level.CONFIG,
+        "credential_cache_size set to " + credentialCacheSize);
+  }
+
+  int getCredentialCacheSize() {
+    return credentialCacheSize;
+  }
+
+  /**
+   * Sets the number of seconds to cache a successful password
+   * verification. Password changes are not seen until the cached
+   * verification expires.
+   */
+  public void setCredential_cache_ttl(long credentialCacheTtl) {
+    this.credentialCacheTtl = credentialCacheTtl;
+    logger.log(Level.CONFIG,
+        "credential_cache_ttl set to " + credentialCacheTtl);
+  }
+
+  long getCredentialCacheTtl() {
+    return credentialCacheTtl;
+  }
+
+  /**
+   * Sets the number of pooled sessions to open when the connector
+   * starts. Only used if session_pool_max is positive.
+   */
+  public void setSession_pool_min(int sessionPoolMin) {
+    this.sessionPoolMin = sessionPoolMin;
+    logger.log(Level.CONFIG, "session_pool_min set to " + sessionPoolMin);
+  }
+
+  int getSessionPoolMin() {
+    return sessionPoolMin;
+  }
+
+  /**
+   * Sets the maximum number of pooled sessions to the docbase. A value
+   * of 0, the default, disables the pool, and sessions are managed by
+   * DFC alone.
+   */
+  public void setSession_pool_max(int sessionPoolMax) {
+    this.sessionPoolMax = sessionPoolMax;
+    logger.log(Level.CONFIG, "session_pool_max set to " + sessionPoolMax);
+  }
+
+  int getSessionPoolMax() {
+    return sessionPoolMax;
+  }
+
+  /**
+   * Sets the maximum number of seconds to wait for a pooled session
+   * when all of them are in use.
+   */
+  public void setSession_pool_wait(long sessionPoolWait) {
+    this.sessionPoolWait = sessionPoolWait;
+    logger.log(Level.CONFIG, "session_pool_wait set to " + sessionPoolWait);
+  }
+
+  long getSessionPoolWait() {
+    return sessionPoolWait;
+  }
+
+  /**
+   * Sets the number of seconds after which an idle pooled session,
+   * beyond session_pool_min, is closed. A value of 0 keeps idle
+   * sessions until they are found disconnected.
+   */
+  public void setSession_pool_idle_timeout(long sessionPoolIdleTimeout) {
+    this.sessionPoolIdleTimeout = sessionPoolIdleTimeout;
+    logger.log(Level.CONFIG,
+        "session_pool_idle_timeout set to " + sessionPoolIdleTimeout);
+  }
+
+  long getSessionPoolIdleTimeout() {
+    return sessionPoolIdleTimeout;
+  }
+
+  /**
+   * Sets the number of seconds after which the session held by an
+   * abandoned document list is reclaimed. A value of 0 disables
+   * reclaiming sessions, and a list that the connector manager
+   * abandons will hold its session indefinitely.
+   */
+  public void setSession_lease_timeout(long sessionLeaseTimeout) {
+    this.sessionLeaseTimeout = sessionLeaseTimeout;
+    logger.log(Level.CONFIG,
+        "session_lease_timeout set to " + sessionLeaseTimeout);
+    if (sessionLeaseTimeout <= 0) {
+      logger.warning("session_lease_timeout is disabled; sessions held by "
+          + "abandoned document lists will not be released");
+    }
+  }
+
+  long getSessionLeaseTimeout() {
+    return sessionLeaseTimeout;
+  }
+
+  /**
+   * Sets whether to test the connection to the docbase and warm up the
+   * caches in the background at startup, instead of testing the
+   * connection before login returns. The first traversal waits for the
+   * warm-up, for up to a minute longer than the startup stagger.
+   */
+  public void setAsync_startup(boolean asyncStartup) {
+    this.asyncStartup = asyncStartup;
+    logger.log(Level.CONFIG, "async_startup set to " + asyncStartup);
+  }
+
+  boolean isAsyncStartup() {
+    return asyncStartup;
+  }
+
+  /**
+   * Sets the maximum number of seconds to delay the background startup
+   * warm-up. Each connector instance waits for a random delay up to
+   * this limit.
+   */
+  public void setStartup_stagger(long startupStagger) {
+    this.startupStagger = startupStagger;
+    logger.log(Level.CONFIG, "startup_stagger set to " + startupStagger);
+  }
+
+  long getStartupStagger() {
+    return startupStagger;
+  }
+
+  /**
+   * Sets whether to publish the stage timings and cache statistics of
+   * this connector instance as a JMX MXBean.
+   */
+  public void setJmx_metrics(boolean jmxMetrics) {
+    this.jmxMetrics = jmxMetrics;
+    logger.log(Level.CONFIG, "jmx_metrics set to " + jmxMetrics);
+  }
+
+  boolean isJmxMetrics() {
+    return jmxMetrics;
+  }
+
   /*
    * Spring supports converting single values to a list, which handles
    * backward compatibility.
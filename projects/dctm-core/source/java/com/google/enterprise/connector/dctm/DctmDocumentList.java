@@ -14,25 +14,52 @@
 
 package com.google.enterprise.connector.dctm;
 
+import com.google.enterprise.connector.dctm.dfcwrap.IAttr;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
 import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISysObject;
 import com.google.enterprise.connector.dctm.dfcwrap.ITime;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 public class DctmDocumentList implements DocumentList {
   private static final Logger logger =
       Logger.getLogger(DctmDocumentList.class.getName());
 
+  /**
+   * The maximum number of chronicle IDs in a versions query. The DQL
+   * parser limits the size of IN conditions.
+   */
+  private static final int MAX_IN_SIZE = 400;
+
   private ISession session;
 
+  /**
+   * The lease on the session, which is released by {@link #close}. The
+   * public methods hold the list's lock, so that the watchdog cannot
+   * close the list while the connector manager is using it.
+   */
+  private final SessionLeaseTracker.Lease lease;
+
   private final ICollection collectionToAdd;
 
   private final ICollection collectionToDel;
@@ -43,72 +70,110 @@ public class DctmDocumentList implements DocumentList {
    */
   private final HashSet<String> deletedIds = new HashSet<String>();
 
+  /**
+   * The minimum number of rows of the add collection to read ahead,
+   * even without prefetching, so that the folders of the documents
+   * can be looked up together.
+   */
+  private static final int MIN_READ_AHEAD = 50;
+
+  /**
+   * The rows of the add collection that have been read but not yet
+   * returned, with any background fetches of their objects.
+   */
+  private final LinkedList<PendingDocument> pendingDocuments =
+      new LinkedList<PendingDocument>();
+
+  /** True if reading the add collection failed. */
+  private boolean addCollectionFailed = false;
+
+  /** The delete events that have been read but not yet processed. */
+  private final LinkedList<DeleteEvent> pendingDeletes =
+      new LinkedList<DeleteEvent>();
+
+  /** The latest versions of the documents with pending delete events. */
+  private Map<String, CurrentVersion> currentVersions =
+      new HashMap<String, CurrentVersion>();
+
+  /** True if reading the delete collection failed. */
+  private boolean delCollectionFailed = false;
+
   private final Checkpoint checkpoint;
 
   private final DctmTraversalManager traversalManager;
 
+  /** Measures the cost of the returned documents. */
+  private final BatchSizeController.DocumentTimer timer;
+
+  /**
+   * The content streams of the returned documents. The connector
+   * manager should close them, but any that are left open are closed
+   * with the list, releasing their memory or spool files.
+   */
+  private final List<InputStream> contentStreams =
+      new ArrayList<InputStream>();
+
   public DctmDocumentList(DctmTraversalManager traversalManager,
       ISession session, ICollection collToAdd, ICollection collToDel,
       Checkpoint checkpoint) {
     this.traversalManager = traversalManager;
     this.session = session;
+    this.lease = traversalManager.getSessionLeaseTracker().track(
+        traversalManager.getSessionManager(), session, "DctmDocumentList",
+        new Runnable() {
+          @Override
+          public void run() {
+            close();
+            closeContentStreams();
+          }
+        });
     this.collectionToAdd = collToAdd;
     this.collectionToDel = collToDel;
     this.checkpoint = checkpoint;
+    this.timer = traversalManager.getBatchSizeController()
+        .newTimer(traversalManager.getDocbase());
   }
 
   @Override
-  public Document nextDocument() throws RepositoryException {
+  public synchronized Document nextDocument() throws RepositoryException {
+    if (lease.isReclaimed()) {
+      throw new RepositoryException(
+          "The session for this document list was reclaimed");
+    }
     DctmSysobjectDocument dctmSysobjectDocument;
     Document retDoc = null;
+    BatchSizeController.QueryType queryType = null;
     boolean skippingDoc = false;
+    timer.begin();
     try {
       while (retDoc == null) {
-        if (isOpen(collectionToAdd) && collectionToAdd.next()) {
+        readAhead();
+        if (!pendingDocuments.isEmpty()) {
           logger.fine("Looking through the collection of documents to add");
 
-          String objId = "";
-          ITime modifyDate = null;
-          String modifyDateToStr;
-          try {
-            objId = collectionToAdd.getString("r_object_id");
-            modifyDate = collectionToAdd.getTime("r_modify_date");
-            modifyDateToStr =
-                collectionToAdd.getString("r_modify_date_str");
-            logger.fine("r_object_id is " + objId + "  modifyDate is "
-                        + modifyDateToStr);
-          } catch (RepositoryException e) {
-            logger.severe("impossible to get the r_object_id of the document");
-            return null;
-          }
-          checkpoint.setInsertCheckpoint(modifyDateToStr, objId);
+          PendingDocument pending = pendingDocuments.removeFirst();
+          checkpoint.setInsertCheckpoint(pending.modifyDateToStr,
+              pending.objId);
 
           dctmSysobjectDocument = new DctmSysobjectDocument(traversalManager,
-              session, objId, collectionToAdd.getString("i_chronicle_id"),
-              modifyDate, SpiConstants.ActionType.ADD, checkpoint);
+              session, pending.objId, pending.chronicleId,
+              pending.modifyDate, SpiConstants.ActionType.ADD, checkpoint,
+              this, pending.object, pending.objectType,
+              pending.projectedValues);
 
           logger.fine("Creation of a new dctmSysobjectDocument to add");
           retDoc = dctmSysobjectDocument;
-        } else if (isOpen(collectionToDel) && collectionToDel.next()) {
+          queryType = BatchSizeController.QueryType.ADD;
+        } else if (addCollectionFailed) {
+          logger.severe("impossible to get the r_object_id of the document");
+          return null;
+        } else if (readAheadDeletes()) {
           logger.fine("Looking through the collection of documents to remove");
 
-          String eventId = "";
-          ITime deleteDate = null;
-          String deleteDateToStr;
-          try {
-            eventId = collectionToDel.getString("r_object_id");
-            deleteDate = collectionToDel.getTime("time_stamp_utc");
-            deleteDateToStr =
-                collectionToDel.getString("time_stamp_utc_str");
-            logger.fine("delete event r_object_id is " + eventId
-                        + "  deleteDate is " + deleteDateToStr);
-          } catch (RepositoryException e) {
-            logger.warning("impossible to get the r_object_id of the delete event");
-            return null;
-          }
-          checkpoint.setDeleteCheckpoint(deleteDateToStr, eventId);
+          DeleteEvent event = pendingDeletes.removeFirst();
+          checkpoint.setDeleteCheckpoint(event.deleteDateToStr, event.eventId);
 
-          String chronicleId = collectionToDel.getString("chronicle_id");
+          String chronicleId = event.chronicleId;
 
           // Deleting multiple versions can post multiple dm_destroy and
           // dm_prune events with the same chronicle_id.  We only want to
@@ -121,44 +186,44 @@ public class DctmDocumentList implements DocumentList {
           // If we are deleting the last version of a document, remove it
           // from the index.  If we may be deleting the latest version of
           // the document, force the new latest version to be re-indexed.
-          ICollection versions = null;
-          try {
-            versions = getCurrentVersion(chronicleId);
-            if (versions != null && versions.next()) {
-              ITime lastModify = versions.getTime("r_modify_date");
-              if (lastModify.getDate().before(deleteDate.getDate())) {
-                // We may have deleted the latest version, so refeed the
-                // current latest version.
-                dctmSysobjectDocument = new DctmSysobjectDocument(
-                    traversalManager, session,
-                    versions.getString("r_object_id"), chronicleId,
-                    lastModify, SpiConstants.ActionType.ADD, checkpoint);
-                logger.fine("Creation of a new dctmSysobjectDocument to "
-                            + "resubmit newest version of deleted item: "
-                            + chronicleId);
-              } else {
-                // Skip this doc.
-                logger.fine("Skipping delete of old version: " + chronicleId);
-                continue;
-              }
-            } else {
-              // No more versions of the document remain.
-              // Delete the document from the index.
+          CurrentVersion version = currentVersions.get(chronicleId);
+          if (version != null) {
+            ITime lastModify = version.modifyDate;
+            if (lastModify.getDate().before(event.deleteDate.getDate())) {
+              // We may have deleted the latest version, so refeed the
+              // current latest version.
               dctmSysobjectDocument = new DctmSysobjectDocument(
-                  traversalManager, session,
-                  collectionToDel.getString("audited_obj_id"), chronicleId,
-                  deleteDate, SpiConstants.ActionType.DELETE, checkpoint);
-              logger.fine("Creation of a new dctmSysobjectDocument to delete: "
+                  traversalManager, session, version.objectId, chronicleId,
+                  lastModify, SpiConstants.ActionType.ADD, checkpoint,
+                  this, null, null, null);
+              logger.fine("Creation of a new dctmSysobjectDocument to "
+                          + "resubmit newest version of deleted item: "
                           + chronicleId);
+            } else {
+              // Skip this doc.
+              logger.fine("Skipping delete of old version: " + chronicleId);
+              continue;
             }
-          } finally {
-            if (versions != null) {
-              versions.close();
+          } else {
+            // No more versions of the document remain.
+            // Delete the document from the index.
+            AclIndex aclIndex = traversalManager.getAclIndex();
+            if (aclIndex != null) {
+              aclIndex.removeDocument(chronicleId);
             }
+            dctmSysobjectDocument = new DctmSysobjectDocument(
+                traversalManager, session, event.auditedObjId, chronicleId,
+                event.deleteDate, SpiConstants.ActionType.DELETE, checkpoint);
+            logger.fine("Creation of a new dctmSysobjectDocument to delete: "
+                        + chronicleId);
           }
           // Handled this version in this batch.
           deletedIds.add(chronicleId);
           retDoc = dctmSysobjectDocument;
+          queryType = BatchSizeController.QueryType.DELETE;
+        } else if (delCollectionFailed) {
+          logger.warning("impossible to get the r_object_id of the delete event");
+          return null;
         } else {
           logger.fine("End of document list");
           break;
@@ -178,22 +243,227 @@ public class DctmDocumentList implements DocumentList {
       throw re;
     } finally {
       if (retDoc == null && !skippingDoc) {
-        logger.fine("retDoc is null before finalize");
-        finalize();
+        logger.fine("retDoc is null before close");
+        close();
       }
     }
+    if (retDoc != null) {
+      timer.returned(queryType);
+    }
     return retDoc;
   }
 
   @Override
-  public String checkpoint() throws RepositoryException {
+  public synchronized String checkpoint() throws RepositoryException {
+    timer.end();
+    ConnectorMetrics metrics = traversalManager.getMetrics();
     try {
-      return checkpoint.asString();
+      long start = metrics.begin();
+      String value = checkpoint.asString();
+      metrics.end(ConnectorMetrics.Stage.CHECKPOINT, start);
+      return value;
     } finally {
-      finalize();
+      close();
+      closeContentStreams();
+    }
+  }
+
+  /**
+   * Reads rows from the collection of documents to add until the
+   * read-ahead window is full, and starts background fetches of the
+   * objects at the front of the window if prefetching is enabled. The
+   * window is at least {@link #MIN_READ_AHEAD} rows, so that the
+   * folders of the rows can be looked up together. The checkpoint is
+   * not advanced until the document is returned from
+   * {@link #nextDocument}.
+   */
+  private void readAhead() throws RepositoryException {
+    int prefetchSize = traversalManager.getPrefetchSize();
+    int windowSize = Math.max(prefetchSize, MIN_READ_AHEAD);
+    while (!addCollectionFailed && pendingDocuments.size() < windowSize
+        && isOpen(collectionToAdd) && collectionToAdd.next()) {
+      PendingDocument pending = new PendingDocument();
+      try {
+        pending.objId = collectionToAdd.getString("r_object_id");
+        pending.modifyDate = collectionToAdd.getTime("r_modify_date");
+        pending.modifyDateToStr =
+            collectionToAdd.getString("r_modify_date_str");
+        logger.fine("r_object_id is " + pending.objId + "  modifyDate is "
+                    + pending.modifyDateToStr);
+      } catch (RepositoryException e) {
+        addCollectionFailed = true;
+        break;
+      }
+      pending.chronicleId = collectionToAdd.getString("i_chronicle_id");
+      AclIndex aclIndex = traversalManager.getAclIndex();
+      if (aclIndex != null) {
+        // Documents are indexed whether or not they are fetched.
+        aclIndex.putDocument(pending.chronicleId, collectionToAdd);
+      }
+      List<IAttr> projected = traversalManager.getProjectedAttributes();
+      if (projected != null) {
+        pending.objectType = collectionToAdd.getString("r_object_type");
+        pending.projectedValues = DctmSysobjectDocument.getProjectedValues(
+            collectionToAdd, projected);
+      }
+      pending.folderIds = getFolderIds(collectionToAdd);
+      pendingDocuments.addLast(pending);
+    }
+
+    int count = 0;
+    for (PendingDocument pending : pendingDocuments) {
+      if (count++ >= prefetchSize) {
+        break;
+      }
+      if (pending.object == null) {
+        pending.object = traversalManager.prefetch(pending.objId);
+      }
     }
   }
 
+  /**
+   * Gets the i_folder_id values of the current row.
+   *
+   * @return the folder IDs, or null if they cannot be read
+   */
+  private List<String> getFolderIds(ICollection collection) {
+    try {
+      int count = collection.getValueCount("i_folder_id");
+      List<String> folderIds = new ArrayList<String>(count);
+      for (int i = 0; i < count; i++) {
+        folderIds.add(collection.getRepeatingValue("i_folder_id", i)
+            .asString());
+      }
+      return folderIds;
+    } catch (RepositoryException e) {
+      logger.finest("Unable to read i_folder_id from the row: " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Adds the folder IDs of the documents that have been read ahead.
+   * They are read from the rows, or else from the objects that have
+   * already been fetched in the background. Documents that are still
+   * being fetched are skipped rather than waited for.
+   *
+   * @param folderIds the set to add the folder IDs to
+   */
+  synchronized void getPendingFolderIds(Set<String> folderIds) {
+    for (PendingDocument pending : pendingDocuments) {
+      if (pending.folderIds != null) {
+        folderIds.addAll(pending.folderIds);
+      } else if (pending.object != null && pending.object.isDone()
+          && !pending.object.isCancelled()) {
+        try {
+          ISysObject object = pending.object.get();
+          for (int i = 0, n = object.getValueCount("i_folder_id"); i < n;
+               i++) {
+            folderIds.add(object.getRepeatingValue("i_folder_id", i)
+                .asString());
+          }
+        } catch (Exception e) {
+          // The document will report the error when it is returned.
+          logger.finest("Skipping folders of " + pending.objId + ": " + e);
+        }
+      }
+    }
+  }
+
+  /** A row read from the collection of documents to add. */
+  private static class PendingDocument {
+    String objId;
+    String chronicleId;
+    ITime modifyDate;
+    String modifyDateToStr;
+    Future<ISysObject> object;
+    List<String> folderIds;
+    String objectType;
+    Map<String, List<Value>> projectedValues;
+  }
+
+  /**
+   * Reads ahead rows from the collection of delete events, if none are
+   * pending, and looks up the current versions of their documents. At
+   * most {@link #MAX_IN_SIZE} distinct chronicle IDs are read at a time,
+   * so that a single versions query is needed for each read-ahead.
+   *
+   * @return true if there is a pending delete event
+   */
+  private boolean readAheadDeletes() throws RepositoryException {
+    if (!pendingDeletes.isEmpty()) {
+      return true;
+    }
+    Set<String> chronicleIds = new LinkedHashSet<String>();
+    while (!delCollectionFailed && chronicleIds.size() < MAX_IN_SIZE
+        && isOpen(collectionToDel) && collectionToDel.next()) {
+      DeleteEvent event = new DeleteEvent();
+      try {
+        event.eventId = collectionToDel.getString("r_object_id");
+        event.deleteDate = collectionToDel.getTime("time_stamp_utc");
+        event.deleteDateToStr =
+            collectionToDel.getString("time_stamp_utc_str");
+        logger.fine("delete event r_object_id is " + event.eventId
+                    + "  deleteDate is " + event.deleteDateToStr);
+      } catch (RepositoryException e) {
+        delCollectionFailed = true;
+        break;
+      }
+      event.chronicleId = collectionToDel.getString("chronicle_id");
+      event.auditedObjId = collectionToDel.getString("audited_obj_id");
+      pendingDeletes.addLast(event);
+      if (!deletedIds.contains(event.chronicleId)) {
+        chronicleIds.add(event.chronicleId);
+      }
+    }
+    currentVersions = getCurrentVersions(chronicleIds);
+    return !pendingDeletes.isEmpty();
+  }
+
+  /**
+   * Looks up the latest versions of the documents with the supplied
+   * chronicleIds.
+   *
+   * @param chronicleIds root document versions, at most
+   *     {@link #MAX_IN_SIZE} of them
+   * @return a map from chronicleIds to their latest versions; documents
+   *     with no remaining versions are not included
+   */
+  /* @VisibleForTesting */
+  Map<String, CurrentVersion> getCurrentVersions(
+      Collection<String> chronicleIds) throws RepositoryException {
+    Map<String, CurrentVersion> versions =
+        new HashMap<String, CurrentVersion>();
+    if (chronicleIds.isEmpty()) {
+      return versions;
+    }
+    IQuery query = traversalManager.getClientX().getQuery();
+    query.setDQL(traversalManager.buildVersionsQueryString(checkpoint,
+        chronicleIds));
+    ConnectorMetrics metrics = traversalManager.getMetrics();
+    long start = metrics.begin();
+    ICollection collection = query.execute(session, IQuery.EXECUTE_READ_QUERY);
+    metrics.end(ConnectorMetrics.Stage.VERSIONS_QUERY, start);
+    if (collection == null) {
+      return versions;
+    }
+    try {
+      while (collection.next()) {
+        // The rows are ordered by version, so use the first one we see.
+        String chronicleId = collection.getString("i_chronicle_id");
+        if (!versions.containsKey(chronicleId)) {
+          CurrentVersion version = new CurrentVersion();
+          version.objectId = collection.getString("r_object_id");
+          version.modifyDate = collection.getTime("r_modify_date");
+          versions.put(chronicleId, version);
+        }
+      }
+    } finally {
+      collection.close();
+    }
+    return versions;
+  }
+
   /**
    * Return a ICollection containing the latest version of document based
    * upon the supplied chronicleId.
@@ -209,6 +479,21 @@ public class DctmDocumentList implements DocumentList {
     return query.execute(session, IQuery.EXECUTE_READ_QUERY);
   }
 
+  /** A row read from the collection of delete events. */
+  private static class DeleteEvent {
+    String eventId;
+    ITime deleteDate;
+    String deleteDateToStr;
+    String chronicleId;
+    String auditedObjId;
+  }
+
+  /** The latest version of a document. */
+  static class CurrentVersion {
+    String objectId;
+    ITime modifyDate;
+  }
+
   /**
    * Test connectivity to server.  If we have a session and
    * can verify that session isConnected(), return false.
@@ -232,11 +517,43 @@ public class DctmDocumentList implements DocumentList {
             (collection.getState() != ICollection.DF_CLOSED_STATE));
   }
 
-  // Last chance to make sure the collections are closed and their sessions
-  // are released.
-  @Override
-  protected void finalize() {
+  /** Adds the content stream of a returned document. */
+  synchronized void addContentStream(InputStream content) {
+    contentStreams.add(content);
+  }
+
+  /**
+   * Closes the content streams of the returned documents. This is not
+   * done when the documents run out, because the connector manager may
+   * still be reading the content of the last document.
+   */
+  private synchronized void closeContentStreams() {
+    for (InputStream content : contentStreams) {
+      try {
+        content.close();
+      } catch (IOException e) {
+        logger.warning("Error closing a content stream: " + e);
+      }
+    }
+    contentStreams.clear();
+  }
+
+  /**
+   * Closes the collections and releases the session. This is called
+   * when the list is exhausted, when it is checkpointed, and when its
+   * session lease is reclaimed.
+   */
+  private synchronized void close() {
     try {
+      // Documents that were read ahead but never returned will be
+      // picked up again from the checkpoint, so stop fetching them.
+      for (PendingDocument pending : pendingDocuments) {
+        if (pending.object != null) {
+          pending.object.cancel(false);
+        }
+      }
+      pendingDocuments.clear();
+
       if (isOpen(collectionToAdd)) {
         try {
           collectionToAdd.close();
@@ -259,7 +576,7 @@ public class DctmDocumentList implements DocumentList {
       }
     } finally {
       if (session != null) {
-        traversalManager.getSessionManager().release(session);
+        lease.release();
         session = null;
         logger.fine("collection session released");
       }
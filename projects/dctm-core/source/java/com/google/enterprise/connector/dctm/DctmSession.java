@@ -14,9 +14,12 @@
 
 package com.google.enterprise.connector.dctm;
 
+import com.google.common.base.Strings;
 import com.google.enterprise.connector.dctm.dfcwrap.IClient;
 import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
 import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
 import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
 import com.google.enterprise.connector.spi.AuthenticationManager;
@@ -24,22 +27,88 @@ import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.Session;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class DctmSession implements Session {
   private static Logger logger = Logger.getLogger(DctmSession.class.getName());
 
+  /**
+   * The longest that traversal waits for an asynchronous startup to
+   * warm up, in seconds, in addition to the startup stagger.
+   */
+  private static final long WARM_UP_WAIT_SECONDS = 60L;
+
   private final DctmConnector connector;
 
   private final IClientX clientX;
 
   private final ISessionManager sessionManager;
 
+  /** The pool that wraps the session manager, or null if unpooled. */
+  private final PooledSessionManager sessionPool;
+
+  /** The type metadata shared by the traversal managers. */
+  private final TypeMetadataCache typeMetadataCache;
+
+  /** The sessions held by the document lists of the traversal managers. */
+  private final SessionLeaseTracker sessionLeaseTracker;
+
+  /** The ACL accessor lookups shared by the traversal managers. */
+  private final PrincipalCache principalCache;
+
+  /** The user session managers shared by the authorization managers. */
+  private final UserSessionManagerPool userSessionManagerPool;
+
+  /** The authorization decisions shared by the authorization managers. */
+  private final AuthorizationCache authorizationCache;
+
+  /**
+   * The threads shared by the authorization managers to run queries
+   * concurrently, or null if the queries are run sequentially.
+   */
+  private final ThreadPoolExecutor authzQueryExecutor;
+
+  /**
+   * The document ACLs maintained by the traversal managers and read by
+   * the authorization managers, or null if there is no index.
+   */
+  private final AclIndex aclIndex;
+
+  /** The user names and groups shared by the authentication managers. */
+  private final GroupCache groupCache;
+
+  /** The password verifications shared by the authentication managers. */
+  private final CredentialCache credentialCache;
+
+  /** The stage timings and cache statistics shared by the managers. */
+  private final ConnectorMetrics metrics;
+
+  /** Counted down when the startup checks and warm-up have finished. */
+  private final CountDownLatch ready = new CountDownLatch(1);
+
   public DctmSession(DctmConnector connector) throws RepositoryException {
     this.connector = connector;
     this.clientX = connector.getClientX();
     IClient client = clientX.getLocalClient();
-    this.sessionManager = client.newSessionManager();
+    if (connector.getSessionPoolMax() > 0) {
+      this.sessionPool = new PooledSessionManager(client.newSessionManager(),
+          connector.getSessionPoolMin(), connector.getSessionPoolMax(),
+          connector.getSessionPoolWait() * 1000,
+          connector.getSessionPoolIdleTimeout() * 1000);
+      this.sessionManager = sessionPool;
+    } else {
+      this.sessionPool = null;
+      this.sessionManager = client.newSessionManager();
+    }
 
     ILoginInfo dctmLoginInfo = clientX.getLoginInfo();
     dctmLoginInfo.setUser(connector.getLogin());
@@ -48,6 +117,61 @@ public class DctmSession implements Session {
     sessionManager.setIdentity(connector.getDocbase(), dctmLoginInfo);
     logger.fine("Session Manager set the identity for " + connector.getLogin());
 
+    typeMetadataCache = new TypeMetadataCache(connector.getTypeCacheSize(),
+        connector.getIncludedMeta(), connector.getExcludedMeta());
+    sessionLeaseTracker =
+        new SessionLeaseTracker(connector.getSessionLeaseTimeout() * 1000);
+    principalCache = new PrincipalCache(connector.getPrincipalCacheSize(),
+        connector.getPrincipalCacheTtl() * 1000);
+    userSessionManagerPool = new UserSessionManagerPool(clientX,
+        sessionManager, docbase, connector.getUserSessionPoolSize(),
+        connector.getUserSessionTtl() * 1000);
+    authorizationCache = new AuthorizationCache(
+        connector.getAuthzCacheSize(), connector.getAuthzCacheTtl() * 1000);
+
+    int authzQueryThreads = connector.getAuthzQueryThreads();
+    if (authzQueryThreads > 1) {
+      authzQueryExecutor = new ThreadPoolExecutor(authzQueryThreads,
+          authzQueryThreads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          newThreadFactory("DctmAuthz-" + docbase));
+      // Let the threads go away when there are no searches.
+      authzQueryExecutor.allowCoreThreadTimeOut(true);
+    } else {
+      authzQueryExecutor = null;
+    }
+
+    aclIndex = connector.isAuthzAclIndex()
+        ? new AclIndex(connector.getPrincipalCacheSize(),
+            connector.getPrincipalCacheTtl() * 1000)
+        : null;
+    groupCache = new GroupCache(connector.getGroupCacheSize(),
+        connector.getGroupCacheTtl() * 1000);
+    credentialCache = new CredentialCache(connector.getCredentialCacheSize(),
+        connector.getCredentialCacheTtl() * 1000);
+
+    metrics = new ConnectorMetrics(connector.getConnectorName(), docbase);
+    metrics.setCaches(principalCache, authorizationCache, groupCache,
+        credentialCache);
+    metrics.setSessionPool(sessionPool);
+    metrics.setSessionLeaseTracker(sessionLeaseTracker);
+    if (connector.isJmxMetrics()) {
+      metrics.register();
+    }
+
+    if (connector.isAsyncStartup()) {
+      startWarmUp(docbase, connector.getStartupStagger() * 1000);
+    } else {
+      testSession(docbase);
+      if (sessionPool != null) {
+        sessionPool.warmUp(docbase);
+      }
+      ready.countDown();
+      startAclIndexRebuild(docbase);
+    }
+  }
+
+  private void testSession(String docbase) throws RepositoryException {
     ISession session = sessionManager.newSession(docbase);
     logger.info("DFC " + this.clientX.getDFCVersion()
         + " connected to Content Server " + session.getServerVersion());
@@ -55,9 +179,184 @@ public class DctmSession implements Session {
     logger.info("Tested a new session for the docbase " + docbase);
   }
 
+  /**
+   * Starts a background thread that waits for a random delay of up to
+   * {@code staggerMillis}, so that connector instances restarted
+   * together do not all connect at once, and then tests the
+   * connection and warms up the caches.
+   */
+  private void startWarmUp(final String docbase, final long staggerMillis) {
+    Runnable warmUp = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (staggerMillis > 0) {
+              Thread.sleep((long) (Math.random() * staggerMillis));
+            }
+            warmUp(docbase);
+          } catch (InterruptedException e) {
+            logger.fine("Startup warm-up interrupted");
+            return;
+          } finally {
+            ready.countDown();
+          }
+          startAclIndexRebuild(docbase);
+        }
+      };
+    newThreadFactory("DctmStartup-" + docbase).newThread(warmUp).start();
+  }
+
+  /**
+   * Starts a background thread that loads the ACL index, if there is
+   * one. Until it is loaded, authorization falls back to queries for
+   * the documents that traversal has not indexed yet.
+   */
+  private void startAclIndexRebuild(String docbase) {
+    if (aclIndex == null) {
+      return;
+    }
+    Runnable rebuild = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            DctmTraversalManager traversalManager =
+                new DctmTraversalManager(connector, sessionManager);
+            traversalManager.setAclIndex(aclIndex);
+            traversalManager.rebuildAclIndex();
+          } catch (RepositoryException e) {
+            logger.log(Level.WARNING, "Error loading the ACL index", e);
+          }
+        }
+      };
+    newThreadFactory("DctmAclIndex-" + docbase).newThread(rebuild).start();
+  }
+
+  /**
+   * Tests the connection, opens the pooled sessions, and loads the
+   * type metadata of the traversed types and the groups into the
+   * caches. Errors are logged, and the caches are loaded on demand.
+   */
+  private void warmUp(String docbase) {
+    long start = System.currentTimeMillis();
+    try {
+      testSession(docbase);
+      if (sessionPool != null) {
+        sessionPool.warmUp(docbase);
+      }
+
+      ISession session = sessionManager.getSession(docbase);
+      try {
+        warmUpTypes(session);
+        warmUpGroups(session);
+      } finally {
+        sessionManager.release(session);
+      }
+      logger.info("Warmed up the caches for the docbase " + docbase + " in "
+          + (System.currentTimeMillis() - start) + " ms");
+    } catch (RepositoryException e) {
+      logger.log(Level.WARNING,
+          "Error warming up the connection to the docbase " + docbase, e);
+    }
+  }
+
+  /** Loads the root object type and the included object types. */
+  private void warmUpTypes(ISession session) {
+    Set<String> typeNames = new LinkedHashSet<String>();
+    typeNames.add(Strings.isNullOrEmpty(connector.getRootObjectType())
+        ? "dm_sysobject" : connector.getRootObjectType());
+    typeNames.addAll(connector.getIncludedObjectType());
+    for (String typeName : typeNames) {
+      try {
+        typeMetadataCache.get(session, typeName);
+      } catch (RepositoryException e) {
+        logger.log(Level.FINE, "Unable to load type " + typeName, e);
+      }
+    }
+  }
+
+  /**
+   * Loads groups into the principal cache, up to its capacity. Users
+   * are not loaded, because a docbase may have many more users than
+   * the ACLs name.
+   */
+  private void warmUpGroups(ISession session) throws RepositoryException {
+    if (!principalCache.isEnabled()) {
+      return;
+    }
+    String localNamespace = connector.getGoogleLocalNamespace();
+    String globalNamespace = connector.getGoogleGlobalNamespace();
+    int capacity = connector.getPrincipalCacheSize();
+    IQuery query = clientX.getQuery();
+    query.setDQL("select group_name, group_source from dm_group");
+    ICollection groups = query.execute(session, IQuery.EXECUTE_READ_QUERY);
+    try {
+      for (int i = 0; i < capacity && groups.next(); i++) {
+        String groupSource = groups.getString("group_source");
+        String namespace = Strings.isNullOrEmpty(groupSource)
+            ? localNamespace : globalNamespace;
+        principalCache.put(PrincipalCache.Kind.GROUP,
+            groups.getString("group_name"),
+            new PrincipalCache.ResolvedPrincipal(null, namespace));
+      }
+    } finally {
+      groups.close();
+    }
+  }
+
+  /**
+   * Returns true if the startup checks and warm-up have finished,
+   * whether or not they succeeded.
+   */
+  public boolean isReady() {
+    return ready.getCount() == 0;
+  }
+
+  /**
+   * Waits for the startup checks and warm-up to finish.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit the unit of the timeout
+   * @return true if the warm-up finished, or false if the wait timed out
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return ready.await(timeout, unit);
+  }
+
+  /** Gets the stage timings and cache statistics of this session. */
+  ConnectorMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** Creates a factory for daemon threads with the given name prefix. */
+  private static ThreadFactory newThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+  }
+
   @Override
   public DctmTraversalManager getTraversalManager() throws RepositoryException {
-    return new DctmTraversalManager(connector, sessionManager);
+    DctmTraversalManager traversalManager =
+        new DctmTraversalManager(connector, sessionManager);
+    traversalManager.setTypeMetadataCache(typeMetadataCache);
+    traversalManager.setPrincipalCache(principalCache);
+    traversalManager.setAclIndex(aclIndex);
+    traversalManager.setSessionLeaseTracker(sessionLeaseTracker);
+    traversalManager.setMetrics(metrics);
+    metrics.setTraversalManager(traversalManager);
+    if (connector.isAsyncStartup()) {
+      traversalManager.setStartupSession(this,
+          (connector.getStartupStagger() + WARM_UP_WAIT_SECONDS) * 1000);
+    }
+    return traversalManager;
   }
 
   /**
@@ -75,8 +374,14 @@ public class DctmSession implements Session {
    */
   @Override
   public DctmAuthenticationManager getAuthenticationManager() {
-    return new DctmAuthenticationManager(connector, clientX,
-        connector.getDocbase());
+    DctmAuthenticationManager authenticationManager =
+        new DctmAuthenticationManager(connector, clientX,
+            connector.getDocbase());
+    authenticationManager.setGroupCache(groupCache);
+    authenticationManager.setCredentialCache(credentialCache);
+    authenticationManager.setSessionManager(sessionManager);
+    authenticationManager.setMetrics(metrics);
+    return authenticationManager;
   }
 
   /**
@@ -95,7 +400,14 @@ public class DctmSession implements Session {
    */
   @Override
   public DctmAuthorizationManager getAuthorizationManager() {
-    return new DctmAuthorizationManager(clientX, sessionManager,
-        connector.getDocbase());
+    DctmAuthorizationManager authorizationManager =
+        new DctmAuthorizationManager(clientX, sessionManager,
+            connector.getDocbase(), userSessionManagerPool,
+            authorizationCache);
+    authorizationManager.setQueryExecutor(authzQueryExecutor);
+    authorizationManager.setTimeLimit(connector.getAuthzTimeLimit());
+    authorizationManager.setAclIndex(aclIndex);
+    authorizationManager.setMetrics(metrics);
+    return authorizationManager;
   }
 }
@@ -16,15 +16,14 @@ package com.google.enterprise.connector.dctm;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.PropertyExtractionPlan.Extractor;
 import com.google.enterprise.connector.dctm.dfcwrap.IAttr;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
 import com.google.enterprise.connector.dctm.dfcwrap.IFormat;
 import com.google.enterprise.connector.dctm.dfcwrap.IId;
-import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
 import com.google.enterprise.connector.dctm.dfcwrap.ISysObject;
 import com.google.enterprise.connector.dctm.dfcwrap.ITime;
-import com.google.enterprise.connector.dctm.dfcwrap.IType;
 import com.google.enterprise.connector.dctm.dfcwrap.IValue;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.Property;
@@ -38,14 +37,21 @@ import com.google.enterprise.connector.spi.SpiConstants.ActionType;
 import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.spi.Value;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,6 +72,11 @@ public class DctmSysobjectDocument implements Document {
   public static final Set<String> EXTENDED_PROPERTIES =
       ImmutableSet.of(OBJECT_ID_NAME, SpiConstants.PROPNAME_FOLDER);
 
+  /** The SPI properties supplied for documents with the delete action. */
+  private static final Set<String> DELETE_PROPERTY_NAMES = ImmutableSet.of(
+      SpiConstants.PROPNAME_ACTION, SpiConstants.PROPNAME_DOCID,
+      SpiConstants.PROPNAME_LASTMODIFIED);
+
   /**
    * A record of logged requests for unsupported SPI properties so we
    * don't spam the logs.
@@ -81,11 +92,58 @@ public class DctmSysobjectDocument implements Document {
   private final ActionType action;
   private final Checkpoint checkpoint;
 
+  /** The list this document came from, or null. */
+  private final DctmDocumentList documentList;
+
   private ISysObject object;
 
+  /** The object being fetched in the background, if any. */
+  private Future<ISysObject> prefetched;
+
+  /**
+   * The attribute values selected by the traversal query, or null if
+   * the attributes must be read from the fetched object.
+   */
+  private final Map<String, List<Value>> projectedValues;
+
+  /** The r_object_type selected by the traversal query, if any. */
+  private final String projectedType;
+
+  /**
+   * The values of the included attributes read from the fetched
+   * object, indexed by the extraction plan, or null if they have not
+   * been read.
+   */
+  private Value[][] attributeTable;
+
   public DctmSysobjectDocument(DctmTraversalManager traversalManager,
       ISession session, String docid, String commonVersionID, ITime timeStamp,
       ActionType action, Checkpoint checkpoint) {
+    this(traversalManager, session, docid, commonVersionID, timeStamp,
+        action, checkpoint, null, null, null, null);
+  }
+
+  /**
+   * Constructs a document whose object may already be on its way.
+   *
+   * @param documentList the list that returned this document, or null
+   * @param prefetched a Future for the fetched object, or null to fetch
+   *     the object on demand
+   * @param projectedType the object type selected by the traversal
+   *     query, or null
+   * @param projectedValues the attribute values selected by the
+   *     traversal query, or null to read all attributes from the
+   *     fetched object
+   */
+  DctmSysobjectDocument(DctmTraversalManager traversalManager,
+      ISession session, String docid, String commonVersionID, ITime timeStamp,
+      ActionType action, Checkpoint checkpoint,
+      DctmDocumentList documentList, Future<ISysObject> prefetched,
+      String projectedType, Map<String, List<Value>> projectedValues) {
+    this.documentList = documentList;
+    this.prefetched = prefetched;
+    this.projectedType = projectedType;
+    this.projectedValues = projectedValues;
     this.traversalManager = traversalManager;
     this.session = session;
     this.docId = docid;
@@ -101,9 +159,16 @@ public class DctmSysobjectDocument implements Document {
       return;
     }
     try {
-      IId id = traversalManager.getClientX().getId(docId);
-
-      object = (ISysObject) session.getObject(id);
+      ConnectorMetrics metrics = traversalManager.getMetrics();
+      long start = metrics.begin();
+      if (prefetched != null) {
+        object = getPrefetchedObject();
+      }
+      if (object == null) {
+        IId id = traversalManager.getClientX().getId(docId);
+        object = (ISysObject) session.getObject(id);
+      }
+      metrics.end(ConnectorMetrics.Stage.FETCH, start);
       if (versionId == null || versionId.length() == 0) {
         versionId = object.getId("i_chronicle_id").getId();
       }
@@ -125,6 +190,36 @@ public class DctmSysobjectDocument implements Document {
     }
   }
 
+  /**
+   * Waits for the background fetch of this object to complete.
+   *
+   * @return the fetched object, or null if the object should be
+   *     fetched again on this thread
+   * @throws RepositoryDocumentException if the object cannot be fetched
+   * @throws RepositoryException if the wait is interrupted
+   */
+  private ISysObject getPrefetchedObject() throws RepositoryException {
+    Future<ISysObject> future = prefetched;
+    prefetched = null;
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryDocumentException) {
+        throw (RepositoryDocumentException) cause;
+      }
+      // Retry on our own session, so that a lost connection is
+      // detected and handled the same way as without prefetching.
+      logger.log(Level.FINE, "Prefetch of " + docId + " failed", cause);
+      return null;
+    } catch (CancellationException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException("Interrupted while fetching " + docId, e);
+    }
+  }
+
   /**
    * Test connectivity to server.  If we have a session and
    * can verify that session isConnected(), return false.
@@ -151,13 +246,16 @@ public class DctmSysobjectDocument implements Document {
     if (name == null || name.length() == 0)
       return null;
 
-    List<Value> values = new LinkedList<Value>();
+    List<Value> values = new ArrayList<Value>();
 
     if (logger.isLoggable(Level.FINEST))
       logger.finest("In findProperty; name: " + name);
 
     if (ActionType.ADD.equals(action)) {
-      fetch();
+      // With projected metadata, defer the fetch until we need the object.
+      if (projectedValues == null) {
+        fetch();
+      }
       boolean found = findCoreProperty(name, values);
       if (!found)
         found = findAddProperty(name, values);
@@ -204,10 +302,38 @@ public class DctmSysobjectDocument implements Document {
     return true;
   }
 
+  /**
+   * Gets the content stream. The content is read into memory if it is
+   * no larger than the spool threshold and it fits in the content
+   * memory budget, and is spooled to disk otherwise.
+   */
+  private InputStream getContentStream() throws RepositoryDocumentException {
+    ContentMemoryGovernor governor =
+        traversalManager.getContentMemoryGovernor();
+    long threshold = traversalManager.getContentSpoolThreshold();
+    long size = object.getContentSize();
+    if ((threshold < 0 || size <= threshold) && governor.reserve(size)) {
+      boolean tracked = false;
+      try {
+        InputStream content =
+            governor.trackMemory(object.getContentStream(-1L), size);
+        tracked = true;
+        return content;
+      } finally {
+        if (!tracked) {
+          governor.unreserve(size);
+        }
+      }
+    } else {
+      return governor.trackSpool(object.getContentStream(0L), size);
+    }
+  }
+
   /**
    * Adds the values for the named property to the list. The
    * properties handled by this method are available only for the add
-   * action. A fetched SysObject is used to obtain the values.
+   * action. A fetched SysObject is used to obtain the values that were
+   * not selected by the traversal query.
    *
    * @param name a property name
    * @param values the empty list to add values to
@@ -218,9 +344,17 @@ public class DctmSysobjectDocument implements Document {
   private boolean findAddProperty(String name, List<Value> values)
       throws RepositoryException {
     if (SpiConstants.PROPNAME_CONTENT.equals(name)) {
+      fetch();
       try {
         if (canIndex(true)) {
-          values.add(Value.getBinaryValue(object.getContent()));
+          ConnectorMetrics metrics = traversalManager.getMetrics();
+          long start = metrics.begin();
+          InputStream content = getContentStream();
+          if (documentList != null && content != null) {
+            documentList.addContentStream(content);
+          }
+          values.add(Value.getBinaryValue(content));
+          metrics.end(ConnectorMetrics.Stage.CONTENT, start);
         }
       } catch (RepositoryDocumentException e) {
         // FIXME: In the unlikely event the user only has BROWSE
@@ -238,6 +372,7 @@ public class DctmSysobjectDocument implements Document {
     } else if (SpiConstants.PROPNAME_ISPUBLIC.equals(name)) {
       values.add(Value.getBooleanValue(traversalManager.isPublic()));
     } else if (SpiConstants.PROPNAME_MIMETYPE.equals(name)) {
+      fetch();
       try {
         IFormat dctmForm = object.getFormat();
         String mimetype = dctmForm.getMIMEType();
@@ -252,8 +387,15 @@ public class DctmSysobjectDocument implements Document {
             + " on getting property: " + name);
       }
     } else if (SpiConstants.PROPNAME_TITLE.equals(name)) {
-      values.add(Value.getStringValue(object.getObjectName()));
+      if (projectedValues != null
+          && projectedValues.containsKey("object_name")) {
+        values.addAll(projectedValues.get("object_name"));
+      } else {
+        fetch();
+        values.add(Value.getStringValue(object.getObjectName()));
+      }
     } else if (SpiConstants.PROPNAME_ACLINHERITFROM_DOCID.equals(name)) {
+      fetch();
       values.add(Value.getStringValue(object.getAclId().getId()));
     } else if (name.startsWith(SpiConstants.RESERVED_PROPNAME_PREFIX)) {
       if (UNSUPPORTED_PROPNAMES.add(name)) {
@@ -277,35 +419,36 @@ public class DctmSysobjectDocument implements Document {
    */
   private boolean findFolderProperty(String name, List<Value> values)
       throws RepositoryException {
-    // We have already done a fetch of this object, so we read
-    // i_folder_id directly rather than doing a subquery or join
-    // on the object ID.
+    // We read i_folder_id from the fetched object rather than doing
+    // a subquery or join on the object ID.
+    fetch();
     int count = object.getValueCount("i_folder_id");
     if (count == 0)
       return false;
 
-    StringBuilder dql = new StringBuilder();
-    dql.append("select r_folder_path from dm_folder ");
-    dql.append("where r_folder_path is not null and r_object_id in (");
+    List<String> folderIds = new ArrayList<String>(count);
     for (int i = 0; i < count; i++) {
-      dql.append('\'');
-      dql.append(object.getRepeatingValue("i_folder_id", i).asString());
-      dql.append("',");
+      folderIds.add(object.getRepeatingValue("i_folder_id", i).asString());
     }
-    dql.setCharAt(dql.length() - 1, ')');
-    dql.append(" ENABLE (row_based)");
 
-    IQuery query = traversalManager.getClientX().getQuery();
-    query.setDQL(dql.toString());
     try {
-      ICollection collec = query.execute(session, IQuery.READ_QUERY);
-      try {
-        while (collec.next()) {
-          values.add(
-              Value.getStringValue(collec.getString("r_folder_path")));
+      FolderPathCache cache = traversalManager.getFolderPathCache();
+      List<String> paths = cache.getCachedFolderPaths(folderIds);
+      if (paths == null) {
+        // Since we have to query for these folders, include the folders
+        // of the documents that have been read ahead in the list.
+        Set<String> additionalIds = new LinkedHashSet<String>();
+        if (documentList != null) {
+          documentList.getPendingFolderIds(additionalIds);
         }
-      } finally {
-        collec.close();
+        ConnectorMetrics metrics = traversalManager.getMetrics();
+        long start = metrics.begin();
+        paths = cache.getFolderPaths(traversalManager.getClientX(), session,
+            folderIds, additionalIds);
+        metrics.end(ConnectorMetrics.Stage.FOLDER_QUERY, start);
+      }
+      for (String path : paths) {
+        values.add(Value.getStringValue(path));
       }
     } catch (RepositoryException e) {
       // Note that we're catching RepositoryException here, because
@@ -331,20 +474,20 @@ public class DctmSysobjectDocument implements Document {
       values.add(Value.getStringValue(docId));
     } else if (name.equals("r_object_type")) {
       // Retrieves object type and its super type(s).
-      for (IType value = object.getType();
-           value != null;
-           value = getSuperType(value)) {
-        String typeName = value.getName();
+      for (String typeName : getTypeMetadata().getTypeHierarchy()) {
         values.add(Value.getStringValue(typeName));
       }
+    } else if (projectedValues != null && projectedValues.containsKey(name)) {
+      values.addAll(projectedValues.get(name));
+    } else if (findPlannedAttribute(name, values)) {
+      return true;
     } else {
-      // TODO: We could store the data types for each attribute in
-      // the type attributes cache, and save about 2% of the
-      // traversal time here by avoiding the calls to findAttrIndex
-      // and getAttr.
-      int attrIndex = object.findAttrIndex(name);
-      if (attrIndex != -1) {
-        IAttr attr = object.getAttr(attrIndex);
+      // The attribute was not projected, so it may be specific to a
+      // subtype of the root object type. Fall back to the object,
+      // using the cached type metadata for the data type.
+      IAttr attr = getTypeMetadata().getAttribute(name);
+      if (attr != null) {
+        fetch();
         getDctmAttribute(name, attr.getDataType(), values);
       } else {
         // No property by that name found.
@@ -355,6 +498,39 @@ public class DctmSysobjectDocument implements Document {
     return true;
   }
 
+  /**
+   * Adds the values for an included attribute to the list, reading
+   * the values of all of the included attributes that were not
+   * selected by the traversal query from the object in one pass on
+   * the first call.
+   *
+   * @param name an attribute name
+   * @param values the empty list to add values to
+   * @return true if the values were added, or false if the attribute
+   *     is not in the extraction plan or could not be read
+   * @throws RepositoryException if an unexpected error occurs
+   */
+  private boolean findPlannedAttribute(String name, List<Value> values)
+      throws RepositoryException {
+    PropertyExtractionPlan plan = getTypeMetadata().getExtractionPlan();
+    int index = plan.indexOf(name);
+    if (index < 0) {
+      return false;
+    }
+    if (attributeTable == null) {
+      fetch();
+      Set<String> projectedNames = (projectedValues == null)
+          ? Collections.<String>emptySet() : projectedValues.keySet();
+      attributeTable = plan.extract(object, projectedNames);
+    }
+    Value[] planned = attributeTable[index];
+    if (planned == null) {
+      return false;
+    }
+    Collections.addAll(values, planned);
+    return true;
+  }
+
   /**
    * Helper method that values for a Documentum attribute to the list.
    *
@@ -366,61 +542,74 @@ public class DctmSysobjectDocument implements Document {
   private void getDctmAttribute(String name, int dataType, List<Value> values)
       throws RepositoryException {
     for (int i = 0, n = object.getValueCount(name); i < n; i++) {
-      IValue val = object.getRepeatingValue(name, i);
-      try {
-        switch (dataType) {
-          case IAttr.DM_BOOLEAN:
-            values.add(Value.getBooleanValue(val.asBoolean()));
-            break;
-          case IAttr.DM_DOUBLE:
-            values.add(Value.getDoubleValue(val.asDouble()));
-            break;
-          case IAttr.DM_ID:
-            // TODO: Should we check for null here?
-            values.add(Value.getStringValue(val.asId().getId()));
-            break;
-          case IAttr.DM_INTEGER:
-            values.add(Value.getLongValue(val.asInteger()));
-            break;
-          case IAttr.DM_STRING:
-            values.add(Value.getStringValue(val.asString()));
-            break;
-          case IAttr.DM_TIME:
-            Date date = val.asTime().getDate();
-            if (date != null) {
-              values.add(Value.getDateValue(getCalendarFromDate(date)));
-            }
-            break;
-          default:
-            // TODO: Should this be an exception, or just logged
-            // directly as a warning?
-            throw new AssertionError(String.valueOf(dataType));
-        }
-      } catch (Exception e) {
-        logger.log(Level.WARNING, "error getting the value of index "
-            + i + " of the attribute " + name, e);
+      addValue(name, i, dataType, object.getRepeatingValue(name, i), values);
+    }
+  }
+
+  /**
+   * Reads the values of the given attributes from the current row of a
+   * collection.
+   *
+   * @param collection a collection positioned on a row
+   * @param attributes the attributes selected by the query
+   * @return a map from attribute names to their values
+   * @throws RepositoryException if an unexpected error occurs
+   */
+  static Map<String, List<Value>> getProjectedValues(ICollection collection,
+      List<IAttr> attributes) throws RepositoryException {
+    Map<String, List<Value>> projected =
+        new HashMap<String, List<Value>>(attributes.size() * 2);
+    for (IAttr attr : attributes) {
+      String name = attr.getName();
+      List<Value> values = new LinkedList<Value>();
+      for (int i = 0, n = collection.getValueCount(name); i < n; i++) {
+        addValue(name, i, attr.getDataType(),
+            collection.getRepeatingValue(name, i), values);
       }
+      projected.put(name, values);
     }
+    return projected;
   }
 
   /**
-   * Return the supertype for the supplied type.  Caches result to
-   * avoid frequent round-trips to server.
+   * Helper method that adds a value of a Documentum attribute to the list.
    *
-   * @return superType for supplied type, or null if type is root type.
+   * @param name an attribute name
+   * @param i the index of the value
+   * @param dataType the data type of the attribute
+   * @param val the value
+   * @param values the list to add the value to
    */
-  private IType getSuperType(IType type) throws RepositoryException {
-    if (type == null)
-      return null;
-    Map<String, IType> superTypes = traversalManager.getSuperTypeCache();
-    String typeName = type.getName();
-    if (superTypes.containsKey(typeName))
-      return superTypes.get(typeName);
-    else {
-      IType superType = type.getSuperType();
-      superTypes.put(typeName, superType);
-      return superType;
+  private static void addValue(String name, int i, int dataType, IValue val,
+      List<Value> values) {
+    Extractor extractor = Extractor.forDataType(dataType);
+    if (extractor == null) {
+      // TODO: Should this be an exception, or just logged
+      // directly as a warning?
+      throw new AssertionError(String.valueOf(dataType));
+    }
+    try {
+      Value value = extractor.getValue(val);
+      if (value != null) {
+        values.add(value);
+      }
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "error getting the value of index "
+          + i + " of the attribute " + name, e);
+    }
+  }
+
+  /**
+   * Gets the type metadata of this object, without fetching the object
+   * if the type was selected by the traversal query.
+   */
+  private TypeMetadataCache.TypeMetadata getTypeMetadata()
+      throws RepositoryException {
+    if (object == null && projectedType != null) {
+      return traversalManager.getTypeMetadata(session, projectedType);
     }
+    fetch();
+    return traversalManager.getTypeMetadataCache().get(object.getType());
   }
 
   /**
@@ -478,93 +667,20 @@ public class DctmSysobjectDocument implements Document {
     return true;
   }
 
-  private Calendar getCalendarFromDate(Date date) {
+  static Calendar getCalendarFromDate(Date date) {
     Calendar calendar = Calendar.getInstance();
     calendar.setTime(date);
     return calendar;
   }
 
-  /**
-   * Return the attributes for the supplied type.  Caches result to
-   * avoid frequent round-trips to server.
-   *
-   * @param type the object type to get attributes for
-   * @return type attributes for the supplied type
-   * @throws RepositoryException if an error occurs retrieving the attributes
-   */
-  private List<String> getTypeAttributes(IType type)
-      throws RepositoryException {
-    Map<String, List<String>> cache = traversalManager.getTypeAttributesCache();
-    String typeName = type.getName();
-    if (cache.containsKey(typeName)) {
-      return cache.get(typeName);
-    } else {
-      if (logger.isLoggable(Level.FINER)) {
-        logger.finer("Processing attributes for type " + typeName);
-      }
-
-      int count = type.getTypeAttrCount();
-      ArrayList<String> typeAttributes = new ArrayList<String>(count);
-
-      Set<String> includedMeta = traversalManager.getIncludedMeta();
-      Set<String> excludedMeta = traversalManager.getExcludedMeta();
-      try {
-        for (int i = 0; i < count; i++) {
-          String name = type.getTypeAttrNameAt(i);
-          addIfIncluded(typeAttributes, name, includedMeta, excludedMeta);
-        }
-
-        for (String name : EXTENDED_PROPERTIES) {
-          addIfIncluded(typeAttributes, name, includedMeta, excludedMeta);
-        }
-      } catch (RepositoryDocumentException e) {
-        logger.log(Level.WARNING, "Error fetching property names", e);
-      }
-
-      cache.put(typeName, typeAttributes);
-      return typeAttributes;
-    }
-  }
-
-  private void addIfIncluded(List<String> typeAttributes, String name,
-      Set<String> includedMeta, Set<String> excludedMeta) {
-    if ((includedMeta.isEmpty() || includedMeta.contains(name)) &&
-        !excludedMeta.contains(name)) {
-      typeAttributes.add(name);
-      if (logger.isLoggable(Level.FINEST)) {
-        logger.finest("attribute " + name + " added to the properties");
-      }
-    } else {
-      if (logger.isLoggable(Level.FINEST)) {
-        logger.finest("attribute " + name
-            + " excluded from the properties");
-      }
-    }
-  }
-
   @Override
   public Set<String> getPropertyNames() throws RepositoryException {
-    Set<String> properties;
     if (ActionType.ADD.equals(action)) {
-      fetch();
-      properties = new HashSet<String>();
-      properties.add(SpiConstants.PROPNAME_DISPLAYURL);
-      properties.add(SpiConstants.PROPNAME_ISPUBLIC);
-      properties.add(SpiConstants.PROPNAME_LASTMODIFIED);
-      properties.add(SpiConstants.PROPNAME_MIMETYPE);
-      properties.add(SpiConstants.PROPNAME_TITLE);
-      properties.add(SpiConstants.PROPNAME_ACLINHERITFROM_DOCID);
-
-      List<String> typeAttributes = getTypeAttributes(object.getType());
-      properties.addAll(typeAttributes);
+      return getTypeMetadata().getExtractionPlan().getPropertyNames();
     } else {
       // XXX: This is dead code. The CM never asks for the property
       // names for delete actions. Does it matter?
-      properties = new HashSet<String>();
-      properties.add(SpiConstants.PROPNAME_ACTION);
-      properties.add(SpiConstants.PROPNAME_DOCID);
-      properties.add(SpiConstants.PROPNAME_LASTMODIFIED);
+      return DELETE_PROPERTY_NAMES;
     }
-    return properties;
   }
 }
@@ -15,12 +15,15 @@
 package com.google.enterprise.connector.dctm;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.dfcwrap.IAttr;
 import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
 import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
 import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.dctm.dfcwrap.ISession;
 import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
-import com.google.enterprise.connector.dctm.dfcwrap.IType;
+import com.google.enterprise.connector.dctm.dfcwrap.ISysObject;
+import com.google.enterprise.connector.dctm.dfcwrap.ITime;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.TraversalContext;
@@ -30,13 +33,25 @@ import com.google.enterprise.connector.util.EmptyDocumentList;
 import com.google.enterprise.connector.util.TraversalTimer;
 
 import java.text.MessageFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 public class DctmTraversalManager
@@ -52,8 +67,17 @@ public class DctmTraversalManager
   private static final String whereBoundedClause = " and ((r_modify_date = date(''{0}'',''yyyy-mm-dd hh:mi:ss'') and r_object_id > ''{1}'') OR (r_modify_date > date(''{0}'',''yyyy-mm-dd hh:mi:ss'')))";
   private static final String whereBoundedClauseRemove = " and ((time_stamp_utc = date(''{0}'',''yyyy-mm-dd hh:mi:ss'') and (r_object_id > ''{1}'')) OR (time_stamp_utc > date(''{0}'',''yyyy-mm-dd hh:mi:ss'')))";
   private static final String whereBoundedClauseRemoveDateOnly = " and (time_stamp_utc > date(''{0}'',''yyyy-mm-dd hh:mi:ss''))";
+  private static final String wherePartitionClause =
+      " and r_modify_date < date(''{0}'',''yyyy-mm-dd hh:mi:ss'')";
   private static final String whereClauseAcl = " where r_object_id > ''{0}''";
 
+  /** Columns that are always selected by the add query. */
+  private static final Set<String> BASE_QUERY_COLUMNS =
+      ImmutableSet.of("i_chronicle_id", "r_object_id", "r_modify_date");
+
+  /** The DFC pattern matching {@code dateFormat}. */
+  private static final String DQL_DATE_PATTERN = "yyyy-mm-dd hh:mi:ss";
+
   private final SimpleDateFormat dateFormat =
       new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
@@ -64,10 +88,15 @@ public class DctmTraversalManager
   private final IClientX clientX;
   private TraversalContext traversalContext = null;
 
-  private final Map<String, IType> superTypeCache =
-      new HashMap<String, IType>();
-  private final Map<String, List<String>> typeAttributesCache =
-      new HashMap<String, List<String>>();
+  private TypeMetadataCache typeMetadataCache;
+  private FolderPathCache folderPathCache =
+      new FolderPathCache(5000, 600L * 1000);
+  private PrincipalCache principalCache =
+      new PrincipalCache(10000, 600L * 1000);
+  private AclIndex aclIndex = null;
+  private SessionLeaseTracker sessionLeaseTracker =
+      new SessionLeaseTracker(0L);
+  private ConnectorMetrics metrics = new ConnectorMetrics("", "");
 
   private final List<String> additionalWhereClause;
   private final boolean isPublic;
@@ -79,6 +108,59 @@ public class DctmTraversalManager
   private final String localNamespace;
   private final String windowsDomain;
 
+  /** The number of documents to fetch ahead of the connector manager. */
+  private int prefetchSize = 0;
+  private int prefetchThreads = 1;
+
+  /** Lazily created pool of threads used to prefetch documents. */
+  private ThreadPoolExecutor prefetchExecutor = null;
+
+  /** If true, the add query selects the included metadata. */
+  private boolean projectMetadata = false;
+
+  /**
+   * The included attributes of the root object type, selected by the
+   * add query when projecting metadata. Lazily initialized.
+   */
+  private volatile List<IAttr> projectedAttributes = null;
+
+  /** If true, the ACL query selects the accessors of each ACL. */
+  private boolean projectAcls = false;
+
+  /** If true, the add queries for the where clauses run concurrently. */
+  private boolean parallelWhereClauses = false;
+
+  /** The number of partitions for the initial traversal, or zero. */
+  private int partitionCount = 0;
+
+  /** The largest content to read into memory rather than spool. */
+  private long contentSpoolThreshold = 1048576L;
+
+  /** Limits the content held in memory by this connector instance. */
+  private ContentMemoryGovernor contentMemoryGovernor =
+      new ContentMemoryGovernor(-1L);
+
+  /** If true, the batch sizes are chosen by the batchSizeController. */
+  private boolean adaptiveBatchSize = false;
+
+  private final BatchSizeController batchSizeController =
+      new BatchSizeController();
+
+  /** The start of the current batch, from System.nanoTime, or zero. */
+  private volatile long batchStartNanos = 0;
+
+  /** Lazily created pool of threads used to run concurrent queries. */
+  private ExecutorService queryExecutor = null;
+
+  /**
+   * The session whose asynchronous startup is waited for before the
+   * first traversal, or null if there is nothing to wait for.
+   */
+  private volatile DctmSession startupSession = null;
+
+  /** The longest to wait for the startup, in milliseconds. */
+  private long startupWaitMillis = 0L;
+
   public DctmTraversalManager(DctmConnector connector,
       ISessionManager sessionManager) throws RepositoryException {
     this(connector.getClientX(), connector.getDocbase(),
@@ -89,6 +171,19 @@ public class DctmTraversalManager
         connector.getGoogleGlobalNamespace(),
         connector.getGoogleLocalNamespace(),
         connector.getWindowsDomain(), sessionManager);
+    setPrefetch(connector.getPrefetchSize(), connector.getPrefetchThreads());
+    setProjectMetadata(connector.isProjectMetadata());
+    setProjectAcls(connector.isProjectAcls());
+    folderPathCache = new FolderPathCache(connector.getFolderCacheSize(),
+        connector.getFolderCacheTtl() * 1000);
+    typeMetadataCache = new TypeMetadataCache(connector.getTypeCacheSize(),
+        connector.getIncludedMeta(), connector.getExcludedMeta());
+    setParallelWhereClauses(connector.isParallelWhereClauses());
+    setPartitionCount(connector.getPartitionCount());
+    setAdaptiveBatchSize(connector.isAdaptiveBatchSize());
+    contentSpoolThreshold = connector.getContentSpoolThreshold();
+    contentMemoryGovernor =
+        new ContentMemoryGovernor(connector.getContentMemoryBudget());
   }
 
   /** Constructor used by tests. */
@@ -120,6 +215,8 @@ public class DctmTraversalManager
     this.globalNamespace = globalnamespace;
     this.localNamespace = localnamespace;
     this.windowsDomain = windowsDomain;
+    this.typeMetadataCache =
+        new TypeMetadataCache(1000, includedMeta, excludedMeta);
   }
 
   IClientX getClientX() {
@@ -147,12 +244,106 @@ public class DctmTraversalManager
     return traversalContext;
   }
 
-  Map<String, IType> getSuperTypeCache() {
-    return superTypeCache;
+  /**
+   * Sets the type metadata cache, which may be shared with the other
+   * traversal managers of this connector instance.
+   */
+  void setTypeMetadataCache(TypeMetadataCache typeMetadataCache) {
+    this.typeMetadataCache = typeMetadataCache;
+  }
+
+  TypeMetadataCache getTypeMetadataCache() {
+    return typeMetadataCache;
   }
 
-  Map<String, List<String>> getTypeAttributesCache() {
-    return typeAttributesCache;
+  FolderPathCache getFolderPathCache() {
+    return folderPathCache;
+  }
+
+  /**
+   * Sets the session whose startup warm-up must finish, or take longer
+   * than the given time, before the first traversal queries run.
+   *
+   * @param session the session that created this traversal manager
+   * @param waitMillis the longest to wait, in milliseconds
+   */
+  void setStartupSession(DctmSession session, long waitMillis) {
+    this.startupSession = session;
+    this.startupWaitMillis = waitMillis;
+  }
+
+  /**
+   * Waits, once, for the startup warm-up, so that traversal does not
+   * connect before a staggered startup does, or load the caches that
+   * the warm-up is loading.
+   */
+  private void awaitStartup() throws RepositoryException {
+    DctmSession session = startupSession;
+    if (session == null) {
+      return;
+    }
+    if (!session.isReady()) {
+      logger.info("Waiting for the startup warm-up to finish");
+      try {
+        if (!session.awaitReady(startupWaitMillis, TimeUnit.MILLISECONDS)) {
+          logger.warning(
+              "Starting traversal before the startup warm-up finished");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RepositoryException("Interrupted waiting for startup", e);
+      }
+    }
+    startupSession = null;
+  }
+
+  /**
+   * Sets the cache of ACL accessor lookups, which may be shared with
+   * the other traversal managers of this connector instance.
+   */
+  void setPrincipalCache(PrincipalCache principalCache) {
+    this.principalCache = principalCache;
+  }
+
+  PrincipalCache getPrincipalCache() {
+    return principalCache;
+  }
+
+  /**
+   * Sets the index of document ACLs maintained by traversal for use
+   * by authorization, or null if there is no index.
+   */
+  void setAclIndex(AclIndex aclIndex) {
+    this.aclIndex = aclIndex;
+  }
+
+  AclIndex getAclIndex() {
+    return aclIndex;
+  }
+
+  /**
+   * Sets the tracker of the sessions held by document lists, which may
+   * be shared with the other traversal managers of this connector
+   * instance.
+   */
+  void setSessionLeaseTracker(SessionLeaseTracker sessionLeaseTracker) {
+    this.sessionLeaseTracker = sessionLeaseTracker;
+  }
+
+  SessionLeaseTracker getSessionLeaseTracker() {
+    return sessionLeaseTracker;
+  }
+
+  /**
+   * Sets the metrics of this connector instance, which may be shared
+   * with the other managers.
+   */
+  void setMetrics(ConnectorMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  ConnectorMetrics getMetrics() {
+    return metrics;
   }
 
   boolean isPublic() {
@@ -178,6 +369,219 @@ public class DctmTraversalManager
   public String getWindowsDomain() {
     return windowsDomain;
   }
+
+  /**
+   * Configures background prefetching of documents.
+   *
+   * @param prefetchSize the number of documents to read ahead, or zero
+   *     to disable prefetching
+   * @param prefetchThreads the maximum number of concurrent fetches
+   */
+  /* @VisibleForTesting */
+  void setPrefetch(int prefetchSize, int prefetchThreads) {
+    this.prefetchSize = Math.max(prefetchSize, 0);
+    this.prefetchThreads = Math.max(prefetchThreads, 1);
+  }
+
+  int getPrefetchSize() {
+    return prefetchSize;
+  }
+
+  /**
+   * Fetches the given object on a background thread, using a session
+   * of its own. The returned object is handed over to the session
+   * manager, so that it remains usable after that session is released.
+   *
+   * @param objectId the r_object_id of the object to fetch
+   * @return a Future for the fetched object, or null if prefetching
+   *     is disabled
+   */
+  Future<ISysObject> prefetch(final String objectId) {
+    if (prefetchSize <= 0) {
+      return null;
+    }
+    return getPrefetchExecutor().submit(new Callable<ISysObject>() {
+        @Override
+        public ISysObject call() throws RepositoryException {
+          ISession session = sessionManager.getSession(docbase);
+          try {
+            ISysObject object =
+                (ISysObject) session.getObject(clientX.getId(objectId));
+            // Pull the content size and format across while we are here,
+            // since canIndex will want both of them.
+            object.getContentSize();
+            object.getFormat();
+            object.setSessionManager(sessionManager);
+            return object;
+          } finally {
+            sessionManager.release(session);
+          }
+        }
+      });
+  }
+
+  /* @VisibleForTesting */
+  void setProjectMetadata(boolean projectMetadata) {
+    this.projectMetadata = projectMetadata;
+  }
+
+  /* @VisibleForTesting */
+  void setProjectAcls(boolean projectAcls) {
+    this.projectAcls = projectAcls;
+  }
+
+  /**
+   * Returns true if the ACL query selects the accessors of each ACL,
+   * so that the ACLs can be read from the collection as
+   * {@link ProjectedAcl} objects.
+   */
+  boolean isProjectAcls() {
+    return projectAcls;
+  }
+
+  /**
+   * Gets the attributes selected by the add query, in addition to the
+   * base columns and r_object_type.
+   *
+   * @return the projected attributes, or null if metadata is not
+   *     being projected or the attributes have not been loaded yet
+   */
+  List<IAttr> getProjectedAttributes() {
+    return projectedAttributes;
+  }
+
+  /**
+   * Loads the included attributes of the root object type, if they
+   * will be projected and have not been loaded already.
+   */
+  /* @VisibleForTesting */
+  void loadProjectedAttributes(ISession session) throws RepositoryException {
+    if (!projectMetadata || projectedAttributes != null) {
+      return;
+    }
+    // The add queries of several where clauses or partitions may run
+    // concurrently, so only one of them loads the attributes.
+    synchronized (this) {
+      if (projectedAttributes != null) {
+        return;
+      }
+      TypeMetadataCache.TypeMetadata type = typeMetadataCache.get(session,
+          Strings.isNullOrEmpty(rootObjectType) ? "dm_sysobject"
+          : rootObjectType);
+      List<IAttr> attributes = new ArrayList<IAttr>();
+      for (IAttr attr : type.getAttributes()) {
+        String name = attr.getName();
+        if ((includedMeta.isEmpty() || includedMeta.contains(name))
+            && !excludedMeta.contains(name)
+            && !DctmSysobjectDocument.EXTENDED_PROPERTIES.contains(name)) {
+          attributes.add(attr);
+        }
+      }
+      logger.config("Projecting " + attributes.size() + " attributes of "
+          + type.getName() + " in the add query");
+      projectedAttributes = Collections.unmodifiableList(attributes);
+    }
+  }
+
+  /**
+   * Gets the metadata of the named object type, from the type metadata
+   * cache if possible.
+   */
+  TypeMetadataCache.TypeMetadata getTypeMetadata(ISession session,
+      String typeName) throws RepositoryException {
+    return typeMetadataCache.get(session, typeName);
+  }
+
+  private synchronized ThreadPoolExecutor getPrefetchExecutor() {
+    if (prefetchExecutor == null) {
+      prefetchExecutor = new ThreadPoolExecutor(prefetchThreads,
+          prefetchThreads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          newThreadFactory("DctmPrefetch"));
+      // Let the threads go away between traversal batches.
+      prefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+    return prefetchExecutor;
+  }
+
+  /* @VisibleForTesting */
+  void setParallelWhereClauses(boolean parallelWhereClauses) {
+    this.parallelWhereClauses = parallelWhereClauses;
+  }
+
+  /* @VisibleForTesting */
+  void setPartitionCount(int partitionCount) {
+    this.partitionCount = partitionCount;
+  }
+
+  /**
+   * Gets the largest content size to read into memory. Larger content
+   * is spooled to a temporary file.
+   */
+  long getContentSpoolThreshold() {
+    return contentSpoolThreshold;
+  }
+
+  ContentMemoryGovernor getContentMemoryGovernor() {
+    return contentMemoryGovernor;
+  }
+
+  /* @VisibleForTesting */
+  void setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+    this.adaptiveBatchSize = adaptiveBatchSize;
+  }
+
+  BatchSizeController getBatchSizeController() {
+    return batchSizeController;
+  }
+
+  /**
+   * Gets the number of rows to return from a query. This is the batch
+   * hint, unless adaptive batch sizing is enabled.
+   */
+  /* @VisibleForTesting */
+  int getBatchSize(BatchSizeController.QueryType type) {
+    if (!adaptiveBatchSize) {
+      return batchHint;
+    }
+    long remainingNanos = -1;
+    if (traversalContext != null
+        && traversalContext.traversalTimeLimitSeconds() > 0) {
+      remainingNanos =
+          traversalContext.traversalTimeLimitSeconds() * 1000000000L;
+      long start = batchStartNanos;
+      if (start != 0) {
+        remainingNanos =
+            Math.max(remainingNanos - (System.nanoTime() - start), 0);
+      }
+    }
+    return batchSizeController.getBatchSize(type, batchHint, remainingNanos);
+  }
+
+  private synchronized ExecutorService getQueryExecutor() {
+    if (queryExecutor == null) {
+      // The number of threads is bounded by the number of where clauses.
+      queryExecutor =
+          Executors.newCachedThreadPool(newThreadFactory("DctmQuery"));
+    }
+    return queryExecutor;
+  }
+
+  /** Creates a factory for daemon threads with the given name prefix. */
+  private ThreadFactory newThreadFactory(final String prefix) {
+    return new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r,
+              prefix + "-" + docbase + "-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+  }
+
   /**
    * Starts (or restarts) traversal from the beginning. This action will
    * return objects starting from the very oldest, or with the smallest IDs,
@@ -193,6 +597,7 @@ public class DctmTraversalManager
   @Override
   public DocumentList startTraversal() throws RepositoryException {
     logger.info("StartTraversal");
+    awaitStartup();
     return getDocumentList(forgeStartCheckpoint());
   }
 
@@ -213,6 +618,7 @@ public class DctmTraversalManager
   public DocumentList resumeTraversal(String checkPoint)
       throws RepositoryException {
     logger.info("ResumeTraversal from checkpoint: " + checkPoint);
+    awaitStartup();
     return getDocumentList(new Checkpoint(additionalWhereClause, checkPoint));
   }
 
@@ -246,9 +652,27 @@ public class DctmTraversalManager
     // until one returns results, all of them have been tried,
     // or time expires.
     TraversalTimer timer = new TraversalTimer(traversalContext);
+    batchStartNanos = System.nanoTime();
     boolean isMore;
     do {
-      DocumentList documentList = execQuery(checkpoint);
+      DocumentList documentList;
+      if (checkpoint.getPartitionIndex() != -1
+          && checkpoint.getPartitionIndex() == checkpoint.getInsertIndex()
+          && checkpoint.isPartitionCaughtUp()) {
+        logger.info("Partitioned traversal has caught up");
+        checkpoint.endPartitions();
+      }
+      if ((checkpoint.getPartitionIndex() != -1
+              && checkpoint.getPartitionIndex() == checkpoint.getInsertIndex())
+          || startPartitions(checkpoint)) {
+        documentList = execPartitionedQueries(checkpoint);
+      } else if (parallelWhereClauses && additionalWhereClause.size() > 1
+          && checkpoint.getInsertIndex() != -1
+          && checkpoint.getPartitionIndex() == -1) {
+        documentList = execParallelQueries(checkpoint);
+      } else {
+        documentList = execQuery(checkpoint);
+      }
       if (documentList != null)
         return documentList;
       isMore = checkpoint.advance();
@@ -256,6 +680,235 @@ public class DctmTraversalManager
     return isMore ? new EmptyDocumentList(checkpoint.asString()) : null;
   }
 
+  /**
+   * Executes the queries for all of the where clauses concurrently,
+   * each with its own session and its own copy of the checkpoint. The
+   * progress for each where clause is merged back into the checkpoint
+   * by the returned DocumentList, and the next insert index of the
+   * checkpoint is set to the ACL index.
+   *
+   * @param checkpoint the Checkpoint from which to resume traversal.
+   * @return a DocumentList merging the traversal results, or null if
+   *     none of the queries returned any documents
+   * @throws RepositoryException
+   */
+  private DocumentList execParallelQueries(Checkpoint checkpoint)
+      throws RepositoryException {
+    int count = additionalWhereClause.size();
+    List<Checkpoint> copies = new ArrayList<Checkpoint>(count);
+    for (int i = 0; i < count; i++) {
+      copies.add(checkpoint.copyForInsertIndex(i));
+    }
+    List<DocumentList> documentLists = new ArrayList<DocumentList>(count);
+    for (DocumentList documentList : execConcurrently(checkpoint, copies)) {
+      if (documentList != null) {
+        documentLists.add(documentList);
+      }
+    }
+
+    checkpoint.skipToAclIndex();
+    logger.fine(documentLists.size() + " of " + count
+        + " where clauses returned documents");
+    return documentLists.isEmpty()
+        ? null : new MergedDocumentList(checkpoint, documentLists, copies);
+  }
+
+  /**
+   * Executes the add queries for the unfinished partitions of the
+   * current insert index concurrently. Bounded partitions that return
+   * no documents are marked as finished.
+   *
+   * @param checkpoint the Checkpoint from which to resume traversal.
+   * @return a DocumentList merging the traversal results, or null if
+   *     none of the queries returned any documents
+   * @throws RepositoryException
+   */
+  private DocumentList execPartitionedQueries(Checkpoint checkpoint)
+      throws RepositoryException {
+    int count = checkpoint.getPartitionCount();
+    List<Checkpoint> copies = new ArrayList<Checkpoint>(count);
+    for (int i = 0; i < count; i++) {
+      if (!checkpoint.isPartitionDone(i)) {
+        copies.add(checkpoint.copyForPartition(i, copies.isEmpty()));
+      }
+    }
+    List<DocumentList> documentLists = new ArrayList<DocumentList>(count);
+    List<DocumentList> results = execConcurrently(checkpoint, copies);
+    for (int i = 0; i < copies.size(); i++) {
+      Checkpoint copy = copies.get(i);
+      if (results.get(i) != null) {
+        documentLists.add(results.get(i));
+      } else if (copy.getPartitionUpperBound() != null) {
+        logger.fine("Finished partition " + copy.getPartition());
+        checkpoint.setPartitionDone(copy.getPartition());
+      }
+    }
+    logger.fine(documentLists.size() + " of " + copies.size()
+        + " partitions returned documents");
+    return documentLists.isEmpty()
+        ? null : new MergedDocumentList(checkpoint, documentLists, copies);
+  }
+
+  /**
+   * Runs {@link #execQuery} concurrently for each of the given copies
+   * of the checkpoint. If any of the queries fail, or this thread is
+   * interrupted, the lists returned by the others are closed, including
+   * lists from queries that finish later, and the exception is thrown.
+   *
+   * @param checkpoint the checkpoint that the copies were made from
+   * @param copies the copies of the checkpoint to run queries with
+   * @return a list parallel to {@code copies} of the document lists,
+   *     with nulls for queries that returned no documents
+   * @throws RepositoryException
+   */
+  private List<DocumentList> execConcurrently(Checkpoint checkpoint,
+      List<Checkpoint> copies) throws RepositoryException {
+    // The lists returned so far, guarded by the array. Once the queries
+    // are abandoned, a query that finishes closes its own list.
+    final DocumentList[] returned = new DocumentList[copies.size()];
+    final boolean[] abandoned = { false };
+
+    List<Future<DocumentList>> futures =
+        new ArrayList<Future<DocumentList>>(copies.size());
+    ExecutorService executor = getQueryExecutor();
+    for (int i = 0; i < copies.size(); i++) {
+      final int index = i;
+      final Checkpoint copy = copies.get(i);
+      futures.add(executor.submit(new Callable<DocumentList>() {
+          @Override
+          public DocumentList call() throws RepositoryException {
+            DocumentList documentList = execQuery(copy);
+            if (documentList != null) {
+              synchronized (returned) {
+                if (!abandoned[0]) {
+                  returned[index] = documentList;
+                  return documentList;
+                }
+              }
+              MergedDocumentList.closeList(documentList);
+            }
+            return null;
+          }
+        }));
+    }
+
+    List<DocumentList> results = new ArrayList<DocumentList>(copies.size());
+    RepositoryException error = null;
+    for (Future<DocumentList> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        logger.warning("Error running a concurrent query: " + cause);
+        error = (cause instanceof RepositoryException)
+            ? (RepositoryException) cause : new RepositoryException(cause);
+        results.add(null);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        error = new RepositoryException("Interrupted running queries", e);
+        break;
+      }
+    }
+
+    if (error != null) {
+      // Close the lists that we did get, releasing their sessions.
+      List<DocumentList> documentLists = new ArrayList<DocumentList>();
+      synchronized (returned) {
+        abandoned[0] = true;
+        for (DocumentList documentList : returned) {
+          if (documentList != null) {
+            documentLists.add(documentList);
+          }
+        }
+      }
+      for (Future<DocumentList> future : futures) {
+        future.cancel(false);
+      }
+      new MergedDocumentList(checkpoint, documentLists, copies).close();
+      throw error;
+    }
+    return results;
+  }
+
+  /**
+   * Starts a partitioned traversal of the current insert index, if
+   * partitioning is enabled and this index has not been traversed yet.
+   * The r_modify_date values of the matching documents are split into
+   * equal ranges, one per partition.
+   *
+   * @param checkpoint the Checkpoint from which to resume traversal.
+   * @return true if the checkpoint is now partitioned
+   * @throws RepositoryException
+   */
+  /* @VisibleForTesting */
+  boolean startPartitions(Checkpoint checkpoint) throws RepositoryException {
+    if (partitionCount < 2 || checkpoint.getPartitionIndex() != -1
+        || checkpoint.getInsertIndex() == -1
+        || checkpoint.getInsertId() != null
+        || checkpoint.getInsertDate() != null) {
+      return false;
+    }
+
+    StringBuilder queryStr = new StringBuilder();
+    queryStr.append("select min(r_modify_date) as min_date, ");
+    queryStr.append("max(r_modify_date) as max_date");
+    appendFromClause(queryStr, checkpoint.getInsertIndex());
+    logger.fine("partition query: " + queryStr);
+
+    Date min = null;
+    Date max = null;
+    ISession session = sessionManager.getSession(docbase);
+    try {
+      IQuery query = makeQuery(queryStr.toString());
+      ICollection collec = query.execute(session, IQuery.EXECUTE_READ_QUERY);
+      try {
+        if (collec.next()) {
+          min = getDate(collec, "min_date");
+          max = getDate(collec, "max_date");
+        }
+      } finally {
+        collec.close();
+      }
+    } finally {
+      sessionManager.release(session);
+    }
+    if (min == null || max == null) {
+      return false;
+    }
+
+    long span = max.getTime() - min.getTime();
+    if (span < 1000L) {
+      // All of the documents were modified in the same second.
+      return false;
+    }
+    List<String> bounds = new ArrayList<String>(partitionCount - 1);
+    for (int i = 1; i < partitionCount; i++) {
+      String bound = dateFormat.format(
+          new Date(min.getTime() + span * i / partitionCount));
+      if (!bounds.contains(bound)) {
+        bounds.add(bound);
+      }
+    }
+    logger.info("Starting a partitioned traversal with bounds " + bounds);
+    checkpoint.startPartitions(bounds);
+    return true;
+  }
+
+  /** Gets a date column, or null if it is null or cannot be parsed. */
+  private Date getDate(ICollection collec, String colName)
+      throws RepositoryException {
+    ITime time = collec.getTime(colName);
+    if (time == null) {
+      return null;
+    }
+    try {
+      return dateFormat.parse(time.asString(DQL_DATE_PATTERN));
+    } catch (ParseException e) {
+      logger.warning("Unable to parse " + colName + ": " + e);
+      return null;
+    }
+  }
+
   /**
    * Execute queries to retrieve the documents to add to the GSA and the
    * document to remove from the GSA.
@@ -280,14 +933,21 @@ public class DctmTraversalManager
       if (checkpoint.getInsertIndex() == -1) {
         logger.fine("Processing Acls");
         IQuery queryAclToAdd = buildACLQuery(checkpoint);
+        long start = metrics.begin();
         collecAclToAdd = queryAclToAdd.execute(session,
             IQuery.EXECUTE_READ_QUERY);
+        long queryNanos = metrics.end(ConnectorMetrics.Stage.ACL_QUERY, start);
         logger.fine("execution of the query returns a collection of ACLs"
             + " to add");
 
         IQuery queryAclToModify = buildAclModifyQuery(checkpoint);
+        start = metrics.begin();
         collecAclToModify = queryAclToModify.execute(session,
             IQuery.EXECUTE_READ_QUERY);
+        queryNanos += metrics.end(ConnectorMetrics.Stage.ACL_MODIFY_QUERY,
+            start);
+        batchSizeController.recordQuery(BatchSizeController.QueryType.ACL,
+            queryNanos);
         logger.fine("execution of the query returns a collection of ACLs"
             + " to modify");
 
@@ -298,18 +958,26 @@ public class DctmTraversalManager
         }
       } else {
         logger.fine("Processing Documents");
+        loadProjectedAttributes(session);
         IQuery query = buildAddQuery(checkpoint);
+        long start = metrics.begin();
         collecToAdd = query.execute(session, IQuery.EXECUTE_READ_QUERY);
+        batchSizeController.recordQuery(BatchSizeController.QueryType.ADD,
+            metrics.end(ConnectorMetrics.Stage.ADD_QUERY, start));
         logger.fine("execution of the query returns a collection of documents"
             + " to add");
 
         // Only execute the delete query with one of the add queries.
         // TODO: We could treat the delete query as a peer of the others,
         // and include it in the sequence.
-        if (checkpoint.getInsertIndex() == 0) {
+        if (checkpoint.hasDeleteQuery()) {
           IQuery queryDocToDel = buildDelQuery(checkpoint);
+          start = metrics.begin();
           collecToDel = queryDocToDel.execute(session,
               IQuery.EXECUTE_READ_QUERY);
+          batchSizeController.recordQuery(
+              BatchSizeController.QueryType.DELETE,
+              metrics.end(ConnectorMetrics.Stage.DELETE_QUERY, start));
           logger.fine("execution of the query returns a collection of " +
               "documents to delete");
         }
@@ -377,16 +1045,29 @@ public class DctmTraversalManager
 
   protected IQuery buildAddQuery(Checkpoint checkpoint) {
     StringBuilder queryStr = new StringBuilder();
-    baseQueryString(queryStr, checkpoint);
+    List<String> columns = new ArrayList<String>();
+    // The document list looks up the folders of the rows it has read
+    // ahead together, so they are read from the rows rather than from
+    // the fetched objects.
+    columns.add("i_folder_id");
+    if (aclIndex != null) {
+      columns.addAll(AclIndex.DOCUMENT_COLUMNS);
+    }
+    baseQueryString(queryStr, checkpoint, projectedAttributes, columns);
     if (checkpoint.getInsertId() != null
         && checkpoint.getInsertDate() != null) {
       Object[] arguments =
           {checkpoint.getInsertDate(), checkpoint.getInsertId()};
       queryStr.append(MessageFormat.format(whereBoundedClause, arguments));
     }
+    if (checkpoint.getPartitionUpperBound() != null) {
+      queryStr.append(MessageFormat.format(wherePartitionClause,
+          checkpoint.getPartitionUpperBound()));
+    }
     queryStr.append(" order by r_modify_date,r_object_id");
-    if (batchHint > 0) {
-      queryStr.append(" ENABLE (return_top ").append(batchHint).append(')');
+    int batchSize = getBatchSize(BatchSizeController.QueryType.ADD);
+    if (batchSize > 0) {
+      queryStr.append(" ENABLE (return_top ").append(batchSize).append(')');
     }
     logger.fine("queryToAdd completed: " + queryStr.toString());
     return makeQuery(queryStr.toString());
@@ -394,17 +1075,107 @@ public class DctmTraversalManager
 
   public String buildVersionsQueryString(Checkpoint checkpoint,
       String chronicleId) {
+    return buildVersionsQueryString(checkpoint,
+        Collections.singleton(chronicleId));
+  }
+
+  /**
+   * Builds a query for the versions of the documents with the given
+   * chronicle IDs. The caller must limit the number of chronicle IDs
+   * to stay within the DQL limits on IN conditions.
+   */
+  public String buildVersionsQueryString(Checkpoint checkpoint,
+      Collection<String> chronicleIds) {
     StringBuilder queryStr = new StringBuilder();
     baseQueryString(queryStr, checkpoint);
-    queryStr.append(" and i_chronicle_id='").append(chronicleId);
-    queryStr.append("' order by r_modify_date,r_object_id desc");
+    queryStr.append(" and i_chronicle_id in (");
+    for (String chronicleId : chronicleIds) {
+      queryStr.append('\'').append(chronicleId).append("',");
+    }
+    queryStr.setCharAt(queryStr.length() - 1, ')');
+    queryStr.append(" order by r_modify_date,r_object_id desc");
     return queryStr.toString();
   }
 
   protected void baseQueryString(StringBuilder query, Checkpoint checkpoint) {
+    baseQueryString(query, checkpoint, null, Collections.<String>emptyList());
+  }
+
+  /**
+   * Appends the common select statement, including the given attributes
+   * and r_object_type as additional columns.
+   *
+   * @param projected the attributes to select, or null to select only
+   *     the base columns
+   * @param columns other attributes to select, if they are not already
+   *     selected
+   */
+  private void baseQueryString(StringBuilder query, Checkpoint checkpoint,
+      List<IAttr> projected, List<String> columns) {
     query.append("select i_chronicle_id, r_object_id, r_modify_date, ");
     query.append("DATETOSTRING(r_modify_date, 'yyyy-mm-dd hh:mi:ss') ");
-    query.append("as r_modify_date_str from ");
+    query.append("as r_modify_date_str");
+    Set<String> selected = new HashSet<String>(BASE_QUERY_COLUMNS);
+    if (projected != null) {
+      query.append(", r_object_type");
+      selected.add("r_object_type");
+      for (IAttr attr : projected) {
+        String name = attr.getName();
+        if (selected.add(name)) {
+          query.append(", ").append(name);
+        }
+      }
+    }
+    for (String name : columns) {
+      if (selected.add(name)) {
+        query.append(", ").append(name);
+      }
+    }
+    appendFromClause(query, checkpoint.getInsertIndex());
+  }
+
+  /**
+   * Builds the queries that select the ACL and owner of the current
+   * version of every document in the traversal scope, one for each
+   * additional where clause, to load into the ACL index.
+   */
+  /* @VisibleForTesting */
+  List<String> buildAclIndexQueries() {
+    List<String> queries = new ArrayList<String>();
+    for (int i = 0; i < Math.max(additionalWhereClause.size(), 1); i++) {
+      StringBuilder query = new StringBuilder("select i_chronicle_id");
+      for (String name : AclIndex.DOCUMENT_COLUMNS) {
+        query.append(", ").append(name);
+      }
+      appendFromClause(query, i);
+      queries.add(query.toString());
+    }
+    return queries;
+  }
+
+  /**
+   * Loads the ACLs and the documents in the traversal scope into the
+   * ACL index, if there is one.
+   */
+  void rebuildAclIndex() throws RepositoryException {
+    if (aclIndex == null) {
+      return;
+    }
+    ISession session = sessionManager.getSession(docbase);
+    try {
+      aclIndex.rebuild(clientX, session, buildAclIndexQueries());
+    } finally {
+      sessionManager.release(session);
+    }
+  }
+
+  /**
+   * Appends the from and where clauses common to the add queries,
+   * selecting the included object types and the additional where
+   * clause with the given index, if there is one.
+   */
+  private void appendFromClause(StringBuilder query, int index) {
+    query.append(" from ");
     query.append(rootObjectType);
     query.append(" where ");
     if (!includedObjectType.isEmpty()) {
@@ -413,7 +1184,6 @@ public class DctmTraversalManager
       // FIXME: Append the WHERE text only when needed.
       query.append("1=1 ");
     }
-    int index = checkpoint.getInsertIndex();
     if (additionalWhereClause.size() > index) {
       String whereClause = additionalWhereClause.get(index);
       logger.fine("adding the additionalWhereClause to the query: "
@@ -437,8 +1207,9 @@ public class DctmTraversalManager
           arguments));
     }
     queryStr.append(" order by time_stamp_utc,r_object_id");
-    if (batchHint > 0) {
-      queryStr.append(" ENABLE (return_top ").append(batchHint).append(')');
+    int batchSize = getBatchSize(BatchSizeController.QueryType.DELETE);
+    if (batchSize > 0) {
+      queryStr.append(" ENABLE (return_top ").append(batchSize).append(')');
     }
     logger.fine("queryToDel completed: " + queryStr.toString());
     return makeQuery(queryStr.toString());
@@ -446,14 +1217,20 @@ public class DctmTraversalManager
 
   protected IQuery buildACLQuery(Checkpoint checkpoint) {
     StringBuilder queryStr = new StringBuilder();
-    queryStr.append("select r_object_id from dm_acl");
+    if (projectAcls) {
+      queryStr.append("select ").append(ProjectedAcl.SELECT_LIST)
+          .append(" from dm_acl");
+    } else {
+      queryStr.append("select r_object_id from dm_acl");
+    }
     if (!Strings.isNullOrEmpty(checkpoint.getAclId())) {
       queryStr.append(MessageFormat.format(whereClauseAcl,
           checkpoint.getAclId()));
     }
     queryStr.append(" order by r_object_id");
-    if (batchHint > 0) {
-      queryStr.append(" ENABLE (return_top ").append(batchHint).append(')');
+    int batchSize = getBatchSize(BatchSizeController.QueryType.ACL);
+    if (batchSize > 0) {
+      queryStr.append(" ENABLE (return_top ").append(batchSize).append(')');
     }
     logger.fine("ACL queryToAdd completed: " + queryStr.toString());
     return makeQuery(queryStr.toString());
@@ -477,8 +1254,9 @@ public class DctmTraversalManager
               : whereBoundedClauseRemove, arguments));
     }
     queryStr.append(" order by time_stamp_utc, r_object_id, event_name");
-    if (batchHint > 0) {
-      queryStr.append(" ENABLE (return_top ").append(batchHint).append(')');
+    int batchSize = getBatchSize(BatchSizeController.QueryType.ACL);
+    if (batchSize > 0) {
+      queryStr.append(" ENABLE (return_top ").append(batchSize).append(')');
     }
     logger.fine("queryAclModify completed: " + queryStr.toString());
     return makeQuery(queryStr.toString());
@@ -0,0 +1,234 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least recently used cache with a time to live, which counts hits
+ * and misses. The connector's caches of lookups and decisions are
+ * built on this class. All methods are thread-safe.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+class ExpiringCache<K, V> {
+  private static class CachedValue<V> {
+    final V value;
+    final long expiration;
+
+    CachedValue(V value, long expiration) {
+      this.value = value;
+      this.expiration = expiration;
+    }
+  }
+
+  private final Map<K, CachedValue<V>> cache;
+  private final int capacity;
+  private final long ttlMillis;
+  private final Clock clock;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /** The time of the next sweep for expired entries. */
+  private long nextSweep = 0;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param capacity the maximum number of entries, or 0 to disable the
+   *     cache
+   * @param ttlMillis the time to keep an entry, in milliseconds, or 0
+   *     to disable the cache
+   * @param clock the clock used to expire entries
+   */
+  ExpiringCache(final int capacity, long ttlMillis, Clock clock) {
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    this.cache = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<K, CachedValue<V>> eldest) {
+          if (size() > capacity) {
+            evicted(eldest.getValue().value);
+            return true;
+          } else {
+            return false;
+          }
+        }
+      };
+  }
+
+  /**
+   * Called with the lock held when an entry is evicted, because the
+   * cache is full, the entry has expired, or its value has been
+   * replaced. Does nothing by default.
+   *
+   * @param value the evicted value
+   */
+  protected void evicted(V value) {
+  }
+
+  /** Gets the current time in milliseconds. */
+  long currentTimeMillis() {
+    return clock.currentTimeMillis();
+  }
+
+  /** Returns true if entries are cached. */
+  boolean isEnabled() {
+    return capacity > 0 && ttlMillis > 0;
+  }
+
+  /** Gets an entry, removing it if it has expired. */
+  private CachedValue<V> getEntry(K key) {
+    CachedValue<V> entry = cache.get(key);
+    if (entry != null && entry.expiration <= currentTimeMillis()) {
+      cache.remove(key);
+      evicted(entry.value);
+      entry = null;
+    }
+    return entry;
+  }
+
+  /**
+   * Removes the expired entries, at most once per time to live, so
+   * that entries that are not looked up again do not stay in the
+   * cache until it is full.
+   */
+  private void sweep() {
+    long now = currentTimeMillis();
+    if (now < nextSweep) {
+      return;
+    }
+    nextSweep = now + ttlMillis;
+    Iterator<CachedValue<V>> iterator = cache.values().iterator();
+    while (iterator.hasNext()) {
+      CachedValue<V> entry = iterator.next();
+      if (entry.expiration <= now) {
+        iterator.remove();
+        evicted(entry.value);
+      }
+    }
+  }
+
+  /**
+   * Gets a cached value. Expired entries are removed.
+   *
+   * @param key the key
+   * @return the value, or null if it is not in the cache or it has
+   *     expired
+   */
+  synchronized V get(K key) {
+    if (!isEnabled()) {
+      return null;
+    }
+    sweep();
+    CachedValue<V> entry = getEntry(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    } else {
+      hits++;
+      return entry.value;
+    }
+  }
+
+  /**
+   * Gets a cached value without counting a hit or a miss, for callers
+   * that must check the value before deciding whether it is a hit.
+   *
+   * @param key the key
+   * @return the value, or null if it is not in the cache or it has
+   *     expired
+   */
+  synchronized V peek(K key) {
+    CachedValue<V> entry = getEntry(key);
+    return (entry == null) ? null : entry.value;
+  }
+
+  /**
+   * Returns true if a value is cached and has not expired. This
+   * method does not count as a hit or a miss.
+   *
+   * @param key the key
+   */
+  synchronized boolean contains(K key) {
+    return peek(key) != null;
+  }
+
+  /**
+   * Caches a value, if the cache is enabled. A different value that
+   * it replaces is evicted. Expired entries are removed.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  synchronized void put(K key, V value) {
+    if (isEnabled()) {
+      sweep();
+      CachedValue<V> replaced = cache.put(key,
+          new CachedValue<V>(value, currentTimeMillis() + ttlMillis));
+      if (replaced != null && replaced.value != value) {
+        evicted(replaced.value);
+      }
+    }
+  }
+
+  /**
+   * Removes a value from the cache.
+   *
+   * @param key the key
+   * @return the removed value, or null if there was none
+   */
+  synchronized V remove(K key) {
+    CachedValue<V> entry = cache.remove(key);
+    return (entry == null) ? null : entry.value;
+  }
+
+  /**
+   * Removes all values from the cache.
+   *
+   * @return the removed values
+   */
+  synchronized List<V> removeAll() {
+    List<V> values = new ArrayList<V>(cache.size());
+    for (CachedValue<V> entry : cache.values()) {
+      values.add(entry.value);
+    }
+    cache.clear();
+    return values;
+  }
+
+  /** Gets the number of entries in the cache. */
+  synchronized int size() {
+    return cache.size();
+  }
+
+  /** Gets the number of lookups that were found in the cache. */
+  synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** Gets the number of lookups that were not in the cache. */
+  synchronized long getMissCount() {
+    return misses;
+  }
+}
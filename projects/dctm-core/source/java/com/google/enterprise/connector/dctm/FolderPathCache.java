@@ -0,0 +1,208 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
+import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A least recently used cache of folder paths, keyed by folder ID,
+ * with a time to live. Folders that are not in the cache are looked
+ * up in batches. Moved or renamed folders are not seen until the
+ * cached paths expire.
+ */
+class FolderPathCache {
+  private static final Logger logger =
+      Logger.getLogger(FolderPathCache.class.getName());
+
+  /** The maximum number of folder IDs in a single IN condition. */
+  /* @VisibleForTesting */
+  static final int MAX_IN_SIZE = 400;
+
+  private final ExpiringCache<String, List<String>> cache;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param capacity the maximum number of folders to cache, or 0 to
+   *     disable the cache
+   * @param ttlMillis the time to keep the paths of a folder, in
+   *     milliseconds, or 0 to disable the cache
+   */
+  FolderPathCache(int capacity, long ttlMillis) {
+    this(capacity, ttlMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  FolderPathCache(int capacity, long ttlMillis, Clock clock) {
+    this.cache =
+        new ExpiringCache<String, List<String>>(capacity, ttlMillis, clock);
+  }
+
+  /**
+   * Gets the paths of the given folders, if they are all in the cache.
+   *
+   * @param folderIds the folders to get the paths of
+   * @return the folder paths, in the order of the given folders, or
+   *     null if any of the folders are not in the cache
+   */
+  List<String> getCachedFolderPaths(List<String> folderIds) {
+    List<String> paths = new ArrayList<String>();
+    synchronized (cache) {
+      for (String folderId : folderIds) {
+        List<String> folderPaths = cache.peek(folderId);
+        if (folderPaths == null) {
+          return null;
+        }
+        paths.addAll(folderPaths);
+      }
+      hits += folderIds.size();
+    }
+    return paths;
+  }
+
+  /**
+   * Gets the paths of the given folders. All of the given folders and
+   * any additional folders that are not in the cache are looked up
+   * with as few queries as possible.
+   *
+   * @param clientX the client to create queries with
+   * @param session the session to run queries with
+   * @param folderIds the folders to get the paths of
+   * @param additionalIds other folders that are likely to be needed
+   *     soon, or an empty collection
+   * @return the folder paths, in the order of the given folders
+   * @throws RepositoryException if the folder paths cannot be looked up
+   */
+  List<String> getFolderPaths(IClientX clientX, ISession session,
+      List<String> folderIds, Collection<String> additionalIds)
+      throws RepositoryException {
+    Set<String> missing = new LinkedHashSet<String>();
+    synchronized (cache) {
+      for (String folderId : folderIds) {
+        if (cache.contains(folderId)) {
+          hits++;
+        } else {
+          misses++;
+          missing.add(folderId);
+        }
+      }
+      if (!missing.isEmpty()) {
+        for (String folderId : additionalIds) {
+          if (!cache.contains(folderId)) {
+            missing.add(folderId);
+          }
+        }
+      }
+    }
+
+    Map<String, List<String>> found = new HashMap<String, List<String>>();
+    if (!missing.isEmpty()) {
+      found = lookup(clientX, session, new ArrayList<String>(missing));
+    }
+
+    List<String> paths = new ArrayList<String>();
+    synchronized (cache) {
+      for (Map.Entry<String, List<String>> entry : found.entrySet()) {
+        cache.put(entry.getKey(), entry.getValue());
+      }
+      for (String folderId : folderIds) {
+        List<String> folderPaths = found.get(folderId);
+        if (folderPaths == null) {
+          folderPaths = cache.peek(folderId);
+        }
+        if (folderPaths != null) {
+          paths.addAll(folderPaths);
+        }
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Queries the paths of the given folders. Folders without paths are
+   * included in the result with an empty list of paths.
+   */
+  private Map<String, List<String>> lookup(IClientX clientX,
+      ISession session, List<String> folderIds) throws RepositoryException {
+    Map<String, List<String>> found = new HashMap<String, List<String>>();
+    for (String folderId : folderIds) {
+      found.put(folderId, new ArrayList<String>(1));
+    }
+
+    Iterator<String> iterator = folderIds.iterator();
+    while (iterator.hasNext()) {
+      StringBuilder dql = new StringBuilder();
+      dql.append("select r_object_id, r_folder_path from dm_folder ");
+      dql.append("where r_folder_path is not null and r_object_id in (");
+      for (int i = 0; i < MAX_IN_SIZE && iterator.hasNext(); i++) {
+        dql.append('\'');
+        dql.append(iterator.next());
+        dql.append("',");
+      }
+      dql.setCharAt(dql.length() - 1, ')');
+      dql.append(" ENABLE (row_based)");
+
+      IQuery query = clientX.getQuery();
+      query.setDQL(dql.toString());
+      ICollection collec = query.execute(session, IQuery.READ_QUERY);
+      try {
+        while (collec.next()) {
+          List<String> paths = found.get(collec.getString("r_object_id"));
+          if (paths != null) {
+            paths.add(collec.getString("r_folder_path"));
+          }
+        }
+      } finally {
+        collec.close();
+      }
+    }
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Looked up the paths of " + folderIds.size() + " folders");
+    }
+    return found;
+  }
+
+  /** Gets the number of folder lookups that were found in the cache. */
+  long getHitCount() {
+    synchronized (cache) {
+      return hits;
+    }
+  }
+
+  /** Gets the number of folder lookups that were not in the cache. */
+  long getMissCount() {
+    synchronized (cache) {
+      return misses;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.spi.Principal;
+
+import java.util.Collection;
+
+/**
+ * A least recently used cache of the lookups made during
+ * authentication, with a time to live. The groups of each user are
+ * cached by user name, and the user names that login names resolve to
+ * are cached by login name and domain. Login names that do not
+ * resolve to a user are cached as well.
+ */
+class GroupCache {
+  /**
+   * The result of resolving a login name. If the login name did not
+   * resolve to a single user, the user name is null.
+   */
+  static class ResolvedUser {
+    private final String userName;
+
+    ResolvedUser(String userName) {
+      this.userName = userName;
+    }
+
+    /** Gets the user name, or null if the user was not found. */
+    String getUserName() {
+      return userName;
+    }
+  }
+
+  private final ExpiringCache<String, ResolvedUser> users;
+  private final ExpiringCache<String, Collection<Principal>> groups;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param capacity the maximum number of users to cache, or 0 to
+   *     disable the cache
+   * @param ttlMillis the time to keep a lookup, in milliseconds, or 0
+   *     to disable the cache
+   */
+  GroupCache(int capacity, long ttlMillis) {
+    this(capacity, ttlMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  GroupCache(int capacity, long ttlMillis, Clock clock) {
+    this.users =
+        new ExpiringCache<String, ResolvedUser>(capacity, ttlMillis, clock);
+    this.groups = new ExpiringCache<String, Collection<Principal>>(
+        capacity, ttlMillis, clock);
+  }
+
+  /** Returns true if lookups are cached. */
+  boolean isEnabled() {
+    return groups.isEnabled();
+  }
+
+  private static String getUserKey(String userLoginName, String userDomain) {
+    return (userDomain == null)
+        ? userLoginName : userLoginName + '\0' + userDomain;
+  }
+
+  /**
+   * Gets a cached login name resolution.
+   *
+   * @param userLoginName the login name
+   * @param userDomain the domain, or null
+   * @return the resolved user, or null if it is not in the cache or it
+   *     has expired
+   */
+  ResolvedUser getUser(String userLoginName, String userDomain) {
+    return users.get(getUserKey(userLoginName, userDomain));
+  }
+
+  /**
+   * Caches a login name resolution.
+   *
+   * @param userLoginName the login name
+   * @param userDomain the domain, or null
+   * @param user the resolved user
+   */
+  void putUser(String userLoginName, String userDomain, ResolvedUser user) {
+    users.put(getUserKey(userLoginName, userDomain), user);
+  }
+
+  /**
+   * Gets the cached groups of a user.
+   *
+   * @param userName the user name
+   * @return the groups, or null if they are not in the cache or they
+   *     have expired
+   */
+  Collection<Principal> getGroups(String userName) {
+    return groups.get(userName);
+  }
+
+  /**
+   * Caches the groups of a user.
+   *
+   * @param userName the user name
+   * @param userGroups the groups, which must not be modified
+   */
+  void putGroups(String userName, Collection<Principal> userGroups) {
+    groups.put(userName, userGroups);
+  }
+
+  /** Removes all lookups from the cache. */
+  void invalidateAll() {
+    users.removeAll();
+    groups.removeAll();
+  }
+
+  /** Gets the number of users whose groups are in the cache. */
+  int size() {
+    return groups.size();
+  }
+
+  /** Gets the number of lookups that were found in the cache. */
+  long getHitCount() {
+    return users.getHitCount() + groups.getHitCount();
+  }
+
+  /** Gets the number of lookups that were not in the cache. */
+  long getMissCount() {
+    return users.getMissCount() + groups.getMissCount();
+  }
+}
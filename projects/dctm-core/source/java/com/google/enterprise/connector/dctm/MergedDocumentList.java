@@ -0,0 +1,135 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Merges the document lists of several cursors that were run
+ * concurrently, each with its own copy of the checkpoint. The
+ * documents are returned from each list in turn.
+ */
+class MergedDocumentList implements DocumentList {
+  private static final Logger logger =
+      Logger.getLogger(MergedDocumentList.class.getName());
+
+  private final Checkpoint checkpoint;
+
+  private final List<DocumentList> documentLists;
+
+  private final List<Checkpoint> checkpoints;
+
+  /** The lists that have not returned null yet. */
+  private final List<DocumentList> activeLists;
+
+  private int next = 0;
+
+  /**
+   * Constructs a merged document list.
+   *
+   * @param checkpoint the checkpoint to merge the progress of each list
+   *     into
+   * @param documentLists the lists to merge
+   * @param checkpoints the checkpoint copies used by each list
+   */
+  MergedDocumentList(Checkpoint checkpoint, List<DocumentList> documentLists,
+      List<Checkpoint> checkpoints) {
+    this.checkpoint = checkpoint;
+    this.documentLists = documentLists;
+    this.checkpoints = checkpoints;
+    this.activeLists = new ArrayList<DocumentList>(documentLists);
+  }
+
+  @Override
+  public Document nextDocument() throws RepositoryException {
+    while (!activeLists.isEmpty()) {
+      if (next >= activeLists.size()) {
+        next = 0;
+      }
+      DocumentList list = activeLists.get(next);
+      Document document;
+      try {
+        document = list.nextDocument();
+      } catch (RepositoryDocumentException e) {
+        // Only this document is skipped.
+        next++;
+        throw e;
+      } catch (RepositoryException e) {
+        // Release the sessions of the other lists, too.
+        close();
+        throw e;
+      }
+      if (document == null) {
+        activeLists.remove(next);
+      } else {
+        next++;
+        return document;
+      }
+    }
+    logger.fine("End of merged document list");
+    return null;
+  }
+
+  @Override
+  public String checkpoint() throws RepositoryException {
+    RepositoryException error = null;
+    for (DocumentList list : documentLists) {
+      try {
+        // This also closes the list and releases its session.
+        list.checkpoint();
+      } catch (RepositoryException e) {
+        logger.warning("Error creating the checkpoint of a merged list: " + e);
+        error = e;
+      }
+    }
+    for (Checkpoint copy : checkpoints) {
+      checkpoint.merge(copy);
+    }
+    if (error != null) {
+      throw error;
+    }
+    return checkpoint.asString();
+  }
+
+  /**
+   * Closes all of the lists and releases their sessions, without
+   * merging their progress into the checkpoint. For use when the
+   * merged list cannot be returned or one of the lists has failed.
+   */
+  void close() {
+    for (DocumentList list : documentLists) {
+      closeList(list);
+    }
+  }
+
+  /**
+   * Closes a list and releases its session. The lists are closed by
+   * their checkpoint method, and the checkpoint is discarded.
+   */
+  static void closeList(DocumentList list) {
+    try {
+      list.checkpoint();
+    } catch (RepositoryException e) {
+      logger.warning("Error closing a merged list: " + e);
+    }
+  }
+}
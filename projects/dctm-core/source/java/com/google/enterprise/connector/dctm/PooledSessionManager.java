@@ -0,0 +1,469 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.RepositoryLoginException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A session manager that pools sessions, bounding the number of
+ * sessions to each docbase. Sessions are created with {@code
+ * newSession} on the wrapped session manager, which may be a DFC or a
+ * mock session manager, and are kept open when they are released.
+ * Idle sessions are checked with {@code isConnected} before they are
+ * reused. When all of the sessions to a docbase are in use, {@code
+ * getSession} waits for a session to be released, and throws an
+ * exception if the wait times out. Idle sessions beyond the minimum
+ * are closed once they have been idle for too long.
+ *
+ * <p>Calls to {@code newSession} are not pooled or counted.
+ */
+class PooledSessionManager implements ISessionManager {
+  private static final Logger logger =
+      Logger.getLogger(PooledSessionManager.class.getName());
+
+  /** An idle session, and the time it was released to the pool. */
+  private static class IdleSession {
+    final ISession session;
+    final long idleSince;
+
+    IdleSession(ISession session, long idleSince) {
+      this.session = session;
+      this.idleSince = idleSince;
+    }
+  }
+
+  /** The sessions to a single docbase. */
+  private static class Pool {
+    /** The idle sessions, most recently released first. */
+    final LinkedList<IdleSession> idle = new LinkedList<IdleSession>();
+
+    /** The number of idle, leased, and pending sessions. */
+    int size = 0;
+
+    /** Incremented when the idle sessions are discarded. */
+    int generation = 0;
+  }
+
+  /** A leased session. */
+  private static class Lease {
+    final String docbase;
+    final int generation;
+
+    Lease(String docbase, int generation) {
+      this.docbase = docbase;
+      this.generation = generation;
+    }
+  }
+
+  private final ISessionManager delegate;
+  private final int minSessions;
+  private final int maxSessions;
+  private final long waitMillis;
+  private final long idleMillis;
+  private final Clock clock;
+
+  private final Map<String, Pool> pools = new HashMap<String, Pool>();
+
+  private final Map<ISession, Lease> leases =
+      new IdentityHashMap<ISession, Lease>();
+
+  private long leaseCount = 0;
+  private long waitCount = 0;
+  private long totalWaitNanos = 0;
+  private long maxWaitNanos = 0;
+  private long timeoutCount = 0;
+  private long createdCount = 0;
+  private long validationFailureCount = 0;
+  private long evictedCount = 0;
+
+  /**
+   * Constructs a pool.
+   *
+   * @param delegate the session manager to create sessions with
+   * @param minSessions the number of sessions to each docbase to
+   *     create when the pool is warmed up
+   * @param maxSessions the maximum number of sessions to each docbase
+   * @param waitMillis the maximum time to wait for a session, in
+   *     milliseconds
+   * @param idleMillis the time after which an idle session beyond the
+   *     minimum is closed, in milliseconds, or 0 to keep idle sessions
+   */
+  PooledSessionManager(ISessionManager delegate, int minSessions,
+      int maxSessions, long waitMillis, long idleMillis) {
+    this(delegate, minSessions, maxSessions, waitMillis, idleMillis,
+        Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  PooledSessionManager(ISessionManager delegate, int minSessions,
+      int maxSessions, long waitMillis, long idleMillis, Clock clock) {
+    if (maxSessions < 1) {
+      throw new IllegalArgumentException(
+          "The maximum number of sessions must be positive");
+    }
+    this.delegate = delegate;
+    this.minSessions = Math.min(minSessions, maxSessions);
+    this.maxSessions = maxSessions;
+    this.waitMillis = waitMillis;
+    this.idleMillis = idleMillis;
+    this.clock = clock;
+  }
+
+  private Pool getPool(String docbase) {
+    Pool pool = pools.get(docbase);
+    if (pool == null) {
+      pool = new Pool();
+      pools.put(docbase, pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Opens the minimum number of sessions to the docbase, so that the
+   * first requests do not wait for new sessions.
+   */
+  void warmUp(String docbase) throws RepositoryException {
+    int count;
+    synchronized (this) {
+      Pool pool = getPool(docbase);
+      count = Math.max(0, minSessions - pool.size);
+      pool.size += count;
+    }
+    ArrayList<ISession> sessions = new ArrayList<ISession>(count);
+    try {
+      for (int i = 0; i < count; i++) {
+        sessions.add(delegate.newSession(docbase));
+      }
+    } finally {
+      synchronized (this) {
+        Pool pool = getPool(docbase);
+        pool.size -= count - sessions.size();
+        long now = clock.currentTimeMillis();
+        for (ISession session : sessions) {
+          pool.idle.addLast(new IdleSession(session, now));
+        }
+        createdCount += sessions.size();
+        notifyAll();
+      }
+    }
+    logger.fine("Opened " + count + " pooled sessions to " + docbase);
+  }
+
+  @Override
+  public ISession getSession(String docbase)
+      throws RepositoryLoginException, RepositoryException {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    boolean waited = false;
+    while (true) {
+      ISession session;
+      int generation;
+      List<ISession> expired;
+      synchronized (this) {
+        Pool pool = getPool(docbase);
+        expired = evictIdle(pool);
+        while (pool.idle.isEmpty() && pool.size >= maxSessions) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            timeoutCount++;
+            logger.warning("Timed out waiting for a session to " + docbase
+                + "; " + pool.size + " sessions are in use");
+            throw new RepositoryException(
+                "Timed out waiting for a session to " + docbase);
+          }
+          waited = true;
+          try {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(
+                "Interrupted waiting for a session to " + docbase, e);
+          }
+        }
+        session =
+            (pool.idle.isEmpty()) ? null : pool.idle.removeFirst().session;
+        if (session == null) {
+          pool.size++;
+        }
+        generation = pool.generation;
+      }
+      releaseAll(expired);
+
+      if (session == null) {
+        session = newPooledSession(docbase, generation);
+      } else if (!session.isConnected()) {
+        logger.fine("Discarding a disconnected session to " + docbase);
+        discard(docbase, session, generation);
+        synchronized (this) {
+          validationFailureCount++;
+        }
+        continue;
+      }
+
+      synchronized (this) {
+        long waitNanos = System.nanoTime() - start;
+        leases.put(session, new Lease(docbase, generation));
+        leaseCount++;
+        if (waited) {
+          waitCount++;
+        }
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+      }
+      return session;
+    }
+  }
+
+  /** Creates a session that has already been counted in the pool size. */
+  private ISession newPooledSession(String docbase, int generation)
+      throws RepositoryException {
+    boolean created = false;
+    try {
+      ISession session = delegate.newSession(docbase);
+      created = true;
+      return session;
+    } finally {
+      synchronized (this) {
+        if (created) {
+          createdCount++;
+        } else {
+          Pool pool = getPool(docbase);
+          if (pool.generation == generation) {
+            pool.size--;
+          }
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /** Closes a session and removes it from the pool size. */
+  private void discard(String docbase, ISession session, int generation) {
+    try {
+      delegate.release(session);
+    } finally {
+      synchronized (this) {
+        Pool pool = getPool(docbase);
+        if (pool.generation == generation) {
+          pool.size--;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public ISession newSession(String docbase)
+      throws RepositoryLoginException, RepositoryException {
+    return delegate.newSession(docbase);
+  }
+
+  /**
+   * Removes the sessions that have been idle too long from a pool,
+   * leaving at least the minimum number of sessions. The returned
+   * sessions must be released outside of the lock.
+   */
+  private List<ISession> evictIdle(Pool pool) {
+    if (idleMillis <= 0) {
+      return null;
+    }
+    List<ISession> expired = null;
+    long cutoff = clock.currentTimeMillis() - idleMillis;
+    while (pool.size > minSessions && !pool.idle.isEmpty()
+        && pool.idle.getLast().idleSince <= cutoff) {
+      if (expired == null) {
+        expired = new ArrayList<ISession>();
+      }
+      expired.add(pool.idle.removeLast().session);
+      pool.size--;
+      evictedCount++;
+    }
+    return expired;
+  }
+
+  @Override
+  public void release(ISession session) {
+    Lease lease;
+    List<ISession> expired = null;
+    boolean pooled = false;
+    synchronized (this) {
+      lease = leases.remove(session);
+      if (lease != null) {
+        Pool pool = getPool(lease.docbase);
+        if (pool.generation == lease.generation) {
+          pool.idle.addFirst(
+              new IdleSession(session, clock.currentTimeMillis()));
+          expired = evictIdle(pool);
+          pooled = true;
+          notifyAll();
+        }
+      }
+    }
+    if (pooled) {
+      releaseAll(expired);
+      return;
+    }
+    // Unpooled sessions, and sessions leased before the pool was
+    // cleared, are released by the wrapped session manager.
+    if (lease == null) {
+      delegate.release(session);
+    } else {
+      discard(lease.docbase, session, lease.generation);
+    }
+  }
+
+  @Override
+  public void setIdentity(String docbase, ILoginInfo identity)
+      throws RepositoryLoginException {
+    delegate.setIdentity(docbase, identity);
+    releaseIdle(docbase);
+  }
+
+  @Override
+  public ILoginInfo getIdentity(String docbase) {
+    return delegate.getIdentity(docbase);
+  }
+
+  @Deprecated
+  @Override
+  public boolean authenticate(String docbaseName) {
+    return delegate.authenticate(docbaseName);
+  }
+
+  @Override
+  public void clearIdentity(String docbase) {
+    delegate.clearIdentity(docbase);
+    releaseIdle(docbase);
+  }
+
+  @Override
+  public void flushSessions() {
+    List<String> docbases;
+    synchronized (this) {
+      docbases = new ArrayList<String>(pools.keySet());
+    }
+    for (String docbase : docbases) {
+      releaseIdle(docbase);
+    }
+    delegate.flushSessions();
+  }
+
+  /** Closes sessions removed from the pool, which may be null. */
+  private void releaseAll(List<ISession> sessions) {
+    if (sessions == null) {
+      return;
+    }
+    logger.fine("Closing " + sessions.size() + " pooled sessions");
+    for (ISession session : sessions) {
+      try {
+        delegate.release(session);
+      } catch (RuntimeException e) {
+        logger.log(Level.FINE, "Error releasing a pooled session", e);
+      }
+    }
+  }
+
+  /**
+   * Releases the idle sessions to a docbase. Leased sessions are
+   * released by the wrapped session manager when they are returned.
+   */
+  private void releaseIdle(String docbase) {
+    List<ISession> idle;
+    synchronized (this) {
+      Pool pool = pools.get(docbase);
+      if (pool == null) {
+        return;
+      }
+      idle = new ArrayList<ISession>(pool.idle.size());
+      for (IdleSession idleSession : pool.idle) {
+        idle.add(idleSession.session);
+      }
+      pool.idle.clear();
+      pool.generation++;
+      // The leased sessions no longer count against the new generation.
+      pool.size = 0;
+      notifyAll();
+    }
+    releaseAll(idle);
+  }
+
+  /** Gets the number of sessions that are leased. */
+  synchronized int getActiveCount() {
+    return leases.size();
+  }
+
+  /** Gets the number of sessions that are idle. */
+  synchronized int getIdleCount() {
+    int count = 0;
+    for (Pool pool : pools.values()) {
+      count += pool.idle.size();
+    }
+    return count;
+  }
+
+  /** Gets the number of sessions that have been leased. */
+  synchronized long getLeaseCount() {
+    return leaseCount;
+  }
+
+  /** Gets the number of leases that waited for a session. */
+  synchronized long getWaitCount() {
+    return waitCount;
+  }
+
+  /** Gets the total time spent getting sessions, in milliseconds. */
+  synchronized long getTotalWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos);
+  }
+
+  /** Gets the longest time spent getting a session, in milliseconds. */
+  synchronized long getMaxWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+  }
+
+  /** Gets the number of requests that timed out waiting for a session. */
+  synchronized long getTimeoutCount() {
+    return timeoutCount;
+  }
+
+  /** Gets the number of sessions that have been created. */
+  synchronized long getCreatedCount() {
+    return createdCount;
+  }
+
+  /** Gets the number of idle sessions that were found disconnected. */
+  synchronized long getValidationFailureCount() {
+    return validationFailureCount;
+  }
+
+  /** Gets the number of idle sessions that were closed for their age. */
+  synchronized long getEvictedCount() {
+    return evictedCount;
+  }
+}
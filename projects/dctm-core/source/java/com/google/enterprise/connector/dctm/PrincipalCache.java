@@ -0,0 +1,136 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+/**
+ * A least recently used cache of resolved ACL accessors, keyed by
+ * accessor name, with a time to live. Accessors that do not exist
+ * are cached as well, so that missing users and groups are not
+ * looked up for every ACL that names them.
+ */
+class PrincipalCache {
+  /** The kinds of lookups, against dm_user and dm_group. */
+  enum Kind { USER, GROUP }
+
+  /**
+   * The result of looking up an accessor name. If the accessor was
+   * not found, both the login name and the namespace are null.
+   */
+  static class ResolvedPrincipal {
+    private final String loginName;
+    private final String namespace;
+
+    ResolvedPrincipal(String loginName, String namespace) {
+      this.loginName = loginName;
+      this.namespace = namespace;
+    }
+
+    /**
+     * Gets the login name of a user lookup, or null if the user was
+     * not found or the login name is not valid.
+     */
+    String getLoginName() {
+      return loginName;
+    }
+
+    /** Gets the namespace, or null if the accessor was not found. */
+    String getNamespace() {
+      return namespace;
+    }
+  }
+
+  private final ExpiringCache<String, ResolvedPrincipal> cache;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param capacity the maximum number of lookups to cache, or 0 to
+   *     disable the cache
+   * @param ttlMillis the time to keep a lookup, in milliseconds, or 0
+   *     to disable the cache
+   */
+  PrincipalCache(int capacity, long ttlMillis) {
+    this(capacity, ttlMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  PrincipalCache(int capacity, long ttlMillis, Clock clock) {
+    this.cache = new ExpiringCache<String, ResolvedPrincipal>(capacity,
+        ttlMillis, clock);
+  }
+
+  private static String getKey(Kind kind, String name) {
+    return (kind == Kind.USER) ? "u:" + name : "g:" + name;
+  }
+
+  /** Returns true if lookups are cached. */
+  boolean isEnabled() {
+    return cache.isEnabled();
+  }
+
+  /**
+   * Returns true if a lookup is cached and has not expired. This
+   * method does not count as a hit or a miss.
+   *
+   * @param kind the kind of lookup
+   * @param name the accessor name
+   */
+  boolean contains(Kind kind, String name) {
+    return cache.contains(getKey(kind, name));
+  }
+
+  /**
+   * Gets a cached lookup.
+   *
+   * @param kind the kind of lookup
+   * @param name the accessor name
+   * @return the resolved accessor, or null if it is not in the cache
+   *     or it has expired
+   */
+  ResolvedPrincipal get(Kind kind, String name) {
+    return cache.get(getKey(kind, name));
+  }
+
+  /**
+   * Caches a lookup.
+   *
+   * @param kind the kind of lookup
+   * @param name the accessor name
+   * @param principal the resolved accessor
+   */
+  void put(Kind kind, String name, ResolvedPrincipal principal) {
+    cache.put(getKey(kind, name), principal);
+  }
+
+  /** Removes all lookups from the cache. */
+  void invalidateAll() {
+    cache.removeAll();
+  }
+
+  /** Gets the number of lookups in the cache. */
+  int size() {
+    return cache.size();
+  }
+
+  /** Gets the number of lookups that were found in the cache. */
+  long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  /** Gets the number of lookups that were not in the cache. */
+  long getMissCount() {
+    return cache.getMissCount();
+  }
+}
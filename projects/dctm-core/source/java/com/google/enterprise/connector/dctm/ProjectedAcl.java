@@ -0,0 +1,137 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.dctm.dfcwrap.IAcl;
+import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An ACL whose accessors were selected by the ACL traversal query,
+ * rather than read from a fetched dm_acl object.
+ */
+class ProjectedAcl implements IAcl {
+  /** The dm_acl attributes selected by the ACL traversal query. */
+  static final String SELECT_LIST = "r_object_id, object_name, owner_name, "
+      + "r_accessor_name, r_accessor_permit, r_permit_type, r_is_group";
+
+  /** The names of the basic permissions, starting with DF_PERMIT_NONE. */
+  private static final List<String> PERMIT_NAMES = ImmutableList.of(
+      "none", "browse", "read", "relate", "version", "write", "delete");
+
+  private final String objectName;
+  private final String domain;
+  private final String[] accessorNames;
+  private final int[] accessorPermits;
+  private final int[] permitTypes;
+  private final boolean[] isGroups;
+
+  /**
+   * Reads an ACL from the current row of a collection.
+   *
+   * @param collection a collection positioned on a row of a query with
+   *     the attributes in {@link #SELECT_LIST}
+   * @throws RepositoryException if the attributes cannot be read
+   */
+  ProjectedAcl(ICollection collection) throws RepositoryException {
+    this.objectName = collection.getString("object_name");
+    this.domain = collection.getString("owner_name");
+
+    int count = collection.getValueCount("r_accessor_name");
+    this.accessorNames = new String[count];
+    this.accessorPermits = new int[count];
+    this.permitTypes = new int[count];
+    this.isGroups = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      accessorNames[i] =
+          collection.getRepeatingValue("r_accessor_name", i).asString();
+      accessorPermits[i] = (int)
+          collection.getRepeatingValue("r_accessor_permit", i).asInteger();
+      permitTypes[i] =
+          (int) collection.getRepeatingValue("r_permit_type", i).asInteger();
+      isGroups[i] =
+          collection.getRepeatingValue("r_is_group", i).asBoolean();
+    }
+  }
+
+  @Override
+  public String getObjectName() {
+    return objectName;
+  }
+
+  @Override
+  public int getAccessorCount() {
+    return accessorNames.length;
+  }
+
+  @Override
+  public String getAccessorName(int index) {
+    return accessorNames[index];
+  }
+
+  @Override
+  public int getAccessorPermitType(int index) {
+    return permitTypes[index];
+  }
+
+  @Override
+  public int getAccessorPermit(int index) {
+    return accessorPermits[index];
+  }
+
+  /**
+   * Checks a basic permission of the named accessor, using its access
+   * permit and access restriction entries. Extended permissions are
+   * not selected by the ACL traversal query, so they are never granted.
+   */
+  @Override
+  public boolean hasPermission(String permissionName, String accessorName) {
+    int permit =
+        PERMIT_NAMES.indexOf(permissionName.toLowerCase(Locale.ENGLISH));
+    if (permit == -1) {
+      return false;
+    }
+    permit += DF_PERMIT_NONE;
+
+    boolean isPermitted = false;
+    for (int i = 0; i < accessorNames.length; i++) {
+      if (!accessorNames[i].equals(accessorName)) {
+        continue;
+      }
+      if (permitTypes[i] == DF_PERMIT_TYPE_ACCESS_PERMIT
+          && accessorPermits[i] >= permit) {
+        isPermitted = true;
+      } else if (permitTypes[i] == DF_PERMIT_TYPE_ACCESS_RESTRICTION
+          && accessorPermits[i] <= permit) {
+        return false;
+      }
+    }
+    return isPermitted;
+  }
+
+  @Override
+  public boolean isGroup(int index) {
+    return isGroups[index];
+  }
+
+  @Override
+  public String getDomain() {
+    return domain;
+  }
+}
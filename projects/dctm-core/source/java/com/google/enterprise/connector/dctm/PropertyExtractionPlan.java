@@ -0,0 +1,236 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.dfcwrap.IAttr;
+import com.google.enterprise.connector.dctm.dfcwrap.ISysObject;
+import com.google.enterprise.connector.dctm.dfcwrap.IValue;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A compiled plan for extracting the properties of the documents of a
+ * single object type. The plan holds the property names of the type,
+ * and an extractor for each included attribute, so that the values of
+ * all of the attributes of a document can be read in a single pass.
+ * Plans are immutable, and are shared through the
+ * {@link TypeMetadataCache}.
+ */
+class PropertyExtractionPlan {
+  private static final Logger logger =
+      Logger.getLogger(PropertyExtractionPlan.class.getName());
+
+  /** The SPI properties supplied for documents with the add action. */
+  static final Set<String> ADD_PROPERTY_NAMES = ImmutableSet.of(
+      SpiConstants.PROPNAME_DISPLAYURL,
+      SpiConstants.PROPNAME_ISPUBLIC,
+      SpiConstants.PROPNAME_LASTMODIFIED,
+      SpiConstants.PROPNAME_MIMETYPE,
+      SpiConstants.PROPNAME_TITLE,
+      SpiConstants.PROPNAME_ACLINHERITFROM_DOCID);
+
+  /** Converts the values of attributes of a single data type. */
+  enum Extractor {
+    BOOLEAN {
+      @Override
+      Value getValue(IValue val) throws RepositoryException {
+        return Value.getBooleanValue(val.asBoolean());
+      }
+    },
+    DOUBLE {
+      @Override
+      Value getValue(IValue val) throws RepositoryException {
+        return Value.getDoubleValue(val.asDouble());
+      }
+    },
+    ID {
+      @Override
+      Value getValue(IValue val) throws RepositoryException {
+        // TODO: Should we check for null here?
+        return Value.getStringValue(val.asId().getId());
+      }
+    },
+    INTEGER {
+      @Override
+      Value getValue(IValue val) throws RepositoryException {
+        return Value.getLongValue(val.asInteger());
+      }
+    },
+    STRING {
+      @Override
+      Value getValue(IValue val) throws RepositoryException {
+        return Value.getStringValue(val.asString());
+      }
+    },
+    TIME {
+      @Override
+      Value getValue(IValue val) throws RepositoryException {
+        Date date = val.asTime().getDate();
+        return (date == null) ? null : Value.getDateValue(
+            DctmSysobjectDocument.getCalendarFromDate(date));
+      }
+    };
+
+    /**
+     * Converts a Documentum value.
+     *
+     * @param val a value
+     * @return the converted value, or null if there is no value
+     * @throws RepositoryException if the value cannot be converted
+     */
+    abstract Value getValue(IValue val) throws RepositoryException;
+
+    /**
+     * Gets the extractor for a Documentum data type.
+     *
+     * @param dataType one of the {@code IAttr.DM_*} data types
+     * @return the extractor, or null if the data type is not supported
+     */
+    static Extractor forDataType(int dataType) {
+      switch (dataType) {
+        case IAttr.DM_BOOLEAN:
+          return BOOLEAN;
+        case IAttr.DM_DOUBLE:
+          return DOUBLE;
+        case IAttr.DM_ID:
+          return ID;
+        case IAttr.DM_INTEGER:
+          return INTEGER;
+        case IAttr.DM_STRING:
+          return STRING;
+        case IAttr.DM_TIME:
+          return TIME;
+        default:
+          return null;
+      }
+    }
+  }
+
+  private final Set<String> propertyNames;
+  private final String[] names;
+  private final Extractor[] extractors;
+  private final ImmutableMap<String, Integer> indexes;
+
+  /**
+   * Compiles a plan.
+   *
+   * @param attributes the attributes of the type
+   * @param includedNames the included attribute names and extended
+   *     properties of the type
+   */
+  PropertyExtractionPlan(List<IAttr> attributes, List<String> includedNames) {
+    this.propertyNames = ImmutableSet.<String>builder()
+        .addAll(ADD_PROPERTY_NAMES).addAll(includedNames).build();
+
+    Set<String> included = new HashSet<String>(includedNames);
+    List<String> plannedNames = new ArrayList<String>();
+    List<Extractor> plannedExtractors = new ArrayList<Extractor>();
+    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+    for (IAttr attr : attributes) {
+      Extractor extractor = Extractor.forDataType(attr.getDataType());
+      if (extractor != null && included.contains(attr.getName())) {
+        builder.put(attr.getName(), plannedNames.size());
+        plannedNames.add(attr.getName());
+        plannedExtractors.add(extractor);
+      }
+    }
+    this.names = plannedNames.toArray(new String[plannedNames.size()]);
+    this.extractors =
+        plannedExtractors.toArray(new Extractor[plannedExtractors.size()]);
+    this.indexes = builder.build();
+  }
+
+  /**
+   * Gets the names of the properties of documents of this type with
+   * the add action. The returned set is immutable.
+   */
+  Set<String> getPropertyNames() {
+    return propertyNames;
+  }
+
+  /** Gets the number of attributes in the plan. */
+  int size() {
+    return names.length;
+  }
+
+  /**
+   * Gets the index of the named attribute in the property tables
+   * returned by {@link #extract}.
+   *
+   * @param name an attribute name
+   * @return the index, or -1 if the attribute is not in the plan
+   */
+  int indexOf(String name) {
+    Integer index = indexes.get(name);
+    return (index == null) ? -1 : index;
+  }
+
+  /**
+   * Reads the values of the attributes in the plan from an object.
+   * If the value count of an attribute cannot be read, its entry in
+   * the table is null, and the caller should read the attribute
+   * directly to report the error. Values that cannot be converted are
+   * logged and omitted.
+   *
+   * @param object the object to read
+   * @param skippedNames the names of attributes that should not be
+   *     read, whose entries in the table will be null
+   * @return a table of attribute values, indexed by {@link #indexOf}
+   */
+  Value[][] extract(ISysObject object, Set<String> skippedNames) {
+    Value[][] table = new Value[names.length][];
+    List<Value> values = new ArrayList<Value>();
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i];
+      if (skippedNames.contains(name)) {
+        continue;
+      }
+      int count;
+      try {
+        count = object.getValueCount(name);
+      } catch (RepositoryDocumentException e) {
+        logger.log(Level.FINE, "Unable to read attribute " + name, e);
+        continue;
+      }
+      values.clear();
+      for (int j = 0; j < count; j++) {
+        try {
+          Value value =
+              extractors[i].getValue(object.getRepeatingValue(name, j));
+          if (value != null) {
+            values.add(value);
+          }
+        } catch (Exception e) {
+          logger.log(Level.WARNING, "error getting the value of index "
+              + j + " of the attribute " + name, e);
+        }
+      }
+      table[i] = values.toArray(new Value[values.size()]);
+    }
+    return table;
+  }
+}
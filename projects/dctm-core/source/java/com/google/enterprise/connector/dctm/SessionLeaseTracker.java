@@ -0,0 +1,257 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the sessions held by document lists across calls from the
+ * connector manager. A list that is abandoned without reaching its
+ * end or its checkpoint would otherwise hold its session until it was
+ * garbage collected. Leases held past the timeout are reclaimed by a
+ * watchdog, which closes the owner and releases the session.
+ */
+class SessionLeaseTracker {
+  private static final Logger logger =
+      Logger.getLogger(SessionLeaseTracker.class.getName());
+
+  /** The longest interval between checks for expired leases. */
+  private static final long MAX_CHECK_INTERVAL = 60000L;
+
+  /** The watchdog thread, shared by all trackers and created lazily. */
+  private static class Watchdog {
+    static final Timer timer = new Timer("DctmSessionLeaseWatchdog", true);
+  }
+
+  /** A session held by an owner. */
+  static class Lease {
+    private final SessionLeaseTracker tracker;
+    private final ISessionManager sessionManager;
+    private final ISession session;
+    private final String owner;
+    private final String threadName;
+    private final long acquiredMillis;
+    private final Runnable onReclaim;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean reclaimed = false;
+
+    private Lease(SessionLeaseTracker tracker, ISessionManager sessionManager,
+        ISession session, String owner, Runnable onReclaim) {
+      this.tracker = tracker;
+      this.sessionManager = sessionManager;
+      this.session = session;
+      this.owner = owner;
+      this.threadName = Thread.currentThread().getName();
+      this.acquiredMillis = tracker.currentTimeMillis();
+      this.onReclaim = onReclaim;
+    }
+
+    ISession getSession() {
+      return session;
+    }
+
+    String getOwner() {
+      return owner;
+    }
+
+    /** Gets the time since the lease was acquired, in milliseconds. */
+    long getAgeMillis() {
+      return tracker.currentTimeMillis() - acquiredMillis;
+    }
+
+    /** Returns true if the session has been released. */
+    boolean isReleased() {
+      return released.get();
+    }
+
+    /** Returns true if the lease was reclaimed by the watchdog. */
+    boolean isReclaimed() {
+      return reclaimed;
+    }
+
+    /** Releases the session. Calls after the first are ignored. */
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        tracker.leases.remove(this);
+        sessionManager.release(session);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return owner + " on thread " + threadName + " for "
+          + getAgeMillis() + " ms, session " + session;
+    }
+  }
+
+  private final Set<Lease> leases =
+      Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+  private final long timeoutMillis;
+  private final Clock clock;
+
+  private final AtomicLong leaseCount = new AtomicLong();
+  private final AtomicLong reclaimedCount = new AtomicLong();
+
+  /**
+   * Constructs a tracker.
+   *
+   * @param timeoutMillis the time after which leases are reclaimed, in
+   *     milliseconds, or 0 to never reclaim them, in which case the
+   *     session of an abandoned owner is never released
+   */
+  SessionLeaseTracker(long timeoutMillis) {
+    this(timeoutMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  SessionLeaseTracker(long timeoutMillis, Clock clock) {
+    this.timeoutMillis = timeoutMillis;
+    this.clock = clock;
+    if (timeoutMillis > 0) {
+      long interval =
+          Math.min(Math.max(timeoutMillis / 4, 1000L), MAX_CHECK_INTERVAL);
+      Watchdog.timer.schedule(new WatchdogTask(this), interval, interval);
+    }
+  }
+
+  /**
+   * Checks one tracker for expired leases. The tracker is weakly
+   * referenced, so that the shared timer does not keep it alive.
+   */
+  private static class WatchdogTask extends TimerTask {
+    private final WeakReference<SessionLeaseTracker> tracker;
+
+    WatchdogTask(SessionLeaseTracker tracker) {
+      this.tracker = new WeakReference<SessionLeaseTracker>(tracker);
+    }
+
+    @Override
+    public void run() {
+      SessionLeaseTracker t = tracker.get();
+      if (t == null) {
+        cancel();
+      } else {
+        try {
+          t.reclaimExpired();
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Error reclaiming session leases", e);
+        }
+      }
+    }
+  }
+
+  /** Gets the current time in milliseconds. */
+  long currentTimeMillis() {
+    return clock.currentTimeMillis();
+  }
+
+  /**
+   * Tracks a session.
+   *
+   * @param sessionManager the session manager to release the session to
+   * @param session the session
+   * @param owner a description of the owner, for diagnostics
+   * @param onReclaim called when the lease is reclaimed, to close the
+   *     owner's resources before the session is released; may be null
+   * @return the lease
+   */
+  Lease track(ISessionManager sessionManager, ISession session, String owner,
+      Runnable onReclaim) {
+    Lease lease = new Lease(this, sessionManager, session, owner, onReclaim);
+    leases.add(lease);
+    leaseCount.incrementAndGet();
+    return lease;
+  }
+
+  /**
+   * Reclaims the leases that have been held longer than the timeout.
+   *
+   * @return the number of leases that were reclaimed
+   */
+  int reclaimExpired() {
+    if (timeoutMillis <= 0) {
+      return 0;
+    }
+    int count = 0;
+    for (Lease lease : getLeases()) {
+      if (lease.getAgeMillis() >= timeoutMillis && !lease.isReleased()) {
+        if (count == 0) {
+          // Show what else is holding sessions, to help find the leak.
+          logger.warning("Outstanding session leases:\n" + dump());
+        }
+        logger.warning("Reclaiming the session held by " + lease);
+        lease.reclaimed = true;
+        try {
+          if (lease.onReclaim != null) {
+            lease.onReclaim.run();
+          }
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Error closing " + lease.owner, e);
+        } finally {
+          lease.release();
+        }
+        reclaimedCount.incrementAndGet();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private List<Lease> getLeases() {
+    return new ArrayList<Lease>(leases);
+  }
+
+  /** Gets the number of leases that have not been released. */
+  int getOutstandingCount() {
+    return leases.size();
+  }
+
+  /** Gets the number of leases that have been tracked. */
+  long getLeaseCount() {
+    return leaseCount.get();
+  }
+
+  /** Gets the number of leases that have been reclaimed. */
+  long getReclaimedCount() {
+    return reclaimedCount.get();
+  }
+
+  /**
+   * Describes the outstanding leases, one per line, for diagnosing
+   * leaked sessions.
+   */
+  String dump() {
+    StringBuilder buffer = new StringBuilder();
+    for (Lease lease : getLeases()) {
+      buffer.append(lease).append('\n');
+    }
+    return buffer.toString();
+  }
+}
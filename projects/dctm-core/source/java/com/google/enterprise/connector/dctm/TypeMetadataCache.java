@@ -0,0 +1,249 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.dctm.dfcwrap.IAttr;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.IType;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded cache of object type metadata, safe for concurrent use by
+ * all of the traversal managers of a connector instance. The
+ * metadata for each type is immutable once loaded.
+ */
+class TypeMetadataCache {
+  private static final Logger logger =
+      Logger.getLogger(TypeMetadataCache.class.getName());
+
+  /** The metadata of a single object type. */
+  static class TypeMetadata {
+    private final String name;
+    private final List<String> typeHierarchy;
+    private final List<IAttr> attributes;
+    private final ImmutableMap<String, IAttr> attributesByName;
+    private final List<String> includedNames;
+    private final PropertyExtractionPlan extractionPlan;
+
+    private TypeMetadata(String name, List<String> typeHierarchy,
+        List<IAttr> attributes, List<String> includedNames) {
+      this.name = name;
+      this.typeHierarchy = typeHierarchy;
+      this.attributes = attributes;
+      ImmutableMap.Builder<String, IAttr> builder = ImmutableMap.builder();
+      for (IAttr attr : attributes) {
+        builder.put(attr.getName(), attr);
+      }
+      this.attributesByName = builder.build();
+      this.includedNames = includedNames;
+      this.extractionPlan =
+          new PropertyExtractionPlan(attributes, includedNames);
+    }
+
+    /** Gets the type name. */
+    String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the names of this type and its supertypes, starting with
+     * this type.
+     */
+    List<String> getTypeHierarchy() {
+      return typeHierarchy;
+    }
+
+    /** Gets the attributes of this type, in order. */
+    List<IAttr> getAttributes() {
+      return attributes;
+    }
+
+    /** Gets the named attribute, or null if there is no such attribute. */
+    IAttr getAttribute(String name) {
+      return attributesByName.get(name);
+    }
+
+    /**
+     * Gets the names of the included attributes of this type, and the
+     * included extended properties.
+     */
+    List<String> getIncludedNames() {
+      return includedNames;
+    }
+
+    /** Gets the property extraction plan for documents of this type. */
+    PropertyExtractionPlan getExtractionPlan() {
+      return extractionPlan;
+    }
+  }
+
+  /** An attribute whose properties are copied from an IAttr. */
+  private static class CachedAttr implements IAttr {
+    private final String name;
+    private final int dataType;
+    private final boolean repeating;
+
+    CachedAttr(IAttr attr) {
+      this.name = attr.getName();
+      this.dataType = attr.getDataType();
+      this.repeating = attr.isRepeating();
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public int getDataType() {
+      return dataType;
+    }
+
+    @Override
+    public boolean isRepeating() {
+      return repeating;
+    }
+  }
+
+  private final ConcurrentMap<String, TypeMetadata> cache =
+      new ConcurrentHashMap<String, TypeMetadata>();
+
+  private final int capacity;
+  private final Set<String> includedMeta;
+  private final Set<String> excludedMeta;
+
+  /**
+   * Constructs a cache.
+   *
+   * @param capacity the maximum number of types to cache
+   * @param includedMeta the included attribute names, or an empty set
+   *     to include all attributes
+   * @param excludedMeta the excluded attribute names
+   */
+  TypeMetadataCache(int capacity, Set<String> includedMeta,
+      Set<String> excludedMeta) {
+    this.capacity = capacity;
+    this.includedMeta = includedMeta;
+    this.excludedMeta = excludedMeta;
+  }
+
+  /**
+   * Gets the metadata for the named type, loading it if necessary.
+   *
+   * @param session a session to load the type with
+   * @param typeName the name of the type
+   * @return the type metadata
+   * @throws RepositoryException if the type cannot be loaded
+   */
+  TypeMetadata get(ISession session, String typeName)
+      throws RepositoryException {
+    TypeMetadata metadata = cache.get(typeName);
+    return (metadata == null) ? load(session.getType(typeName)) : metadata;
+  }
+
+  /**
+   * Gets the metadata for the given type, loading it if necessary.
+   *
+   * @param type the type
+   * @return the type metadata
+   * @throws RepositoryException if the type cannot be loaded
+   */
+  TypeMetadata get(IType type) throws RepositoryException {
+    TypeMetadata metadata = cache.get(type.getName());
+    return (metadata == null) ? load(type) : metadata;
+  }
+
+  /** Removes the named type from the cache. */
+  void invalidate(String typeName) {
+    cache.remove(typeName);
+  }
+
+  /** Removes all types from the cache. */
+  void invalidateAll() {
+    cache.clear();
+  }
+
+  /** Gets the number of types in the cache. */
+  int size() {
+    return cache.size();
+  }
+
+  private TypeMetadata load(IType type) throws RepositoryException {
+    String typeName = type.getName();
+    if (logger.isLoggable(Level.FINER)) {
+      logger.finer("Processing attributes for type " + typeName);
+    }
+
+    ImmutableList.Builder<String> hierarchy = ImmutableList.builder();
+    for (IType value = type; value != null; value = value.getSuperType()) {
+      hierarchy.add(value.getName());
+    }
+
+    int count = type.getTypeAttrCount();
+    ImmutableList.Builder<IAttr> attributes = ImmutableList.builder();
+    ImmutableList.Builder<String> includedNames = ImmutableList.builder();
+    try {
+      for (int i = 0; i < count; i++) {
+        IAttr attr = type.getTypeAttr(i);
+        attributes.add(new CachedAttr(attr));
+        addIfIncluded(includedNames, attr.getName());
+      }
+    } catch (RepositoryDocumentException e) {
+      logger.log(Level.WARNING, "Error fetching property names", e);
+    }
+    for (String name : DctmSysobjectDocument.EXTENDED_PROPERTIES) {
+      addIfIncluded(includedNames, name);
+    }
+
+    TypeMetadata metadata = new TypeMetadata(typeName, hierarchy.build(),
+        attributes.build(), includedNames.build());
+    if (cache.size() >= capacity) {
+      // Evict an arbitrary type. The number of types in a docbase is
+      // usually much smaller than the capacity.
+      Iterator<String> iterator = cache.keySet().iterator();
+      if (iterator.hasNext()) {
+        cache.remove(iterator.next());
+      }
+    }
+    TypeMetadata existing = cache.putIfAbsent(typeName, metadata);
+    return (existing == null) ? metadata : existing;
+  }
+
+  private void addIfIncluded(ImmutableList.Builder<String> names,
+      String name) {
+    if ((includedMeta.isEmpty() || includedMeta.contains(name))
+        && !excludedMeta.contains(name)) {
+      names.add(name);
+      if (logger.isLoggable(Level.FINEST)) {
+        logger.finest("attribute " + name + " added to the properties");
+      }
+    } else {
+      if (logger.isLoggable(Level.FINEST)) {
+        logger.finest("attribute " + name + " excluded from the properties");
+      }
+    }
+  }
+}
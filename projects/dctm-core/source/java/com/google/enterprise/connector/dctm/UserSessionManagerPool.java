@@ -0,0 +1,219 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A least recently used pool of session managers for individual
+ * users, logged in with login tickets minted by the connector's
+ * session manager. Each pooled session manager is discarded before its
+ * login ticket expires, and its unused sessions are flushed when it is
+ * discarded.
+ */
+class UserSessionManagerPool {
+  private static final Logger logger =
+      Logger.getLogger(UserSessionManagerPool.class.getName());
+
+  private final IClientX clientX;
+  private final ISessionManager sessionManager;
+  private final String docbase;
+
+  /**
+   * The login ticket timeout, in minutes, which is at least one minute
+   * longer than the time to live of a pooled session manager.
+   */
+  private final int ticketTimeout;
+
+  private final ExpiringCache<String, ISessionManager> pool;
+
+  /**
+   * Session managers evicted from the pool that must be flushed.
+   * Guarded by itself, since session managers are evicted while the
+   * pool's lock is held.
+   */
+  private final List<ISessionManager> evicted =
+      new ArrayList<ISessionManager>();
+
+  /**
+   * Constructs a pool.
+   *
+   * @param clientX the client
+   * @param sessionManager the connector's session manager, used to
+   *     mint login tickets
+   * @param docbase the docbase name
+   * @param capacity the maximum number of users to pool session
+   *     managers for, or 0 to disable the pool
+   * @param ttlMillis the time to keep a session manager, in
+   *     milliseconds, or 0 to disable the pool
+   */
+  UserSessionManagerPool(IClientX clientX, ISessionManager sessionManager,
+      String docbase, int capacity, long ttlMillis) {
+    this(clientX, sessionManager, docbase, capacity, ttlMillis, Clock.SYSTEM);
+  }
+
+  /* @VisibleForTesting */
+  UserSessionManagerPool(IClientX clientX, ISessionManager sessionManager,
+      String docbase, int capacity, long ttlMillis, Clock clock) {
+    this.clientX = clientX;
+    this.sessionManager = sessionManager;
+    this.docbase = docbase;
+    this.pool = new ExpiringCache<String, ISessionManager>(capacity,
+        ttlMillis, clock) {
+        @Override
+        protected void evicted(ISessionManager sessionManagerUser) {
+          synchronized (evicted) {
+            evicted.add(sessionManagerUser);
+          }
+        }
+      };
+
+    // A timeout of 0 means the server default, which is 5 minutes
+    // unless login_ticket_timeout has been changed.
+    this.ticketTimeout = isEnabled() ? (int) (ttlMillis / 60000L) + 1 : 0;
+  }
+
+  /** Returns true if session managers are pooled. */
+  boolean isEnabled() {
+    return pool.isEnabled();
+  }
+
+  /**
+   * Gets a session manager for the given user, either from the pool
+   * or logged in with a new login ticket.
+   *
+   * @param username a user name
+   * @return a session manager for the given user
+   * @throws RepositoryException if a login ticket cannot be minted
+   */
+  ISessionManager getSessionManager(String username)
+      throws RepositoryException {
+    if (!isEnabled()) {
+      return newSessionManager(username);
+    }
+
+    ISessionManager sessionManagerUser = pool.get(username);
+    if (sessionManagerUser != null) {
+      if (logger.isLoggable(Level.FINEST)) {
+        logger.finest("Reusing pooled session manager for " + username);
+      }
+      return sessionManagerUser;
+    }
+    flushEvicted();
+
+    // Mint the ticket outside the lock, so that a slow login for one
+    // user does not block requests for other users. If two requests
+    // for the same user race, the last one wins and the other session
+    // manager is simply not pooled.
+    sessionManagerUser = newSessionManager(username);
+    pool.put(username, sessionManagerUser);
+    flushEvicted();
+    return sessionManagerUser;
+  }
+
+  private ISessionManager newSessionManager(String username)
+      throws RepositoryException {
+    if (logger.isLoggable(Level.FINE))
+      logger.fine("Creating new session manager for " + username);
+    String ticket;
+    ISession session = sessionManager.getSession(docbase);
+    try {
+      ticket = session.getLoginTicketEx(username, "docbase", ticketTimeout,
+          false, null);
+    } finally {
+      sessionManager.release(session);
+    }
+
+    ISessionManager sessionManagerUser =
+        clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(username);
+    loginInfo.setPassword(ticket);
+    sessionManagerUser.setIdentity(docbase, loginInfo);
+    return sessionManagerUser;
+  }
+
+  /**
+   * Flushes the sessions of evicted session managers. Sessions that
+   * are still in use are released to the evicted session manager
+   * when the request using them completes.
+   */
+  private void flushEvicted() {
+    List<ISessionManager> flushed;
+    synchronized (evicted) {
+      if (evicted.isEmpty()) {
+        return;
+      }
+      flushed = new ArrayList<ISessionManager>(evicted);
+      evicted.clear();
+    }
+    for (ISessionManager sessionManagerUser : flushed) {
+      try {
+        sessionManagerUser.flushSessions();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Error flushing pooled sessions", e);
+      }
+    }
+  }
+
+  /**
+   * Removes the session manager for the given user from the pool, and
+   * flushes it.
+   *
+   * @param username a user name
+   */
+  void invalidate(String username) {
+    ISessionManager sessionManagerUser = pool.remove(username);
+    if (sessionManagerUser != null) {
+      synchronized (evicted) {
+        evicted.add(sessionManagerUser);
+      }
+    }
+    flushEvicted();
+  }
+
+  /** Removes all session managers from the pool, and flushes them. */
+  void invalidateAll() {
+    List<ISessionManager> removed = pool.removeAll();
+    synchronized (evicted) {
+      evicted.addAll(removed);
+    }
+    flushEvicted();
+  }
+
+  /** Gets the number of session managers in the pool. */
+  int size() {
+    return pool.size();
+  }
+
+  /** Gets the number of requests that used a pooled session manager. */
+  long getHitCount() {
+    return pool.getHitCount();
+  }
+
+  /** Gets the number of requests that created a session manager. */
+  long getMissCount() {
+    return pool.getMissCount();
+  }
+}
@@ -0,0 +1,343 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm.dfcwrap;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Emits Java Flight Recorder events around DFC round trips and
+ * traversal batches. The connector runs on JVMs that predate JFR, so
+ * the event types are defined at runtime through {@code
+ * jdk.jfr.EventFactory} using reflection. If JFR is not available, or
+ * an event type is not enabled in any recording, the events do
+ * nothing.
+ *
+ * <p>Typical usage:
+ * <pre>
+ *   FlightRecorderEvents.Event event =
+ *       FlightRecorderEvents.begin(FlightRecorderEvents.Type.QUERY);
+ *   try {
+ *     ...
+ *   } finally {
+ *     event.setQuery(dql);
+ *     event.commit();
+ *   }
+ * </pre>
+ */
+public class FlightRecorderEvents {
+  private static final Logger logger =
+      Logger.getLogger(FlightRecorderEvents.class.getName());
+
+  /** The event types. */
+  public enum Type {
+    QUERY("DQL Query", "DFC"),
+    GET_OBJECT("Get Object", "DFC"),
+    GET_OBJECT_BY_QUALIFICATION("Get Object by Qualification", "DFC"),
+    GET_CONTENT("Get Content", "DFC"),
+    COLLECTION_NEXT("Collection Next", "DFC"),
+    TRAVERSAL_BATCH("Traversal Batch", "Traversal");
+
+    private final String label;
+    private final String category;
+
+    private Type(String label, String category) {
+      this.label = label;
+      this.category = category;
+    }
+  }
+
+  /** The prefix of the event names. */
+  private static final String NAME_PREFIX =
+      "com.google.enterprise.connector.dctm.";
+
+  // The indexes of the event fields, in the order of FIELDS.
+  private static final int DOCBASE = 0;
+  private static final int QUERY = 1;
+  private static final int OBJECT_ID = 2;
+  private static final int BYTES = 3;
+  private static final int COUNT = 4;
+
+  private static final String[][] FIELDS = {
+    { "docbase", "Docbase" },
+    { "query", "DQL Fingerprint" },
+    { "objectId", "Object ID" },
+    { "bytes", "Bytes" },
+    { "count", "Count" },
+  };
+
+  private static final Class<?>[] FIELD_TYPES =
+      { String.class, String.class, String.class, long.class, int.class };
+
+  /** The maximum length of a DQL fingerprint. */
+  private static final int MAX_FINGERPRINT_LENGTH = 1024;
+
+  private static final Pattern STRING_LITERAL =
+      Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMBER_LITERAL =
+      Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+  private static final Pattern LITERAL_LIST =
+      Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  /**
+   * How long to trust the last check of whether an event type is
+   * enabled. Recordings may start and stop at any time, but checking on
+   * every DFC call would cost a reflective call each time.
+   */
+  private static final long ENABLED_CHECK_NANOS =
+      TimeUnit.SECONDS.toNanos(1);
+
+  /** The reflective view of an event type created by EventFactory. */
+  private static class EventType {
+    final Object factory;
+    final Object eventType;
+
+    /** Whether the event type was enabled when last checked. */
+    private volatile boolean enabled;
+
+    /** When the event type was last checked, from System.nanoTime. */
+    private volatile long checkedNanos;
+
+    EventType(Object factory, Object eventType) {
+      this.factory = factory;
+      this.eventType = eventType;
+      check(System.nanoTime());
+    }
+
+    /** Returns true if the event type is enabled in a recording. */
+    boolean isEnabled() {
+      long now = System.nanoTime();
+      if (now - checkedNanos >= ENABLED_CHECK_NANOS) {
+        check(now);
+      }
+      return enabled;
+    }
+
+    private void check(long now) {
+      enabled = Boolean.TRUE.equals(invoke(isEnabled, eventType));
+      checkedNanos = now;
+    }
+  }
+
+  /** A disabled event, returned when JFR is off or unavailable. */
+  private static final Event DISABLED = new Event(null);
+
+  /** The event types, or null if JFR is not available. */
+  private static final Map<Type, EventType> eventTypes;
+
+  private static Method newEvent;
+  private static Method isEnabled;
+  private static Method begin;
+  private static Method set;
+  private static Method commit;
+
+  static {
+    Map<Type, EventType> types;
+    try {
+      types = createEventTypes();
+      logger.config("Java Flight Recorder events are available");
+    } catch (Exception e) {
+      // Expected on JVMs without jdk.jfr.
+      logger.log(Level.FINEST, "Java Flight Recorder is not available", e);
+      types = null;
+    } catch (LinkageError e) {
+      logger.log(Level.FINEST, "Java Flight Recorder is not available", e);
+      types = null;
+    }
+    eventTypes = types;
+  }
+
+  private static Map<Type, EventType> createEventTypes() throws Exception {
+    ClassLoader loader = ClassLoader.getSystemClassLoader();
+    Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory", true, loader);
+    Class<?> eventClass = Class.forName("jdk.jfr.Event", true, loader);
+    Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType", true, loader);
+    Class<?> annotationClass =
+        Class.forName("jdk.jfr.AnnotationElement", true, loader);
+    Class<?> descriptorClass =
+        Class.forName("jdk.jfr.ValueDescriptor", true, loader);
+    Class<?> nameClass = Class.forName("jdk.jfr.Name", true, loader);
+    Class<?> labelClass = Class.forName("jdk.jfr.Label", true, loader);
+    Class<?> categoryClass = Class.forName("jdk.jfr.Category", true, loader);
+
+    Constructor<?> annotation =
+        annotationClass.getConstructor(Class.class, Object.class);
+    Constructor<?> descriptor =
+        descriptorClass.getConstructor(Class.class, String.class, List.class);
+    Method create = factoryClass.getMethod("create", List.class, List.class);
+    Method getEventType = factoryClass.getMethod("getEventType");
+    newEvent = factoryClass.getMethod("newEvent");
+    isEnabled = eventTypeClass.getMethod("isEnabled");
+    begin = eventClass.getMethod("begin");
+    set = eventClass.getMethod("set", int.class, Object.class);
+    commit = eventClass.getMethod("commit");
+
+    List<Object> fields = new ArrayList<Object>();
+    for (int i = 0; i < FIELDS.length; i++) {
+      fields.add(descriptor.newInstance(FIELD_TYPES[i], FIELDS[i][0],
+              Collections.singletonList(
+                  annotation.newInstance(labelClass, FIELDS[i][1]))));
+    }
+
+    Map<Type, EventType> types = new EnumMap<Type, EventType>(Type.class);
+    for (Type type : Type.values()) {
+      String[] category = { "Documentum Connector", type.category };
+      List<Object> annotations = Arrays.asList(
+          annotation.newInstance(nameClass, NAME_PREFIX + toName(type)),
+          annotation.newInstance(labelClass, type.label),
+          annotation.newInstance(categoryClass, category));
+      Object factory = create.invoke(null, annotations, fields);
+      types.put(type, new EventType(factory, getEventType.invoke(factory)));
+    }
+    return types;
+  }
+
+  /** Converts QUERY_NAME to QueryName. */
+  private static String toName(Type type) {
+    StringBuilder name = new StringBuilder();
+    for (String word : type.toString().split("_")) {
+      name.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+    }
+    return name.toString();
+  }
+
+  private static Object invoke(Method method, Object target, Object... args) {
+    try {
+      return method.invoke(target, args);
+    } catch (Exception e) {
+      logger.log(Level.FINEST, "Error calling " + method, e);
+      return null;
+    }
+  }
+
+  /** Returns true if Java Flight Recorder is available. */
+  public static boolean isAvailable() {
+    return eventTypes != null;
+  }
+
+  /**
+   * Begins an event. If the event type is not enabled in a recording,
+   * the returned event does nothing. Whether the event type is enabled
+   * is checked at most once a second, so events may be missed for up
+   * to a second after a recording starts.
+   *
+   * @param type the event type
+   * @return the event, which must be committed
+   */
+  public static Event begin(Type type) {
+    if (eventTypes == null) {
+      return DISABLED;
+    }
+    EventType eventType = eventTypes.get(type);
+    if (!eventType.isEnabled()) {
+      return DISABLED;
+    }
+    Object event = invoke(newEvent, eventType.factory);
+    if (event == null) {
+      return DISABLED;
+    }
+    invoke(begin, event);
+    return new Event(event);
+  }
+
+  /**
+   * Gets a fingerprint of a DQL statement, with the literals replaced
+   * by {@code ?}, lists of literals collapsed, and whitespace
+   * normalized, so that events for the same query can be grouped.
+   *
+   * @param dql a DQL statement or qualification, or null
+   * @return the fingerprint, or null if the statement is null
+   */
+  public static String fingerprint(String dql) {
+    if (dql == null) {
+      return null;
+    }
+    String fingerprint = STRING_LITERAL.matcher(dql).replaceAll("?");
+    fingerprint = NUMBER_LITERAL.matcher(fingerprint).replaceAll("?");
+    fingerprint = LITERAL_LIST.matcher(fingerprint).replaceAll("?, ...");
+    fingerprint = WHITESPACE.matcher(fingerprint).replaceAll(" ").trim();
+    return (fingerprint.length() > MAX_FINGERPRINT_LENGTH)
+        ? fingerprint.substring(0, MAX_FINGERPRINT_LENGTH) : fingerprint;
+  }
+
+  /**
+   * A single event. The duration of the event runs from {@link
+   * FlightRecorderEvents#begin} to {@link #commit}.
+   */
+  public static class Event {
+    private final Object event;
+
+    private Event(Object event) {
+      this.event = event;
+    }
+
+    /**
+     * Returns true if the event will be recorded. Callers may use this
+     * to avoid computing values that are only needed by the event.
+     */
+    public boolean isEnabled() {
+      return event != null;
+    }
+
+    public void setDocbase(String docbase) {
+      if (event != null) {
+        invoke(set, event, DOCBASE, docbase);
+      }
+    }
+
+    /** Sets the query, which is recorded as a fingerprint. */
+    public void setQuery(String dql) {
+      if (event != null) {
+        invoke(set, event, QUERY, fingerprint(dql));
+      }
+    }
+
+    public void setObjectId(String objectId) {
+      if (event != null) {
+        invoke(set, event, OBJECT_ID, objectId);
+      }
+    }
+
+    public void setBytes(long bytes) {
+      if (event != null) {
+        invoke(set, event, BYTES, bytes);
+      }
+    }
+
+    public void setCount(int count) {
+      if (event != null) {
+        invoke(set, event, COUNT, count);
+      }
+    }
+
+    /** Ends the event and records it. */
+    public void commit() {
+      if (event != null) {
+        invoke(commit, event);
+      }
+    }
+  }
+}
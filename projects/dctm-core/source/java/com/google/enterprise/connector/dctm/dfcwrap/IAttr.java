@@ -32,4 +32,7 @@ public interface IAttr {
   String getName();
 
   int getDataType();
+
+  /** @since 3.3.0 */
+  boolean isRepeating();
 }
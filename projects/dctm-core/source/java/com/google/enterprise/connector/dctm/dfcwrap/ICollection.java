@@ -34,6 +34,13 @@ public interface ICollection {
 
   String getString(String colName) throws RepositoryException;
 
+  /** @since 3.3.0 */
+  int getValueCount(String colName) throws RepositoryException;
+
+  /** @since 3.3.0 */
+  IValue getRepeatingValue(String colName, int index)
+      throws RepositoryException;
+
   void close() throws RepositoryException;
 
   int getState();
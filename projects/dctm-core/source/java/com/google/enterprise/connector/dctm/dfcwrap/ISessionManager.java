@@ -36,4 +36,7 @@ public interface ISessionManager {
   boolean authenticate(String docbaseName);
 
   void clearIdentity(String docbase);
+
+  /** @since 3.3.0 */
+  void flushSessions();
 }
@@ -17,6 +17,7 @@ package com.google.enterprise.connector.dctm.dfcwrap;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 
 public interface ISysObject extends IPersistentObject{
   String getObjectName() throws RepositoryDocumentException;
@@ -25,6 +26,18 @@ public interface ISysObject extends IPersistentObject{
 
   ByteArrayInputStream getContent() throws RepositoryDocumentException;
 
+  /**
+   * Gets the content as a stream. Content larger than the threshold is
+   * spooled to a temporary file rather than held in memory, and the
+   * file is deleted when the stream is closed.
+   *
+   * @param spoolThreshold the largest content size to read into memory,
+   *     or a negative number to always read the content into memory
+   * @since 3.3.0
+   */
+  InputStream getContentStream(long spoolThreshold)
+      throws RepositoryDocumentException;
+
   String getACLDomain() throws RepositoryDocumentException;
 
   String getACLName() throws RepositoryDocumentException;
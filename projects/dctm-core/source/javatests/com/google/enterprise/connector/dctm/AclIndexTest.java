@@ -0,0 +1,242 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.AclIndex.Membership;
+import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmAcl;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.IAcl;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+
+import junit.framework.TestCase;
+
+import java.sql.SQLException;
+
+public class AclIndexTest extends TestCase {
+  private static final String READ = String.valueOf(IAcl.DF_PERMIT_READ);
+  private static final String NONE = String.valueOf(IAcl.DF_PERMIT_NONE);
+  private static final String PERMIT =
+      String.valueOf(IAcl.DF_PERMIT_TYPE_ACCESS_PERMIT);
+  private static final String RESTRICT =
+      String.valueOf(IAcl.DF_PERMIT_TYPE_ACCESS_RESTRICTION);
+  private static final String REQUIRED =
+      String.valueOf(IAcl.DF_PERMIT_TYPE_REQUIRED_GROUP);
+  private static final String REQUIRED_SET =
+      String.valueOf(IAcl.DF_PERMIT_TYPE_REQUIRED_GROUP_SET);
+
+  private final JdbcFixture jdbcFixture = new JdbcFixture();
+
+  private final Membership user1 = new Membership("user1",
+      ImmutableSet.of("group1", "required1", "required2"));
+
+  private final Membership user2 =
+      new Membership("user2", ImmutableSet.of("group2"));
+
+  private AclIndex index;
+
+  @Override
+  protected void setUp() throws SQLException {
+    jdbcFixture.setUp();
+    index = new AclIndex(10, 1000L);
+  }
+
+  @Override
+  protected void tearDown() throws SQLException {
+    jdbcFixture.tearDown();
+  }
+
+  private void putAcl(String aclId, String... accessors) {
+    MockDmAcl acl = new MockDmAcl(0, aclId);
+    for (int i = 0; i < accessors.length; i += 4) {
+      acl.addAccessor(accessors[i], Integer.parseInt(accessors[i + 1]),
+          Integer.parseInt(accessors[i + 2]),
+          Boolean.parseBoolean(accessors[i + 3]));
+    }
+    index.putAcl(aclId, acl);
+  }
+
+  /** Records a document using an ACL added by {@link #putAcl}. */
+  private void putDocument(String chronicleId, String aclId,
+      String ownerName) {
+    // MockDmAcl names the ACL with its ID, and has no domain.
+    index.putDocument(chronicleId, null, aclId, ownerName);
+  }
+
+  public void testUnknownDocument() {
+    putAcl("acl1", "dm_world", READ, PERMIT, "false");
+    assertNull(index.isPermitted("doc1", user1));
+  }
+
+  public void testUnknownAcl() {
+    putDocument("doc1", "acl1", "owner");
+    assertNull(index.isPermitted("doc1", user1));
+  }
+
+  public void testWorld() {
+    putAcl("acl1", "dm_world", READ, PERMIT, "false");
+    putDocument("doc1", "acl1", "owner");
+    assertEquals(Boolean.TRUE, index.isPermitted("doc1", user1));
+    assertEquals(Boolean.TRUE, index.isPermitted("doc1", user2));
+  }
+
+  public void testUsersAndGroups() {
+    putAcl("acl1", "user1", READ, PERMIT, "false",
+        "group2", READ, PERMIT, "true");
+    putAcl("acl2", "dm_world", NONE, PERMIT, "false",
+        "group1", NONE, PERMIT, "true");
+    putDocument("doc1", "acl1", "owner");
+    putDocument("doc2", "acl2", "owner");
+    assertEquals(Boolean.TRUE, index.isPermitted("doc1", user1));
+    assertEquals(Boolean.TRUE, index.isPermitted("doc1", user2));
+    assertEquals(Boolean.FALSE, index.isPermitted("doc2", user1));
+  }
+
+  public void testRestrictions() {
+    putAcl("acl1", "dm_world", READ, PERMIT, "false",
+        "user1", NONE, RESTRICT, "false",
+        "group2", READ, RESTRICT, "true");
+    putDocument("doc1", "acl1", "owner");
+    assertEquals(Boolean.FALSE, index.isPermitted("doc1", user1));
+    assertEquals(Boolean.FALSE, index.isPermitted("doc1", user2));
+  }
+
+  public void testOwner() {
+    putAcl("acl1", "dm_owner", READ, PERMIT, "false");
+    putDocument("doc1", "acl1", "user1");
+    putDocument("doc2", "acl1", null);
+    assertEquals(Boolean.TRUE, index.isPermitted("doc1", user1));
+    assertEquals(Boolean.FALSE, index.isPermitted("doc1", user2));
+    assertNull(index.isPermitted("doc2", user1));
+  }
+
+  public void testRequiredGroups() {
+    putAcl("acl1", "dm_world", READ, PERMIT, "false",
+        "required1", "0", REQUIRED, "true",
+        "required2", "0", REQUIRED, "true");
+    putAcl("acl2", "dm_world", READ, PERMIT, "false",
+        "required1", "0", REQUIRED_SET, "true",
+        "group2", "0", REQUIRED_SET, "true");
+    putDocument("doc1", "acl1", "owner");
+    putDocument("doc2", "acl2", "owner");
+    assertEquals(Boolean.TRUE, index.isPermitted("doc1", user1));
+    assertEquals(Boolean.FALSE, index.isPermitted("doc1", user2));
+    assertEquals(Boolean.TRUE, index.isPermitted("doc2", user1));
+    assertEquals(Boolean.TRUE, index.isPermitted("doc2", user2));
+  }
+
+  public void testDocumentGroup() {
+    putAcl("acl1", "dm_world", READ, PERMIT, "false",
+        "dm_group", READ, PERMIT, "false");
+    putDocument("doc1", "acl1", "owner");
+    assertNull(index.isPermitted("doc1", user1));
+  }
+
+  public void testRemove() {
+    putAcl("acl1", "dm_world", READ, PERMIT, "false");
+    putDocument("doc1", "acl1", "owner");
+    putDocument("doc2", "acl1", "owner");
+    index.removeDocument("doc1");
+    assertNull(index.isPermitted("doc1", user1));
+    assertEquals(Boolean.TRUE, index.isPermitted("doc2", user1));
+    index.removeAcl("acl1");
+    assertNull(index.isPermitted("doc2", user1));
+    assertEquals(1, index.getDocumentCount());
+    assertEquals(0, index.getAclCount());
+  }
+
+  public void testRenamedAcl() {
+    putAcl("acl1", "dm_world", READ, PERMIT, "false");
+    putDocument("doc1", "acl1", "owner");
+    assertEquals(Boolean.TRUE, index.isPermitted("doc1", user1));
+
+    MockDmAcl renamed = new MockDmAcl(0, "acl2");
+    renamed.addAccessor("dm_world", Integer.parseInt(READ),
+        Integer.parseInt(PERMIT), false);
+    index.putAcl("acl1", renamed);
+    assertNull(index.isPermitted("doc1", user1));
+    assertEquals(1, index.getAclCount());
+  }
+
+  public void testGetMembership() throws Exception {
+    jdbcFixture.executeUpdate(
+        "insert into dm_user(user_name, user_login_name, user_privileges) "
+        + "values('User One', 'user1', 0)",
+        "insert into dm_user(user_name, user_login_name, user_privileges) "
+        + "values('Admin', 'admin', 16)",
+        "insert into dm_group(group_name, i_all_users_names) "
+        + "values('group1', 'User One')",
+        "insert into dm_group(group_name, i_all_users_names) "
+        + "values('group2', 'User One')",
+        "insert into dm_group(group_name, i_all_users_names) "
+        + "values('group3', 'Admin')");
+
+    IClientX clientX = new MockDmClientX();
+    ISessionManager sessionManager =
+        clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DmInitialize.DM_DOCBASE, loginInfo);
+    ISession session = sessionManager.getSession(DmInitialize.DM_DOCBASE);
+    try {
+      Membership membership = index.getMembership(clientX, session, "user1");
+      assertNotNull(membership);
+      assertEquals("User One", membership.userName);
+      assertEquals(ImmutableSet.of("group1", "group2"), membership.groups);
+
+      // Cached.
+      assertSame(membership, index.getMembership(clientX, session, "user1"));
+
+      // Superusers and unknown users are left to the query.
+      assertNull(index.getMembership(clientX, session, "admin"));
+      assertNull(index.getMembership(clientX, session, "nobody"));
+    } finally {
+      sessionManager.release(session);
+    }
+  }
+
+  /** Inactive users cannot log in, so the index must not grant access. */
+  public void testGetMembership_inactive() throws Exception {
+    jdbcFixture.executeUpdate(
+        "insert into dm_user(user_name, user_login_name, user_privileges, "
+        + "user_state) values('Former', 'former', 0, 1)",
+        "insert into dm_group(group_name, i_all_users_names) "
+        + "values('group1', 'Former')");
+    putAcl("acl1", "dm_world", READ, PERMIT, "false");
+    putDocument("doc1", "acl1", "owner");
+
+    IClientX clientX = new MockDmClientX();
+    ISessionManager sessionManager =
+        clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DmInitialize.DM_DOCBASE, loginInfo);
+    ISession session = sessionManager.getSession(DmInitialize.DM_DOCBASE);
+    try {
+      Membership membership =
+          index.getMembership(clientX, session, "former");
+      assertNull(membership);
+      assertNull(index.isPermitted("doc1", membership));
+    } finally {
+      sessionManager.release(session);
+    }
+  }
+}
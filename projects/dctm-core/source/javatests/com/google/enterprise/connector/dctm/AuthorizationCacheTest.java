@@ -0,0 +1,69 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import junit.framework.TestCase;
+
+public class AuthorizationCacheTest extends TestCase {
+  private final FakeClock clock = new FakeClock();
+
+  public void testGetAndPut() {
+    AuthorizationCache cache = new AuthorizationCache(10, 1000L, clock);
+    assertNull(cache.get("user1", "0900000180000001"));
+    cache.put("user1", "0900000180000001", true);
+    cache.put("user1", "0900000180000002", false);
+    assertEquals(Boolean.TRUE, cache.get("user1", "0900000180000001"));
+    assertEquals(Boolean.FALSE, cache.get("user1", "0900000180000002"));
+    assertNull(cache.get("user2", "0900000180000001"));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  public void testExpiration() {
+    AuthorizationCache cache = new AuthorizationCache(10, 1000L, clock);
+    cache.put("user1", "0900000180000001", true);
+    clock.set(999L);
+    assertEquals(Boolean.TRUE, cache.get("user1", "0900000180000001"));
+    clock.set(1000L);
+    assertNull(cache.get("user1", "0900000180000001"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testCapacity() {
+    AuthorizationCache cache = new AuthorizationCache(2, 1000L, clock);
+    cache.put("user1", "0900000180000001", true);
+    cache.put("user1", "0900000180000002", true);
+    cache.get("user1", "0900000180000001");
+    cache.put("user1", "0900000180000003", true);
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("user1", "0900000180000001"));
+    assertNull(cache.get("user1", "0900000180000002"));
+  }
+
+  public void testDisabled() {
+    AuthorizationCache cache = new AuthorizationCache(0, 1000L, clock);
+    assertFalse(cache.isEnabled());
+    cache.put("user1", "0900000180000001", true);
+    assertNull(cache.get("user1", "0900000180000001"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testInvalidateAll() {
+    AuthorizationCache cache = new AuthorizationCache(10, 1000L, clock);
+    cache.put("user1", "0900000180000001", true);
+    cache.invalidateAll();
+    assertNull(cache.get("user1", "0900000180000001"));
+  }
+}
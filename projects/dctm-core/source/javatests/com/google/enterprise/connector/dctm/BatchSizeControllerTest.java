@@ -0,0 +1,111 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.BatchSizeController.QueryType;
+
+import junit.framework.TestCase;
+
+public class BatchSizeControllerTest extends TestCase {
+  private static final long SECOND = 1000000000L;
+
+  private BatchSizeController controller;
+
+  @Override
+  protected void setUp() {
+    controller = new BatchSizeController();
+  }
+
+  public void testNoMeasurements() {
+    assertEquals(-1, controller.getLastBatchSize(QueryType.ADD));
+    assertEquals(-1.0, controller.getAverageMillis(QueryType.ADD));
+    assertEquals(100, controller.getBatchSize(QueryType.ADD, 100, SECOND));
+    assertEquals(100, controller.getLastBatchSize(QueryType.ADD));
+  }
+
+  public void testNoBatchHint() {
+    controller.record(QueryType.ADD, SECOND);
+    assertEquals(-1, controller.getBatchSize(QueryType.ADD, -1, SECOND));
+  }
+
+  public void testNoTimeLimit() {
+    controller.record(QueryType.ADD, SECOND);
+    assertEquals(100, controller.getBatchSize(QueryType.ADD, 100, -1));
+  }
+
+  public void testSlowDocuments() {
+    controller.record(QueryType.ADD, SECOND / 10);
+    assertEquals(100.0, controller.getAverageMillis(QueryType.ADD), 0.001);
+
+    // Half of 4 seconds at 100 ms per document.
+    assertEquals(20,
+        controller.getBatchSize(QueryType.ADD, 100, 4 * SECOND));
+    assertEquals(BatchSizeController.MIN_BATCH_SIZE,
+        controller.getBatchSize(QueryType.ADD, 100, SECOND));
+    assertEquals(5, controller.getBatchSize(QueryType.ADD, 5, 0));
+
+    // The other query types are independent.
+    assertEquals(100,
+        controller.getBatchSize(QueryType.DELETE, 100, SECOND));
+  }
+
+  public void testQueryCost() {
+    controller.record(QueryType.ADD, SECOND / 10);
+    controller.recordQuery(QueryType.ADD, SECOND);
+    assertEquals(1000.0, controller.getAverageQueryMillis(QueryType.ADD),
+        0.001);
+
+    // Half of 4 seconds, less 1 second for the query, at 100 ms per
+    // document.
+    assertEquals(10,
+        controller.getBatchSize(QueryType.ADD, 100, 4 * SECOND));
+    // The query takes all of the time.
+    assertEquals(BatchSizeController.MIN_BATCH_SIZE,
+        controller.getBatchSize(QueryType.ADD, 100, 2 * SECOND));
+
+    // The other query types are independent.
+    controller.record(QueryType.ACL, SECOND / 10);
+    assertEquals(20,
+        controller.getBatchSize(QueryType.ACL, 100, 4 * SECOND));
+  }
+
+  public void testFastDocuments() {
+    controller.record(QueryType.ACL, 1000);
+    assertEquals(100, controller.getBatchSize(QueryType.ACL, 100, SECOND));
+  }
+
+  public void testMovingAverage() {
+    controller.record(QueryType.ADD, 100 * SECOND);
+    controller.record(QueryType.ADD, 0);
+    assertEquals(80000.0, controller.getAverageMillis(QueryType.ADD), 0.001);
+  }
+
+  public void testDocumentTimer() {
+    BatchSizeController.DocumentTimer timer = controller.newTimer("docbase");
+    timer.begin();
+    timer.end();
+    assertEquals(-1.0, controller.getAverageMillis(QueryType.DELETE));
+
+    assertEquals(-1.0, controller.getAverageFetchMillis(QueryType.DELETE));
+
+    timer.begin();
+    timer.returned(QueryType.DELETE);
+    assertTrue(controller.getAverageFetchMillis(QueryType.DELETE) >= 0);
+    assertEquals(-1.0, controller.getAverageMillis(QueryType.DELETE));
+    timer.begin();
+    assertTrue(controller.getAverageMillis(QueryType.DELETE) >= 0);
+    assertEquals(-1.0, controller.getAverageQueryMillis(QueryType.DELETE));
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.dctm;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import junit.framework.TestCase;
@@ -361,6 +362,106 @@ public class CheckpointTest extends TestCase {
     assertEquals(-1, checkpoint.getInsertIndex());
   }
 
+  public void testCopyForInsertIndex() throws RepositoryException {
+    Checkpoint checkpoint = getCheckpoint(3,
+        "{\"uuid\":[\"090000018000e100\"],"
+        + "\"lastModified\":[\"2007-01-02 13:58:10\"],\"index\":0}");
+    Checkpoint copy = checkpoint.copyForInsertIndex(2);
+
+    assertEquals(2, copy.getInsertIndex());
+    assertNull(copy.getInsertId());
+    copy.setInsertCheckpoint(NOW, "id2");
+    assertEquals(0, checkpoint.getInsertIndex());
+    assertEquals("090000018000e100", checkpoint.getInsertId());
+  }
+
+  public void testMerge() throws RepositoryException {
+    Checkpoint checkpoint = getCheckpoint(2,
+        "{\"uuid\":[\"090000018000e100\",\"090000018000e222\"],"
+        + "\"lastModified\":[\"2007-01-02 13:58:10\",\"2008-01-02 13:58:10\"],"
+        + "\"index\":0}");
+    Checkpoint first = checkpoint.copyForInsertIndex(0);
+    Checkpoint second = checkpoint.copyForInsertIndex(1);
+    first.setInsertCheckpoint(NOW, "id1");
+    first.setDeleteCheckpoint(NOW, "del");
+    second.setInsertCheckpoint(LATER, "id2");
+
+    checkpoint.merge(first);
+    checkpoint.merge(second);
+    assertEquals("id1", checkpoint.getInsertId());
+    assertEquals(NOW, checkpoint.getInsertDate());
+    assertEquals("del", checkpoint.getDeleteId());
+    assertEquals(NOW, checkpoint.getDeleteDate());
+
+    checkpoint.advance();
+    assertEquals("id2", checkpoint.getInsertId());
+    assertEquals(LATER, checkpoint.getInsertDate());
+  }
+
+  public void testSkipToAclIndex() throws RepositoryException {
+    Checkpoint checkpoint = getCheckpoint(3);
+    checkpoint.advance();
+    assertEquals(0, checkpoint.getInsertIndex());
+
+    checkpoint.skipToAclIndex();
+    assertFalse(checkpoint.advance());
+    assertEquals(-1, checkpoint.getInsertIndex());
+  }
+
+  private static final List<String> BOUNDS =
+      ImmutableList.of("2007-01-01 00:00:00", "2008-01-01 00:00:00");
+
+  public void testPartitions_asString() throws RepositoryException {
+    Checkpoint checkpoint = getCheckpoint(1);
+    checkpoint.advance();
+    checkpoint.startPartitions(BOUNDS);
+    checkpoint.setPartitionDone(0);
+    assertEquals(3, checkpoint.getPartitionCount());
+
+    Checkpoint output = getCheckpoint(1, checkpoint.asString());
+    assertEquals(checkpoint.asString(), output.asString());
+    assertEquals(0, output.getPartitionIndex());
+    assertEquals(3, output.getPartitionCount());
+    assertTrue(output.isPartitionDone(0));
+    assertFalse(output.isPartitionDone(1));
+  }
+
+  public void testPartitions_mergeAndEnd() throws RepositoryException {
+    Checkpoint checkpoint = getCheckpoint(1);
+    checkpoint.advance();
+    checkpoint.startPartitions(BOUNDS);
+
+    Checkpoint first = checkpoint.copyForPartition(0, true);
+    Checkpoint last = checkpoint.copyForPartition(2, false);
+    assertTrue(first.hasDeleteQuery());
+    assertFalse(last.hasDeleteQuery());
+    assertNull(first.getInsertId());
+    assertEquals(BOUNDS.get(0), first.getPartitionUpperBound());
+    assertEquals(BOUNDS.get(1), last.getInsertDate());
+    assertNull(last.getPartitionUpperBound());
+
+    first.setInsertCheckpoint(NOW, "id0");
+    first.setDeleteCheckpoint(NOW, "del");
+    last.setInsertCheckpoint(LATER, "id2");
+    last.setDeleteCheckpoint(LATER, "ignored");
+    checkpoint.merge(first);
+    checkpoint.merge(last);
+    assertNull(checkpoint.getInsertId());
+    assertEquals("del", checkpoint.getDeleteId());
+    assertEquals("id0", checkpoint.copyForPartition(0, true).getInsertId());
+
+    checkpoint.setPartitionDone(0);
+    assertFalse(checkpoint.isPartitionCaughtUp());
+    checkpoint.setPartitionDone(1);
+    assertTrue(checkpoint.isPartitionCaughtUp());
+
+    checkpoint.endPartitions();
+    assertEquals(-1, checkpoint.getPartitionIndex());
+    assertEquals("id2", checkpoint.getInsertId());
+    assertEquals(LATER, checkpoint.getInsertDate());
+    assertEquals(-1, checkpoint.asString().indexOf("partitions"));
+  }
+
   public void testAsString() throws RepositoryException {
     Checkpoint input =
         getCheckpoint(1, "{\"uuid\":[\"090000018000e100\"],"
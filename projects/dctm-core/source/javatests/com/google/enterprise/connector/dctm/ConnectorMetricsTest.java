@@ -0,0 +1,127 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.ConnectorMetrics.Stage;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class ConnectorMetricsTest extends TestCase {
+  private ConnectorMetrics metrics;
+
+  @Override
+  protected void setUp() {
+    metrics = new ConnectorMetrics("test", "docbase");
+  }
+
+  @Override
+  protected void tearDown() {
+    metrics.unregister();
+  }
+
+  /** Records a measurement of the given length. */
+  private void record(Stage stage, long millis) {
+    metrics.end(stage,
+        System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  public void testCounts() {
+    record(Stage.FETCH, 5);
+    record(Stage.FETCH, 50);
+    record(Stage.ADD_QUERY, 500);
+
+    assertEquals(Long.valueOf(2), metrics.getCounts().get("FETCH"));
+    assertEquals(Long.valueOf(1), metrics.getCounts().get("ADD_QUERY"));
+    assertEquals(Long.valueOf(0), metrics.getCounts().get("AUTHORIZE"));
+    assertTrue(metrics.getTotalMillis().get("FETCH") >= 55);
+    assertTrue(metrics.getMaxMillis().get("FETCH") >= 50);
+    assertTrue(metrics.getMaxMillis().get("FETCH") < 500);
+  }
+
+  public void testHistograms() {
+    record(Stage.CONTENT, 0);
+    record(Stage.CONTENT, 5);
+    record(Stage.CONTENT, 20000);
+
+    assertEquals(5, metrics.getHistogramBoundsMillis().length);
+    long[] buckets = metrics.getHistograms().get("CONTENT");
+    assertEquals(Arrays.toString(buckets), 6, buckets.length);
+    assertEquals(1, buckets[0]);
+    assertEquals(1, buckets[1]);
+    assertEquals(1, buckets[5]);
+  }
+
+  public void testReset() {
+    record(Stage.CHECKPOINT, 1);
+    metrics.reset();
+    assertEquals(Long.valueOf(0), metrics.getCounts().get("CHECKPOINT"));
+    assertEquals(Long.valueOf(0), metrics.getMaxMillis().get("CHECKPOINT"));
+    assertEquals(0, metrics.getHistograms().get("CHECKPOINT")[0]);
+
+    // The stages are still recorded after a reset.
+    record(Stage.CHECKPOINT, 1);
+    assertEquals(Long.valueOf(1), metrics.getCounts().get("CHECKPOINT"));
+  }
+
+  public void testCacheStatistics() {
+    assertTrue(metrics.getCacheStatistics().isEmpty());
+
+    AuthorizationCache authorizationCache = new AuthorizationCache(10, 1000L);
+    authorizationCache.get("user", "doc");
+    metrics.setCaches(null, authorizationCache, null, null);
+    assertEquals(Long.valueOf(0),
+        metrics.getCacheStatistics().get("authzCache.hits"));
+    assertEquals(Long.valueOf(1),
+        metrics.getCacheStatistics().get("authzCache.misses"));
+    assertFalse(metrics.getCacheStatistics().containsKey("groupCache.hits"));
+  }
+
+  public void testSessionLeases() {
+    assertEquals("", metrics.getSessionLeases());
+
+    SessionLeaseTracker tracker = new SessionLeaseTracker(0L);
+    metrics.setSessionLeaseTracker(tracker);
+    assertEquals("", metrics.getSessionLeases());
+    tracker.track(null, null, "DctmDocumentList", null);
+    assertTrue(metrics.getSessionLeases(),
+        metrics.getSessionLeases().startsWith("DctmDocumentList on thread "));
+  }
+
+  public void testRegister() throws Exception {
+    metrics.register();
+    ObjectName name = metrics.getObjectName();
+    assertNotNull(name);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertTrue(server.isRegistered(name));
+    assertEquals("docbase", server.getAttribute(name, "Docbase"));
+
+    // Registering metrics with the same name replaces the old ones.
+    ConnectorMetrics replacement = new ConnectorMetrics("test", "docbase");
+    replacement.register();
+    assertEquals(name, replacement.getObjectName());
+    assertTrue(server.isRegistered(name));
+
+    replacement.unregister();
+    assertFalse(server.isRegistered(name));
+    assertNull(replacement.getObjectName());
+  }
+}
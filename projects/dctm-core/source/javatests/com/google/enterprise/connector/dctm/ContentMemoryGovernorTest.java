@@ -0,0 +1,76 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ContentMemoryGovernorTest extends TestCase {
+  private static InputStream getContent(int size) {
+    return new ByteArrayInputStream(new byte[size]);
+  }
+
+  public void testNoLimit() throws IOException {
+    ContentMemoryGovernor governor = new ContentMemoryGovernor(-1L);
+    assertTrue(governor.reserve(Long.MAX_VALUE / 2));
+    assertTrue(governor.reserve(Long.MAX_VALUE / 4));
+  }
+
+  public void testReserve() throws IOException {
+    ContentMemoryGovernor governor = new ContentMemoryGovernor(100L);
+    assertTrue(governor.reserve(60L));
+    InputStream first = governor.trackMemory(getContent(60), 60L);
+    assertFalse(governor.reserve(60L));
+    assertTrue(governor.reserve(40L));
+    InputStream second = governor.trackMemory(getContent(40), 40L);
+    assertEquals(100L, governor.getReservedBytes());
+
+    first.close();
+    assertEquals(40L, governor.getReservedBytes());
+    second.close();
+    second.close();
+    assertEquals(0L, governor.getReservedBytes());
+    assertEquals(100L, governor.getPeakReservedBytes());
+  }
+
+  public void testUnreserve() {
+    ContentMemoryGovernor governor = new ContentMemoryGovernor(100L);
+    assertTrue(governor.reserve(60L));
+    assertNull(governor.trackMemory(null, 60L));
+    assertEquals(0L, governor.getReservedBytes());
+
+    assertTrue(governor.reserve(60L));
+    governor.unreserve(60L);
+    assertEquals(0L, governor.getReservedBytes());
+  }
+
+  public void testSpool() throws IOException {
+    ContentMemoryGovernor governor = new ContentMemoryGovernor(0L);
+    assertFalse(governor.reserve(10L));
+    InputStream content = governor.trackSpool(getContent(10), 10L);
+    assertEquals(10L, governor.getSpooledBytes());
+    assertEquals(1, governor.getSpooledCount());
+
+    assertEquals(0, content.read());
+    content.close();
+    assertEquals(0L, governor.getSpooledBytes());
+    assertEquals(0, governor.getSpooledCount());
+    assertEquals(1L, governor.getTotalSpooledCount());
+    assertEquals(0L, governor.getReservedBytes());
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import junit.framework.TestCase;
+
+public class CredentialCacheTest extends TestCase {
+  private final FakeClock clock = new FakeClock();
+
+  public void testVerify() {
+    CredentialCache cache = new CredentialCache(10, 1000L, clock);
+    assertNull(cache.verify("jdoe", "secret"));
+    cache.put("jdoe", "secret", "John Doe");
+    assertEquals("John Doe", cache.verify("jdoe", "secret"));
+    assertNull(cache.verify("jdoe", "Secret"));
+    assertNull(cache.verify("jroe", "secret"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+  }
+
+  public void testExpiration() {
+    CredentialCache cache = new CredentialCache(10, 1000L, clock);
+    cache.put("jdoe", "secret", "John Doe");
+    clock.set(999L);
+    assertEquals("John Doe", cache.verify("jdoe", "secret"));
+    clock.set(1000L);
+    assertNull(cache.verify("jdoe", "secret"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testCapacity() {
+    CredentialCache cache = new CredentialCache(2, 1000L, clock);
+    cache.put("user1", "secret", "user1");
+    cache.put("user2", "secret", "user2");
+    cache.verify("user1", "secret");
+    cache.put("user3", "secret", "user3");
+    assertEquals(2, cache.size());
+    assertNotNull(cache.verify("user1", "secret"));
+    assertNull(cache.verify("user2", "secret"));
+  }
+
+  public void testInvalidate() {
+    CredentialCache cache = new CredentialCache(10, 1000L, clock);
+    cache.put("jdoe", "secret", "John Doe");
+    cache.put("jroe", "secret", "Jane Roe");
+    cache.invalidate("jdoe");
+    assertNull(cache.verify("jdoe", "secret"));
+    assertEquals("Jane Roe", cache.verify("jroe", "secret"));
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  public void testDisabled() {
+    CredentialCache cache = new CredentialCache(0, 1000L, clock);
+    assertFalse(cache.isEnabled());
+    cache.put("jdoe", "secret", "John Doe");
+    assertNull(cache.verify("jdoe", "secret"));
+    assertEquals(0, cache.size());
+  }
+}
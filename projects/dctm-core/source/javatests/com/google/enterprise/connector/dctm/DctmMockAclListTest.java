@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.dctm;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
 import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmAcl;
@@ -226,6 +228,33 @@ public class DctmMockAclListTest extends TestCase {
         SpiConstants.PROPNAME_ACLDENYUSERS);
   }
 
+  /** The same ACL as testDenyAcl, but selected by the ACL query. */
+  public void testProjectedAcl() throws Exception {
+    insertUsers("user1", "user2", "user3", "user4");
+
+    IAcl aclObj = new ProjectedAcl(new ProjectedAclTest.RowCollection(
+        ImmutableMap.<String, List<String>>builder()
+        .put("r_object_id", ImmutableList.of("4501081f80000100"))
+        .put("object_name", ImmutableList.of("testAcl123"))
+        .put("owner_name", ImmutableList.of(DmInitialize.DM_DOCBASE))
+        .put("r_accessor_name",
+            ImmutableList.of("user1", "user2", "user3", "user4"))
+        .put("r_accessor_permit", ImmutableList.of("3", "3", "6", "2"))
+        .put("r_permit_type", ImmutableList.of("0", "3", "3", "3"))
+        .put("r_is_group", ImmutableList.of("false", "false", "false", "false"))
+        .build()));
+
+    aclList.processAcl(aclObj, aclValues);
+
+    assertAclEquals(ImmutableSet.of(), SpiConstants.PROPNAME_ACLGROUPS);
+    assertAclEquals(ImmutableSet.of(), SpiConstants.PROPNAME_ACLDENYGROUPS);
+
+    // user3 is not in allowed or denied users.
+    assertAclEquals(ImmutableSet.of("user1"), SpiConstants.PROPNAME_ACLUSERS);
+    assertAclEquals(ImmutableSet.of("user2", "user4"),
+        SpiConstants.PROPNAME_ACLDENYUSERS);
+  }
+
   public void testGroupAcl() throws Exception {
     insertGroup("engineering", "john");
     insertGroup("sales");
@@ -421,4 +450,97 @@ public class DctmMockAclListTest extends TestCase {
     testDomainSetup("ajax");
     assertAclEquals(ImmutableSet.of("group1"), SpiConstants.PROPNAME_ACLGROUPS);
   }
+
+  public void testPrincipalCache() throws Exception {
+    insertUsers("user1");
+    insertGroup("group1");
+
+    MockDmAcl aclObj = new MockDmAcl(123, "testAcl123");
+    addAllowUserToAcl(aclObj, "user1");
+    addAllowUserToAcl(aclObj, "user2");
+    addAllowGroupToAcl(aclObj, "group1");
+
+    aclList.processAcl(aclObj, aclValues);
+    assertAclEquals(ImmutableSet.of("user1"), SpiConstants.PROPNAME_ACLUSERS);
+    PrincipalCache cache = qtm.getPrincipalCache();
+    long misses = cache.getMissCount();
+
+    // The missing user is cached as well, so adding it now has no
+    // effect until the cached lookup expires.
+    insertUsers("user2");
+    aclValues.clear();
+    aclList.processAcl(aclObj, aclValues);
+    assertAclEquals(ImmutableSet.of("user1"), SpiConstants.PROPNAME_ACLUSERS);
+    assertAclEquals(ImmutableSet.of("group1"), SpiConstants.PROPNAME_ACLGROUPS);
+    assertEquals(misses, cache.getMissCount());
+    assertTrue(cache.getHitCount() > 0);
+
+    cache.invalidateAll();
+    aclValues.clear();
+    aclList.processAcl(aclObj, aclValues);
+    assertAclEquals(ImmutableSet.of("user1", "user2"),
+        SpiConstants.PROPNAME_ACLUSERS);
+  }
+
+  public void testResolveAccessors() throws Exception {
+    insertUsers("user1");
+    insertLdapUsers("cn=", "dc=ajax,dc=example,dc=com", "user2");
+    insertGroup("group1", "user1");
+
+    MockDmAcl aclObj = new MockDmAcl(123, "testAcl123");
+    addAllowUserToAcl(aclObj, "user1");
+    addAllowUserToAcl(aclObj, "user2");
+    addDenyUserToAcl(aclObj, "user3", IAcl.DF_PERMIT_READ);
+    addAllowGroupToAcl(aclObj, "group1");
+    addAllowGroupToAcl(aclObj, "dm_world");
+
+    aclList.resolveAccessors(ImmutableList.<IAcl>of(aclObj));
+    PrincipalCache cache = qtm.getPrincipalCache();
+    assertTrue(cache.contains(PrincipalCache.Kind.USER, "user1"));
+    assertTrue(cache.contains(PrincipalCache.Kind.USER, "user3"));
+    assertTrue(cache.contains(PrincipalCache.Kind.GROUP, "group1"));
+    assertFalse(cache.contains(PrincipalCache.Kind.GROUP, "dm_world"));
+
+    // The accessors are all resolved from the cache.
+    long misses = cache.getMissCount();
+    aclList.processAcl(aclObj, aclValues);
+    assertEquals(misses, cache.getMissCount());
+    assertAclEquals(ImmutableSet.of("user1", "ajax\\user2"),
+        SpiConstants.PROPNAME_ACLUSERS);
+    assertAclEquals(ImmutableSet.of("group1", "dm_world"),
+        SpiConstants.PROPNAME_ACLGROUPS);
+    assertAclEquals(ImmutableSet.of(), SpiConstants.PROPNAME_ACLDENYUSERS);
+  }
+
+  public void testResolveAccessors_groupNamespaces() throws Exception {
+    insertGroup("local1", "user1");
+    jdbcFixture.executeUpdate(
+        "insert into dm_user(user_name, r_is_group) values('ldap1', TRUE)",
+        "insert into dm_group(group_name, i_all_users_names, group_source) "
+        + "values('ldap1', 'user1', 'LDAP')");
+
+    MockDmAcl aclObj = new MockDmAcl(123, "testAcl123");
+    addAllowGroupToAcl(aclObj, "local1");
+    addAllowGroupToAcl(aclObj, "ldap1");
+
+    aclList.resolveAccessors(ImmutableList.<IAcl>of(aclObj));
+    PrincipalCache cache = qtm.getPrincipalCache();
+    assertEquals(DmInitialize.DM_LOCAL_NAMESPACE,
+        cache.get(PrincipalCache.Kind.GROUP, "local1").getNamespace());
+    assertEquals(DmInitialize.DM_GLOBAL_NAMESPACE,
+        cache.get(PrincipalCache.Kind.GROUP, "ldap1").getNamespace());
+  }
+
+  public void testResolveAccessors_escaping() throws Exception {
+    insertUsers("o''brien");
+
+    MockDmAcl aclObj = new MockDmAcl(123, "testAcl123");
+    addAllowUserToAcl(aclObj, "o'brien");
+
+    aclList.resolveAccessors(ImmutableList.<IAcl>of(aclObj));
+    PrincipalCache.ResolvedPrincipal principal =
+        qtm.getPrincipalCache().get(PrincipalCache.Kind.USER, "o'brien");
+    assertNotNull(principal);
+    assertEquals("o'brien", principal.getLoginName());
+  }
 }
@@ -16,7 +16,11 @@ package com.google.enterprise.connector.dctm;
 
 import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
 import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmSessionManager;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthenticationResponse;
 import com.google.enterprise.connector.spi.Principal;
@@ -106,6 +110,85 @@ public class DctmMockAuthenticationManagerTest extends TestCase {
             DmInitialize.DM_PWD_OK2_DNS_DOMAIN)).isValid());
   }
 
+  public void testCredentialCache() throws RepositoryException {
+    CredentialCache cache = new CredentialCache(10, 60000L);
+    DctmAuthenticationManager manager = new DctmAuthenticationManager(
+        connector, new MockDmClientX(), DmInitialize.DM_DOCBASE);
+    manager.setCredentialCache(cache);
+
+    assertTrue(manager.authenticate(
+        new SimpleAuthenticationIdentity(DmInitialize.DM_LOGIN_OK2,
+            DmInitialize.DM_PWD_OK2)).isValid());
+    assertEquals(1, cache.size());
+    assertTrue(manager.authenticate(
+        new SimpleAuthenticationIdentity(DmInitialize.DM_LOGIN_OK2,
+            DmInitialize.DM_PWD_OK2)).isValid());
+    assertEquals(1, cache.getHitCount());
+
+    // A failed login removes the cached verification.
+    assertFalse(manager.authenticate(
+        new SimpleAuthenticationIdentity(DmInitialize.DM_LOGIN_OK2,
+            DmInitialize.DM_PWD_KO)).isValid());
+    assertEquals(0, cache.size());
+  }
+
+  /** Tests that lookups with the connector's login use the pool. */
+  public void testSessionPool() throws RepositoryException {
+    IClientX clientX = new MockDmClientX();
+    ISessionManager sessionManager =
+        clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DmInitialize.DM_DOCBASE, loginInfo);
+    PooledSessionManager pool =
+        new PooledSessionManager(sessionManager, 0, 1, 0L, 0L);
+    DctmAuthenticationManager manager = new DctmAuthenticationManager(
+        connector, clientX, DmInitialize.DM_DOCBASE);
+    manager.setSessionManager(pool);
+
+    assertTrue(manager.authenticate(
+        new SimpleAuthenticationIdentity(DmInitialize.DM_LOGIN_OK2, null))
+        .isValid());
+    assertTrue(pool.getLeaseCount() > 0);
+    assertEquals(1, pool.getCreatedCount());
+    assertEquals(0, pool.getActiveCount());
+    pool.flushSessions();
+  }
+
+  /**
+   * Tests a cached password verification when the cached groups have
+   * expired. The password is no longer valid in the docbase, so the
+   * groups must not be looked up with it.
+   */
+  public void testCredentialCache_expiredGroups() throws Exception {
+    CredentialCache credentialCache = new CredentialCache(10, 60000L);
+    credentialCache.put(DmInitialize.DM_LOGIN_OK2, "stale", "margaret");
+    FakeClock clock = new FakeClock();
+    GroupCache groupCache = new GroupCache(10, 1000L, clock);
+    DctmAuthenticationManager manager = new DctmAuthenticationManager(
+        connector, new MockDmClientX(), DmInitialize.DM_DOCBASE);
+    manager.setCredentialCache(credentialCache);
+    manager.setGroupCache(groupCache);
+    insertGroup("grp1", "margaret");
+
+    SimpleAuthenticationIdentity identity =
+        new SimpleAuthenticationIdentity(DmInitialize.DM_LOGIN_OK2, "stale");
+    AuthenticationResponse result = manager.authenticate(identity);
+    assertTrue(result.isValid());
+    assertEquals(ImmutableList.of("grp1", "dm_world"),
+        toStrings(result.getGroups()));
+
+    jdbcFixture.executeUpdate(
+        "delete from dm_group where group_name = 'grp1'");
+    insertGroup("grp2", "margaret");
+    clock.advance(1000L);
+    result = manager.authenticate(identity);
+    assertTrue(result.isValid());
+    assertEquals(ImmutableList.of("grp2", "dm_world"),
+        toStrings(result.getGroups()));
+  }
+
   private void insertUser(String name, String login, String source,
       String dn) throws SQLException {
     jdbcFixture.executeUpdate(
@@ -181,11 +264,68 @@ public class DctmMockAuthenticationManagerTest extends TestCase {
     assertEquals(ImmutableList.of("dm_world"), toStrings(groups));
   }
 
+  public void testGroupLookup_cached() throws Exception {
+    groupSetUp();
+
+    AuthenticationResponse result =
+        authentManager.authenticate(new SimpleAuthenticationIdentity(
+            DmInitialize.DM_LOGIN_OK1, null));
+    assertTrue(result.isValid());
+
+    // The cached user name and groups are used after the changes.
+    jdbcFixture.executeUpdate("delete from dm_user",
+        "delete from dm_group where group_name = 'grp1'");
+    result = authentManager.authenticate(new SimpleAuthenticationIdentity(
+        DmInitialize.DM_LOGIN_OK1, null));
+    assertTrue(result.isValid());
+    assertEquals(ImmutableList.of("grp1", "grp2", "grp3", "dm_world"),
+        toStrings(result.getGroups()));
+  }
+
+  public void testGroupLookup_uncached() throws Exception {
+    connector.setGroup_cache_size(0);
+    authentManager = connector.login().getAuthenticationManager();
+    groupSetUp();
+
+    AuthenticationResponse result =
+        authentManager.authenticate(new SimpleAuthenticationIdentity(
+            DmInitialize.DM_LOGIN_OK1, null));
+    assertTrue(result.isValid());
+
+    jdbcFixture.executeUpdate(
+        "delete from dm_group where group_name = 'grp1'");
+    result = authentManager.authenticate(new SimpleAuthenticationIdentity(
+        DmInitialize.DM_LOGIN_OK1, null));
+    assertTrue(result.isValid());
+    assertEquals(ImmutableList.of("grp2", "grp3", "dm_world"),
+        toStrings(result.getGroups()));
+  }
+
+  public void testGroupLookup_namespaces() throws Exception {
+    insertUser("joseph", DmInitialize.DM_LOGIN_OK1, "", "");
+    insertGroup("localgrp", "joseph");
+    jdbcFixture.executeUpdate("insert into dm_group"
+        + "(group_name, i_all_users_names, group_source) "
+        + "values('ldapgrp', 'joseph', 'LDAP')");
+
+    AuthenticationResponse result =
+        authentManager.authenticate(new SimpleAuthenticationIdentity(
+            DmInitialize.DM_LOGIN_OK1, null));
+    assertTrue(result.isValid());
+    for (Object group : result.getGroups()) {
+      Principal principal = (Principal) group;
+      assertEquals(principal.getName(),
+          principal.getName().equals("ldapgrp") ? "global" : "local",
+          principal.getNamespace());
+    }
+  }
+
   /** Tests for a leaked session when a query throws an exception. */
   public void testGroupLookup_exception() throws Exception {
-    // This username is impossible, but it triggers an exception in
-    // the group lookup query, so we can test the exception handling.
-    insertUser("d''oh!", "homer", "", "");
+    // Dropping the table triggers an exception in the group lookup
+    // query, so we can test the exception handling.
+    insertUser("homer", "homer", "", "");
+    jdbcFixture.executeUpdate("drop table dm_group");
 
     try {
       authentManager.authenticate(
@@ -198,6 +338,17 @@ public class DctmMockAuthenticationManagerTest extends TestCase {
     }
   }
 
+  public void testGroupLookup_escaping() throws Exception {
+    insertUser("d''oh!", "homer", "", "");
+    insertGroup("simpsons", "d''oh!");
+
+    AuthenticationResponse result = authentManager.authenticate(
+        new SimpleAuthenticationIdentity("homer", null));
+    assertTrue(result.isValid());
+    assertEquals(ImmutableList.of("simpsons", "dm_world"),
+        toStrings(result.getGroups()));
+  }
+
   private void domainSetUp() throws SQLException {
     insertUser("localuser", "localuser", "", "");
     insertUser("otheruser", "someuser", "", "");
@@ -14,7 +14,13 @@
 
 package com.google.enterprise.connector.dctm;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
@@ -27,6 +33,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class DctmMockAuthorizationManagerTest extends TestCase {
   private DctmAuthorizationManager authorizationManager;
@@ -137,6 +146,100 @@ public class DctmMockAuthorizationManagerTest extends TestCase {
       testAuthorization(expectedResults, DmInitialize.DM_LOGIN_OK1);
   }
 
+  private ThreadPoolExecutor newExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+  }
+
+  private List<String> getDocids(int size) {
+    List<String> docids = new ArrayList<String>();
+    for (int i = 0; i < size; i++) {
+      docids.add("xyzzy" + i);
+    }
+    return docids;
+  }
+
+  public final void testGetChunks_sequential() {
+    List<List<String>> chunks = authorizationManager.getChunks(getDocids(900));
+    assertEquals(3, chunks.size());
+    assertEquals(DctmAuthorizationManager.MAX_CHUNK_SIZE, chunks.get(0).size());
+    assertEquals(100, chunks.get(2).size());
+  }
+
+  public final void testGetChunks_concurrent() {
+    ThreadPoolExecutor executor = newExecutor(4);
+    try {
+      authorizationManager.setQueryExecutor(executor);
+      assertEquals(4, authorizationManager.getChunks(getDocids(900)).size());
+      assertEquals(5, authorizationManager.getChunks(getDocids(2000)).size());
+      List<List<String>> chunks =
+          authorizationManager.getChunks(getDocids(120));
+      assertEquals(3, chunks.size());
+      assertEquals(DctmAuthorizationManager.MIN_CHUNK_SIZE,
+          chunks.get(0).size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public final void testConcurrentQueries() throws RepositoryException {
+    ThreadPoolExecutor executor = newExecutor(2);
+    try {
+      authorizationManager.setQueryExecutor(executor);
+      Map<String, Boolean> expectedResults = new HashMap<String, Boolean>();
+      for (String docid : getDocids(150)) {
+        expectedResults.put(docid, Boolean.FALSE);
+      }
+      expectedResults.put(DmInitialize.DM_ID1, Boolean.TRUE);
+      expectedResults.put(DmInitialize.DM_ID2, Boolean.FALSE);
+      expectedResults.put(DmInitialize.DM_ID5, Boolean.FALSE);
+      testAuthorization(expectedResults, DmInitialize.DM_LOGIN_OK3);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public final void testAuthorizationCache() throws RepositoryException {
+    IClientX clientX = new MockDmClientX();
+    ISessionManager sessionManager =
+        clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DmInitialize.DM_DOCBASE, loginInfo);
+    AuthorizationCache cache = new AuthorizationCache(100, 60000L);
+    authorizationManager = new DctmAuthorizationManager(clientX,
+        sessionManager, DmInitialize.DM_DOCBASE,
+        new UserSessionManagerPool(clientX, sessionManager,
+            DmInitialize.DM_DOCBASE, 0, 0L),
+        cache);
+
+    // A stale cached decision is returned instead of querying the docid.
+    cache.put(DmInitialize.DM_LOGIN_OK3, DmInitialize.DM_ID2, true);
+
+    List<String> docids = ImmutableList.of(DmInitialize.DM_ID5,
+        DmInitialize.DM_ID2, DmInitialize.DM_ID1);
+    for (int i = 0; i < 2; i++) {
+      Collection<AuthorizationResponse> list =
+          authorizationManager.authorizeDocids(docids,
+              new SimpleAuthenticationIdentity(DmInitialize.DM_LOGIN_OK3,
+                  null));
+      List<String> actualDocids = new ArrayList<String>();
+      Map<String, Boolean> actual = new HashMap<String, Boolean>();
+      for (AuthorizationResponse response : list) {
+        actualDocids.add(response.getDocid());
+        actual.put(response.getDocid(), response.isValid());
+      }
+      assertEquals(docids, actualDocids);
+      assertEquals(ImmutableMap.of(DmInitialize.DM_ID5, false,
+              DmInitialize.DM_ID2, true, DmInitialize.DM_ID1, true),
+          actual);
+    }
+    assertEquals(3, cache.size());
+    assertEquals(4, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
   private void testAuthorization(Map<String, Boolean> expectedResults,
       String username) throws RepositoryException {
     Collection<AuthorizationResponse> list =
@@ -38,6 +38,42 @@ public class DctmMockConnectorTest extends TestCase {
     assertEquals(DmInitialize.DM_WEBTOP_SERVER_URL, qtm.getServerUrl());
   }
 
+  public void testGetConnectorName() {
+    DctmConnector connector = new DctmConnector();
+    connector.setLogin(DmInitialize.DM_LOGIN_OK1);
+    connector.setDocbase(DmInitialize.DM_DOCBASE);
+    String name = connector.getConnectorName();
+
+    DctmConnector same = new DctmConnector();
+    same.setLogin(DmInitialize.DM_LOGIN_OK1);
+    same.setDocbase(DmInitialize.DM_DOCBASE);
+    assertEquals(name, same.getConnectorName());
+
+    same.setWhere_clause(Arrays.asList("1=1"));
+    assertFalse(name.equals(same.getConnectorName()));
+
+    assertEquals("connector",
+        new DctmConnector("/work/connectors/dctm/connector")
+        .getConnectorName());
+  }
+
+  public void testLogin_unregistersMetrics() throws RepositoryException {
+    DctmConnector connector = new DctmConnector();
+    connector.setLogin(DmInitialize.DM_LOGIN_OK1);
+    connector.setPassword(DmInitialize.DM_PWD_OK1);
+    connector.setDocbase(DmInitialize.DM_DOCBASE);
+    connector.setClientX(DmInitialize.DM_CLIENTX);
+    connector.setWebtop_display_url(DmInitialize.DM_WEBTOP_SERVER_URL);
+    connector.setIs_public("true");
+    DctmSession first = connector.login();
+    assertNotNull(first.getMetrics().getObjectName());
+
+    DctmSession second = connector.login();
+    assertNull(first.getMetrics().getObjectName());
+    assertNotNull(second.getMetrics().getObjectName());
+    second.getMetrics().unregister();
+  }
+
   public void testSetWhere_clause() {
     DctmConnector connector = new DctmConnector();
     String[] before = { " and 1=1", "  ", "4 = 5  " };
@@ -14,7 +14,13 @@
 
 package com.google.enterprise.connector.dctm;
 
+import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmTime;
+import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ITime;
+import com.google.enterprise.connector.dctm.dfcwrap.IValue;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.Property;
@@ -25,8 +31,15 @@ import com.google.enterprise.connector.spi.TraversalManager;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 public class DctmMockDocumentListTest extends TestCase {
   TraversalManager qtm = null;
@@ -101,4 +114,254 @@ public class DctmMockDocumentListTest extends TestCase {
     assertTrue(checkPoint,
         checkPoint.indexOf("\"lastModified\":[\"" + lastModified + "\"]") != -1);
   }
+
+  public void testCheckpoint_contentStreams() throws RepositoryException {
+    DctmDocumentList documentList =
+        (DctmDocumentList) qtm.startTraversal();
+    final boolean[] closed = { false };
+    documentList.addContentStream(new ByteArrayInputStream(new byte[0]) {
+        @Override
+        public void close() {
+          closed[0] = true;
+        }
+      });
+
+    while (documentList.nextDocument() != null) {
+    }
+    // The connector manager may still be reading the last document.
+    assertFalse(closed[0]);
+
+    documentList.checkpoint();
+    assertTrue(closed[0]);
+  }
+
+  /** Tests that the watchdog does not close a list that is in use. */
+  public void testReclaim_listInUse() throws Exception {
+    FakeClock clock = new FakeClock();
+    final SessionLeaseTracker tracker = new SessionLeaseTracker(1000L, clock);
+    ((DctmTraversalManager) qtm).setSessionLeaseTracker(tracker);
+    DocumentList documentList = qtm.startTraversal();
+    clock.advance(1000L);
+
+    Thread watchdog = new Thread() {
+        @Override
+        public void run() {
+          tracker.reclaimExpired();
+        }
+      };
+    synchronized (documentList) {
+      // Stands in for a call to nextDocument in progress.
+      watchdog.start();
+      watchdog.join(100L);
+      assertTrue(watchdog.isAlive());
+      assertEquals(1, tracker.getOutstandingCount());
+    }
+    watchdog.join();
+    assertEquals(0, tracker.getOutstandingCount());
+
+    try {
+      documentList.nextDocument();
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+  }
+
+  public void testPrefetch() throws RepositoryException {
+    ((DctmTraversalManager) qtm).setPrefetch(3, 2);
+
+    int counter = 0;
+    DocumentList propertyMapList = qtm.startTraversal();
+    Document pm;
+    while ((pm = propertyMapList.nextDocument()) != null) {
+      Property prop = pm.findProperty(SpiConstants.PROPNAME_TITLE);
+      assertNotNull(prop);
+      counter++;
+    }
+    assertEquals(DmInitialize.DM_RETURN_TOP_UNBOUNDED, counter);
+
+    String checkPoint = propertyMapList.checkpoint();
+    assertTrue(checkPoint,
+        checkPoint.indexOf("\"uuid\":[\"doc26\"]") != -1);
+  }
+
+  public void testPrefetchPartialBatch() throws RepositoryException {
+    ((DctmTraversalManager) qtm).setPrefetch(5, 2);
+
+    DocumentList propertyMapList = qtm.startTraversal();
+    Document pm = propertyMapList.nextDocument();
+    assertNotNull(pm);
+    assertEquals("users",
+        pm.findProperty(SpiConstants.PROPNAME_DOCID).nextValue().toString());
+
+    // Only the returned document is checkpointed, not the ones read ahead.
+    String checkPoint = propertyMapList.checkpoint();
+    assertTrue(checkPoint,
+        checkPoint.indexOf("\"uuid\":[\"users\"]") != -1);
+  }
+
+  /**
+   * A collection of delete events. Each row holds the r_object_id,
+   * chronicle_id, audited_obj_id and time_stamp_utc in milliseconds.
+   */
+  private static class DeleteEventCollection implements ICollection {
+    private final Iterator<String[]> rows;
+    private String[] row;
+    private boolean closed = false;
+
+    DeleteEventCollection(List<String[]> rows) {
+      this.rows = rows.iterator();
+    }
+
+    @Override
+    public boolean next() {
+      row = rows.hasNext() ? rows.next() : null;
+      return row != null;
+    }
+
+    @Override
+    public String getString(String colName) {
+      if (colName.equals("r_object_id")) {
+        return row[0];
+      } else if (colName.equals("chronicle_id")) {
+        return row[1];
+      } else if (colName.equals("audited_obj_id")) {
+        return row[2];
+      } else if (colName.equals("time_stamp_utc_str")) {
+        return row[3];
+      } else {
+        throw new IllegalArgumentException(colName);
+      }
+    }
+
+    @Override
+    public ITime getTime(String colName) {
+      return new MockDmTime(new Date(Long.parseLong(row[3])));
+    }
+
+    @Override public void close() { closed = true; }
+    @Override public int getState() {
+      return closed ? DF_CLOSED_STATE : DF_READY_STATE;
+    }
+    @Override public boolean hasNext() { return rows.hasNext(); }
+    @Override public ISession getSession() { return null; }
+    @Override public IValue getValue(String attrName) {
+      throw new UnsupportedOperationException();
+    }
+    @Override public int getValueCount(String colName) {
+      throw new UnsupportedOperationException();
+    }
+    @Override public IValue getRepeatingValue(String colName, int index) {
+      throw new UnsupportedOperationException();
+    }
+    @Override public String getAllRepeatingStrings(String colName,
+        String separator) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static DctmDocumentList.CurrentVersion newVersion(String objectId,
+      long modifyDate) {
+    DctmDocumentList.CurrentVersion version =
+        new DctmDocumentList.CurrentVersion();
+    version.objectId = objectId;
+    version.modifyDate = new MockDmTime(new Date(modifyDate));
+    return version;
+  }
+
+  /**
+   * Creates a document list over the given delete events, with the
+   * given current versions. The chronicle IDs of each versions lookup
+   * are added to the lookups.
+   */
+  private DctmDocumentList newDeleteList(List<String[]> events,
+      final Map<String, DctmDocumentList.CurrentVersion> versions,
+      final List<List<String>> lookups, Checkpoint checkpoint)
+      throws RepositoryException {
+    DctmTraversalManager tm = (DctmTraversalManager) qtm;
+    ISession session =
+        tm.getSessionManager().getSession(DmInitialize.DM_DOCBASE);
+    return new DctmDocumentList(tm, session, null,
+        new DeleteEventCollection(events), checkpoint) {
+      @Override
+      Map<String, CurrentVersion> getCurrentVersions(
+          Collection<String> chronicleIds) {
+        lookups.add(new ArrayList<String>(chronicleIds));
+        Map<String, CurrentVersion> found =
+            new HashMap<String, CurrentVersion>();
+        for (String chronicleId : chronicleIds) {
+          if (versions.containsKey(chronicleId)) {
+            found.put(chronicleId, versions.get(chronicleId));
+          }
+        }
+        return found;
+      }
+    };
+  }
+
+  private static String getValue(Document document, String name)
+      throws RepositoryException {
+    return document.findProperty(name).nextValue().toString();
+  }
+
+  public void testDeleteDecisions() throws RepositoryException {
+    List<String[]> events = ImmutableList.of(
+        new String[] { "5f01", "0901", "0911", "2000" },
+        new String[] { "5f02", "0902", "0912", "2000" },
+        new String[] { "5f03", "0903", "0913", "2000" },
+        new String[] { "5f04", "0903", "0923", "3000" });
+    Map<String, DctmDocumentList.CurrentVersion> versions =
+        new HashMap<String, DctmDocumentList.CurrentVersion>();
+    // The latest version is older than the delete, so it is re-fed.
+    versions.put("0901", newVersion("users", 1000L));
+    // A newer version remains, so the delete of an old version is
+    // skipped.
+    versions.put("0902", newVersion("doc2", 5000L));
+    // No version of 0903 remains, so it is deleted, once.
+    List<List<String>> lookups = new ArrayList<List<String>>();
+    Checkpoint checkpoint = new Checkpoint(ImmutableList.of(""));
+    DocumentList list = newDeleteList(events, versions, lookups, checkpoint);
+
+    Document document = list.nextDocument();
+    assertEquals(SpiConstants.ActionType.ADD.toString(),
+        getValue(document, SpiConstants.PROPNAME_ACTION));
+    assertEquals("0901", getValue(document, SpiConstants.PROPNAME_DOCID));
+    assertEquals("5f01", checkpoint.getDeleteId());
+
+    document = list.nextDocument();
+    assertEquals(SpiConstants.ActionType.DELETE.toString(),
+        getValue(document, SpiConstants.PROPNAME_ACTION));
+    assertEquals("0903", getValue(document, SpiConstants.PROPNAME_DOCID));
+    assertEquals("5f03", checkpoint.getDeleteId());
+
+    assertNull(list.nextDocument());
+    assertEquals("5f04", checkpoint.getDeleteId());
+
+    // The current versions of the whole batch are looked up at once.
+    assertEquals(ImmutableList.of(ImmutableList.of("0901", "0902", "0903")),
+        lookups);
+  }
+
+  public void testDeleteBatches() throws RepositoryException {
+    List<String[]> events = new ArrayList<String[]>();
+    for (int i = 0; i < 401; i++) {
+      String id = String.valueOf(i);
+      events.add(new String[] { "5f" + id, "09" + id, "0a" + id, "2000" });
+    }
+    List<List<String>> lookups = new ArrayList<List<String>>();
+    DocumentList list = newDeleteList(events,
+        new HashMap<String, DctmDocumentList.CurrentVersion>(), lookups,
+        new Checkpoint(ImmutableList.of("")));
+
+    int counter = 0;
+    Document document;
+    while ((document = list.nextDocument()) != null) {
+      assertEquals(SpiConstants.ActionType.DELETE.toString(),
+          getValue(document, SpiConstants.PROPNAME_ACTION));
+      counter++;
+    }
+    assertEquals(401, counter);
+    assertEquals(2, lookups.size());
+    assertEquals(400, lookups.get(0).size());
+    assertEquals(ImmutableList.of("09400"), lookups.get(1));
+  }
 }
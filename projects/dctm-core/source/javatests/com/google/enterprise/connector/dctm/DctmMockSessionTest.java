@@ -17,17 +17,26 @@ package com.google.enterprise.connector.dctm;
 import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
+import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
 
 import junit.framework.TestCase;
 
+import java.util.concurrent.TimeUnit;
+
 public class DctmMockSessionTest extends TestCase {
   DctmSession dctmSession = null;
 
+  private final JdbcFixture jdbcFixture = new JdbcFixture();
+
   @Override
   protected void setUp() throws Exception {
     super.setUp();
 
+    dctmSession = newConnector().login();
+  }
+
+  private DctmConnector newConnector() throws RepositoryException {
     DctmConnector connector = new DctmConnector();
     connector.setLogin(DmInitialize.DM_LOGIN_OK1);
     connector.setPassword(DmInitialize.DM_PWD_OK1);
@@ -35,7 +44,7 @@ public class DctmMockSessionTest extends TestCase {
     connector.setClientX(DmInitialize.DM_CLIENTX);
     connector.setWebtop_display_url(DmInitialize.DM_WEBTOP_SERVER_URL);
     connector.setIs_public("false");
-    dctmSession = connector.login();
+    return connector;
   }
 
   public void testGetQueryTraversalManager() throws RepositoryException {
@@ -56,4 +65,50 @@ public class DctmMockSessionTest extends TestCase {
     AuthorizationManager DctmAz = dctmSession.getAuthorizationManager();
     assertNotNull(DctmAz);
   }
+
+  public void testIsReady() throws InterruptedException {
+    assertTrue(dctmSession.isReady());
+    assertTrue(dctmSession.awaitReady(0L, TimeUnit.MILLISECONDS));
+  }
+
+  public void testAsyncStartup() throws Exception {
+    jdbcFixture.setUp();
+    try {
+      jdbcFixture.executeUpdate("insert into dm_group"
+          + "(group_name, i_all_users_names, group_source) "
+          + "values('ldapgroup', 'user1', 'LDAP')",
+          "insert into dm_group(group_name, i_all_users_names) "
+          + "values('localgroup', 'user1')");
+
+      DctmConnector connector = newConnector();
+      connector.setGoogleLocalNamespace(DmInitialize.DM_LOCAL_NAMESPACE);
+      connector.setGoogleGlobalNamespace(DmInitialize.DM_GLOBAL_NAMESPACE);
+      connector.setAsync_startup(true);
+      connector.setStartup_stagger(0L);
+      DctmSession session = connector.login();
+      assertTrue(session.awaitReady(10L, TimeUnit.SECONDS));
+      PrincipalCache cache =
+          session.getTraversalManager().getPrincipalCache();
+      assertEquals(DmInitialize.DM_GLOBAL_NAMESPACE,
+          cache.get(PrincipalCache.Kind.GROUP, "ldapgroup").getNamespace());
+      assertEquals(DmInitialize.DM_LOCAL_NAMESPACE,
+          cache.get(PrincipalCache.Kind.GROUP, "localgroup").getNamespace());
+    } finally {
+      jdbcFixture.tearDown();
+    }
+  }
+
+  public void testAsyncStartup_traversalWaits() throws Exception {
+    DctmConnector connector = newConnector();
+    connector.setIncluded_object_type(DmInitialize.DM_INCLUDED_OBJECT_TYPE);
+    connector.setIncluded_meta(DmInitialize.DM_INCLUDED_META);
+    connector.setAsync_startup(true);
+    connector.setStartup_stagger(1L);
+    DctmSession session = connector.login();
+    DocumentList documents = session.getTraversalManager().startTraversal();
+    assertTrue(session.isReady());
+    if (documents != null) {
+      documents.checkpoint();
+    }
+  }
 }
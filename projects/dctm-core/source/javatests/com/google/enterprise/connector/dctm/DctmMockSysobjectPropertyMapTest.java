@@ -115,6 +115,13 @@ public class DctmMockSysobjectPropertyMapTest extends TestCase {
     }
   }
 
+  public void testGetPropertyNames_shared() throws RepositoryException {
+    DctmSysobjectDocument other = new DctmSysobjectDocument(traversalManager,
+        session, DmInitialize.DM_ID1, null, lastModifDate, ActionType.ADD,
+        null);
+    assertSame(document.getPropertyNames(), other.getPropertyNames());
+  }
+
   public void testFindProperty_docid() throws RepositoryException {
     Property property = document.findProperty(SpiConstants.PROPNAME_DOCID);
     assertNotNull(property);
@@ -14,7 +14,11 @@
 
 package com.google.enterprise.connector.dctm;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmSession;
+import com.google.enterprise.connector.dctm.dfcwrap.IQuery;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.DocumentList;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -25,6 +29,8 @@ import com.google.enterprise.connector.spi.TraversalManager;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 public class DctmMockTraversalManagerTest extends TestCase {
@@ -233,4 +239,227 @@ public class DctmMockTraversalManagerTest extends TestCase {
     assertNotNull(documentList.checkpoint()); // It's not MockDocumentList.
     assertEquals(1, mtm.count); // Would have been 2 without the timeout.
   }
+
+  /**
+   * Runs the queries of each where clause or partition concurrently,
+   * returning a FakeDocumentList with the given document, or failing.
+   */
+  private class ConcurrentTraversalManager extends DctmTraversalManager {
+    final List<FakeDocumentList> lists =
+        Collections.synchronizedList(new ArrayList<FakeDocumentList>());
+
+    ConcurrentTraversalManager() throws RepositoryException {
+      super(connector, null);
+      setParallelWhereClauses(true);
+    }
+
+    @Override
+    public DocumentList execQuery(Checkpoint checkpoint)
+        throws RepositoryException {
+      String id = getId(checkpoint);
+      if (id == null) {
+        return null;
+      }
+      FakeDocumentList list = new FakeDocumentList(checkpoint, id);
+      lists.add(list);
+      return list;
+    }
+
+    /** Gets the document to return, or null for no documents. */
+    String getId(Checkpoint checkpoint) throws RepositoryException {
+      return "id" + checkpoint.getInsertIndex();
+    }
+  }
+
+  public void testGetDocumentList_parallel() throws RepositoryException {
+    ConcurrentTraversalManager tm = new ConcurrentTraversalManager();
+    Checkpoint checkpoint = new Checkpoint(connector.getWhereClause());
+    checkpoint.advance();
+
+    DocumentList documentList = tm.getDocumentList(checkpoint);
+    HashSet<String> ids = new HashSet<String>();
+    ids.add(((FakeDocumentList.FakeDocument) documentList.nextDocument()).id);
+    ids.add(((FakeDocumentList.FakeDocument) documentList.nextDocument()).id);
+    assertNull(documentList.nextDocument());
+    assertEquals(ImmutableSet.of("id0", "id1"), ids);
+
+    documentList.checkpoint();
+    assertEquals(2, tm.lists.size());
+    for (FakeDocumentList list : tm.lists) {
+      assertTrue(list.closed);
+    }
+    assertEquals("id0", checkpoint.getInsertId());
+  }
+
+  public void testGetDocumentList_parallelFailure()
+      throws RepositoryException {
+    ConcurrentTraversalManager tm = new ConcurrentTraversalManager() {
+        @Override
+        String getId(Checkpoint checkpoint) throws RepositoryException {
+          if (checkpoint.getInsertIndex() == 1) {
+            throw new RepositoryException("query failed");
+          }
+          return super.getId(checkpoint);
+        }
+      };
+    Checkpoint checkpoint = new Checkpoint(connector.getWhereClause());
+    checkpoint.advance();
+
+    try {
+      tm.getDocumentList(checkpoint);
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+    // The list of the successful query was closed.
+    assertEquals(1, tm.lists.size());
+    assertTrue(tm.lists.get(0).closed);
+    assertNull(checkpoint.getInsertId());
+  }
+
+  public void testGetDocumentList_partitioned() throws RepositoryException {
+    ConcurrentTraversalManager tm = new ConcurrentTraversalManager() {
+        @Override
+        String getId(Checkpoint checkpoint) {
+          // The middle partition is empty.
+          return (checkpoint.getPartition() == 1)
+              ? null : "p" + checkpoint.getPartition();
+        }
+      };
+    Checkpoint checkpoint = new Checkpoint(connector.getWhereClause());
+    checkpoint.advance();
+    checkpoint.startPartitions(
+        ImmutableList.of("2007-01-01 00:00:00", "2008-01-01 00:00:00"));
+
+    DocumentList documentList = tm.getDocumentList(checkpoint);
+    HashSet<String> ids = new HashSet<String>();
+    ids.add(((FakeDocumentList.FakeDocument) documentList.nextDocument()).id);
+    ids.add(((FakeDocumentList.FakeDocument) documentList.nextDocument()).id);
+    assertNull(documentList.nextDocument());
+    assertEquals(ImmutableSet.of("p0", "p2"), ids);
+
+    documentList.checkpoint();
+    for (FakeDocumentList list : tm.lists) {
+      assertTrue(list.closed);
+    }
+    assertFalse(checkpoint.isPartitionDone(0));
+    assertTrue(checkpoint.isPartitionDone(1));
+    assertEquals("p0", checkpoint.copyForPartition(0, true).getInsertId());
+    assertEquals("p2", checkpoint.copyForPartition(2, true).getInsertId());
+  }
+
+  /** Captures the DQL of the most recently built query. */
+  private class QueryCapturingTraversalManager extends DctmTraversalManager {
+    String dql;
+
+    QueryCapturingTraversalManager() throws RepositoryException {
+      super(connector, null);
+    }
+
+    @Override
+    protected IQuery makeQuery(String queryStr) {
+      dql = queryStr;
+      return super.makeQuery(queryStr);
+    }
+  }
+
+  public void testBuildAddQuery() throws RepositoryException {
+    QueryCapturingTraversalManager tm = new QueryCapturingTraversalManager();
+    tm.loadProjectedAttributes(new MockDmSession());
+    tm.buildAddQuery(new Checkpoint(connector.getWhereClause()));
+    assertTrue(tm.dql, tm.dql.startsWith("select i_chronicle_id, "
+        + "r_object_id, r_modify_date, DATETOSTRING(r_modify_date, "
+        + "'yyyy-mm-dd hh:mi:ss') as r_modify_date_str, i_folder_id "
+        + "from "));
+  }
+
+  public void testBuildAddQuery_projectMetadata() throws RepositoryException {
+    connector.setIncluded_meta(
+        "dm_sysobject_attr,r_object_type,r_modify_date");
+    connector.setExcluded_meta(new HashSet<String>());
+    connector.setProject_metadata(true);
+    QueryCapturingTraversalManager tm = new QueryCapturingTraversalManager();
+    tm.loadProjectedAttributes(new MockDmSession());
+    tm.buildAddQuery(new Checkpoint(connector.getWhereClause()));
+    assertTrue(tm.dql, tm.dql.startsWith("select i_chronicle_id, "
+        + "r_object_id, r_modify_date, DATETOSTRING(r_modify_date, "
+        + "'yyyy-mm-dd hh:mi:ss') as r_modify_date_str, r_object_type, "
+        + "dm_sysobject_attr, i_folder_id from "));
+
+    // The versions query is not affected.
+    String versions = tm.buildVersionsQueryString(
+        new Checkpoint(connector.getWhereClause()),
+        Collections.singleton("0900000180001234"));
+    assertTrue(versions, versions.indexOf("dm_sysobject_attr") == -1);
+  }
+
+  public void testBuildAddQuery_aclIndex() throws RepositoryException {
+    QueryCapturingTraversalManager tm = new QueryCapturingTraversalManager();
+    tm.setAclIndex(new AclIndex(10, 1000L));
+    tm.loadProjectedAttributes(new MockDmSession());
+    tm.buildAddQuery(new Checkpoint(connector.getWhereClause()));
+    assertTrue(tm.dql, tm.dql.startsWith("select i_chronicle_id, "
+        + "r_object_id, r_modify_date, DATETOSTRING(r_modify_date, "
+        + "'yyyy-mm-dd hh:mi:ss') as r_modify_date_str, i_folder_id, "
+        + "owner_name, acl_domain, acl_name from "));
+  }
+
+  public void testBuildAclIndexQueries() throws RepositoryException {
+    DctmTraversalManager tm = (DctmTraversalManager) qtm;
+    List<String> queries = tm.buildAclIndexQueries();
+    // One query for each where clause.
+    assertEquals(2, queries.size());
+    for (String query : queries) {
+      assertTrue(query, query.startsWith("select i_chronicle_id, "
+          + "owner_name, acl_domain, acl_name from "));
+      assertFalse(query, query.contains("r_modify_date"));
+    }
+    assertTrue(queries.get(0), queries.get(0).endsWith(" and (first)"));
+    assertTrue(queries.get(1), queries.get(1).endsWith(" and (second)"));
+  }
+
+  public void testBuildAddQuery_partition() throws RepositoryException {
+    QueryCapturingTraversalManager tm = new QueryCapturingTraversalManager();
+    tm.loadProjectedAttributes(new MockDmSession());
+    Checkpoint checkpoint = new Checkpoint(connector.getWhereClause());
+    checkpoint.advance();
+    checkpoint.startPartitions(
+        ImmutableList.of("2007-01-01 00:00:00", "2008-01-01 00:00:00"));
+
+    tm.buildAddQuery(checkpoint.copyForPartition(1, false));
+    assertTrue(tm.dql, tm.dql.contains("r_modify_date = "
+        + "date('2007-01-01 00:00:00','yyyy-mm-dd hh:mi:ss') and "
+        + "r_object_id > '0000000000000000'"));
+    assertTrue(tm.dql, tm.dql.contains(" and r_modify_date < "
+        + "date('2008-01-01 00:00:00','yyyy-mm-dd hh:mi:ss')"));
+
+    tm.buildAddQuery(checkpoint.copyForPartition(2, false));
+    assertTrue(tm.dql, tm.dql.contains("r_modify_date = "
+        + "date('2008-01-01 00:00:00','yyyy-mm-dd hh:mi:ss')"));
+    assertFalse(tm.dql, tm.dql.contains("r_modify_date <"));
+  }
+
+  public void testBuildAclQuery() throws RepositoryException {
+    QueryCapturingTraversalManager tm = new QueryCapturingTraversalManager();
+    tm.buildACLQuery(new Checkpoint(connector.getWhereClause()));
+    assertTrue(tm.dql, tm.dql.startsWith("select r_object_id from dm_acl"));
+  }
+
+  public void testBuildAclQuery_projectAcls() throws RepositoryException {
+    connector.setProject_acls(true);
+    QueryCapturingTraversalManager tm = new QueryCapturingTraversalManager();
+    tm.buildACLQuery(new Checkpoint(connector.getWhereClause()));
+    assertTrue(tm.dql, tm.dql.startsWith("select r_object_id, object_name, "
+        + "owner_name, r_accessor_name, r_accessor_permit, r_permit_type, "
+        + "r_is_group from dm_acl"));
+  }
+
+  public void testBuildVersionsQueryString() throws RepositoryException {
+    DctmTraversalManager tm = (DctmTraversalManager) qtm;
+    String versions = tm.buildVersionsQueryString(
+        new Checkpoint(connector.getWhereClause()),
+        ImmutableList.of("0900000180001234", "0900000180005678"));
+    assertTrue(versions, versions.endsWith(
+        " and i_chronicle_id in ('0900000180001234','0900000180005678')"
+        + " order by r_modify_date,r_object_id desc"));
+  }
 }
@@ -0,0 +1,130 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExpiringCacheTest extends TestCase {
+  private final FakeClock clock = new FakeClock();
+
+  /** Values evicted from the cache under test. */
+  private final List<String> evicted = new ArrayList<String>();
+
+  private ExpiringCache<String, String> newCache(int capacity,
+      long ttlMillis) {
+    return new ExpiringCache<String, String>(capacity, ttlMillis, clock) {
+        @Override
+        protected void evicted(String value) {
+          evicted.add(value);
+        }
+      };
+  }
+
+  public void testGetAndPut() {
+    ExpiringCache<String, String> cache = newCache(10, 1000L);
+    assertNull(cache.get("key1"));
+    cache.put("key1", "value1");
+    assertEquals("value1", cache.get("key1"));
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testPeek() {
+    ExpiringCache<String, String> cache = newCache(10, 1000L);
+    assertNull(cache.peek("key1"));
+    cache.put("key1", "value1");
+    assertEquals("value1", cache.peek("key1"));
+    assertTrue(cache.contains("key1"));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+  }
+
+  public void testExpiration() {
+    ExpiringCache<String, String> cache = newCache(10, 1000L);
+    cache.put("key1", "value1");
+    clock.set(999L);
+    assertEquals("value1", cache.get("key1"));
+    clock.set(1000L);
+    assertFalse(cache.contains("key1"));
+    assertNull(cache.get("key1"));
+    assertEquals(0, cache.size());
+    assertEquals(ImmutableList.of("value1"), evicted);
+  }
+
+  public void testSweep() {
+    ExpiringCache<String, String> cache = newCache(10, 1000L);
+    cache.put("key1", "value1");
+    clock.set(500L);
+    cache.put("key2", "value2");
+    clock.set(1000L);
+    assertNull(cache.get("key3"));
+    assertEquals(1, cache.size());
+    assertEquals(ImmutableList.of("value1"), evicted);
+  }
+
+  public void testReplace() {
+    ExpiringCache<String, String> cache = newCache(10, 1000L);
+    cache.put("key1", "value1");
+    cache.put("key1", "value2");
+    assertEquals(ImmutableList.of("value1"), evicted);
+    assertEquals("value2", cache.get("key1"));
+
+    // Putting the same value again does not evict it.
+    cache.put("key1", "value2");
+    assertEquals(ImmutableList.of("value1"), evicted);
+  }
+
+  public void testCapacity() {
+    ExpiringCache<String, String> cache = newCache(2, 1000L);
+    cache.put("key1", "value1");
+    cache.put("key2", "value2");
+    cache.get("key1");
+    cache.put("key3", "value3");
+    assertEquals(2, cache.size());
+    assertEquals(ImmutableList.of("value2"), evicted);
+    assertNotNull(cache.get("key1"));
+    assertNull(cache.get("key2"));
+  }
+
+  public void testDisabled() {
+    ExpiringCache<String, String> cache = newCache(10, 0L);
+    assertFalse(cache.isEnabled());
+    cache.put("key1", "value1");
+    assertNull(cache.get("key1"));
+    assertEquals(0, cache.getMissCount());
+
+    cache = newCache(0, 1000L);
+    assertFalse(cache.isEnabled());
+    cache.put("key1", "value1");
+    assertEquals(0, cache.size());
+  }
+
+  public void testRemove() {
+    ExpiringCache<String, String> cache = newCache(10, 1000L);
+    cache.put("key1", "value1");
+    cache.put("key2", "value2");
+    assertEquals("value1", cache.remove("key1"));
+    assertNull(cache.remove("key1"));
+    assertEquals(ImmutableList.of("value2"), cache.removeAll());
+    assertEquals(0, cache.size());
+    assertTrue(evicted.isEmpty());
+  }
+}
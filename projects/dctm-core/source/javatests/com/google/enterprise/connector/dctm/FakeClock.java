@@ -0,0 +1,35 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+/** A clock for tests, which only moves when it is set. */
+class FakeClock implements Clock {
+  private long now = 0L;
+
+  @Override
+  public synchronized long currentTimeMillis() {
+    return now;
+  }
+
+  /** Sets the current time, in milliseconds. */
+  synchronized void set(long now) {
+    this.now = now;
+  }
+
+  /** Moves the current time forward, in milliseconds. */
+  synchronized void advance(long millis) {
+    this.now += millis;
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A document list for tests that returns documents with the given
+ * IDs, advancing the insert checkpoint of its copy of the checkpoint
+ * the way DctmDocumentList does.
+ */
+class FakeDocumentList implements DocumentList {
+  static final String DATE = "2013-01-02 03:04:05";
+
+  /** A document that only knows its ID. */
+  static class FakeDocument implements Document {
+    final String id;
+
+    FakeDocument(String id) {
+      this.id = id;
+    }
+
+    @Override
+    public Property findProperty(String name) {
+      return null;
+    }
+
+    @Override
+    public Set<String> getPropertyNames() {
+      return Collections.emptySet();
+    }
+  }
+
+  private final Checkpoint checkpoint;
+  private final Iterator<String> ids;
+  private RepositoryException error = null;
+  boolean closed = false;
+
+  FakeDocumentList(Checkpoint checkpoint, String... ids) {
+    this.checkpoint = checkpoint;
+    this.ids = Arrays.asList(ids).iterator();
+  }
+
+  /** Throws the given exception once the IDs run out. */
+  FakeDocumentList failWith(RepositoryException error) {
+    this.error = error;
+    return this;
+  }
+
+  @Override
+  public Document nextDocument() throws RepositoryException {
+    if (!ids.hasNext()) {
+      if (error != null) {
+        throw error;
+      }
+      return null;
+    }
+    String id = ids.next();
+    checkpoint.setInsertCheckpoint(DATE, id);
+    return new FakeDocument(id);
+  }
+
+  /** Closes the list, like DctmDocumentList. */
+  @Override
+  public String checkpoint() {
+    closed = true;
+    return null;
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmSession;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class FolderPathCacheTest extends TestCase {
+  private static final Set<String> NO_IDS = Collections.emptySet();
+
+  private final JdbcFixture jdbcFixture = new JdbcFixture();
+  private final FakeClock clock = new FakeClock();
+
+  private IClientX clientX;
+  private ISession session;
+
+  @Override
+  protected void setUp() throws SQLException {
+    jdbcFixture.setUp();
+    jdbcFixture.executeUpdate(
+        "insert into dm_folder values('0b01', '/Cabinet')",
+        "insert into dm_folder values('0b02', '/Cabinet/One')",
+        "insert into dm_folder values('0b02', '/Linked/One')",
+        "insert into dm_folder values('0b03', '/Cabinet/Two')");
+    clientX = new MockDmClientX();
+    session = new MockDmSession();
+  }
+
+  @Override
+  protected void tearDown() throws SQLException {
+    jdbcFixture.tearDown();
+  }
+
+  public void testGetFolderPaths() throws RepositoryException {
+    FolderPathCache cache = new FolderPathCache(10, 1000L, clock);
+    List<String> paths = cache.getFolderPaths(clientX, session,
+        ImmutableList.of("0b02", "0b01"), NO_IDS);
+    assertEquals(ImmutableSet.of("/Cabinet/One", "/Linked/One", "/Cabinet"),
+        ImmutableSet.copyOf(paths));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  public void testCachedFolderPaths() throws RepositoryException, SQLException {
+    FolderPathCache cache = new FolderPathCache(10, 1000L, clock);
+    assertNull(cache.getCachedFolderPaths(ImmutableList.of("0b01")));
+    cache.getFolderPaths(clientX, session, ImmutableList.of("0b01"),
+        ImmutableSet.of("0b03"));
+
+    // The cached paths are used without querying the database again.
+    jdbcFixture.executeUpdate("delete from dm_folder");
+    assertEquals(ImmutableList.of("/Cabinet"),
+        cache.getCachedFolderPaths(ImmutableList.of("0b01")));
+    assertEquals(ImmutableList.of("/Cabinet/Two"),
+        cache.getCachedFolderPaths(ImmutableList.of("0b03")));
+    assertEquals(2, cache.getHitCount());
+  }
+
+  public void testMissingFolder() throws RepositoryException, SQLException {
+    FolderPathCache cache = new FolderPathCache(10, 1000L, clock);
+    List<String> paths = cache.getFolderPaths(clientX, session,
+        ImmutableList.of("0b99"), NO_IDS);
+    assertTrue(paths.toString(), paths.isEmpty());
+    assertEquals(Collections.emptyList(),
+        cache.getCachedFolderPaths(ImmutableList.of("0b99")));
+  }
+
+  public void testEviction() throws RepositoryException {
+    FolderPathCache cache = new FolderPathCache(1, 1000L, clock);
+    cache.getFolderPaths(clientX, session, ImmutableList.of("0b01"), NO_IDS);
+    cache.getFolderPaths(clientX, session, ImmutableList.of("0b03"), NO_IDS);
+    assertNull(cache.getCachedFolderPaths(ImmutableList.of("0b01")));
+    assertNotNull(cache.getCachedFolderPaths(ImmutableList.of("0b03")));
+  }
+
+  public void testExpiration() throws RepositoryException, SQLException {
+    FolderPathCache cache = new FolderPathCache(10, 1000L, clock);
+    cache.getFolderPaths(clientX, session, ImmutableList.of("0b01"), NO_IDS);
+    jdbcFixture.executeUpdate(
+        "update dm_folder set r_folder_path = '/Renamed' "
+        + "where r_object_id = '0b01'");
+    clock.set(999L);
+    assertEquals(ImmutableList.of("/Cabinet"),
+        cache.getFolderPaths(clientX, session, ImmutableList.of("0b01"),
+            NO_IDS));
+
+    clock.set(1000L);
+    assertNull(cache.getCachedFolderPaths(ImmutableList.of("0b01")));
+    assertEquals(ImmutableList.of("/Renamed"),
+        cache.getFolderPaths(clientX, session, ImmutableList.of("0b01"),
+            NO_IDS));
+  }
+
+  public void testDisabled() throws RepositoryException {
+    FolderPathCache cache = new FolderPathCache(10, 0L, clock);
+    assertEquals(ImmutableList.of("/Cabinet"),
+        cache.getFolderPaths(clientX, session, ImmutableList.of("0b01"),
+            NO_IDS));
+    assertNull(cache.getCachedFolderPaths(ImmutableList.of("0b01")));
+  }
+}
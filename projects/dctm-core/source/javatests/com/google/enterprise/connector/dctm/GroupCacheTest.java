@@ -0,0 +1,95 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.spi.Principal;
+import com.google.enterprise.connector.spi.SpiConstants.CaseSensitivityType;
+import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
+
+import junit.framework.TestCase;
+
+import java.util.Collection;
+
+public class GroupCacheTest extends TestCase {
+  private final FakeClock clock = new FakeClock();
+
+  private final Collection<Principal> groups =
+      ImmutableList.of(new Principal(PrincipalType.UNKNOWN, "local",
+          "group1", CaseSensitivityType.EVERYTHING_CASE_SENSITIVE));
+
+  public void testGroups() {
+    GroupCache cache = new GroupCache(10, 1000L, clock);
+    assertNull(cache.getGroups("user1"));
+    cache.putGroups("user1", groups);
+    assertSame(groups, cache.getGroups("user1"));
+    assertNull(cache.getGroups("user2"));
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  public void testUsers() {
+    GroupCache cache = new GroupCache(10, 1000L, clock);
+    cache.putUser("login1", null, new GroupCache.ResolvedUser("user1"));
+    cache.putUser("login1", "ajax", new GroupCache.ResolvedUser(null));
+    assertEquals("user1", cache.getUser("login1", null).getUserName());
+    assertNull(cache.getUser("login1", "ajax").getUserName());
+    assertNull(cache.getUser("login1", "acme"));
+  }
+
+  public void testExpiration() {
+    GroupCache cache = new GroupCache(10, 1000L, clock);
+    cache.putGroups("user1", groups);
+    cache.putUser("login1", null, new GroupCache.ResolvedUser("user1"));
+    clock.set(999L);
+    assertNotNull(cache.getGroups("user1"));
+    assertNotNull(cache.getUser("login1", null));
+    clock.set(1000L);
+    assertNull(cache.getGroups("user1"));
+    assertNull(cache.getUser("login1", null));
+    assertEquals(0, cache.size());
+  }
+
+  public void testCapacity() {
+    GroupCache cache = new GroupCache(2, 1000L, clock);
+    cache.putGroups("user1", groups);
+    cache.putGroups("user2", groups);
+    cache.getGroups("user1");
+    cache.putGroups("user3", groups);
+    assertEquals(2, cache.size());
+    assertNotNull(cache.getGroups("user1"));
+    assertNull(cache.getGroups("user2"));
+  }
+
+  public void testDisabled() {
+    GroupCache cache = new GroupCache(10, 0L, clock);
+    assertFalse(cache.isEnabled());
+    cache.putGroups("user1", groups);
+    cache.putUser("login1", null, new GroupCache.ResolvedUser("user1"));
+    assertNull(cache.getGroups("user1"));
+    assertNull(cache.getUser("login1", null));
+    assertEquals(0, cache.size());
+  }
+
+  public void testInvalidateAll() {
+    GroupCache cache = new GroupCache(10, 1000L, clock);
+    cache.putGroups("user1", groups);
+    cache.putUser("login1", null, new GroupCache.ResolvedUser("user1"));
+    cache.invalidateAll();
+    assertNull(cache.getGroups("user1"));
+    assertNull(cache.getUser("login1", null));
+  }
+}
@@ -23,11 +23,15 @@ import java.sql.Statement;
 /** Manages an in-memory H2 database modeling the Documentum database. */
 public class JdbcFixture {
   private static final String CREATE_TABLE_GROUP = "create table dm_group "
-      + "(group_name varchar, i_all_users_names varchar)";
+      + "(group_name varchar, i_all_users_names varchar, group_source varchar)";
 
   private static final String CREATE_TABLE_USER = "create table dm_user "
       + "(user_name varchar primary key, user_login_name varchar, "
-      + "user_source varchar, user_ldap_dn varchar, r_is_group boolean)";
+      + "user_source varchar, user_ldap_dn varchar, r_is_group boolean, "
+      + "user_privileges integer, user_state integer default 0)";
+
+  private static final String CREATE_TABLE_FOLDER = "create table dm_folder "
+      + "(r_object_id varchar, r_folder_path varchar)";
 
   /**
    * Gets a JDBC connection to a named in-memory database. The default
@@ -57,7 +61,8 @@ public class JdbcFixture {
 
     executeUpdate(
         CREATE_TABLE_GROUP,
-        CREATE_TABLE_USER);
+        CREATE_TABLE_USER,
+        CREATE_TABLE_FOLDER);
   }
 
   protected void tearDown() throws SQLException {
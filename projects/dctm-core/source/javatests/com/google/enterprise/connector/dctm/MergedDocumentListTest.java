@@ -0,0 +1,158 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MergedDocumentListTest extends TestCase {
+  private static final List<String> BOUNDS =
+      ImmutableList.of("2007-01-01 00:00:00", "2008-01-01 00:00:00");
+
+  private Checkpoint checkpoint;
+  private List<Checkpoint> copies;
+  private List<FakeDocumentList> lists;
+
+  @Override
+  protected void setUp() throws RepositoryException {
+    List<String> whereClause = new ArrayList<String>();
+    whereClause.add(null);
+    whereClause.add(null);
+    checkpoint = new Checkpoint(whereClause);
+    checkpoint.advance();
+    copies = new ArrayList<Checkpoint>();
+    lists = new ArrayList<FakeDocumentList>();
+  }
+
+  private FakeDocumentList addList(Checkpoint copy, String... ids) {
+    FakeDocumentList list = new FakeDocumentList(copy, ids);
+    copies.add(copy);
+    lists.add(list);
+    return list;
+  }
+
+  private MergedDocumentList getMergedList() {
+    return new MergedDocumentList(checkpoint,
+        new ArrayList<DocumentList>(lists), copies);
+  }
+
+  private String nextId(DocumentList list) throws RepositoryException {
+    Document document = list.nextDocument();
+    return (document == null)
+        ? null : ((FakeDocumentList.FakeDocument) document).id;
+  }
+
+  public void testWhereClauses_roundRobin() throws RepositoryException {
+    addList(checkpoint.copyForInsertIndex(0), "a1", "a2", "a3");
+    addList(checkpoint.copyForInsertIndex(1), "b1");
+    MergedDocumentList merged = getMergedList();
+
+    assertEquals("a1", nextId(merged));
+    assertEquals("b1", nextId(merged));
+    assertEquals("a2", nextId(merged));
+    assertEquals("a3", nextId(merged));
+    assertNull(nextId(merged));
+  }
+
+  public void testWhereClauses_checkpoint() throws RepositoryException {
+    addList(checkpoint.copyForInsertIndex(0), "a1", "a2");
+    addList(checkpoint.copyForInsertIndex(1), "b1");
+    MergedDocumentList merged = getMergedList();
+    nextId(merged);
+    nextId(merged);
+    nextId(merged);
+
+    assertNotNull(merged.checkpoint());
+    assertTrue(lists.get(0).closed);
+    assertTrue(lists.get(1).closed);
+    assertEquals("a2", checkpoint.getInsertId());
+    checkpoint.advance();
+    assertEquals("b1", checkpoint.getInsertId());
+    assertEquals(FakeDocumentList.DATE, checkpoint.getInsertDate());
+  }
+
+  public void testPartitions_checkpoint() throws RepositoryException {
+    checkpoint.startPartitions(BOUNDS);
+    addList(checkpoint.copyForPartition(0, true), "p0");
+    addList(checkpoint.copyForPartition(2, false), "p2a", "p2b");
+    MergedDocumentList merged = getMergedList();
+
+    assertEquals("p0", nextId(merged));
+    assertEquals("p2a", nextId(merged));
+    assertEquals("p2b", nextId(merged));
+    assertNull(nextId(merged));
+    merged.checkpoint();
+
+    assertTrue(lists.get(0).closed);
+    assertTrue(lists.get(1).closed);
+    assertEquals("p0", checkpoint.copyForPartition(0, true).getInsertId());
+    assertEquals(BOUNDS.get(0),
+        checkpoint.copyForPartition(1, true).getInsertDate());
+    assertEquals("p2b", checkpoint.copyForPartition(2, true).getInsertId());
+  }
+
+  public void testClose() throws RepositoryException {
+    addList(checkpoint.copyForInsertIndex(0), "a1");
+    addList(checkpoint.copyForInsertIndex(1), "b1");
+    MergedDocumentList merged = getMergedList();
+    nextId(merged);
+
+    merged.close();
+    assertTrue(lists.get(0).closed);
+    assertTrue(lists.get(1).closed);
+    // The progress is not merged into the checkpoint.
+    assertNull(checkpoint.getInsertId());
+  }
+
+  public void testRepositoryException() throws RepositoryException {
+    addList(checkpoint.copyForInsertIndex(0), "a1");
+    addList(checkpoint.copyForInsertIndex(1))
+        .failWith(new RepositoryException("lost connection"));
+    MergedDocumentList merged = getMergedList();
+    assertEquals("a1", nextId(merged));
+
+    try {
+      nextId(merged);
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+    assertTrue(lists.get(0).closed);
+    assertTrue(lists.get(1).closed);
+  }
+
+  public void testRepositoryDocumentException() throws RepositoryException {
+    addList(checkpoint.copyForInsertIndex(0))
+        .failWith(new RepositoryDocumentException("bad document"));
+    addList(checkpoint.copyForInsertIndex(1), "b1");
+    MergedDocumentList merged = getMergedList();
+
+    try {
+      nextId(merged);
+      fail("Expected a RepositoryDocumentException");
+    } catch (RepositoryDocumentException expected) {
+    }
+    // Only the document is skipped, and the next list is used.
+    assertFalse(lists.get(0).closed);
+    assertEquals("b1", nextId(merged));
+  }
+}
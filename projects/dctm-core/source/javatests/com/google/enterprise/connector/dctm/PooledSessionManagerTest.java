@@ -0,0 +1,184 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmSession;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmSessionManager;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+public class PooledSessionManagerTest extends TestCase {
+  private static final String DOCBASE = DmInitialize.DM_DOCBASE;
+
+  private IClientX clientX;
+  private PooledSessionManager pool;
+  private final FakeClock clock = new FakeClock();
+
+  @Override
+  protected void setUp() throws RepositoryException {
+    clientX = new MockDmClientX();
+  }
+
+  @Override
+  protected void tearDown() {
+    if (pool != null) {
+      pool.flushSessions();
+    }
+    MockDmSessionManager.tearDown();
+  }
+
+  private PooledSessionManager newPool(int min, int max, long waitMillis)
+      throws RepositoryException {
+    return newPool(min, max, waitMillis, 0L);
+  }
+
+  private PooledSessionManager newPool(int min, int max, long waitMillis,
+      long idleMillis) throws RepositoryException {
+    ISessionManager sessionManager =
+        clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DOCBASE, loginInfo);
+    return new PooledSessionManager(sessionManager, min, max, waitMillis,
+        idleMillis, clock);
+  }
+
+  public void testReuse() throws RepositoryException {
+    pool = newPool(0, 2, 0L);
+    ISession first = pool.getSession(DOCBASE);
+    assertEquals(1, pool.getActiveCount());
+    pool.release(first);
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+
+    ISession second = pool.getSession(DOCBASE);
+    assertSame(first, second);
+    pool.release(second);
+    assertEquals(2, pool.getLeaseCount());
+    assertEquals(1, pool.getCreatedCount());
+  }
+
+  public void testWarmUp() throws RepositoryException {
+    pool = newPool(2, 3, 0L);
+    pool.warmUp(DOCBASE);
+    assertEquals(2, pool.getIdleCount());
+    assertEquals(2, pool.getCreatedCount());
+
+    ISession session = pool.getSession(DOCBASE);
+    pool.release(session);
+    assertEquals(2, pool.getCreatedCount());
+  }
+
+  public void testTimeout() throws RepositoryException {
+    pool = newPool(0, 1, 10L);
+    ISession session = pool.getSession(DOCBASE);
+    try {
+      pool.getSession(DOCBASE);
+      fail("Expected a timeout");
+    } catch (RepositoryException expected) {
+      assertEquals(1, pool.getTimeoutCount());
+    } finally {
+      pool.release(session);
+    }
+  }
+
+  public void testWait() throws Exception {
+    pool = newPool(0, 1, 10000L);
+    final ISession session = pool.getSession(DOCBASE);
+    Thread releaser = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            // Release the session anyway.
+          }
+          pool.release(session);
+        }
+      };
+    releaser.start();
+    ISession second = pool.getSession(DOCBASE);
+    releaser.join();
+    assertSame(session, second);
+    assertEquals(1, pool.getWaitCount());
+    pool.release(second);
+  }
+
+  public void testValidation() throws RepositoryException {
+    pool = newPool(0, 1, 0L);
+    ISession first = pool.getSession(DOCBASE);
+    pool.release(first);
+    ((MockDmSession) first).disconnect();
+
+    ISession second = pool.getSession(DOCBASE);
+    assertNotSame(first, second);
+    assertEquals(1, pool.getValidationFailureCount());
+    pool.release(second);
+  }
+
+  public void testIdleEviction() throws RepositoryException {
+    pool = newPool(1, 3, 0L, 1000L);
+    ISession first = pool.getSession(DOCBASE);
+    ISession second = pool.getSession(DOCBASE);
+    pool.release(first);
+    clock.advance(500L);
+    pool.release(second);
+    assertEquals(2, pool.getIdleCount());
+
+    // The first session has been idle long enough.
+    clock.advance(500L);
+    ISession third = pool.getSession(DOCBASE);
+    assertSame(second, third);
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(1, pool.getEvictedCount());
+    pool.release(third);
+
+    // The minimum number of sessions is kept.
+    clock.advance(5000L);
+    ISession fourth = pool.getSession(DOCBASE);
+    assertSame(second, fourth);
+    assertEquals(1, pool.getEvictedCount());
+    pool.release(fourth);
+  }
+
+  public void testFlushSessions() throws RepositoryException {
+    pool = newPool(0, 1, 0L);
+    ISession first = pool.getSession(DOCBASE);
+    pool.flushSessions();
+
+    // The flushed pool has room for a new session.
+    ISession second = pool.getSession(DOCBASE);
+    assertNotSame(first, second);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(1, pool.getIdleCount());
+  }
+
+  public void testNewSession() throws RepositoryException {
+    pool = newPool(0, 1, 0L);
+    ISession session = pool.newSession(DOCBASE);
+    pool.release(session);
+    assertEquals(0, pool.getLeaseCount());
+    assertEquals(0, pool.getIdleCount());
+  }
+}
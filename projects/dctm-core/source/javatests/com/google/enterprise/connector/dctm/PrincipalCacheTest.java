@@ -0,0 +1,84 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.PrincipalCache.Kind;
+import com.google.enterprise.connector.dctm.PrincipalCache.ResolvedPrincipal;
+
+import junit.framework.TestCase;
+
+public class PrincipalCacheTest extends TestCase {
+  private final FakeClock clock = new FakeClock();
+
+  private final ResolvedPrincipal user =
+      new ResolvedPrincipal("DOMAIN\\user1", "Default");
+
+  public void testGetAndPut() {
+    PrincipalCache cache = new PrincipalCache(10, 1000L, clock);
+    assertNull(cache.get(Kind.USER, "user1"));
+    cache.put(Kind.USER, "user1", user);
+    assertSame(user, cache.get(Kind.USER, "user1"));
+    assertNull(cache.get(Kind.GROUP, "user1"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  public void testMissingPrincipal() {
+    PrincipalCache cache = new PrincipalCache(10, 1000L, clock);
+    cache.put(Kind.GROUP, "nobody", new ResolvedPrincipal(null, null));
+    ResolvedPrincipal principal = cache.get(Kind.GROUP, "nobody");
+    assertNotNull(principal);
+    assertNull(principal.getNamespace());
+  }
+
+  public void testExpiration() {
+    PrincipalCache cache = new PrincipalCache(10, 1000L, clock);
+    cache.put(Kind.USER, "user1", user);
+    clock.set(999L);
+    assertSame(user, cache.get(Kind.USER, "user1"));
+    clock.set(1000L);
+    assertNull(cache.get(Kind.USER, "user1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testCapacity() {
+    PrincipalCache cache = new PrincipalCache(2, 1000L, clock);
+    cache.put(Kind.USER, "user1", user);
+    cache.put(Kind.USER, "user2", user);
+    cache.get(Kind.USER, "user1");
+    cache.put(Kind.USER, "user3", user);
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get(Kind.USER, "user1"));
+    assertNull(cache.get(Kind.USER, "user2"));
+  }
+
+  public void testDisabled() {
+    PrincipalCache cache = new PrincipalCache(10, 0L, clock);
+    cache.put(Kind.USER, "user1", user);
+    assertNull(cache.get(Kind.USER, "user1"));
+
+    cache = new PrincipalCache(0, 1000L, clock);
+    cache.put(Kind.USER, "user1", user);
+    assertNull(cache.get(Kind.USER, "user1"));
+  }
+
+  public void testInvalidateAll() {
+    PrincipalCache cache = new PrincipalCache(10, 1000L, clock);
+    cache.put(Kind.USER, "user1", user);
+    cache.put(Kind.GROUP, "group1", user);
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.dctm.dfcwrap.IAcl;
+import com.google.enterprise.connector.dctm.dfcwrap.ICollection;
+import com.google.enterprise.connector.dctm.dfcwrap.IId;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ITime;
+import com.google.enterprise.connector.dctm.dfcwrap.IValue;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+
+public class ProjectedAclTest extends TestCase {
+  /** A string value, with conversions for the integer and boolean types. */
+  private static class StringValue implements IValue {
+    private final String value;
+
+    StringValue(String value) {
+      this.value = value;
+    }
+
+    @Override public String asString() { return value; }
+    @Override public boolean asBoolean() { return Boolean.parseBoolean(value); }
+    @Override public double asDouble() { return Double.parseDouble(value); }
+    @Override public long asInteger() { return Long.parseLong(value); }
+    @Override public ITime asTime() { return null; }
+    @Override public IId asId() { return null; }
+  }
+
+  /** A collection positioned on a single row of string values. */
+  static class RowCollection implements ICollection {
+    private final Map<String, List<String>> row;
+
+    RowCollection(Map<String, List<String>> row) {
+      this.row = row;
+    }
+
+    @Override
+    public String getString(String colName) {
+      return row.get(colName).get(0);
+    }
+
+    @Override
+    public int getValueCount(String colName) {
+      return row.get(colName).size();
+    }
+
+    @Override
+    public IValue getRepeatingValue(String colName, int index) {
+      return new StringValue(row.get(colName).get(index));
+    }
+
+    @Override
+    public IValue getValue(String attrName) {
+      return getRepeatingValue(attrName, 0);
+    }
+
+    @Override public boolean hasNext() { return false; }
+    @Override public boolean next() { return false; }
+    @Override public void close() { }
+    @Override public int getState() { return DF_READY_STATE; }
+    @Override public ISession getSession() { return null; }
+    @Override public ITime getTime(String colName) { return null; }
+
+    @Override
+    public String getAllRepeatingStrings(String colName, String separator) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  public void testAccessors() throws RepositoryException {
+    ICollection collection = new RowCollection(
+        ImmutableMap.<String, List<String>>builder()
+        .put("r_object_id", ImmutableList.of("4501081f80000100"))
+        .put("object_name", ImmutableList.of("dm_4501081f80000100"))
+        .put("owner_name", ImmutableList.of("docbase"))
+        .put("r_accessor_name", ImmutableList.of("dm_world", "user1", "group1"))
+        .put("r_accessor_permit", ImmutableList.of("3", "1", "6"))
+        .put("r_permit_type", ImmutableList.of("0", "3", "6"))
+        .put("r_is_group", ImmutableList.of("true", "false", "true"))
+        .build());
+
+    IAcl acl = new ProjectedAcl(collection);
+    assertEquals("dm_4501081f80000100", acl.getObjectName());
+    assertEquals("docbase", acl.getDomain());
+    assertEquals(3, acl.getAccessorCount());
+
+    assertEquals("dm_world", acl.getAccessorName(0));
+    assertEquals(IAcl.DF_PERMIT_READ, acl.getAccessorPermit(0));
+    assertEquals(IAcl.DF_PERMIT_TYPE_ACCESS_PERMIT,
+        acl.getAccessorPermitType(0));
+    assertTrue(acl.isGroup(0));
+
+    assertEquals("user1", acl.getAccessorName(1));
+    assertEquals(IAcl.DF_PERMIT_NONE, acl.getAccessorPermit(1));
+    assertEquals(IAcl.DF_PERMIT_TYPE_ACCESS_RESTRICTION,
+        acl.getAccessorPermitType(1));
+    assertFalse(acl.isGroup(1));
+
+    assertEquals(IAcl.DF_PERMIT_TYPE_REQUIRED_GROUP,
+        acl.getAccessorPermitType(2));
+  }
+
+  public void testHasPermission() throws RepositoryException {
+    ICollection collection = new RowCollection(
+        ImmutableMap.<String, List<String>>builder()
+        .put("object_name", ImmutableList.of("acl"))
+        .put("owner_name", ImmutableList.of("docbase"))
+        .put("r_accessor_name", ImmutableList.of("user1", "user2", "user2"))
+        .put("r_accessor_permit", ImmutableList.of("6", "7", "3"))
+        .put("r_permit_type", ImmutableList.of("0", "0", "3"))
+        .put("r_is_group", ImmutableList.of("false", "false", "false"))
+        .build());
+
+    IAcl acl = new ProjectedAcl(collection);
+    assertTrue(acl.hasPermission("READ", "user1"));
+    assertTrue(acl.hasPermission("write", "user1"));
+    assertFalse(acl.hasPermission("delete", "user1"));
+
+    // The restriction denies READ and above.
+    assertTrue(acl.hasPermission("browse", "user2"));
+    assertFalse(acl.hasPermission("read", "user2"));
+    assertFalse(acl.hasPermission("delete", "user2"));
+
+    assertFalse(acl.hasPermission("browse", "user3"));
+    assertFalse(acl.hasPermission("change_location", "user1"));
+  }
+
+  public void testNoAccessors() throws RepositoryException {
+    ICollection collection = new RowCollection(
+        ImmutableMap.<String, List<String>>builder()
+        .put("object_name", ImmutableList.of("empty"))
+        .put("owner_name", ImmutableList.of("docbase"))
+        .put("r_accessor_name", ImmutableList.<String>of())
+        .build());
+
+    IAcl acl = new ProjectedAcl(collection);
+    assertEquals(0, acl.getAccessorCount());
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.PropertyExtractionPlan.Extractor;
+import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmAttr;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.IAttr;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+import com.google.enterprise.connector.dctm.dfcwrap.ISysObject;
+import com.google.enterprise.connector.mock.MockRepositoryProperty;
+import com.google.enterprise.connector.mock.MockRepositoryProperty.PropertyType;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class PropertyExtractionPlanTest extends TestCase {
+  private static final Set<String> EMPTY_SET = Collections.emptySet();
+
+  private static IAttr stringAttr(String name) {
+    return new MockDmAttr(
+        new MockRepositoryProperty(name, PropertyType.STRING, ""));
+  }
+
+  private final List<IAttr> attributes = ImmutableList.of(
+      stringAttr("acl"), stringAttr("google:ispublic"),
+      new MockDmAttr("undefined_attr"));
+
+  public void testForDataType() {
+    assertEquals(Extractor.STRING, Extractor.forDataType(IAttr.DM_STRING));
+    assertEquals(Extractor.TIME, Extractor.forDataType(IAttr.DM_TIME));
+    assertNull(Extractor.forDataType(IAttr.DM_UNDEFINED));
+  }
+
+  public void testPropertyNames() {
+    PropertyExtractionPlan plan = new PropertyExtractionPlan(attributes,
+        ImmutableList.of("acl", SpiConstants.PROPNAME_FOLDER));
+
+    Set<String> names = plan.getPropertyNames();
+    assertTrue(names.containsAll(PropertyExtractionPlan.ADD_PROPERTY_NAMES));
+    assertTrue(names.contains("acl"));
+    assertTrue(names.contains(SpiConstants.PROPNAME_FOLDER));
+    assertFalse(names.contains("google:ispublic"));
+    assertEquals(PropertyExtractionPlan.ADD_PROPERTY_NAMES.size() + 2,
+        names.size());
+    try {
+      names.add("foo");
+      fail("Expected an UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  public void testIndexOf() {
+    PropertyExtractionPlan plan = new PropertyExtractionPlan(attributes,
+        ImmutableList.of("google:ispublic", "acl", "undefined_attr",
+            SpiConstants.PROPNAME_FOLDER));
+
+    // Attributes are planned in type order, and only if the data
+    // type is supported.
+    assertEquals(2, plan.size());
+    assertEquals(0, plan.indexOf("acl"));
+    assertEquals(1, plan.indexOf("google:ispublic"));
+    assertEquals(-1, plan.indexOf("undefined_attr"));
+    assertEquals(-1, plan.indexOf(SpiConstants.PROPNAME_FOLDER));
+  }
+
+  public void testExtract() throws RepositoryException {
+    IClientX clientX = new MockDmClientX();
+    ISessionManager sessionManager =
+        clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DmInitialize.DM_DOCBASE, loginInfo);
+    ISession session = sessionManager.getSession(DmInitialize.DM_DOCBASE);
+    try {
+      ISysObject object = (ISysObject)
+          session.getObject(clientX.getId(DmInitialize.DM_ID1));
+      PropertyExtractionPlan plan = new PropertyExtractionPlan(attributes,
+          ImmutableList.of("acl", "google:ispublic"));
+
+      Value[][] table = plan.extract(object, EMPTY_SET);
+      assertEquals(2, table.length);
+      assertEquals(1, table[plan.indexOf("google:ispublic")].length);
+      assertEquals("false",
+          table[plan.indexOf("google:ispublic")][0].toString());
+      assertEquals(1, table[plan.indexOf("acl")].length);
+
+      table = plan.extract(object, ImmutableSet.of("acl"));
+      assertNull(table[plan.indexOf("acl")]);
+      assertNotNull(table[plan.indexOf("google:ispublic")]);
+    } finally {
+      sessionManager.release(session);
+    }
+  }
+}
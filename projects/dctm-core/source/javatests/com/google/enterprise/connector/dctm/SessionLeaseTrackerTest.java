@@ -0,0 +1,110 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmSessionManager;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+public class SessionLeaseTrackerTest extends TestCase {
+  private final FakeClock clock = new FakeClock();
+
+  private ISessionManager sessionManager;
+
+  @Override
+  protected void setUp() throws RepositoryException {
+    IClientX clientX = new MockDmClientX();
+    sessionManager = clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DmInitialize.DM_DOCBASE, loginInfo);
+  }
+
+  @Override
+  protected void tearDown() {
+    MockDmSessionManager.tearDown();
+  }
+
+  private SessionLeaseTracker.Lease track(SessionLeaseTracker tracker,
+      String owner, Runnable onReclaim) throws RepositoryException {
+    return tracker.track(sessionManager,
+        sessionManager.newSession(DmInitialize.DM_DOCBASE), owner, onReclaim);
+  }
+
+  public void testRelease() throws RepositoryException {
+    SessionLeaseTracker tracker = new SessionLeaseTracker(0L, clock);
+    SessionLeaseTracker.Lease lease = track(tracker, "owner", null);
+    assertEquals(1, tracker.getOutstandingCount());
+    lease.release();
+    lease.release();
+    assertTrue(lease.isReleased());
+    assertFalse(lease.isReclaimed());
+    assertEquals(0, tracker.getOutstandingCount());
+    assertEquals(1, tracker.getLeaseCount());
+  }
+
+  public void testReclaimExpired() throws RepositoryException {
+    SessionLeaseTracker tracker = new SessionLeaseTracker(1000L, clock);
+    final int[] closed = { 0 };
+    SessionLeaseTracker.Lease first = track(tracker, "first",
+        new Runnable() {
+          @Override
+          public void run() {
+            closed[0]++;
+          }
+        });
+    clock.set(500L);
+    SessionLeaseTracker.Lease second = track(tracker, "second", null);
+
+    clock.set(999L);
+    assertEquals(0, tracker.reclaimExpired());
+    clock.set(1000L);
+    assertEquals(1, tracker.reclaimExpired());
+    assertEquals(1, closed[0]);
+    assertTrue(first.isReclaimed());
+    assertTrue(first.isReleased());
+    assertFalse(second.isReleased());
+    assertEquals(1, tracker.getReclaimedCount());
+
+    second.release();
+    assertEquals(0, tracker.getOutstandingCount());
+  }
+
+  public void testNoTimeout() throws RepositoryException {
+    SessionLeaseTracker tracker = new SessionLeaseTracker(0L, clock);
+    SessionLeaseTracker.Lease lease = track(tracker, "owner", null);
+    clock.set(Long.MAX_VALUE / 2);
+    assertEquals(0, tracker.reclaimExpired());
+    lease.release();
+  }
+
+  public void testDump() throws RepositoryException {
+    SessionLeaseTracker tracker = new SessionLeaseTracker(0L, clock);
+    SessionLeaseTracker.Lease lease = track(tracker, "DctmDocumentList", null);
+    clock.set(42L);
+    String dump = tracker.dump();
+    assertTrue(dump, dump.startsWith("DctmDocumentList on thread "
+            + Thread.currentThread().getName() + " for 42 ms"));
+    lease.release();
+    assertEquals("", tracker.dump());
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.dctm.TypeMetadataCache.TypeMetadata;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmSession;
+import com.google.enterprise.connector.dctm.dfcwrap.ISession;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Set;
+
+public class TypeMetadataCacheTest extends TestCase {
+  private static final Set<String> EMPTY_SET = Collections.emptySet();
+
+  private final ISession session = new MockDmSession();
+
+  public void testGet() throws RepositoryException {
+    TypeMetadataCache cache = new TypeMetadataCache(10, EMPTY_SET, EMPTY_SET);
+    TypeMetadata metadata = cache.get(session, "foo");
+
+    assertEquals("foo", metadata.getName());
+    assertEquals(
+        ImmutableList.of("foo", "Superfoo", "Grandfoo", "dm_sysobject"),
+        metadata.getTypeHierarchy());
+    assertEquals(7, metadata.getAttributes().size());
+    assertEquals("foo_attr", metadata.getAttributes().get(0).getName());
+    assertNotNull(metadata.getAttribute("dm_sysobject_attr"));
+    assertNull(metadata.getAttribute("bar_attr"));
+    assertTrue(metadata.getIncludedNames().contains("foo_attr"));
+    assertTrue(metadata.getIncludedNames().contains(
+        SpiConstants.PROPNAME_FOLDER));
+
+    assertSame(metadata, cache.get(session, "foo"));
+    assertEquals(1, cache.size());
+  }
+
+  public void testIncludedNames() throws RepositoryException {
+    TypeMetadataCache cache = new TypeMetadataCache(10,
+        ImmutableSet.of("foo_attr", "sharedattr", "r_object_id"),
+        ImmutableSet.of("sharedattr"));
+    TypeMetadata metadata = cache.get(session, "foo");
+
+    assertEquals(ImmutableList.of("foo_attr", "r_object_id"),
+        metadata.getIncludedNames());
+    assertNotNull(metadata.getAttribute("sharedattr"));
+  }
+
+  public void testCapacity() throws RepositoryException {
+    TypeMetadataCache cache = new TypeMetadataCache(2, EMPTY_SET, EMPTY_SET);
+    cache.get(session, "foo");
+    cache.get(session, "bar");
+    cache.get(session, "baz");
+    assertEquals(2, cache.size());
+  }
+
+  public void testInvalidate() throws RepositoryException {
+    TypeMetadataCache cache = new TypeMetadataCache(10, EMPTY_SET, EMPTY_SET);
+    TypeMetadata foo = cache.get(session, "foo");
+    cache.get(session, "bar");
+
+    cache.invalidate("foo");
+    assertEquals(1, cache.size());
+    assertNotSame(foo, cache.get(session, "foo"));
+
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+}
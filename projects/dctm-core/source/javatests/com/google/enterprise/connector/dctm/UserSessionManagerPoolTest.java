@@ -0,0 +1,100 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm;
+
+import com.google.enterprise.connector.dctm.dctmmockwrap.DmInitialize;
+import com.google.enterprise.connector.dctm.dctmmockwrap.MockDmClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.IClientX;
+import com.google.enterprise.connector.dctm.dfcwrap.ILoginInfo;
+import com.google.enterprise.connector.dctm.dfcwrap.ISessionManager;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+public class UserSessionManagerPoolTest extends TestCase {
+  private IClientX clientX;
+  private ISessionManager sessionManager;
+  private final FakeClock clock = new FakeClock();
+
+  @Override
+  protected void setUp() throws RepositoryException {
+    clientX = new MockDmClientX();
+    sessionManager = clientX.getLocalClient().newSessionManager();
+    ILoginInfo loginInfo = clientX.getLoginInfo();
+    loginInfo.setUser(DmInitialize.DM_LOGIN_OK1);
+    loginInfo.setPassword(DmInitialize.DM_PWD_OK1);
+    sessionManager.setIdentity(DmInitialize.DM_DOCBASE, loginInfo);
+  }
+
+  private UserSessionManagerPool newPool(int capacity, long ttlMillis) {
+    return new UserSessionManagerPool(clientX, sessionManager,
+        DmInitialize.DM_DOCBASE, capacity, ttlMillis, clock);
+  }
+
+  public void testGetSessionManager() throws RepositoryException {
+    UserSessionManagerPool pool = newPool(10, 1000L);
+    ISessionManager first = pool.getSessionManager(DmInitialize.DM_LOGIN_OK2);
+    assertEquals(DmInitialize.DM_LOGIN_OK2,
+        first.getIdentity(DmInitialize.DM_DOCBASE).getUser());
+    assertSame(first, pool.getSessionManager(DmInitialize.DM_LOGIN_OK2));
+    assertNotSame(first, pool.getSessionManager(DmInitialize.DM_LOGIN_OK3));
+    assertEquals(2, pool.size());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(2, pool.getMissCount());
+  }
+
+  public void testExpiration() throws RepositoryException {
+    UserSessionManagerPool pool = newPool(10, 1000L);
+    ISessionManager first = pool.getSessionManager(DmInitialize.DM_LOGIN_OK2);
+    clock.set(999L);
+    assertSame(first, pool.getSessionManager(DmInitialize.DM_LOGIN_OK2));
+    clock.set(1000L);
+    assertNotSame(first, pool.getSessionManager(DmInitialize.DM_LOGIN_OK2));
+    assertEquals(1, pool.size());
+  }
+
+  public void testExpiration_otherUser() throws RepositoryException {
+    UserSessionManagerPool pool = newPool(10, 1000L);
+    pool.getSessionManager(DmInitialize.DM_LOGIN_OK2);
+    clock.set(1000L);
+    pool.getSessionManager(DmInitialize.DM_LOGIN_OK3);
+    assertEquals(1, pool.size());
+  }
+
+  public void testCapacity() throws RepositoryException {
+    UserSessionManagerPool pool = newPool(2, 1000L);
+    ISessionManager first = pool.getSessionManager(DmInitialize.DM_LOGIN_OK2);
+    pool.getSessionManager(DmInitialize.DM_LOGIN_OK3);
+    pool.getSessionManager(DmInitialize.DM_LOGIN_OK4);
+    assertEquals(2, pool.size());
+    assertNotSame(first, pool.getSessionManager(DmInitialize.DM_LOGIN_OK2));
+  }
+
+  public void testInvalidate() throws RepositoryException {
+    UserSessionManagerPool pool = newPool(10, 1000L);
+    ISessionManager first = pool.getSessionManager(DmInitialize.DM_LOGIN_OK2);
+    pool.invalidate(DmInitialize.DM_LOGIN_OK2);
+    assertEquals(0, pool.size());
+    assertNotSame(first, pool.getSessionManager(DmInitialize.DM_LOGIN_OK2));
+  }
+
+  public void testDisabled() throws RepositoryException {
+    UserSessionManagerPool pool = newPool(10, 0L);
+    assertFalse(pool.isEnabled());
+    ISessionManager first = pool.getSessionManager(DmInitialize.DM_LOGIN_OK2);
+    assertNotSame(first, pool.getSessionManager(DmInitialize.DM_LOGIN_OK2));
+    assertEquals(0, pool.size());
+  }
+}
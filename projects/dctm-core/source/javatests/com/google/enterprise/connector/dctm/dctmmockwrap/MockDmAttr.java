@@ -41,6 +41,12 @@ public class MockDmAttr implements IAttr {
     return dataType;
   }
 
+  /** The mock repository only supports single-valued properties here. */
+  @Override
+  public boolean isRepeating() {
+    return false;
+  }
+
   private int getDataType(MockRepositoryProperty mockProp) {
     String type = mockProp.getType().toString();
     if (type.equals("string")) {
@@ -112,6 +112,25 @@ public class MockDmCollection implements ICollection {
     return new MockDmValue(val);
   }
 
+  /** Mock properties are single-valued, or missing. */
+  @Override
+  public int getValueCount(String colName) throws RepositoryException {
+    try {
+      return currentNode.hasProperty(colName) ? 1 : 0;
+    } catch (javax.jcr.RepositoryException e) {
+      throw new RepositoryException(e);
+    }
+  }
+
+  @Override
+  public IValue getRepeatingValue(String colName, int index)
+      throws RepositoryException {
+    if (index != 0) {
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+    return getValue(colName);
+  }
+
   @Override
   public void close() throws RepositoryException {
   }
@@ -6,13 +6,15 @@ import com.google.enterprise.connector.spi.RepositoryDocumentException;
 public class MockDmGroup implements IGroup {
 
   private String name;
+  private String groupSource;
 
-  MockDmGroup(String name) {
+  MockDmGroup(String name, String groupSource) {
     this.name = name;
+    this.groupSource = groupSource;
   }
 
   @Override
   public String getUserSource() throws RepositoryDocumentException {
-    return null;
+    return groupSource;
   }
 }
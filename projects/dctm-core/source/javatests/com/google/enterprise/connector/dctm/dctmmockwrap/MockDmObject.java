@@ -33,6 +33,7 @@ import com.google.enterprise.connector.spi.SpiConstants;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -74,6 +75,13 @@ public class MockDmObject implements ISysObject {
     return contentStream;
   }
 
+  /** The mock content is always in memory, so it is never spooled. */
+  @Override
+  public InputStream getContentStream(long spoolThreshold)
+      throws RepositoryDocumentException {
+    return getContent();
+  }
+
   @Override
   public String getACLDomain() throws RepositoryDocumentException {
     return "ACLDomain";
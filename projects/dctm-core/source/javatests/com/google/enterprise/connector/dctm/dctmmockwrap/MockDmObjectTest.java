@@ -33,6 +33,7 @@ import com.google.enterprise.connector.spi.SpiConstants;
 import junit.framework.TestCase;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 
 public class MockDmObjectTest extends TestCase {
   IClientX dctmClientX;
@@ -87,6 +88,11 @@ public class MockDmObjectTest extends TestCase {
     }
   }
 
+  public void testGetContentStream() throws RepositoryException {
+    InputStream value = object.getContentStream(0L);
+    assertNotNull(value);
+  }
+
   public void testGetBoolean() {
     try {
       boolean value = object.getBoolean("google:ispublic");
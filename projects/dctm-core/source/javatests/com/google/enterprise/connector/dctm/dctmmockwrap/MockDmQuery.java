@@ -130,6 +130,10 @@ public class MockDmQuery implements IQuery {
       return executeQuery(sql);
     } else if (query.indexOf("dm_user") != -1) {
       return executeQuery(query);
+    } else if (query.indexOf("from dm_folder") != -1) {
+      // The repeating attribute r_folder_path is modeled with
+      // multiple rows, like the row_based hint asks for.
+      return executeQuery(query.replace(" ENABLE (row_based)", ""));
     } else { // Authorize query...
       String[] ids = this.query.split("','");
       ids[0] = ids[0].substring(ids[0].lastIndexOf("'") + 1, ids[0]
@@ -46,6 +46,8 @@ public class MockDmSession implements ISession {
 
   private final Connection jdbcConnection = JdbcFixture.getSharedConnection();
 
+  private boolean connected = true;
+
   public MockDmSession(ISessionManager sessMgr, MockJcrRepository mjR,
       MockJcrSession mjS, String dbFileName) {
     this.sessMgr = sessMgr;
@@ -133,7 +135,12 @@ public class MockDmSession implements ISession {
 
   @Override
   public boolean isConnected() {
-    return sessMgr != null;
+    return sessMgr != null && connected;
+  }
+
+  /** Simulates a lost connection, for testing session validation. */
+  public void disconnect() {
+    connected = false;
   }
 
   @Override
@@ -154,12 +161,14 @@ public class MockDmSession implements ISession {
               Boolean.TRUE.equals(values.get("r_is_group")));
         }
       } else if (queryString.startsWith("dm_group")) {
-        HashMap<String, Object> values =
-            executeQuery("select group_name from " + queryString, "group_name");
+        HashMap<String, Object> values = executeQuery(
+            "select group_name, group_source from " + queryString,
+            "group_name", "group_source");
         if (values == null) {
           return null;
         } else {
-          return new MockDmGroup((String) values.get("group_name"));
+          return new MockDmGroup((String) values.get("group_name"),
+              (String) values.get("group_source"));
         }
       } else {
         return null;
@@ -114,6 +114,11 @@ public class MockDmSessionManager implements ISessionManager {
     sessMgerCreds.remove(docbase);
   }
 
+  @Override
+  public void flushSessions() {
+    sessMgerSessions.clear();
+  }
+
   @Deprecated
   @Override
   public boolean authenticate(String docbaseName) {
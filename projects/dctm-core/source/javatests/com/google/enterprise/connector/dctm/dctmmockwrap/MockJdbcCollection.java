@@ -60,6 +60,17 @@ public class MockJdbcCollection implements ICollection {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public int getValueCount(String colName) throws RepositoryException {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public IValue getRepeatingValue(String colName, int index)
+      throws RepositoryException {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public void close() throws RepositoryException {
     try {
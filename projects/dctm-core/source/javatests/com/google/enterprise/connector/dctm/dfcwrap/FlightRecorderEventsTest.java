@@ -0,0 +1,61 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.dctm.dfcwrap;
+
+import junit.framework.TestCase;
+
+public class FlightRecorderEventsTest extends TestCase {
+  public void testFingerprint_null() {
+    assertNull(FlightRecorderEvents.fingerprint(null));
+  }
+
+  public void testFingerprint_literals() {
+    assertEquals("select r_object_id from dm_sysobject "
+        + "where object_name = ? and r_content_size > ?",
+        FlightRecorderEvents.fingerprint("select r_object_id from "
+            + "dm_sysobject where object_name = 'it''s' "
+            + "and r_content_size > 1024"));
+  }
+
+  public void testFingerprint_lists() {
+    assertEquals("dm_user where user_name in (?, ...)",
+        FlightRecorderEvents.fingerprint(
+            "dm_user where user_name in ('a', 'b','c')"));
+  }
+
+  public void testFingerprint_whitespace() {
+    assertEquals("select * from dm_folder",
+        FlightRecorderEvents.fingerprint("  select *\n  from\tdm_folder "));
+  }
+
+  public void testFingerprint_identifiers() {
+    // Digits within identifiers are not literals.
+    assertEquals("select attr_1 from my_type2",
+        FlightRecorderEvents.fingerprint("select attr_1 from my_type2"));
+  }
+
+  /** Without a recording, events do nothing. */
+  public void testDisabled() {
+    FlightRecorderEvents.Event event =
+        FlightRecorderEvents.begin(FlightRecorderEvents.Type.QUERY);
+    assertFalse(event.isEnabled());
+    event.setDocbase("docbase");
+    event.setQuery("select * from dm_folder");
+    event.setObjectId("0900000000000001");
+    event.setBytes(1L);
+    event.setCount(1);
+    event.commit();
+  }
+}